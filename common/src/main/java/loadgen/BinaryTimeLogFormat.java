@@ -0,0 +1,132 @@
+package loadgen;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Defines the layout of the binary time log, which a TestRunner writes instead of
+ * the CSV time logs when the TIME_LOG_FORMAT environment variable is "binary".
+ * Both request (EndToEnd) and detail (timelogBegin/timelogEnd) events are written
+ * to the same file. All values are big-endian.
+ *
+ * The file begins with a header:
+ *   int Magic, short Version, short RecordSize
+ *
+ * The header is followed by a sequence of records, each of which begins with a
+ * one-byte tag. Event records have a fixed width of RecordSize bytes:
+ *   byte tag ('R' or 'D'), byte code, short (unused),
+ *   int reqTypeId, int eventNameId, long requestId,
+ *   long startMicros, long endMicros, float reqRate, long intendedMicros
+ * For a request record, code is a result code, start/end are the actual start and
+ * end of the request, and intendedMicros is the time at which the request was due
+ * to start, according to its profile. For a detail record, code is EventBegin or
+ * EventEnd, and the time of the event is in startMicros (and intendedMicros). Times
+ * are in microseconds since the start of the run.
+ *
+ * Version 1 records have no intendedMicros field (RecordSize 40): a reader takes
+ * the intended start of a version 1 request to be its actual start.
+ *
+ * The request type and event name are interned: the first time a string is used,
+ * a name record is written before the event that uses it:
+ *   byte tag ('N'), int id, short length, byte[length] (UTF-8)
+ * The length is unsigned, so a name is at most MaxNameLength bytes: a longer name
+ * is truncated, at a character boundary, when it is encoded.
+ */
+public class BinaryTimeLogFormat
+{
+	public static final int Magic = 0x4C47544C;  // "LGTL"
+	public static final short Version = 2;
+	public static final short Version1 = 1;
+	public static final int HeaderSize = 8;
+	public static final short RecordSize = 48;
+	public static final int MaxNameLength = 0xFFFF;
+
+	public static final byte NameTag = 'N';
+	public static final byte RequestTag = 'R';
+	public static final byte DetailTag = 'D';
+
+	// Result codes for request records.
+	public static final byte ResultFalse = 0;
+	public static final byte ResultTrue = 1;
+	public static final byte ResultIncomplete = 2;
+	public static final byte ResultOther = 3;
+	public static final byte ResultDropped = 4;
+
+	// Codes for detail records.
+	public static final byte EventBegin = 0;
+	public static final byte EventEnd = 1;
+
+
+	public static byte[] encodeHeader()
+	{
+		ByteBuffer bb = ByteBuffer.allocate(HeaderSize);
+		bb.putInt(Magic);
+		bb.putShort(Version);
+		bb.putShort(RecordSize);
+		return bb.array();
+	}
+
+
+	public static byte[] encodeName(int id, String name)
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int length = bytes.length;
+		if (length > MaxNameLength)
+		{
+			// Do not split a multi-byte character: back up past its continuation bytes.
+			length = MaxNameLength;
+			while ((length > 0) && ((bytes[length] & 0xC0) == 0x80)) length--;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(1 + 4 + 2 + length);
+		bb.put(NameTag);
+		bb.putInt(id);
+		bb.putShort((short)length);
+		bb.put(bytes, 0, length);
+		return bb.array();
+	}
+
+
+	public static byte[] encodeEvent(byte tag, byte code, int reqTypeId, int eventNameId,
+		long requestId, long intendedMicros, long startMicros, long endMicros, float reqRate)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(RecordSize);
+		bb.put(tag);
+		bb.put(code);
+		bb.putShort((short)0);
+		bb.putInt(reqTypeId);
+		bb.putInt(eventNameId);
+		bb.putLong(requestId);
+		bb.putLong(startMicros);
+		bb.putLong(endMicros);
+		bb.putFloat(reqRate);
+		bb.putLong(intendedMicros);
+		return bb.array();
+	}
+
+
+	/** Convert a result string, as written in the CSV time log, to a result code. */
+	public static byte resultCode(String result)
+	{
+		if (result.equals("true")) return ResultTrue;
+		if (result.equals("false")) return ResultFalse;
+		if (result.equals("incomplete")) return ResultIncomplete;
+		if (result.equals("dropped")) return ResultDropped;
+		return ResultOther;
+	}
+
+
+	/** Convert a result code to the string that is written in the CSV time log. */
+	public static String resultString(byte code)
+	{
+		switch (code)
+		{
+			case ResultTrue: return "true";
+			case ResultFalse: return "false";
+			case ResultIncomplete: return "incomplete";
+			case ResultDropped: return "dropped";
+			default: return "other";
+		}
+	}
+}
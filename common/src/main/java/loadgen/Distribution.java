@@ -10,22 +10,26 @@ import java.util.jar.*;
 import java.util.function.*;
 import java.util.*;
 import java.nio.file.Files;
+import loadgen.profile.RateFunction;
 
 
 
 /** The number of tests to perform over time. Can be specified using one of a set of
-	distribution types. At present, only a "ramp" distribution type is supported. A ramp
-	consists of a set of points: each point is a load level reached after a period of time.
-	Load is ramped up (or dowen) linearly between each point. Load is assumed to begin
-	at 0. */
+	distribution types. A "ramp" consists of a set of points: each point is a load level
+	reached after a period of time. Load is ramped up (or dowen) linearly between each point.
+	Load is assumed to begin at 0. Other shapes - steps, sinusoids, exponential growth,
+	spikes, and per-second rate tables - can be overlaid on the ramp (see overlay): the
+	rates of the ramp and of the overlays are added, and the distribution's type is then
+	"composite". See RateFunction. */
 public class Distribution
 {
 	private AbstractLoadGenerator lg;
 	private String thisname;
 	private String thistype;
 	private List<double[]> thislevels = new Vector<double[]>();
+	private List<RateFunction> thisoverlays = new Vector<RateFunction>();
 
-	/** The allowed value for 'type' is 'ramp'. */
+	/** The type is 'ramp', or 'composite' if any overlays have been added. */
 	public Distribution(AbstractLoadGenerator lg, String name, Consumer<Distribution> block)
 	{
 		this.lg = lg;
@@ -42,6 +46,7 @@ public class Distribution
 
 	public String type()
 	{
+		if (thisoverlays.size() > 0) return "composite";
 		return thistype;
 	}
 
@@ -61,6 +66,60 @@ public class Distribution
 		return thislevels;
 	}
 
+	/** Add the rate of a function to the rate of the distribution. For example, to
+		add a spike to a baseline ramp:
+			level 10, 5
+			level 10, 20
+			spike 12, 50, 0.5, 1
+		*/
+	public void overlay(RateFunction f)
+	{
+		thisoverlays.add(f);
+	}
+
+	/** Overlay a sinusoid (such as a diurnal pattern): see RateFunction.sine. */
+	public void sine(double mean, double amplitude, double periodMinutes, double durationMinutes)
+	{
+		overlay(RateFunction.sine(mean, amplitude, periodMinutes, durationMinutes));
+	}
+
+	/** Overlay an exponential change in rate: see RateFunction.exponential. */
+	public void exponential(double fromRate, double toRate, double durationMinutes)
+	{
+		overlay(RateFunction.exponential(fromRate, toRate, durationMinutes));
+	}
+
+	/** Overlay a spike: see RateFunction.spike. */
+	public void spike(double atMinutes, double peakRate, double rampMinutes, double holdMinutes)
+	{
+		overlay(RateFunction.spike(atMinutes, peakRate, rampMinutes, holdMinutes));
+	}
+
+	/** Overlay a table of per-second rates, read from a file that contains one rate
+		per line. The file is read when the distribution is defined, and the rates
+		are included in the profiles that are sent to the nodes. */
+	public void table(String path)
+	{
+		overlay(RateFunction.table(path));
+	}
+
+	public List<RateFunction> overlays()
+	{
+		return thisoverlays;
+	}
+
+	/** Return the rate function of the distribution: the ramp defined by its levels,
+		plus its overlays. */
+	public RateFunction rateFunction()
+	{
+		RateFunction f = RateFunction.ramp(thislevels);
+		if (thisoverlays.size() == 0) return f;
+		List<RateFunction> functions = new Vector<RateFunction>();
+		functions.add(f);
+		functions.addAll(thisoverlays);
+		return RateFunction.sum(functions.toArray(new RateFunction[functions.size()]));
+	}
+
 
 	void writeDistributionAsJSON(int indentLevel, PrintWriter file)
 	{
@@ -78,6 +137,21 @@ public class Distribution
 			file.println(indstr + "\t{ \"dt\": " + level[1] +
 				", \"reqPerSec\": " + level[0] + " }");
 		}
-		file.println(indstr + "]");
+		file.print(indstr + "]");
+		if (thisoverlays.size() > 0)
+		{
+			file.println(",");
+			file.println(indstr + "\"overlays\": [");
+			firstTime = true;
+			for (RateFunction f : thisoverlays)
+			{
+				if (firstTime) firstTime = false;
+				else
+					file.println(indstr + "\t,");
+				file.println(indstr + "\t\"" + f.definition() + "\"");
+			}
+			file.print(indstr + "]");
+		}
+		file.println();
 	}
 }
@@ -11,4 +11,73 @@ public interface EnvVars
 
 	String JBehaveJarPathOnNode = "JBEHAVEJARPATHONNODE";
 	String LoadgenJarPathOnNode = "LOADGENJARPATHONNODE";
+
+	/** "csv" (the default) or "binary". See BinaryTimeLogFormat. */
+	String TimeLogFormat = "TIME_LOG_FORMAT";
+
+	/** "request" (the default), "thread", or "profile": how widely a class loader
+		for running tests is shared. */
+	String ClassLoaderIsolation = "CLASS_LOADER_ISOLATION";
+
+	/** Number of requests after which a shared class loader is replaced. */
+	String ClassLoaderMaxUses = "CLASS_LOADER_MAX_USES";
+
+	/** Metaspace growth (in MB) after which a shared class loader is replaced. */
+	String ClassLoaderMaxMetaspaceMB = "CLASS_LOADER_MAX_METASPACE_MB";
+
+	/** "jbehave" (the default) or "compiled": whether a TestRunner runs stories with
+		JBehave, or performs precompiled scenarios (see ScenarioCompiler). Compiled
+		execution requires a ClassLoaderIsolation of "thread" or "profile". */
+	String ExecutionMode = "EXECUTION_MODE";
+
+	/** "true" if a TestRunner should run stories without reporting (see
+		PerformanceRun.useFullReporting). */
+	String LoadMode = "LOAD_MODE";
+
+	/** "platform" (the default) or "virtual": the kind of thread on which a
+		TestRunner performs each request. Workers of either kind are long-lived and
+		reused, so with "thread" class loader isolation a loader is shared by the
+		requests that a worker performs, and there are at most MAX_IN_FLIGHT loaders. */
+	String RequestThreads = "REQUEST_THREADS";
+
+	/** Maximum number of requests in flight on a node. */
+	String MaxInFlight = "MAX_IN_FLIGHT";
+
+	/** Maximum number of requests of each profile in flight on a node. */
+	String MaxInFlightPerProfile = "MAX_IN_FLIGHT_PER_PROFILE";
+
+	/** "queue" (the default), "drop", or "block": what a TestRunner does with a
+		request when the maximum number of requests is in flight. */
+	String SaturationPolicy = "SATURATION_POLICY";
+
+	/** Request rate (per second, on a node) above which a TestRunner aborts. */
+	String MaxRequestRate = "MAX_REQUEST_RATE";
+
+	/** If set, the length (in microseconds) of the ticks in which a TestRunner
+		dispatches arrivals in batches, for very high request rates. By default,
+		each arrival is dispatched individually. */
+	String DispatchTickMicros = "DISPATCH_TICK_MICROS";
+
+	/** The index (starting at 0) of a node among the nodes of its test run, which
+		a TestRunner uses to select its share of a trace (see TraceProfile). */
+	String NodeIndex = "NODE_INDEX";
+
+	/** "true" if a TestRunner should log the time of each stage of its handling
+		of each request (see TestRunnerConstants.HarnessStages). */
+	String StageTimes = "STAGE_TIMES";
+
+	/** "false" if a TestRunner should write only its histogram log (see
+		HistogramLogFormat), and not the time logs of individual requests. */
+	String RawTimeLogs = "RAW_TIME_LOGS";
+
+	/** The number of requests of each request type, in each histogram interval,
+		of which a TestRunner should write raw time log entries, as a uniform random
+		sample (see SampleRetention). If neither this nor RETAIN_SLOWEST is set, every
+		request is written. */
+	String RetainSample = "RETAIN_SAMPLE";
+
+	/** The number of the slowest requests of each request type, in each histogram
+		interval, of which a TestRunner should write raw time log entries, in addition
+		to those of RETAIN_SAMPLE. */
+	String RetainSlowest = "RETAIN_SLOWEST";
 }
@@ -0,0 +1,64 @@
+package loadgen;
+
+
+/**
+ * Defines the layout of the histogram log, to which a TestRunner writes a
+ * snapshot of its latency histograms (see LatencyHistogram) at the end of each
+ * interval of IntervalMicros. Each line is a snapshot of one histogram, with these
+ * tab-separated fields:
+ *   intervalStartMs, reqType, eventName, kind, failures, histogram
+ * intervalStartMs is the start of the interval, in ms since the start of the run.
+ * kind is Latency, or Corrected for the end-to-end latency as measured from the
+ * intended start of each request. The histogram contains the times, in
+ * microseconds, of the events of the requests that passed, and failures is the
+ * number of requests that did not pass (whose events are not in the histogram).
+ *
+ * There may be more than one snapshot for a key and interval (e.g., one from each
+ * node); they are merged by adding them.
+ */
+public class HistogramLogFormat
+{
+	public static final String FileName = "histograms.log";
+	public static final long IntervalMicros = 5000000L;
+
+	public static final String Latency = "latency";
+	public static final String Corrected = "corrected";
+
+
+	/** One line of the log. */
+	public static class Snapshot
+	{
+		public final long intervalStartMs;
+		public final String reqType;
+		public final String eventName;
+		public final String kind;
+		public final long failures;
+		public final LatencyHistogram histogram;
+
+		public Snapshot(long intervalStartMs, String reqType, String eventName, String kind,
+			long failures, LatencyHistogram histogram)
+		{
+			this.intervalStartMs = intervalStartMs;
+			this.reqType = reqType;
+			this.eventName = eventName;
+			this.kind = kind;
+			this.failures = failures;
+			this.histogram = histogram;
+		}
+
+		public String encode()
+		{
+			return intervalStartMs + "\t" + reqType + "\t" + eventName + "\t" + kind + "\t" +
+				failures + "\t" + histogram.encode();
+		}
+	}
+
+
+	public static Snapshot decode(String line)
+	{
+		String[] fields = line.split("\t");
+		if (fields.length != 6) throw new RuntimeException("Ill-formed histogram log line: " + line);
+		return new Snapshot(Long.parseLong(fields[0]), fields[1], fields[2], fields[3],
+			Long.parseLong(fields[4]), LatencyHistogram.decode(fields[5]));
+	}
+}
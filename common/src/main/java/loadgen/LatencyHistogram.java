@@ -0,0 +1,179 @@
+package loadgen;
+
+
+/**
+ * A histogram of latencies, in microseconds, in the manner of HdrHistogram: values
+ * are counted in buckets whose width grows with the value, so that every value is
+ * represented to within 1/SubBuckets (under 1%) of its magnitude, using a fixed
+ * amount of memory, however many values are recorded. Values below SubBuckets
+ * microseconds are counted exactly; larger values are counted in SubBuckets/2
+ * buckets for each power of two. Values above MaxValue (about 38 hours) are
+ * counted as MaxValue.
+ *
+ * Histograms that are recorded separately (e.g., on different nodes, or in
+ * different intervals) can be merged by adding their counts: the result is the
+ * same as if all of the values had been recorded in one histogram. The count,
+ * min, max, sum, and sum of squares are exact, so the mean and standard
+ * deviation are exact; percentiles are within the precision of the buckets.
+ *
+ * A histogram is not thread safe.
+ */
+public class LatencyHistogram
+{
+	public static final int SubBucketBits = 7;
+	public static final int SubBuckets = 1 << SubBucketBits;  // 128
+	public static final int MaxExponent = 30;
+	public static final long MaxValue = (1L << (MaxExponent + SubBucketBits)) - 1;
+	public static final int NoOfBuckets = (MaxExponent + 2) * (SubBuckets / 2);
+
+	private long[] thisCounts = new long[NoOfBuckets];
+	private long thisCount = 0;
+	private long thisMin = Long.MAX_VALUE;
+	private long thisMax = 0;
+	private double thisSum = 0.0;
+	private double thisSumOfSquares = 0.0;
+
+
+	/** Return the index of the bucket that counts the value. */
+	public static int bucketIndex(long value)
+	{
+		if (value < SubBuckets) return (int)value;
+		int exponent = (63 - Long.numberOfLeadingZeros(value)) - (SubBucketBits - 1);
+		return (exponent * (SubBuckets / 2)) + (int)(value >> exponent);
+	}
+
+
+	/** Return the smallest value that is counted by the bucket. */
+	public static long bucketLowValue(int index)
+	{
+		if (index < SubBuckets) return index;
+		int exponent = (index / (SubBuckets / 2)) - 1;
+		long mantissa = (index % (SubBuckets / 2)) + (SubBuckets / 2);
+		return mantissa << exponent;
+	}
+
+
+	/** Return the largest value that is counted by the bucket. */
+	public static long bucketHighValue(int index)
+	{
+		if (index < SubBuckets) return index;
+		return bucketLowValue(index + 1) - 1;
+	}
+
+
+	public void record(long micros)
+	{
+		if (micros < 0) micros = 0;
+		if (micros > MaxValue) micros = MaxValue;
+		thisCounts[bucketIndex(micros)]++;
+		thisCount++;
+		if (micros < thisMin) thisMin = micros;
+		if (micros > thisMax) thisMax = micros;
+		thisSum = thisSum + micros;
+		thisSumOfSquares = thisSumOfSquares + ((double)micros * (double)micros);
+	}
+
+
+	/** Add the values of the other histogram to this histogram. */
+	public void add(LatencyHistogram other)
+	{
+		if (other.thisCount == 0) return;
+		for (int i = 0; i < NoOfBuckets; i++) thisCounts[i] += other.thisCounts[i];
+		thisCount = thisCount + other.thisCount;
+		if (other.thisMin < thisMin) thisMin = other.thisMin;
+		if (other.thisMax > thisMax) thisMax = other.thisMax;
+		thisSum = thisSum + other.thisSum;
+		thisSumOfSquares = thisSumOfSquares + other.thisSumOfSquares;
+	}
+
+
+	public long count() { return thisCount; }
+
+	public long min() { return (thisCount == 0 ? 0 : thisMin); }
+
+	public long max() { return thisMax; }
+
+	public double sum() { return thisSum; }
+
+	public double mean()
+	{
+		return thisSum / (double)thisCount;
+	}
+
+	/** The population standard deviation, as computed by PerformanceRun.getStats. */
+	public double standardDeviation()
+	{
+		double mean = mean();
+		double variance = (thisSumOfSquares / (double)thisCount) - (mean * mean);
+		return Math.sqrt(Math.max(0.0, variance));
+	}
+
+
+	/** Return the value below which 'percent' percent of the values fall: the
+		value of the same rank as PerformanceRun.getPercentile selects from a sorted
+		list, represented by the middle of its bucket, and limited to the exact min
+		and max. */
+	public long percentile(double percent)
+	{
+		if (thisCount == 0) throw new RuntimeException("The histogram is empty");
+		long rank = (long)((percent / 100.0) * (double)(thisCount - 1));
+		long seen = 0;
+		for (int i = 0; i < NoOfBuckets; i++)
+		{
+			seen = seen + thisCounts[i];
+			if (seen > rank)
+			{
+				long value = (bucketLowValue(i) + bucketHighValue(i)) / 2;
+				return Math.max(min(), Math.min(thisMax, value));
+			}
+		}
+		return thisMax;
+	}
+
+
+	/** Return a compact text form of the histogram, which does not contain tabs:
+			count,min,max,sum,sumOfSquares;index:count index:count ...
+		where only the buckets that have a count are listed. */
+	public String encode()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(thisCount).append(',').append(min()).append(',').append(thisMax)
+			.append(',').append(thisSum).append(',').append(thisSumOfSquares).append(';');
+		boolean firstTime = true;
+		for (int i = 0; i < NoOfBuckets; i++)
+		{
+			if (thisCounts[i] == 0) continue;
+			if (firstTime) firstTime = false;
+			else sb.append(' ');
+			sb.append(i).append(':').append(thisCounts[i]);
+		}
+		return sb.toString();
+	}
+
+
+	/** Parse the text form that is returned by encode. */
+	public static LatencyHistogram decode(String s)
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		String[] parts = s.split(";", 2);
+		String[] summary = parts[0].split(",");
+		if (summary.length != 5) throw new RuntimeException("Ill-formed histogram: " + s);
+		h.thisCount = Long.parseLong(summary[0]);
+		h.thisMin = (h.thisCount == 0 ? Long.MAX_VALUE : Long.parseLong(summary[1]));
+		h.thisMax = Long.parseLong(summary[2]);
+		h.thisSum = Double.parseDouble(summary[3]);
+		h.thisSumOfSquares = Double.parseDouble(summary[4]);
+		if ((parts.length > 1) && (! parts[1].trim().equals("")))
+		{
+			for (String bucket : parts[1].trim().split(" "))
+			{
+				String[] pair = bucket.split(":");
+				int index = Integer.parseInt(pair[0]);
+				if ((index < 0) || (index >= NoOfBuckets)) throw new RuntimeException(
+					"Histogram bucket out of range: " + index);
+				h.thisCounts[index] = Long.parseLong(pair[1]);
+			}
+		}
+		return h;
+	}
+}
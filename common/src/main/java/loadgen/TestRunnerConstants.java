@@ -16,6 +16,18 @@ public class TestRunnerConstants
 	/** From timelogBeginTest to timelogEndTest */
 	public static String WholeTest = "WholeTest";
 
+	/** If stage times are recorded (see EnvVars.StageTimes), the TestRunner
+		generates an event for each stage of its handling of a request, named with
+		this prefix followed by the stage: the event measures the time from the
+		previous stage that the request reached. */
+	public static String HarnessPrefix = "Harness.";
+
+	/** The stages, in order: a worker began the request; a step class loader was
+		acquired; an Embedder (or a compiled plan) was obtained; the test called
+		timelogBeginTest; the test called timelogEndTest; the request finished. */
+	public static final String[] HarnessStages = {
+		"Dispatched", "LoaderReady", "EmbedderReady", "TestBegin", "TestEnd", "Done" };
+
 
 
 	public static final String NodeProjectRoot = "/var/Project";
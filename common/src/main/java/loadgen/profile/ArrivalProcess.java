@@ -0,0 +1,193 @@
+package loadgen.profile;
+
+
+import java.util.Random;
+
+
+/** The statistical process by which requests arrive, at the mean rate defined by a
+	Distribution. A process is defined in "operational time", in which the rate is
+	always 1: a process generates the intervals between arrivals in operational time,
+	with a mean of 1, and the TestRunner maps operational time onto the distribution's
+	cumulative intensity, Lambda(t). Thus every process yields the distribution's rate
+	on average, and differs only in how arrivals vary about that rate:
+		poisson - exponential intervals (the default): arrivals are independent.
+		uniform - constant intervals: deterministic pacing, with the lowest variance.
+		erlang(k) - intervals that are the sum of k exponential phases: more regular
+			than poisson, approaching uniform as k increases.
+		mmpp(burstRatio, burstFraction, burstLength) - a two-state Markov-modulated
+			Poisson process: a fraction burstFraction of operational time is spent in
+			a burst state, in which the rate is burstRatio times the mean, and the
+			rest in a quiet state, whose rate is lowered so that the mean is still 1.
+			The mean length of a burst is burstLength (in operational time, i.e., the
+			number of requests that would arrive at the mean rate).
+	A process is written to a profile file as its definition, e.g. "erlang(4)". */
+public abstract class ArrivalProcess
+{
+	public static final ArrivalProcess Poisson = new ArrivalProcess()
+	{
+		public Sequence sequence(final Random random)
+		{
+			return () -> exponential(random, 1.0);
+		}
+
+		public String definition() { return "poisson"; }
+	};
+
+
+	public static final ArrivalProcess Uniform = new ArrivalProcess()
+	{
+		public Sequence sequence(final Random random)
+		{
+			// Begin at a random phase, so that the nodes of a test run are not in step.
+			return new Sequence()
+			{
+				private boolean thisFirst = true;
+
+				public double nextInterval()
+				{
+					if (! thisFirst) return 1.0;
+					thisFirst = false;
+					return random.nextDouble();
+				}
+			};
+		}
+
+		public String definition() { return "uniform"; }
+	};
+
+
+	/** The intervals between arrivals, in operational time. */
+	public interface Sequence
+	{
+		double nextInterval();
+	}
+
+
+	/** Return a new sequence of intervals. Sequences may have state (see mmpp), and
+		so each arrival stream must have its own. */
+	public abstract Sequence sequence(Random random);
+
+	/** Return the definition of the process (see above). */
+	public abstract String definition();
+
+
+	public String toString()
+	{
+		return definition();
+	}
+
+
+	public static ArrivalProcess erlang(final int k)
+	{
+		if (k < 1) throw new RuntimeException("Erlang k must be at least 1: " + k);
+		return new ArrivalProcess()
+		{
+			public Sequence sequence(final Random random)
+			{
+				return () ->
+				{
+					double interval = 0.0;
+					for (int i = 0; i < k; i++) interval = interval + exponential(random, k);
+					return interval;
+				};
+			}
+
+			public String definition() { return "erlang(" + k + ")"; }
+		};
+	}
+
+
+	public static ArrivalProcess mmpp(final double burstRatio, final double burstFraction,
+		final double burstLength)
+	{
+		if ((burstFraction <= 0.0) || (burstFraction >= 1.0)) throw new RuntimeException(
+			"MMPP burst fraction must be between 0 and 1: " + burstFraction);
+		if (burstRatio < 1.0) throw new RuntimeException(
+			"MMPP burst ratio must be at least 1: " + burstRatio);
+		if (burstRatio * burstFraction > 1.0) throw new RuntimeException(
+			"MMPP burst ratio times burst fraction may not exceed 1");
+		if (burstLength <= 0.0) throw new RuntimeException(
+			"MMPP burst length must be greater than 0: " + burstLength);
+
+		final double[] rates = { (1.0 - burstRatio * burstFraction) / (1.0 - burstFraction), burstRatio };
+		final double[] meanSojourns = { burstLength * (1.0 - burstFraction) / burstFraction, burstLength };
+
+		return new ArrivalProcess()
+		{
+			public Sequence sequence(final Random random)
+			{
+				// By memorylessness, the interval to the next arrival is obtained by
+				// racing an arrival in the current state against a change of state.
+				return new Sequence()
+				{
+					private int thisState = (random.nextDouble() < burstFraction) ? 1 : 0;
+					private double thisTimeInState = exponential(random, 1.0 / meanSojourns[thisState]);
+
+					public double nextInterval()
+					{
+						double interval = 0.0;
+						for (;;)
+						{
+							double toArrival = exponential(random, rates[thisState]);
+							if (toArrival < thisTimeInState)
+							{
+								thisTimeInState = thisTimeInState - toArrival;
+								return interval + toArrival;
+							}
+							interval = interval + thisTimeInState;
+							thisState = 1 - thisState;
+							thisTimeInState = exponential(random, 1.0 / meanSojourns[thisState]);
+						}
+					}
+				};
+			}
+
+			public String definition()
+			{
+				return "mmpp(" + burstRatio + ", " + burstFraction + ", " + burstLength + ")";
+			}
+		};
+	}
+
+
+	/** Parse a definition, as returned by definition(). */
+	public static ArrivalProcess parse(String definition)
+	{
+		String def = definition.trim();
+		String name = def;
+		String[] args = new String[0];
+		int paren = def.indexOf('(');
+		if (paren >= 0)
+		{
+			if (! def.endsWith(")")) throw new RuntimeException(
+				"Invalid arrival process: " + definition);
+			name = def.substring(0, paren).trim();
+			String argString = def.substring(paren+1, def.length()-1).trim();
+			if (! argString.equals("")) args = argString.split(",");
+		}
+
+		try
+		{
+			if (name.equals("poisson") && (args.length == 0)) return Poisson;
+			if (name.equals("uniform") && (args.length == 0)) return Uniform;
+			if (name.equals("erlang") && (args.length == 1))
+				return erlang(Integer.parseInt(args[0].trim()));
+			if (name.equals("mmpp") && (args.length == 3))
+				return mmpp(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()),
+					Double.parseDouble(args[2].trim()));
+		}
+		catch (NumberFormatException ex) { throw new RuntimeException(
+			"Invalid arrival process: " + definition, ex); }
+
+		throw new RuntimeException("Unrecognized arrival process: " + definition);
+	}
+
+
+	/** Return an exponentially distributed interval, for the specified rate. A rate
+		of 0 yields an infinite interval. */
+	static double exponential(Random random, double rate)
+	{
+		if (rate <= 0.0) return Double.POSITIVE_INFINITY;
+		return -Math.log(1.0 - random.nextDouble()) / rate;
+	}
+}
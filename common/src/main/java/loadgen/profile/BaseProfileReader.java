@@ -20,6 +20,27 @@ public abstract class BaseProfileReader
 
 	public void parseNextPartLine(String data) {}
 
+	/** Return true if this reader reads profiles of the specified type (the first
+		token of a profile). */
+	public boolean acceptsProfileType(String profileType)
+	{
+		return profileType.equals("PerformanceProfile");
+	}
+
+
+	/** Return the type of the profile in the specified file, so that the
+		appropriate reader can be chosen. */
+	public static String readProfileType(String profileFile)
+	{
+		try (BufferedReader file = new BufferedReader(new FileReader(profileFile)))
+		{
+			String line = file.readLine();
+			if (line == null) throw new RuntimeException("Profile " + profileFile + " is empty");
+			return line.trim().split(" ")[0];
+		}
+		catch (IOException ex) { throw new RuntimeException(ex); }
+	}
+
 
 	/**
 	 * Read and parse the profile.
@@ -46,7 +67,7 @@ public abstract class BaseProfileReader
 				String profileType = parts[0];
 				String requestType = parts[1];
 
-				if (!profileType.equals("PerformanceProfile"))
+				if (! acceptsProfileType(profileType))
 					throw new RuntimeException("Unrecognized profile type: " + profileType);
 				createProfile();
 				setRequestType(requestType);
@@ -13,18 +13,41 @@ import java.util.List;
  * that may not include newline:
  *
  * profile ::=
- *   profile_type request_type_name '\n' tag_line levels
+ *   profile_type request_type_name '\n' tag_line [ arrival_line ] levels |
+ *   'TraceProfile' request_type_name '\n' tag_line trace_lines
+ *   | 'ClosedProfile' request_type_name '\n' tag_line closed_lines
+ *   | 'SessionProfile' session_name '\n' tag_line [ arrival_line ] levels session_lines
+ *   | 'MixProfile' mix_name '\n' tag_line [ arrival_line ] levels mix_lines
  *   profile_type ::= 'PerformanceProfile' | 'FunctionalProfile'
  *   request_type_name ::= StringToken
  *   tag_line ::= tag_entry* '\n'
  *   tag_entry ::= '--tags' tag
  *   tag ::= StringToken
- *   levels ::= level_line*
+ *   arrival_line ::= 'arrival' arrival_process '\n'
+ *   arrival_process ::= an ArrivalProcess definition (see ArrivalProcess)
+ *   levels ::= level_line* [ rate_line ]
  *   level_line ::= req_per_sec ',' after_minutes '\n'
  *   req_per_sec ::= FloatNumberToken
  *   after_minutes ::= FloatNumberToken
+ *   rate_line ::= 'rate' rate_function '\n'
+ *   rate_function ::= a RateFunction definition (see RateFunction)
+ *   trace_lines ::= 'trace' node_path '\n' 'scale' FloatNumberToken '\n'
+ *       'shard' ('roundrobin' | 'hash') no_of_nodes '\n' type_line*
+ *   type_line ::= 'type' request_type_name tag_entry* '\n'
+ *   closed_lines ::= 'think' think_time '\n' 'pacing' FloatNumberToken '\n'
+ *       'nodes' no_of_nodes '\n' user_level_line*
+ *   think_time ::= a ThinkTime definition (see ThinkTime)
+ *   user_level_line ::= users ',' after_minutes '\n'
+ *   session_lines ::= (entry_line | edge_line)* type_line*
+ *   entry_line ::= 'entry' request_type_name probability '\n'
+ *   edge_line ::= 'edge' request_type_name request_type_name probability think_time '\n'
+ *   mix_lines ::= mix_line* level_mix_line* type_line*
+ *   mix_line ::= 'mix' request_type_name weight '\n'
+ *   level_mix_line ::= 'levelmix' level_no request_type_name weight '\n'
  *
  * If profile_type is 'FunctionalProfile', then there may not be any levels.
+ * If there is a rate_line, then it defines the request rate, and the level_lines
+ * define only the spans of time of the levels (see MixProfile.levelMix).
  *
  * Example of a performance profile:
  *   PerformanceProfile BaselineLoad
@@ -32,10 +55,62 @@ import java.util.List;
  *   1.0, 10.0
  *   5.0, 1.0
  *
+ * Example of a performance profile with a spike overlaid on a ramp:
+ *   PerformanceProfile BaselineLoad
+ *   --tags @Performance
+ *   1.0, 10.0
+ *   5.0, 1.0
+ *   rate sum(ramp(1.0, 10.0, 5.0, 1.0), spike(5.0, 20.0, 0.5, 1.0))
+ *
+ * Example of a performance profile with deterministic pacing:
+ *   PerformanceProfile BaselineLoad
+ *   --tags @Performance
+ *   arrival uniform
+ *   1.0, 10.0
+ *
  * Example of a functional profile:
  *   FunctionalProfile LogonTests
  *   --tags @Logon --tags @Release1
  *
+ * Example of a trace profile (see TraceProfile):
+ *   TraceProfile Checkout
+ *   --tags @Checkout
+ *   trace /var/Project/Replay.trace
+ *   scale 0.5
+ *   shard hash 4
+ *   type Search --tags @Search
+ *
+ * Example of a closed profile, for 100 users across all nodes (see ClosedProfile):
+ *   ClosedProfile Browse
+ *   --tags @Browse
+ *   think exponential(5.0)
+ *   pacing 0.0
+ *   nodes 4
+ *   100.0, 2.0
+ *   100.0, 30.0
+ *
+ * Example of a session profile, with 2 sessions per second (see SessionProfile):
+ *   SessionProfile Shopper
+ *
+ *   2.0, 1.0
+ *   entry Login 1.0
+ *   edge Login Search 0.9 exponential(3.0)
+ *   edge Search Checkout 0.3 constant(10.0)
+ *   type Login --tags @Login
+ *   type Search --tags @Search
+ *   type Checkout --tags @Checkout
+ *
+ * Example of a mix profile, with a 70/20/10 mix at 10 requests per second:
+ *   MixProfile Shop
+ *
+ *   10.0, 5.0
+ *   mix Browse 70.0
+ *   mix Search 20.0
+ *   mix Buy 10.0
+ *   type Browse --tags @Browse
+ *   type Search --tags @Search
+ *   type Buy --tags @Buy
+ *
  * The counterpart to this method in TestRunner.rb is the method buildProfile(profileFile).
  * These two methods should ideally be factored into a shared module but it
  * is too much trouble for the benefit.
@@ -0,0 +1,112 @@
+package loadgen.profile;
+
+import loadgen.AbstractLoadGenerator;
+import loadgen.Distribution;
+
+import java.io.PrintWriter;
+import java.util.function.*;
+import java.util.*;
+
+
+/** A closed-model profile: a number of virtual users, each of which repeatedly
+	performs the profile's request type, waiting for a think time after each request
+	completes. Thus the request rate is determined by the number of users and by how
+	quickly the system under test responds, rather than by a Distribution of
+	arrivals. The number of users may vary over time: it is given by a Distribution,
+	whose levels are interpreted as numbers of users (for all nodes), rather than as
+	request rates. An optional pacing sets the minimum interval between the starts of
+	a user's successive requests. */
+public class ClosedProfile extends AbstractProfile
+{
+	private String thisUsersDistributionName;
+	private ThinkTime thisThinkTime = ThinkTime.None;
+	private double thisPacing = 0.0;
+
+
+	public ClosedProfile(AbstractLoadGenerator lg, String name, Consumer<ClosedProfile> block)
+	{
+		super(lg, name);
+		if (block != null) block.accept(this);
+	}
+
+	/** Specify the distribution whose levels are the number of users over time. */
+	public void setUsers(String distName)
+	{
+		thisUsersDistributionName = distName;
+	}
+
+	public String users()
+	{
+		return thisUsersDistributionName;
+	}
+
+	/** Specify the think time: see ThinkTime. */
+	public void setThinkTime(String definition)
+	{
+		thisThinkTime = ThinkTime.parse(definition);
+	}
+
+	public ThinkTime thinkTime()
+	{
+		return thisThinkTime;
+	}
+
+	/** Specify the minimum time (in seconds) from the start of one of a user's
+		requests to the start of its next; 0 (the default) for no pacing. */
+	public void setPacing(double seconds)
+	{
+		if (seconds < 0.0) throw new RuntimeException("Pacing may not be negative");
+		thisPacing = seconds;
+	}
+
+	public double pacing()
+	{
+		return thisPacing;
+	}
+
+
+	String getProfileDefinition(final AbstractTestRun testRun)
+	{
+		ClosedProfileWriter profileWriter = new ClosedProfileWriter()
+		{
+			public String getTestRunType() { return "Closed"; }
+
+			public String getRequestTypeName() { return requestType(); }
+
+			public List<String> getTags() { return lg.getRequestType(getRequestTypeName()).tags(); }
+
+			public int getNoOfNodes()
+			{
+				AbstractProvider prov = testRun.getProvider();
+				if (prov.isDynamic()) return testRun.noOfNodes();  // use value configured for the AbstractTestRun
+				else return ((StaticProvider)prov).noOfNodes();  // use value configured for the Provider
+			}
+
+			public ThinkTime getThinkTime() { return thinkTime(); }
+
+			public double getPacing() { return pacing(); }
+
+			public List<double[]> getUserLevels()
+			{
+				Distribution distribution = lg.getDistribution(users());
+				return distribution.levels();
+			}
+		};
+
+		return profileWriter.getProfileDefinition();
+	}
+
+
+	void writeProfileAsJSON(int indentLevel, PrintWriter file)
+	{
+		String indstr = lg.getIndentStrForLevel(indentLevel);
+
+		file.println(indstr + "\"name\": \"" + name() + "\",");
+		file.println(indstr + "\"hostname\": \"" + hostname() + "\",");
+		file.println(indstr + "\"timestamp\": \"" + timestamp() + "\",");
+		file.println(indstr + "\"requestType\": \"" + requestType() + "\",");
+		file.println(indstr + "\"users\": \"" + users() + "\",");
+		file.println(indstr + "\"thinkTime\": \"" + thinkTime().definition() + "\",");
+		file.println(indstr + "\"pacing\": " + pacing());
+	}
+}
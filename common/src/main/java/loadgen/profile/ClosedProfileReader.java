@@ -0,0 +1,28 @@
+package loadgen.profile;
+
+
+public abstract class ClosedProfileReader extends BaseProfileReader
+{
+	public abstract void setThinkTime(ThinkTime thinkTime);
+	public abstract void setPacing(double seconds);
+	public abstract void setNoOfNodes(int noOfNodes);
+	public abstract void addUserLevel(double users, double deltaInMinutes);
+
+	public boolean acceptsProfileType(String profileType)
+	{
+		return profileType.equals("ClosedProfile");
+	}
+
+	public void parseNextPartLine(String data)
+	{
+		if (data.equals("")) return;
+		if (data.startsWith("think ")) setThinkTime(ThinkTime.parse(data.substring("think ".length())));
+		else if (data.startsWith("pacing ")) setPacing(Double.parseDouble(data.substring("pacing ".length()).trim()));
+		else if (data.startsWith("nodes ")) setNoOfNodes(Integer.parseInt(data.substring("nodes ".length()).trim()));
+		else
+		{
+			String[] level = data.split(",");
+			addUserLevel(Double.parseDouble(level[0]), Double.parseDouble(level[1]));
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package loadgen.profile;
+
+
+import java.util.List;
+
+
+public abstract class ClosedProfileWriter extends BaseProfileWriter
+{
+	public abstract ThinkTime getThinkTime();
+	public abstract double getPacing();
+
+	/** Levels of { users, deltaInMinutes }, for all nodes. */
+	public abstract List<double[]> getUserLevels();
+
+	/** The user levels are written for all nodes, with the number of nodes, so that
+		each node can take an exact share of the users (see TestRunner). */
+	public String getProfileDefinition()
+	{
+		String profileDef = super.getProfileDefinition();
+		profileDef = profileDef + "think " + getThinkTime().definition() + "\n";
+		profileDef = profileDef + "pacing " + getPacing() + "\n";
+		profileDef = profileDef + "nodes " + getNoOfNodes() + "\n";
+		for (double[] level : getUserLevels())
+			profileDef = profileDef + level[0] + ", " + level[1] + "\n";
+		return profileDef;
+	}
+}
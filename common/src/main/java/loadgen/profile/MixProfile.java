@@ -0,0 +1,161 @@
+package loadgen.profile;
+
+import loadgen.AbstractLoadGenerator;
+import loadgen.Distribution;
+
+import java.io.PrintWriter;
+import java.util.function.*;
+import java.util.*;
+
+
+/** A profile that performs a weighted mix of request types from a single stream
+	of arrivals, at the total rate of a Distribution: each arrival performs a
+	request type chosen at random, in proportion to the weights of the mix. Thus
+	the mix ratio is exact on average, and there is one arrival stream to schedule,
+	rather than one for each request type. The mix may be replaced for individual
+	levels of the distribution (see levelMix). */
+public class MixProfile extends AbstractProfile
+{
+	private String thisDistributionName;
+	private ArrivalProcess thisArrivalProcess = ArrivalProcess.Poisson;
+	private Map<String, Double> thisMix = new LinkedHashMap<String, Double>();
+	private Map<Integer, Map<String, Double>> thisLevelMixes = new TreeMap<Integer, Map<String, Double>>();
+
+
+	public MixProfile(AbstractLoadGenerator lg, String name, Consumer<MixProfile> block)
+	{
+		super(lg, name);
+		if (block != null) block.accept(this);
+		if (thisMix.isEmpty()) throw new RuntimeException("Mix profile " + name + " has no request types");
+	}
+
+	/** Specify the distribution of the total request rate. */
+	public void setDistribution(String distName)
+	{
+		thisDistributionName = distName;
+	}
+
+	public String distribution()
+	{
+		return thisDistributionName;
+	}
+
+	/** Specify how requests arrive: see ArrivalProcess. */
+	public void setArrivalProcess(String definition)
+	{
+		thisArrivalProcess = ArrivalProcess.parse(definition);
+	}
+
+	public ArrivalProcess arrivalProcess()
+	{
+		return thisArrivalProcess;
+	}
+
+	/** Add a request type to the mix, with a weight (e.g., 70, 20, and 10). */
+	public void mix(String reqTypeName, double weight)
+	{
+		if (weight <= 0.0) throw new RuntimeException("A mix weight must be greater than 0");
+		thisMix.put(reqTypeName, weight);
+	}
+
+	/** Add a request type to the mix for a level of the distribution (numbered
+		from 1, in the order of the Distribution's level calls). For the span of
+		time of a level that has a mix of its own, that mix replaces the mix that is
+		defined by the mix method. */
+	public void levelMix(int levelNo, String reqTypeName, double weight)
+	{
+		if (weight <= 0.0) throw new RuntimeException("A mix weight must be greater than 0");
+		Map<String, Double> mix = thisLevelMixes.get(levelNo);
+		if (mix == null)
+		{
+			mix = new LinkedHashMap<String, Double>();
+			thisLevelMixes.put(levelNo, mix);
+		}
+		mix.put(reqTypeName, weight);
+	}
+
+	public Map<String, Double> getMix()
+	{
+		return thisMix;
+	}
+
+	public Map<Integer, Map<String, Double>> getLevelMixes()
+	{
+		return thisLevelMixes;
+	}
+
+	/** Return all of the request types of the mix, including those of level mixes. */
+	public Set<String> requestTypes()
+	{
+		Set<String> names = new LinkedHashSet<String>(thisMix.keySet());
+		for (Map<String, Double> mix : thisLevelMixes.values()) names.addAll(mix.keySet());
+		return names;
+	}
+
+
+	String getProfileDefinition(final AbstractTestRun testRun)
+	{
+		MixProfileWriter profileWriter = new MixProfileWriter()
+		{
+			public String getTestRunType() { return "Mix"; }
+
+			public String getRequestTypeName() { return name(); }
+
+			public List<String> getTags() { return new Vector<String>(); }
+
+			public int getNoOfNodes()
+			{
+				AbstractProvider prov = testRun.getProvider();
+				if (prov.isDynamic()) return testRun.noOfNodes();  // use value configured for the AbstractTestRun
+				else return ((StaticProvider)prov).noOfNodes();  // use value configured for the Provider
+			}
+
+			public List<double[]> getLevels()
+			{
+				return lg.getDistribution(distribution()).levels();
+			}
+
+			public RateFunction getRateFunction()
+			{
+				Distribution distribution = lg.getDistribution(distribution());
+				if (distribution.overlays().size() == 0) return null;
+				return distribution.rateFunction();
+			}
+
+			public ArrivalProcess getArrivalProcess() { return arrivalProcess(); }
+
+			public Map<String, Double> getMix() { return MixProfile.this.getMix(); }
+
+			public Map<Integer, Map<String, Double>> getLevelMixes() { return MixProfile.this.getLevelMixes(); }
+
+			public Set<String> getRequestTypeNames() { return requestTypes(); }
+
+			public List<String> getTags(String reqTypeName) { return lg.getRequestType(reqTypeName).tags(); }
+		};
+
+		return profileWriter.getProfileDefinition();
+	}
+
+
+	void writeProfileAsJSON(int indentLevel, PrintWriter file)
+	{
+		String indstr = lg.getIndentStrForLevel(indentLevel);
+
+		file.println(indstr + "\"name\": \"" + name() + "\",");
+		file.println(indstr + "\"hostname\": \"" + hostname() + "\",");
+		file.println(indstr + "\"timestamp\": \"" + timestamp() + "\",");
+		file.println(indstr + "\"distribution\": \"" + distribution() + "\",");
+		file.println(indstr + "\"arrivalProcess\": \"" + arrivalProcess().definition() + "\",");
+		file.println(indstr + "\"mix\": [");
+		boolean firstTime = true;
+		for (String reqTypeName : thisMix.keySet())
+		{
+			if (firstTime) firstTime = false;
+			else
+				file.println(indstr + "\t,");
+			file.println(indstr + "\t{ \"requestType\": \"" + reqTypeName +
+				"\", \"weight\": " + thisMix.get(reqTypeName) + " }");
+		}
+		file.println(indstr + "]");
+	}
+}
@@ -0,0 +1,36 @@
+package loadgen.profile;
+
+
+public abstract class MixProfileReader extends PerformanceProfileReader
+{
+	public abstract void addMix(String reqTypeName, double weight);
+	public abstract void addLevelMix(int levelNo, String reqTypeName, double weight);
+	public abstract void addRequestType(String reqTypeName, String tagString);
+
+	public boolean acceptsProfileType(String profileType)
+	{
+		return profileType.equals("MixProfile");
+	}
+
+	public void parseNextPartLine(String data)
+	{
+		if (data.equals("")) return;
+		if (data.startsWith("mix "))
+		{
+			String[] parts = data.split(" ");
+			addMix(parts[1], Double.parseDouble(parts[2]));
+		}
+		else if (data.startsWith("levelmix "))
+		{
+			String[] parts = data.split(" ");
+			addLevelMix(Integer.parseInt(parts[1]), parts[2], Double.parseDouble(parts[3]));
+		}
+		else if (data.startsWith("type "))
+		{
+			String[] type = data.substring("type ".length()).trim().split(" ", 2);
+			addRequestType(type[0], (type.length > 1 ? type[1].trim() : ""));
+		}
+		else
+			super.parseNextPartLine(data);
+	}
+}
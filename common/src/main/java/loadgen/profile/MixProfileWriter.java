@@ -0,0 +1,38 @@
+package loadgen.profile;
+
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/** Writes a mix profile: a performance profile, whose levels are total request
+	rates, followed by the mix, any level mixes, and the tags of each request type. */
+public abstract class MixProfileWriter extends PerformanceProfileWriter
+{
+	public abstract Map<String, Double> getMix();
+	public abstract Map<Integer, Map<String, Double>> getLevelMixes();
+	public abstract Set<String> getRequestTypeNames();
+	public abstract List<String> getTags(String reqTypeName);
+
+	public String getProfileDefinition()
+	{
+		String profileDef = super.getProfileDefinition();
+		for (String reqTypeName : getMix().keySet())
+			profileDef = profileDef + "mix " + reqTypeName + " " + getMix().get(reqTypeName) + "\n";
+		for (Integer levelNo : getLevelMixes().keySet())
+		{
+			Map<String, Double> mix = getLevelMixes().get(levelNo);
+			for (String reqTypeName : mix.keySet())
+				profileDef = profileDef + "levelmix " + levelNo + " " + reqTypeName + " " +
+					mix.get(reqTypeName) + "\n";
+		}
+		for (String reqTypeName : getRequestTypeNames())
+		{
+			profileDef = profileDef + "type " + reqTypeName;
+			for (String tag : getTags(reqTypeName)) profileDef = profileDef + " --tags " + tag;
+			profileDef = profileDef + "\n";
+		}
+		return profileDef;
+	}
+}
@@ -12,6 +12,7 @@ import java.util.*;
 public class PerformanceProfile extends AbstractProfile
 {
 	private String thisDistributionName;
+	private ArrivalProcess thisArrivalProcess = ArrivalProcess.Poisson;
 
 
 	PerformanceProfile(LoadGenerator lg, String name, Consumer<PerformanceProfile> block)
@@ -32,6 +33,19 @@ public class PerformanceProfile extends AbstractProfile
 		return thisDistributionName;
 	}
 
+	/** Specify how requests arrive, at the rate of the distribution: "poisson" (the
+		default), "uniform", "erlang(k)", or "mmpp(burstRatio, burstFraction, burstLength)".
+		See ArrivalProcess. */
+	public void setArrivalProcess(String definition)
+	{
+		thisArrivalProcess = ArrivalProcess.parse(definition);
+	}
+
+	public ArrivalProcess arrivalProcess()
+	{
+		return thisArrivalProcess;
+	}
+
 
 	String getProfileDefinition(final AbstractTestRun testRun)
 	{
@@ -56,17 +70,19 @@ public class PerformanceProfile extends AbstractProfile
 				Distribution distribution = lg.getDistribution(distributionName);
 				return distribution.levels();
 			}
-		};
 
-		String profileDef = profileWriter.getProfileDefinition();
+			public RateFunction getRateFunction()
+			{
+				String distributionName = PerformanceProfile.this.distribution();
+				Distribution distribution = lg.getDistribution(distributionName);
+				if (distribution.overlays().size() == 0) return null;
+				return distribution.rateFunction();
+			}
 
-		for (double[] level : profileWriter.getLevels())
-		{
-			profileDef = profileDef + (level[0] / profileWriter.getNoOfNodes()) +
-				", " + level[1] + "\n";
-		}
+			public ArrivalProcess getArrivalProcess() { return arrivalProcess(); }
+		};
 
-		return profileDef;
+		return profileWriter.getProfileDefinition();
 	}
 
 
@@ -78,6 +94,7 @@ public class PerformanceProfile extends AbstractProfile
 		file.println(indstr + "\"hostname\": \"" + hostname() + "\",");
 		file.println(indstr + "\"timestamp\": \"" + timestamp() + "\",");
 		file.println(indstr + "\"requestType\": \"" + requestType() + "\",");
-		file.println(indstr + "\"distribution\": \"" + distribution() + "\"");
+		file.println(indstr + "\"distribution\": \"" + distribution() + "\",");
+		file.println(indstr + "\"arrivalProcess\": \"" + arrivalProcess().definition() + "\"");
 	}
 }
@@ -5,8 +5,28 @@ public abstract class PerformanceProfileReader extends BaseProfileReader
 {
 	public abstract void addLevel(double requestsPerSec, double deltaInMinutes);
 
+	public void setRateFunction(RateFunction f)
+	{
+		throw new RuntimeException("Rate functions are not supported by this reader");
+	}
+
+	public void setArrivalProcess(ArrivalProcess p)
+	{
+		throw new RuntimeException("Arrival processes are not supported by this reader");
+	}
+
 	public void parseNextPartLine(String data)
 	{
+		if (data.startsWith("arrival "))
+		{
+			setArrivalProcess(ArrivalProcess.parse(data.substring("arrival ".length())));
+			return;
+		}
+		if (data.startsWith("rate "))
+		{
+			setRateFunction(RateFunction.parse(data.substring("rate ".length())));
+			return;
+		}
 		String[] level = data.split(",");
 		double requestsPerSec = Double.parseDouble(level[0]);
 		double deltaInMinutes = Double.parseDouble(level[1]);
@@ -8,12 +8,32 @@ public abstract class PerformanceProfileWriter extends BaseProfileWriter
 {
 	public abstract List<double[]> getLevels();
 
+	/** If the distribution is not a simple ramp, return its rate function (for
+		the whole test run - not per node). */
+	public RateFunction getRateFunction() { return null; }
+
+	/** Return the arrival process, or null for the default (poisson). */
+	public ArrivalProcess getArrivalProcess() { return null; }
+
 	public String getProfileDefinition()
 	{
 		String profileDef = super.getProfileDefinition();
+		ArrivalProcess arrivalProcess = getArrivalProcess();
+		if ((arrivalProcess != null) && (arrivalProcess != ArrivalProcess.Poisson))
+			profileDef = profileDef + "arrival " + arrivalProcess.definition() + "\n";
+
+		// The levels are written even if there is a rate function, because they
+		// define the spans of time of the levels (see MixProfile.levelMix).
 		List<double[]> levels = getLevels();
 		for (double[] level : levels)
 			profileDef = profileDef + (level[0] / getNoOfNodes()) + ", " + level[1] + "\n";
+
+		RateFunction rateFunction = getRateFunction();
+		if (rateFunction != null)
+		{
+			rateFunction = RateFunction.scale(1.0 / getNoOfNodes(), rateFunction);
+			profileDef = profileDef + "rate " + rateFunction.definition() + "\n";
+		}
 		return profileDef;
 	}
 }
@@ -0,0 +1,568 @@
+package loadgen.profile;
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+
+/** A request rate (requests per second) as a function of the time (seconds) since
+	the start of a run. A rate function is represented as a sequence of contiguous
+	linear segments, { t0, t1, r0, r1 }, beginning at time 0: the rate goes linearly
+	from r0 at t0 to r1 at t1. Shapes that are piecewise linear (ramps, steps, spikes,
+	and tables) are represented exactly; smooth shapes (sine and exponential) are
+	sampled every Resolution seconds. Rate functions compose: the sum of two functions
+	is piecewise linear over the union of their breakpoints, so that any combination
+	of shapes yields a single arrival stream (see ArrivalTimeline, in the TestRunner).
+	After the end of its last segment, a function's rate is 0.
+
+	A function is written to a profile file as its definition, which is an expression
+	of this syntax:
+		function ::= name '(' args ')'
+		args ::= (number | function) (',' (number | function))*
+	For example, sum(ramp(10, 5, 10, 20), spike(12, 50, 0.5, 1)). Times in definitions
+	are in minutes, as they are for the levels of a Distribution. */
+public abstract class RateFunction
+{
+	/** Sampling interval (seconds) for smooth shapes. */
+	public static double Resolution = 1.0;
+
+
+	/** Return the segments of the function. */
+	public abstract List<double[]> segments();
+
+	/** Return the definition of the function (see above). */
+	public abstract String definition();
+
+
+	/** Return the time (seconds) at which the function's last segment ends. */
+	public double duration()
+	{
+		List<double[]> segments = segments();
+		if (segments.isEmpty()) return 0.0;
+		return segments.get(segments.size()-1)[1];
+	}
+
+
+	/** Return the rate at time t (seconds). */
+	public double rate(double t)
+	{
+		for (double[] s : segments())
+			if ((t >= s[0]) && (t < s[1])) return interpolate(s, t);
+		return 0.0;
+	}
+
+
+	/** Return the sum of this function and another. */
+	public RateFunction plus(RateFunction f)
+	{
+		return sum(this, f);
+	}
+
+
+	/** Return this function, with its rate multiplied by factor. */
+	public RateFunction scaledBy(double factor)
+	{
+		return scale(factor, this);
+	}
+
+
+	public String toString()
+	{
+		return definition();
+	}
+
+
+  // Shapes ---------------------------------------------------------------------
+
+
+	/** A sequence of linear ramps, as defined by the levels of a Distribution:
+		each level is { requestsPerSec, deltaInMinutes }. The first ramp begins at 0. */
+	public static RateFunction ramp(List<double[]> levels)
+	{
+		return new Levels("ramp", levels, true);
+	}
+
+
+	/** A sequence of constant rates: each level is { requestsPerSec, deltaInMinutes }. */
+	public static RateFunction step(List<double[]> levels)
+	{
+		return new Levels("step", levels, false);
+	}
+
+
+	/** A sinusoid, such as a diurnal pattern: mean + amplitude * sin(2 pi t / period),
+		for the specified duration. The rate is not allowed to go below 0. */
+	public static RateFunction sine(final double mean, final double amplitude,
+		final double periodMinutes, final double durationMinutes)
+	{
+		return new Sampled("sine", durationMinutes, mean, amplitude, periodMinutes, durationMinutes)
+		{
+			double sample(double t)
+			{
+				return mean + amplitude * Math.sin(2.0 * Math.PI * t / (periodMinutes * 60.0));
+			}
+		};
+	}
+
+
+	/** A rate that changes exponentially from fromRate to toRate over the specified
+		duration. Both rates must be greater than 0. */
+	public static RateFunction exponential(final double fromRate, final double toRate,
+		final double durationMinutes)
+	{
+		if ((fromRate <= 0.0) || (toRate <= 0.0)) throw new RuntimeException(
+			"Exponential rates must be greater than 0");
+		final double k = Math.log(toRate / fromRate) / (durationMinutes * 60.0);
+		return new Sampled("exp", durationMinutes, fromRate, toRate, durationMinutes)
+		{
+			double sample(double t)
+			{
+				return fromRate * Math.exp(k * t);
+			}
+		};
+	}
+
+
+	/** A spike, on top of a rate of 0: beginning atMinutes into the run, the rate
+		ramps up to peakRate over rampMinutes, holds for holdMinutes, and ramps down
+		to 0 over rampMinutes. */
+	public static RateFunction spike(double atMinutes, double peakRate, double rampMinutes,
+		double holdMinutes)
+	{
+		return new Spike(atMinutes, peakRate, rampMinutes, holdMinutes);
+	}
+
+
+	/** A table of rates, one for each second. */
+	public static RateFunction table(double[] ratePerSecond)
+	{
+		return new Table(ratePerSecond);
+	}
+
+
+	/** Read a table of rates, one for each second, from a file that contains one
+		rate per line. Blank lines and lines beginning with # are ignored. */
+	public static RateFunction table(String path)
+	{
+		List<Double> rates = new Vector<Double>();
+		try (BufferedReader file = new BufferedReader(new FileReader(path)))
+		{
+			for (String line = file.readLine(); line != null; line = file.readLine())
+			{
+				line = line.trim();
+				if (line.equals("") || line.startsWith("#")) continue;
+				rates.add(Double.parseDouble(line));
+			}
+		}
+		catch (IOException ex) { throw new RuntimeException(ex); }
+
+		double[] table = new double[rates.size()];
+		for (int i = 0; i < table.length; i++) table[i] = rates.get(i);
+		return new Table(table);
+	}
+
+
+	/** The sum of the specified functions. */
+	public static RateFunction sum(RateFunction... functions)
+	{
+		return new Sum(Arrays.asList(functions));
+	}
+
+
+	/** The specified function, with its rate multiplied by factor. */
+	public static RateFunction scale(double factor, RateFunction f)
+	{
+		return new Scale(factor, f);
+	}
+
+
+  // Parsing --------------------------------------------------------------------
+
+
+	/** Parse a definition, as returned by definition(). */
+	public static RateFunction parse(String definition)
+	{
+		Parser parser = new Parser(definition);
+		RateFunction f = parser.parseFunction();
+		parser.skipSpace();
+		if (parser.pos != definition.length()) throw new RuntimeException(
+			"Unexpected text at position " + parser.pos + " of rate function " + definition);
+		return f;
+	}
+
+
+	static class Parser
+	{
+		String text;
+		int pos = 0;
+
+		Parser(String text)
+		{
+			this.text = text;
+		}
+
+		void skipSpace()
+		{
+			while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos))) pos++;
+		}
+
+		RateFunction parseFunction()
+		{
+			skipSpace();
+			int start = pos;
+			while ((pos < text.length()) && Character.isLetter(text.charAt(pos))) pos++;
+			String name = text.substring(start, pos);
+			skipSpace();
+			expect('(');
+
+			List<Object> args = new Vector<Object>();
+			skipSpace();
+			if ((pos < text.length()) && (text.charAt(pos) == ')')) pos++;
+			else for (;;)
+			{
+				skipSpace();
+				if ((pos < text.length()) && Character.isLetter(text.charAt(pos)))
+					args.add(parseFunction());
+				else
+					args.add(Double.valueOf(parseNumber()));
+				skipSpace();
+				if ((pos < text.length()) && (text.charAt(pos) == ',')) { pos++; continue; }
+				expect(')');
+				break;
+			}
+			return create(name, args);
+		}
+
+		double parseNumber()
+		{
+			int start = pos;
+			while ((pos < text.length()) && ("+-.eE0123456789".indexOf(text.charAt(pos)) >= 0)) pos++;
+			try { return Double.parseDouble(text.substring(start, pos)); }
+			catch (NumberFormatException ex) { throw new RuntimeException(
+				"Expected a number at position " + start + " of rate function " + text); }
+		}
+
+		void expect(char c)
+		{
+			if ((pos >= text.length()) || (text.charAt(pos) != c)) throw new RuntimeException(
+				"Expected '" + c + "' at position " + pos + " of rate function " + text);
+			pos++;
+		}
+
+		RateFunction create(String name, List<Object> args)
+		{
+			if (name.equals("ramp") || name.equals("step"))
+			{
+				List<double[]> levels = new Vector<double[]>();
+				double[] numbers = numbers(name, args, -1);
+				if ((numbers.length % 2) != 0) throw new RuntimeException(
+					name + " requires (rate, minutes) pairs");
+				for (int i = 0; i < numbers.length; i += 2)
+					levels.add(new double[] { numbers[i], numbers[i+1] });
+				return name.equals("ramp") ? ramp(levels) : step(levels);
+			}
+			if (name.equals("sine"))
+			{
+				double[] n = numbers(name, args, 4);
+				return sine(n[0], n[1], n[2], n[3]);
+			}
+			if (name.equals("exp"))
+			{
+				double[] n = numbers(name, args, 3);
+				return exponential(n[0], n[1], n[2]);
+			}
+			if (name.equals("spike"))
+			{
+				double[] n = numbers(name, args, 4);
+				return spike(n[0], n[1], n[2], n[3]);
+			}
+			if (name.equals("table")) return table(numbers(name, args, -1));
+			if (name.equals("scale"))
+			{
+				if ((args.size() != 2) || ! (args.get(0) instanceof Double) ||
+					! (args.get(1) instanceof RateFunction)) throw new RuntimeException(
+					"scale requires a factor and a function");
+				return scale((Double)(args.get(0)), (RateFunction)(args.get(1)));
+			}
+			if (name.equals("sum"))
+			{
+				List<RateFunction> functions = new Vector<RateFunction>();
+				for (Object arg : args)
+				{
+					if (! (arg instanceof RateFunction)) throw new RuntimeException(
+						"sum requires functions as arguments");
+					functions.add((RateFunction)arg);
+				}
+				return new Sum(functions);
+			}
+			throw new RuntimeException("Unrecognized rate function: " + name);
+		}
+
+		/** Return the arguments as numbers. If count is not -1, there must be that many. */
+		double[] numbers(String name, List<Object> args, int count)
+		{
+			if ((count != -1) && (args.size() != count)) throw new RuntimeException(
+				name + " requires " + count + " arguments");
+			double[] numbers = new double[args.size()];
+			for (int i = 0; i < numbers.length; i++)
+			{
+				if (! (args.get(i) instanceof Double)) throw new RuntimeException(
+					name + " requires numeric arguments");
+				numbers[i] = (Double)(args.get(i));
+			}
+			return numbers;
+		}
+	}
+
+
+  // Implementation -------------------------------------------------------------
+
+
+	static double interpolate(double[] segment, double t)
+	{
+		if (segment[1] == segment[0]) return segment[2];
+		return segment[2] + (segment[3] - segment[2]) * (t - segment[0]) / (segment[1] - segment[0]);
+	}
+
+
+	static String format(double[] numbers)
+	{
+		StringBuilder s = new StringBuilder();
+		for (double n : numbers)
+		{
+			if (s.length() > 0) s.append(", ");
+			s.append(n);
+		}
+		return s.toString();
+	}
+
+
+	/** Ramps or steps, defined by levels. */
+	static class Levels extends RateFunction
+	{
+		private String thisName;
+		private List<double[]> thisLevels;
+		private boolean thisIsRamp;
+
+		Levels(String name, List<double[]> levels, boolean isRamp)
+		{
+			thisName = name;
+			thisLevels = levels;
+			thisIsRamp = isRamp;
+		}
+
+		public List<double[]> segments()
+		{
+			List<double[]> segments = new Vector<double[]>();
+			double t = 0.0;
+			double rate = 0.0;
+			for (double[] level : thisLevels)
+			{
+				double t1 = t + level[1] * 60.0;
+				segments.add(new double[] { t, t1, (thisIsRamp ? rate : level[0]), level[0] });
+				t = t1;
+				rate = level[0];
+			}
+			return segments;
+		}
+
+		public String definition()
+		{
+			double[] numbers = new double[thisLevels.size() * 2];
+			for (int i = 0; i < thisLevels.size(); i++)
+			{
+				numbers[2*i] = thisLevels.get(i)[0];
+				numbers[2*i+1] = thisLevels.get(i)[1];
+			}
+			return thisName + "(" + format(numbers) + ")";
+		}
+	}
+
+
+	/** A smooth shape, sampled every Resolution seconds. */
+	static abstract class Sampled extends RateFunction
+	{
+		private String thisName;
+		private double thisDuration;
+		private double[] thisArgs;
+
+		Sampled(String name, double durationMinutes, double... args)
+		{
+			thisName = name;
+			thisDuration = durationMinutes * 60.0;
+			thisArgs = args;
+		}
+
+		abstract double sample(double t);
+
+		public List<double[]> segments()
+		{
+			List<double[]> segments = new Vector<double[]>();
+			for (double t = 0.0; t < thisDuration; t += Resolution)
+			{
+				double t1 = Math.min(t + Resolution, thisDuration);
+				segments.add(new double[] { t, t1, Math.max(0.0, sample(t)), Math.max(0.0, sample(t1)) });
+			}
+			return segments;
+		}
+
+		public String definition()
+		{
+			return thisName + "(" + format(thisArgs) + ")";
+		}
+	}
+
+
+	static class Spike extends RateFunction
+	{
+		private double[] thisArgs;
+
+		Spike(double atMinutes, double peakRate, double rampMinutes, double holdMinutes)
+		{
+			thisArgs = new double[] { atMinutes, peakRate, rampMinutes, holdMinutes };
+		}
+
+		public List<double[]> segments()
+		{
+			double at = thisArgs[0] * 60.0;
+			double peak = thisArgs[1];
+			double ramp = thisArgs[2] * 60.0;
+			double hold = thisArgs[3] * 60.0;
+			List<double[]> segments = new Vector<double[]>();
+			if (at > 0.0) segments.add(new double[] { 0.0, at, 0.0, 0.0 });
+			if (ramp > 0.0) segments.add(new double[] { at, at + ramp, 0.0, peak });
+			if (hold > 0.0) segments.add(new double[] { at + ramp, at + ramp + hold, peak, peak });
+			if (ramp > 0.0) segments.add(new double[] { at + ramp + hold, at + 2*ramp + hold, peak, 0.0 });
+			return segments;
+		}
+
+		public String definition()
+		{
+			return "spike(" + format(thisArgs) + ")";
+		}
+	}
+
+
+	/** A rate for each second; the rate is constant within each second. */
+	static class Table extends RateFunction
+	{
+		private double[] thisRates;
+
+		Table(double[] rates)
+		{
+			thisRates = rates;
+		}
+
+		public List<double[]> segments()
+		{
+			List<double[]> segments = new Vector<double[]>();
+			for (int i = 0; i < thisRates.length; i++)
+				segments.add(new double[] { i, i+1, thisRates[i], thisRates[i] });
+			return segments;
+		}
+
+		public String definition()
+		{
+			return "table(" + format(thisRates) + ")";
+		}
+	}
+
+
+	/** The sum of functions: piecewise linear over the union of their breakpoints. */
+	static class Sum extends RateFunction
+	{
+		private List<RateFunction> thisFunctions;
+
+		Sum(List<RateFunction> functions)
+		{
+			thisFunctions = functions;
+		}
+
+		public List<double[]> segments()
+		{
+			List<List<double[]>> parts = new Vector<List<double[]>>();
+			TreeSet<Double> breakpoints = new TreeSet<Double>();
+			for (RateFunction f : thisFunctions)
+			{
+				List<double[]> segments = f.segments();
+				parts.add(segments);
+				for (double[] s : segments)
+				{
+					breakpoints.add(s[0]);
+					breakpoints.add(s[1]);
+				}
+			}
+			breakpoints.add(0.0);
+
+			// For each interval between breakpoints, add the rates of the segment of
+			// each function that spans the interval (if any). Each function's
+			// segments are visited in order, so this is linear in the number of segments.
+			int[] next = new int[parts.size()];
+			List<double[]> sum = new Vector<double[]>();
+			Double previous = null;
+			for (Double t : breakpoints)
+			{
+				if (previous != null)
+				{
+					double t0 = previous, t1 = t;
+					double r0 = 0.0, r1 = 0.0;
+					for (int i = 0; i < parts.size(); i++)
+					{
+						List<double[]> segments = parts.get(i);
+						while ((next[i] < segments.size()) && (segments.get(next[i])[1] <= t0))
+							next[i]++;
+						if (next[i] >= segments.size()) continue;
+						double[] s = segments.get(next[i]);
+						if (s[0] > t0) continue;  // no segment spans this interval
+						r0 = r0 + interpolate(s, t0);
+						r1 = r1 + interpolate(s, t1);
+					}
+					sum.add(new double[] { t0, t1, r0, r1 });
+				}
+				previous = t;
+			}
+			return sum;
+		}
+
+		public String definition()
+		{
+			StringBuilder s = new StringBuilder("sum(");
+			boolean first = true;
+			for (RateFunction f : thisFunctions)
+			{
+				if (first) first = false;
+				else s.append(", ");
+				s.append(f.definition());
+			}
+			return s.append(")").toString();
+		}
+	}
+
+
+	static class Scale extends RateFunction
+	{
+		private double thisFactor;
+		private RateFunction thisFunction;
+
+		Scale(double factor, RateFunction f)
+		{
+			thisFactor = factor;
+			thisFunction = f;
+		}
+
+		public List<double[]> segments()
+		{
+			List<double[]> segments = new Vector<double[]>();
+			for (double[] s : thisFunction.segments())
+				segments.add(new double[] { s[0], s[1], s[2] * thisFactor, s[3] * thisFactor });
+			return segments;
+		}
+
+		public String definition()
+		{
+			return "scale(" + thisFactor + ", " + thisFunction.definition() + ")";
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package loadgen.profile;
+
+
+import java.util.*;
+
+
+/** A user session (journey), as a Markov chain over request types: a session
+	begins with a request type chosen according to the entry probabilities, and
+	after each request, moves to another request type according to the transition
+	probabilities of the edges from the current one, after the think time of the
+	edge. The probability that remains after the edges from a request type is the
+	probability that the session ends there. See SessionProfile.
+	In a profile file, an entry is written as
+		entry request_type probability
+	and an edge as
+		edge from_request_type to_request_type probability think_time
+	where think_time is a ThinkTime definition. */
+public class SessionModel
+{
+	private static double Tolerance = 1.0e-6;
+
+	private Map<String, Double> thisEntries = new LinkedHashMap<String, Double>();
+	private Map<String, List<Transition>> thisTransitions = new LinkedHashMap<String, List<Transition>>();
+
+
+	public static class Transition
+	{
+		public final String from;
+		public final String to;
+		public final double probability;
+		public final ThinkTime thinkTime;
+
+		Transition(String from, String to, double probability, ThinkTime thinkTime)
+		{
+			this.from = from;
+			this.to = to;
+			this.probability = probability;
+			this.thinkTime = thinkTime;
+		}
+	}
+
+
+	public void entry(String reqTypeName, double probability)
+	{
+		if (probability <= 0.0) throw new RuntimeException("Entry probability must be greater than 0");
+		thisEntries.put(reqTypeName, probability);
+	}
+
+
+	public void transition(String from, String to, double probability, ThinkTime thinkTime)
+	{
+		if (probability <= 0.0) throw new RuntimeException("Transition probability must be greater than 0");
+		List<Transition> transitions = thisTransitions.get(from);
+		if (transitions == null)
+		{
+			transitions = new Vector<Transition>();
+			thisTransitions.put(from, transitions);
+		}
+		transitions.add(new Transition(from, to, probability, thinkTime));
+	}
+
+
+	public Map<String, Double> entries()
+	{
+		return thisEntries;
+	}
+
+
+	public List<Transition> transitions(String from)
+	{
+		List<Transition> transitions = thisTransitions.get(from);
+		if (transitions == null) return new Vector<Transition>();
+		return transitions;
+	}
+
+
+	/** Return all of the request types of the model. */
+	public Set<String> requestTypes()
+	{
+		Set<String> names = new LinkedHashSet<String>(thisEntries.keySet());
+		for (List<Transition> transitions : thisTransitions.values())
+			for (Transition t : transitions)
+			{
+				names.add(t.from);
+				names.add(t.to);
+			}
+		return names;
+	}
+
+
+	/** Check that the entry probabilities sum to 1, and that the probabilities of
+		the edges from each request type sum to at most 1. */
+	public void validate()
+	{
+		if (thisEntries.isEmpty()) throw new RuntimeException("A session must have an entry");
+		double sum = 0.0;
+		for (double p : thisEntries.values()) sum = sum + p;
+		if (Math.abs(sum - 1.0) > Tolerance) throw new RuntimeException(
+			"Session entry probabilities sum to " + sum + ", rather than 1");
+		for (String from : thisTransitions.keySet())
+		{
+			sum = 0.0;
+			for (Transition t : thisTransitions.get(from)) sum = sum + t.probability;
+			if (sum > 1.0 + Tolerance) throw new RuntimeException(
+				"Probabilities of transitions from " + from + " sum to more than 1: " + sum);
+		}
+	}
+
+
+	/** Choose the request type with which a session begins. */
+	public String chooseEntry(Random random)
+	{
+		double u = random.nextDouble();
+		String last = null;
+		for (Map.Entry<String, Double> entry : thisEntries.entrySet())
+		{
+			last = entry.getKey();
+			u = u - entry.getValue();
+			if (u < 0.0) return last;
+		}
+		return last;  // rounding
+	}
+
+
+	/** Choose the transition from the specified request type, or return null if
+		the session ends. */
+	public Transition chooseTransition(String from, Random random)
+	{
+		double u = random.nextDouble();
+		for (Transition t : transitions(from))
+		{
+			u = u - t.probability;
+			if (u < 0.0) return t;
+		}
+		return null;
+	}
+
+
+	/** Return the lines with which the model is written to a profile file. */
+	public List<String> definitionLines()
+	{
+		List<String> lines = new Vector<String>();
+		for (Map.Entry<String, Double> entry : thisEntries.entrySet())
+			lines.add("entry " + entry.getKey() + " " + entry.getValue());
+		for (List<Transition> transitions : thisTransitions.values())
+			for (Transition t : transitions)
+				lines.add("edge " + t.from + " " + t.to + " " + t.probability + " " + t.thinkTime.definition());
+		return lines;
+	}
+
+
+	/** Parse a line written by definitionLines. Return false if the line is not
+		part of a session model. */
+	public boolean parseLine(String line)
+	{
+		if (line.startsWith("entry "))
+		{
+			String[] parts = line.split(" ");
+			entry(parts[1], Double.parseDouble(parts[2]));
+			return true;
+		}
+		if (line.startsWith("edge "))
+		{
+			String[] parts = line.split(" ", 5);
+			transition(parts[1], parts[2], Double.parseDouble(parts[3]),
+				(parts.length > 4 ? ThinkTime.parse(parts[4]) : ThinkTime.None));
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,138 @@
+package loadgen.profile;
+
+import loadgen.AbstractLoadGenerator;
+import loadgen.Distribution;
+
+import java.io.PrintWriter;
+import java.util.function.*;
+import java.util.*;
+
+
+/** A profile of user sessions: sessions arrive according to a Distribution (whose
+	rates are sessions per second), and each session performs a sequence of request
+	types, chosen by a SessionModel. The profile's request type is the name under
+	which the end-to-end time of each whole session is logged; each step of a
+	session is logged under its own request type. The steps of a session share the
+	session's state (see TestRunnerUtil.getSessionState), and its class loader. */
+public class SessionProfile extends AbstractProfile
+{
+	private String thisDistributionName;
+	private ArrivalProcess thisArrivalProcess = ArrivalProcess.Poisson;
+	private SessionModel thisModel = new SessionModel();
+
+
+	public SessionProfile(AbstractLoadGenerator lg, String name, Consumer<SessionProfile> block)
+	{
+		super(lg, name);
+		if (block != null) block.accept(this);
+		thisModel.validate();
+	}
+
+	/** Specify the distribution of session arrivals. */
+	public void setDistribution(String distName)
+	{
+		thisDistributionName = distName;
+	}
+
+	public String distribution()
+	{
+		return thisDistributionName;
+	}
+
+	/** Specify how sessions arrive: see ArrivalProcess. */
+	public void setArrivalProcess(String definition)
+	{
+		thisArrivalProcess = ArrivalProcess.parse(definition);
+	}
+
+	public ArrivalProcess arrivalProcess()
+	{
+		return thisArrivalProcess;
+	}
+
+	/** Specify that a session begins with the request type, with the probability. */
+	public void entry(String reqTypeName, double probability)
+	{
+		thisModel.entry(reqTypeName, probability);
+	}
+
+	/** Specify that, after a request of type from, a session performs a request of
+		type to, with the probability, after a think time (see ThinkTime). */
+	public void transition(String from, String to, double probability, String thinkTime)
+	{
+		thisModel.transition(from, to, probability, ThinkTime.parse(thinkTime));
+	}
+
+	public void transition(String from, String to, double probability)
+	{
+		thisModel.transition(from, to, probability, ThinkTime.None);
+	}
+
+	public SessionModel model()
+	{
+		return thisModel;
+	}
+
+
+	String getProfileDefinition(final AbstractTestRun testRun)
+	{
+		SessionProfileWriter profileWriter = new SessionProfileWriter()
+		{
+			public String getTestRunType() { return "Session"; }
+
+			public String getRequestTypeName() { return requestType(); }
+
+			public List<String> getTags() { return new Vector<String>(); }
+
+			public int getNoOfNodes()
+			{
+				AbstractProvider prov = testRun.getProvider();
+				if (prov.isDynamic()) return testRun.noOfNodes();  // use value configured for the AbstractTestRun
+				else return ((StaticProvider)prov).noOfNodes();  // use value configured for the Provider
+			}
+
+			public List<double[]> getLevels()
+			{
+				return lg.getDistribution(distribution()).levels();
+			}
+
+			public RateFunction getRateFunction()
+			{
+				Distribution distribution = lg.getDistribution(distribution());
+				if (distribution.overlays().size() == 0) return null;
+				return distribution.rateFunction();
+			}
+
+			public ArrivalProcess getArrivalProcess() { return arrivalProcess(); }
+
+			public SessionModel getSessionModel() { return model(); }
+
+			public List<String> getTags(String reqTypeName) { return lg.getRequestType(reqTypeName).tags(); }
+		};
+
+		return profileWriter.getProfileDefinition();
+	}
+
+
+	void writeProfileAsJSON(int indentLevel, PrintWriter file)
+	{
+		String indstr = lg.getIndentStrForLevel(indentLevel);
+
+		file.println(indstr + "\"name\": \"" + name() + "\",");
+		file.println(indstr + "\"hostname\": \"" + hostname() + "\",");
+		file.println(indstr + "\"timestamp\": \"" + timestamp() + "\",");
+		file.println(indstr + "\"requestType\": \"" + requestType() + "\",");
+		file.println(indstr + "\"distribution\": \"" + distribution() + "\",");
+		file.println(indstr + "\"arrivalProcess\": \"" + arrivalProcess().definition() + "\",");
+		file.println(indstr + "\"model\": [");
+		boolean firstTime = true;
+		for (String line : model().definitionLines())
+		{
+			if (firstTime) firstTime = false;
+			else
+				file.println(indstr + "\t,");
+			file.println(indstr + "\t\"" + line + "\"");
+		}
+		file.println(indstr + "]");
+	}
+}
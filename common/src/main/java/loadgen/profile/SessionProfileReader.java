@@ -0,0 +1,26 @@
+package loadgen.profile;
+
+
+public abstract class SessionProfileReader extends PerformanceProfileReader
+{
+	public abstract SessionModel getSessionModel();
+	public abstract void addRequestType(String reqTypeName, String tagString);
+
+	public boolean acceptsProfileType(String profileType)
+	{
+		return profileType.equals("SessionProfile");
+	}
+
+	public void parseNextPartLine(String data)
+	{
+		if (data.equals("")) return;
+		if (getSessionModel().parseLine(data)) return;
+		if (data.startsWith("type "))
+		{
+			String[] type = data.substring("type ".length()).trim().split(" ", 2);
+			addRequestType(type[0], (type.length > 1 ? type[1].trim() : ""));
+			return;
+		}
+		super.parseNextPartLine(data);
+	}
+}
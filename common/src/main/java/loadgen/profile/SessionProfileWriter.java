@@ -0,0 +1,28 @@
+package loadgen.profile;
+
+
+import java.util.List;
+
+
+/** Writes a session profile: a performance profile, whose levels are session
+	arrival rates, followed by the session model and the tags of each of its
+	request types. */
+public abstract class SessionProfileWriter extends PerformanceProfileWriter
+{
+	public abstract SessionModel getSessionModel();
+	public abstract List<String> getTags(String reqTypeName);
+
+	public String getProfileDefinition()
+	{
+		String profileDef = super.getProfileDefinition();
+		for (String line : getSessionModel().definitionLines())
+			profileDef = profileDef + line + "\n";
+		for (String reqTypeName : getSessionModel().requestTypes())
+		{
+			profileDef = profileDef + "type " + reqTypeName;
+			for (String tag : getTags(reqTypeName)) profileDef = profileDef + " --tags " + tag;
+			profileDef = profileDef + "\n";
+		}
+		return profileDef;
+	}
+}
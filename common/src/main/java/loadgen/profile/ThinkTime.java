@@ -0,0 +1,110 @@
+package loadgen.profile;
+
+
+import java.util.Random;
+
+
+/** The time (in seconds) that a virtual user of a ClosedProfile waits after one
+	request completes before it issues its next request. A think time is written to
+	a profile file as its definition:
+		none - no think time.
+		constant(seconds)
+		uniform(minSeconds, maxSeconds)
+		exponential(meanSeconds) */
+public abstract class ThinkTime
+{
+	public static final ThinkTime None = new ThinkTime()
+	{
+		public double sample(Random random) { return 0.0; }
+
+		public String definition() { return "none"; }
+	};
+
+
+	/** Return a think time, in seconds. */
+	public abstract double sample(Random random);
+
+	/** Return the definition of the think time (see above). */
+	public abstract String definition();
+
+
+	public String toString()
+	{
+		return definition();
+	}
+
+
+	public static ThinkTime constant(final double seconds)
+	{
+		if (seconds < 0.0) throw new RuntimeException("Think time may not be negative");
+		return new ThinkTime()
+		{
+			public double sample(Random random) { return seconds; }
+
+			public String definition() { return "constant(" + seconds + ")"; }
+		};
+	}
+
+
+	public static ThinkTime uniform(final double minSeconds, final double maxSeconds)
+	{
+		if ((minSeconds < 0.0) || (maxSeconds < minSeconds)) throw new RuntimeException(
+			"Invalid uniform think time: " + minSeconds + ", " + maxSeconds);
+		return new ThinkTime()
+		{
+			public double sample(Random random)
+			{
+				return minSeconds + random.nextDouble() * (maxSeconds - minSeconds);
+			}
+
+			public String definition() { return "uniform(" + minSeconds + ", " + maxSeconds + ")"; }
+		};
+	}
+
+
+	public static ThinkTime exponential(final double meanSeconds)
+	{
+		if (meanSeconds <= 0.0) throw new RuntimeException("Mean think time must be greater than 0");
+		return new ThinkTime()
+		{
+			public double sample(Random random)
+			{
+				return -Math.log(1.0 - random.nextDouble()) * meanSeconds;
+			}
+
+			public String definition() { return "exponential(" + meanSeconds + ")"; }
+		};
+	}
+
+
+	/** Parse a definition, as returned by definition(). */
+	public static ThinkTime parse(String definition)
+	{
+		String def = definition.trim();
+		String name = def;
+		String[] args = new String[0];
+		int paren = def.indexOf('(');
+		if (paren >= 0)
+		{
+			if (! def.endsWith(")")) throw new RuntimeException("Invalid think time: " + definition);
+			name = def.substring(0, paren).trim();
+			String argString = def.substring(paren+1, def.length()-1).trim();
+			if (! argString.equals("")) args = argString.split(",");
+		}
+
+		try
+		{
+			if (name.equals("none") && (args.length == 0)) return None;
+			if (name.equals("constant") && (args.length == 1))
+				return constant(Double.parseDouble(args[0].trim()));
+			if (name.equals("uniform") && (args.length == 2))
+				return uniform(Double.parseDouble(args[0].trim()), Double.parseDouble(args[1].trim()));
+			if (name.equals("exponential") && (args.length == 1))
+				return exponential(Double.parseDouble(args[0].trim()));
+		}
+		catch (NumberFormatException ex) { throw new RuntimeException(
+			"Invalid think time: " + definition, ex); }
+
+		throw new RuntimeException("Unrecognized think time: " + definition);
+	}
+}
@@ -0,0 +1,147 @@
+package loadgen.profile;
+
+import loadgen.AbstractLoadGenerator;
+import loadgen.TestRunnerConstants;
+
+import java.io.PrintWriter;
+import java.util.function.*;
+import java.util.*;
+
+
+/** A profile that replays recorded arrivals, such as those extracted from a
+	production access log, instead of generating them from a Distribution. A trace
+	file contains one arrival per line:
+		timestamp [ ',' label [ ',' key ] ]
+	where timestamp is in seconds (e.g., epoch seconds, with a fraction), label is the
+	name of the request type to perform (by default, the profile's request type), and
+	key (e.g., a user or session id) is used to shard the trace across nodes (see
+	setSharding). Lines must be in order of timestamp; blank lines and lines that
+	begin with # are ignored. The trace file is copied to each node, and is streamed
+	by the TestRunner, so that traces may be larger than memory. */
+public class TraceProfile extends AbstractProfile
+{
+	private String thisTraceFile;
+	private double thisTimeScale = 1.0;
+	private String thisSharding = "roundrobin";
+	private List<String> thisReqTypeNames = new Vector<String>();
+
+
+	public TraceProfile(AbstractLoadGenerator lg, String name, Consumer<TraceProfile> block)
+	{
+		super(lg, name);
+		if (block != null) block.accept(this);
+		if (thisTraceFile == null) throw new RuntimeException(
+			"No trace file specified for profile " + name);
+	}
+
+	/** Specify the trace file: a path on the controller, or an http(s) URL from
+		which each node fetches the file. */
+	public void setTraceFile(String path)
+	{
+		thisTraceFile = path;
+	}
+
+	public String traceFile()
+	{
+		return thisTraceFile;
+	}
+
+	/** Return true if the trace file is fetched by each node from a URL. */
+	public boolean traceFileIsURL()
+	{
+		return thisTraceFile.startsWith("http://") || thisTraceFile.startsWith("https://");
+	}
+
+	/** Return the path of the trace file on each node. */
+	public String nodeTraceFilePath()
+	{
+		return TestRunnerConstants.NodeProjectRoot + "/" + name() + ".trace";
+	}
+
+	/** Specify the factor by which the intervals between recorded arrivals are
+		multiplied: e.g., 0.5 replays the trace at twice its recorded speed. */
+	public void setTimeScale(double scale)
+	{
+		if (scale <= 0.0) throw new RuntimeException("Time scale must be greater than 0");
+		thisTimeScale = scale;
+	}
+
+	public double timeScale()
+	{
+		return thisTimeScale;
+	}
+
+	/** Specify how the arrivals are divided among the nodes: "roundrobin" (the
+		default), in which the nodes take turns; or "hash", in which each arrival
+		goes to the node selected by the hash of its key, so that all of the
+		arrivals for a key (e.g., a user) are replayed by the same node. */
+	public void setSharding(String sharding)
+	{
+		if (! (sharding.equals("roundrobin") || sharding.equals("hash"))) throw new RuntimeException(
+			"Unrecognized sharding: " + sharding);
+		thisSharding = sharding;
+	}
+
+	public String sharding()
+	{
+		return thisSharding;
+	}
+
+	/** Specify a request type that appears as a label in the trace. Labels that
+		have not been added are not replayed. */
+	public void addRequestType(String reqTypeName)
+	{
+		thisReqTypeNames.add(reqTypeName);
+	}
+
+	public List<String> requestTypes()
+	{
+		return thisReqTypeNames;
+	}
+
+
+	String getProfileDefinition(final AbstractTestRun testRun)
+	{
+		TraceProfileWriter profileWriter = new TraceProfileWriter()
+		{
+			public String getTestRunType() { return "Trace"; }
+
+			public String getRequestTypeName() { return requestType(); }
+
+			public List<String> getTags() { return lg.getRequestType(getRequestTypeName()).tags(); }
+
+			public int getNoOfNodes()
+			{
+				AbstractProvider prov = testRun.getProvider();
+				if (prov.isDynamic()) return testRun.noOfNodes();  // use value configured for the AbstractTestRun
+				else return ((StaticProvider)prov).noOfNodes();  // use value configured for the Provider
+			}
+
+			public String getTraceFilePath() { return nodeTraceFilePath(); }
+
+			public double getTimeScale() { return timeScale(); }
+
+			public String getSharding() { return sharding(); }
+
+			public List<String> getRequestTypeNames() { return requestTypes(); }
+
+			public List<String> getTags(String reqTypeName) { return lg.getRequestType(reqTypeName).tags(); }
+		};
+
+		return profileWriter.getProfileDefinition();
+	}
+
+
+	void writeProfileAsJSON(int indentLevel, PrintWriter file)
+	{
+		String indstr = lg.getIndentStrForLevel(indentLevel);
+
+		file.println(indstr + "\"name\": \"" + name() + "\",");
+		file.println(indstr + "\"hostname\": \"" + hostname() + "\",");
+		file.println(indstr + "\"timestamp\": \"" + timestamp() + "\",");
+		file.println(indstr + "\"requestType\": \"" + requestType() + "\",");
+		file.println(indstr + "\"traceFile\": \"" + traceFile() + "\",");
+		file.println(indstr + "\"timeScale\": " + timeScale() + ",");
+		file.println(indstr + "\"sharding\": \"" + sharding() + "\"");
+	}
+}
@@ -0,0 +1,37 @@
+package loadgen.profile;
+
+
+public abstract class TraceProfileReader extends BaseProfileReader
+{
+	public abstract void setTraceFile(String path);
+	public abstract void setTimeScale(double scale);
+	public abstract void setSharding(String sharding, int noOfNodes);
+	public abstract void addRequestType(String reqTypeName, String tagString);
+
+	public boolean acceptsProfileType(String profileType)
+	{
+		return profileType.equals("TraceProfile");
+	}
+
+	public void parseNextPartLine(String data)
+	{
+		if (data.equals("")) return;
+		String[] parts = data.split(" ", 2);
+		String keyword = parts[0];
+		String value = (parts.length > 1 ? parts[1].trim() : "");
+		if (keyword.equals("trace")) setTraceFile(value);
+		else if (keyword.equals("scale")) setTimeScale(Double.parseDouble(value));
+		else if (keyword.equals("shard"))
+		{
+			String[] shard = value.split(" ");
+			setSharding(shard[0], Integer.parseInt(shard[1]));
+		}
+		else if (keyword.equals("type"))
+		{
+			String[] type = value.split(" ", 2);
+			addRequestType(type[0], (type.length > 1 ? type[1].trim() : ""));
+		}
+		else
+			throw new RuntimeException("Unrecognized line in trace profile: " + data);
+	}
+}
@@ -0,0 +1,29 @@
+package loadgen.profile;
+
+
+import java.util.List;
+
+
+public abstract class TraceProfileWriter extends BaseProfileWriter
+{
+	public abstract String getTraceFilePath();
+	public abstract double getTimeScale();
+	public abstract String getSharding();
+	public abstract List<String> getRequestTypeNames();
+	public abstract List<String> getTags(String reqTypeName);
+
+	public String getProfileDefinition()
+	{
+		String profileDef = super.getProfileDefinition();
+		profileDef = profileDef + "trace " + getTraceFilePath() + "\n";
+		profileDef = profileDef + "scale " + getTimeScale() + "\n";
+		profileDef = profileDef + "shard " + getSharding() + " " + getNoOfNodes() + "\n";
+		for (String reqTypeName : getRequestTypeNames())
+		{
+			profileDef = profileDef + "type " + reqTypeName;
+			for (String tag : getTags(reqTypeName)) profileDef = profileDef + " --tags " + tag;
+			profileDef = profileDef + "\n";
+		}
+		return profileDef;
+	}
+}
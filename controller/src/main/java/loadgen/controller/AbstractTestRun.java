@@ -1,6 +1,7 @@
 package loadgen.controller;
 
 import loadgen.TestRunnerConstants;
+import loadgen.HistogramLogFormat;
 import loadgen.provider.Provider;
 
 import java.io.*;
@@ -42,11 +43,14 @@ abstract class AbstractTestRun
 	private boolean thisNodesAreHeaded = false;
 	private boolean thisReuseNodes = false;
 	private boolean thisKeepNodes = false;
+	private boolean thisUseBinaryTimeLog = false;
+	private boolean thisRawTimeLogs = true;
 	private long thisRandomSeed = 0x1234;
 	private List<Node> thisNodes = new Vector<Node>();
 	private ReqLog thisReqLog;
 	private DetailLog thisDetailLog;
 	private AggLog thisAggLog;
+	private HistogramLog thisHistogramLog;
 
 
 	AbstractTestRun(AbstractLoadGenerator lg, String name)
@@ -135,18 +139,26 @@ abstract class AbstractTestRun
 
 	AggLog aggLog() { return this.thisAggLog; }
 
+	/** The histograms of all nodes, or null if none were retrieved. */
+	HistogramLog histogramLog() { return this.thisHistogramLog; }
+
+	/** Return the entries of the time log, or none if raw time logs were not
+		written (see omitRawTimeLogs). */
 	List<ReqTimeLogEntry> reqTimeLogData()
 	{
+		if (reqLog() == null) return new Vector<ReqTimeLogEntry>();
 		return reqLog().timeLogData();
 	}
 
 	List<DetailTimeLogEntry> detailTimeLogData()
 	{
+		if (detailLog() == null) return new Vector<DetailTimeLogEntry>();
 		return detailLog().timeLogData();
 	}
 
 	List<AbstractTimeLogEntry> aggTimeLogData()
 	{
+		if (aggLog() == null) return new Vector<AbstractTimeLogEntry>();
 		return aggLog().timeLogData();
 	}
 
@@ -422,6 +434,42 @@ abstract class AbstractTestRun
 		return thisKeepNodes;
 	}
 
+	/** Specify that the nodes should write a single binary time log, rather than
+		the CSV time logs. This reduces the size of the logs and the time to parse them.
+		See BinaryTimeLogFormat. */
+	public void useBinaryTimeLog()
+	{
+		thisUseBinaryTimeLog = true;
+	}
+
+	boolean usesBinaryTimeLog()
+	{
+		return thisUseBinaryTimeLog;
+	}
+
+	/** Specify that the nodes should not write the time logs of individual requests
+		and events, but only their histograms (see HistogramLogFormat), which are
+		always written. The size of the histogram log depends on the duration of the
+		run and the number of request and event types, rather than on the number of
+		requests, so this is appropriate for long runs at high request rates.
+		Statistics are computed from the histograms; graphs and the tables of
+		individual requests are not produced. */
+	public void omitRawTimeLogs()
+	{
+		thisRawTimeLogs = false;
+	}
+
+	boolean usesRawTimeLogs()
+	{
+		return thisRawTimeLogs;
+	}
+
+	/** Return true if the nodes should run stories without JBehave's reporting. */
+	boolean usesLoadMode()
+	{
+		return false;
+	}
+
 	/** Create a new Node, add it to this AbstractTestRun's list of Nodes, and set the
 		new Node's IP address. */
 	Node createNode(String nodeName, long randomSeed, String ip)
@@ -589,6 +637,53 @@ abstract class AbstractTestRun
 	}
 
 
+	/** Parse a node's histogram log, and merge it with those of the other nodes. */
+	boolean parseHistogramLog(String logpath)
+	{
+		System.out.println("Parsing histogram log...");
+		if (! (new File(logpath)).exists())
+		{
+			System.err.println("Cannot find histogram log: " + logpath);
+			return false;
+		}
+
+		if (thisHistogramLog == null) thisHistogramLog = new HistogramLog();
+		try (BufferedReader br = new BufferedReader(new FileReader(logpath)))
+		{
+			thisHistogramLog.parse(br);
+		}
+		catch (IOException ex) { throw new RuntimeException(ex); }
+
+		System.out.println("...parsed histogram log: " + thisHistogramLog.eventNames().size() +
+			" event types.");
+		return true;
+	}
+
+
+	/** Parse a binary time log, which contains both request and event level data. */
+	boolean parseBinaryTimeLog(String logpath)
+	{
+		System.out.println("Parsing binary time log...");
+		if (! (new File(logpath)).exists())
+		{
+			System.err.println("Cannot find time log: " + logpath);
+			return false;
+		}
+
+		try
+		{
+			thisReqLog = new ReqLog();
+			thisDetailLog = new DetailLog();
+			new BinaryTimeLogReader(logpath).parseInto(thisReqLog, thisDetailLog);
+		}
+		catch (IOException ex) { throw new RuntimeException(ex); }
+
+		System.out.println("...parsed binary time log: " + reqTimeLogData().size() +
+			" entries, " + detailTimeLogData().size() + " detail entries.");
+		return true;
+	}
+
+
 	/** Return the test result for the 'EndToEnd' entry with the specified id. */
 	String getResultForId(String id)
 	{
@@ -609,6 +704,34 @@ abstract class AbstractTestRun
 	{
 		for (Node node : nodes())
 		{
+			// Retrieve the node's histograms, which are always written.
+			String localnodehistogramlogpath = resultsDirectory() + "/" + name() + "_" +
+				node.name() + "_" + HistogramLogFormat.FileName;
+			node.fetchHistogramLogInto(localnodehistogramlogpath);
+			parseHistogramLog(localnodehistogramlogpath);
+
+			if (! usesRawTimeLogs())
+			{
+				String localnodestdoutpath = resultsDirectory() + '/' + name() + '_' + node.name() + "_stdout.log";
+				node.fetchStdoutInto(localnodestdoutpath);
+				continue;
+			}
+
+			if (usesBinaryTimeLog())
+			{
+				String localnodebinarylogpath = resultsDirectory() + "/" + name() + "_" + node.name() + "_timelog.bin";
+				node.fetchBinaryTimeLogInto(localnodebinarylogpath);
+				String localnodestdoutpath = resultsDirectory() + '/' + name() + '_' + node.name() + "_stdout.log";
+				node.fetchStdoutInto(localnodestdoutpath);
+				if (! parseBinaryTimeLog(localnodebinarylogpath))
+				{
+					System.err.println("There is no binary time log for node " + node.name());
+					break;
+				}
+				createAggregateLog();
+				continue;
+			}
+
 			// Retrieve the node's time logs.
 			String localnodetimelogpath = resultsDirectory() + "/" + name() + "_" + node.name() + "_timelog.csv";
 			node.fetchTimeLogInto(localnodetimelogpath);
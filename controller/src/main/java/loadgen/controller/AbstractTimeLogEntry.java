@@ -29,5 +29,10 @@ abstract class AbstractTimeLogEntry
 
 	double getSortableTime() { return startTime; }
 
+	/** The duration, in seconds, measured from the time at which the entry was
+		intended to start, rather than the time at which it actually started. Only
+		a request can start later than intended (see ReqTimeLogEntry). */
+	double correctedDuration() { return duration; }
+
 	void setResult(String result) { this.result = result; }
 }
@@ -0,0 +1,69 @@
+package loadgen.controller;
+
+
+import loadgen.BinaryTimeLogFormat;
+import java.io.*;
+
+
+/** Convert a binary time log into the legacy CSV time logs (timelog.csv and
+	detailtimelog.csv), for use by tools that expect the text format.
+	Arguments:
+		arg 1: Path of the binary time log.
+		arg 2: Path of the time log to write.
+		arg 3: Path of the detail time log to write. */
+public class BinaryTimeLogConverter
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 3) throw new RuntimeException(
+			"Expected 3 arguments: binary-log time-log detail-time-log");
+		convert(args[0], args[1], args[2]);
+	}
+
+
+	public static void convert(String binaryLogPath, String timelogPath,
+		String detailTimelogPath) throws IOException
+	{
+		final PrintWriter timelog = new PrintWriter(new BufferedWriter(new FileWriter(timelogPath)));
+		final PrintWriter detailTimelog = new PrintWriter(new BufferedWriter(new FileWriter(detailTimelogPath)));
+		try
+		{
+			new BinaryTimeLogReader(binaryLogPath).read(new BinaryTimeLogReader.RecordHandler()
+			{
+				public void request(String reqType, String name, long id, double reqRate,
+					long intendedMicros, long startMicros, long endMicros, byte resultCode)
+				{
+					long startTime = startMicros / 1000;
+					long endTime = endMicros / 1000;
+					double delta = (double)(endTime - startTime) / 1000.0;
+					timelog.println("reqType:" + reqType + ", id:" + id + ", name:" + name +
+						", reqRate:" + rateString(reqRate) + ", start:" + startTime + ", end:" +
+						endTime + ", delta:" + delta + ", result:" +
+						BinaryTimeLogFormat.resultString(resultCode) + ", intended:" +
+						(intendedMicros / 1000));
+				}
+
+				public void detail(String reqType, String name, long id, double reqRate,
+					boolean isBegin, long timeMicros)
+				{
+					detailTimelog.println(reqType + ", " + id + ", " + name + ", " +
+						rateString(reqRate) + ", " + (isBegin ? "Begin" : "End") + ", " +
+						(timeMicros / 1000) + "ms");
+				}
+			});
+		}
+		finally
+		{
+			timelog.close();
+			detailTimelog.close();
+		}
+	}
+
+
+	/** The CSV logs contain "null" if there is no request rate (for functional runs). */
+	static String rateString(double reqRate)
+	{
+		if (Double.isNaN(reqRate)) return "null";
+		return Double.toString(reqRate);
+	}
+}
@@ -0,0 +1,156 @@
+package loadgen.controller;
+
+
+import loadgen.BinaryTimeLogFormat;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/** Reads a binary time log, as written by a TestRunner when TIME_LOG_FORMAT is
+	"binary" (see BinaryTimeLogFormat). The file is memory-mapped and records are
+	decoded directly from the mapped buffer, in file order, and passed to a
+	RecordHandler. Files larger than WindowSize are mapped one window at a time. */
+class BinaryTimeLogReader
+{
+	private static long WindowSize = 1L << 30;
+	private static int MaxRecordSize = 1 + 4 + 2 + BinaryTimeLogFormat.MaxNameLength;  // largest name record
+
+	private String thisPath;
+	private Map<Integer, String> thisNames = new HashMap<Integer, String>();
+
+
+	/** Receives the records of a binary time log. Times are in microseconds since
+		the start of the run. */
+	interface RecordHandler
+	{
+		void request(String reqType, String name, long id, double reqRate,
+			long intendedMicros, long startMicros, long endMicros, byte resultCode);
+
+		void detail(String reqType, String name, long id, double reqRate,
+			boolean isBegin, long timeMicros);
+	}
+
+
+	BinaryTimeLogReader(String path)
+	{
+		thisPath = path;
+	}
+
+
+	/** Add the request entries of the log to reqLog, and the detail events to detailLog. */
+	void parseInto(final ReqLog reqLog, final DetailLog detailLog) throws IOException
+	{
+		read(new RecordHandler()
+		{
+			public void request(String reqType, String name, long id, double reqRate,
+				long intendedMicros, long startMicros, long endMicros, byte resultCode)
+			{
+				double intendedStartTime = (double)intendedMicros / 1000.0;  // ms, as in the CSV log
+				double startTime = (double)startMicros / 1000.0;
+				double endTime = (double)endMicros / 1000.0;
+				double duration = (double)(endMicros - startMicros) / 1000000.0;  // seconds
+				reqLog.addEntry(new ReqTimeLogEntry(reqType, Long.toString(id), name, reqRate,
+					intendedStartTime, startTime, endTime, duration,
+					BinaryTimeLogFormat.resultString(resultCode)));
+			}
+
+			public void detail(String reqType, String name, long id, double reqRate,
+				boolean isBegin, long timeMicros)
+			{
+				detailLog.addEvent(reqType, Long.toString(id), name, reqRate,
+					(isBegin ? "Begin" : "End"), (double)timeMicros / 1000.0);
+			}
+		});
+	}
+
+
+	/** Decode each record of the log, in order, and pass it to the handler. */
+	void read(RecordHandler handler) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(thisPath), StandardOpenOption.READ))
+		{
+			long fileSize = channel.size();
+			if (fileSize < BinaryTimeLogFormat.HeaderSize) throw new IOException(
+				"Not a binary time log: " + thisPath);
+
+			MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				Math.min(fileSize, WindowSize));
+			if (bb.getInt() != BinaryTimeLogFormat.Magic) throw new IOException(
+				"Not a binary time log: " + thisPath);
+			short version = bb.getShort();
+			if ((version != BinaryTimeLogFormat.Version) &&
+				(version != BinaryTimeLogFormat.Version1)) throw new IOException(
+				"Unsupported binary time log version " + version + " in " + thisPath);
+			short recordSize = bb.getShort();
+
+			long windowStart = 0;
+			for (;;)
+			{
+				long pos = windowStart + bb.position();
+				if (pos >= fileSize) break;
+
+				// Remap if the next record might extend past the end of the window.
+				if ((bb.remaining() < MaxRecordSize) && (windowStart + bb.limit() < fileSize))
+				{
+					windowStart = pos;
+					bb = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+						Math.min(fileSize - windowStart, WindowSize));
+				}
+
+				byte tag = bb.get(bb.position());
+				if (tag == BinaryTimeLogFormat.NameTag)
+				{
+					bb.get();
+					int id = bb.getInt();
+					int length = bb.getShort() & 0xFFFF;
+					byte[] bytes = new byte[length];
+					bb.get(bytes);
+					thisNames.put(id, new String(bytes, StandardCharsets.UTF_8));
+				}
+				else if ((tag == BinaryTimeLogFormat.RequestTag) ||
+					(tag == BinaryTimeLogFormat.DetailTag))
+				{
+					if (bb.remaining() < recordSize) throw new IOException(
+						"Truncated record at offset " + pos + " in " + thisPath);
+					int start = bb.position();
+					bb.get();
+					byte code = bb.get();
+					bb.getShort();
+					String reqType = name(bb.getInt());
+					String eventName = name(bb.getInt());
+					long id = bb.getLong();
+					long startMicros = bb.getLong();
+					long endMicros = bb.getLong();
+					double reqRate = bb.getFloat();
+					long intendedMicros = startMicros;  // version 1 records have no intended time
+					if (version != BinaryTimeLogFormat.Version1) intendedMicros = bb.getLong();
+					bb.position(start + recordSize);
+
+					if (tag == BinaryTimeLogFormat.RequestTag)
+						handler.request(reqType, eventName, id, reqRate, intendedMicros,
+							startMicros, endMicros, code);
+					else
+						handler.detail(reqType, eventName, id, reqRate,
+							(code == BinaryTimeLogFormat.EventBegin), startMicros);
+				}
+				else
+					throw new IOException("Unrecognized record tag " + tag + " at offset " +
+						pos + " in " + thisPath);
+			}
+		}
+	}
+
+
+	String name(int id) throws IOException
+	{
+		String name = thisNames.get(id);
+		if (name == null) throw new IOException("Undefined name id " + id + " in " + thisPath);
+		return name;
+	}
+}
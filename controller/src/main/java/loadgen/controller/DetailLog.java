@@ -20,6 +20,9 @@ class DetailLog extends AbstractEntryLog
 	private Map<String, Integer> thisEventTypeCount = new HashMap<String, Integer>();
 	
 	DetailLog(BufferedReader br) { this.br = br; }
+
+	/** For a log whose events are added with addEvent, rather than parsed. */
+	DetailLog() { this(null); }
 	
 	void parse() throws IOException
 	{
@@ -50,8 +53,27 @@ class DetailLog extends AbstractEntryLog
 		String name = fields[DetailTimeLogEntry.sequence.NameField.ordinal()];
 		double reqRate = Double.parseDouble(fields[DetailTimeLogEntry.sequence.ReqRateField.ordinal()]);
 		String beginOrEnd = fields[DetailTimeLogEntry.sequence.BeginOrEndField.ordinal()];
-		double time = Double.parseDouble(fields[DetailTimeLogEntry.sequence.TimeField.ordinal()]);
+		String timeField = fields[DetailTimeLogEntry.sequence.TimeField.ordinal()];
+		if (timeField.endsWith("ms")) timeField = timeField.substring(0, timeField.length()-2);
+		double time = Double.parseDouble(timeField);
 		
+		return matchEvent(reqType, id, name, reqRate, beginOrEnd, time);
+	}
+
+	/** Add a begin or end event that was read from a binary time log. */
+	void addEvent(String reqType, String id, String name, double reqRate,
+		String beginOrEnd, double time)
+	{
+		thisNumberOfDetailLogEntries = thisNumberOfDetailLogEntries + 1;
+		DetailTimeLogEntry entry = matchEvent(reqType, id, name, reqRate, beginOrEnd, time);
+		if (entry != null) insertDetailTimeLogEntry(entry);
+	}
+
+	/** If the event is a begin event, save it; if it is an end event, pair it with
+		its begin event and return the resulting entry. */
+	protected DetailTimeLogEntry matchEvent(String reqType, String id, String name,
+		double reqRate, String beginOrEnd, double time)
+	{
 		if (beginOrEnd.equals("Begin"))
 			pushBeginEvent(reqType, id, name, time);
 		else if (beginOrEnd.equals("End"))
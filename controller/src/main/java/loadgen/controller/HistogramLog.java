@@ -0,0 +1,148 @@
+package loadgen.controller;
+
+
+import loadgen.HistogramLogFormat;
+import loadgen.LatencyHistogram;
+import loadgen.TestRunnerConstants;
+import java.io.*;
+import java.util.*;
+
+
+/** The latency histograms of a test run, as written by the TestRunner on each
+	node (see HistogramLogFormat). The snapshots of all nodes and intervals are
+	merged, for each request type, event name, and kind, as they are parsed, so
+	the memory that is used does not depend on the number of requests. The count
+	and the sum of each interval are also kept, so that averages can be computed
+	for parts of the run. */
+class HistogramLog
+{
+	private Map<String, Entry> thisEntries = new LinkedHashMap<String, Entry>();
+	private long thisLastIntervalStartMs = 0;
+
+
+	/** The merged snapshots of one request type, event name, and kind. */
+	static class Entry
+	{
+		final String reqType;
+		final String eventName;
+		final String kind;
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final TreeMap<Long, double[]> intervals = new TreeMap<Long, double[]>();  // by interval start (ms): { count, sum }
+		long failures = 0;
+
+		Entry(String reqType, String eventName, String kind)
+		{
+			this.reqType = reqType;
+			this.eventName = eventName;
+			this.kind = kind;
+		}
+	}
+
+
+	void parse(BufferedReader br) throws IOException
+	{
+		for (String line = br.readLine(); line != null; line = br.readLine())
+		{
+			if (line.trim().equals("")) continue;
+			add(HistogramLogFormat.decode(line));
+		}
+	}
+
+
+	void add(HistogramLogFormat.Snapshot snapshot)
+	{
+		String key = snapshot.reqType + "\t" + snapshot.eventName + "\t" + snapshot.kind;
+		Entry entry = thisEntries.get(key);
+		if (entry == null)
+		{
+			entry = new Entry(snapshot.reqType, snapshot.eventName, snapshot.kind);
+			thisEntries.put(key, entry);
+		}
+		entry.histogram.add(snapshot.histogram);
+		entry.failures = entry.failures + snapshot.failures;
+		double[] totals = entry.intervals.computeIfAbsent(snapshot.intervalStartMs, (t) -> new double[2]);
+		totals[0] = totals[0] + snapshot.histogram.count();
+		totals[1] = totals[1] + snapshot.histogram.sum();
+		if (snapshot.intervalStartMs > thisLastIntervalStartMs)
+			thisLastIntervalStartMs = snapshot.intervalStartMs;
+	}
+
+
+	/** Return the merged histogram of the specified event type, kind, and request
+		types. If no request types are specified, then include all request types.
+		If eventTypeName is null, then include all events other than EndToEnd and
+		the TestRunner's stage events (see TestRunnerConstants.HarnessPrefix). */
+	LatencyHistogram histogram(String eventTypeName, String kind, String... reqTypeNames)
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (Entry entry : select(eventTypeName, kind, reqTypeNames)) histogram.add(entry.histogram);
+		return histogram;
+	}
+
+
+	/** Return the number of requests that failed, of the specified event type and
+		request types, as for histogram. */
+	long failures(String eventTypeName, String... reqTypeNames)
+	{
+		long failures = 0;
+		for (Entry entry : select(eventTypeName, HistogramLogFormat.Latency, reqTypeNames))
+			failures = failures + entry.failures;
+		return failures;
+	}
+
+
+	/** Return the number and the sum (microseconds), as { count, sum }, of the values
+		of the specified event type, kind, and request types, as for histogram, that
+		were recorded in the intervals that start from fromMs up to toMs (ms since
+		the start of the run). */
+	double[] totalsBetween(String eventTypeName, String kind, long fromMs, long toMs,
+		String... reqTypeNames)
+	{
+		double[] totals = new double[2];
+		if (toMs <= fromMs) return totals;
+		for (Entry entry : select(eventTypeName, kind, reqTypeNames))
+			for (double[] interval : entry.intervals.subMap(fromMs, toMs).values())
+			{
+				totals[0] = totals[0] + interval[0];
+				totals[1] = totals[1] + interval[1];
+			}
+		return totals;
+	}
+
+
+	/** Return the names of the events for which there are histograms. */
+	Set<String> eventNames()
+	{
+		Set<String> names = new LinkedHashSet<String>();
+		for (Entry entry : thisEntries.values()) names.add(entry.eventName);
+		return names;
+	}
+
+
+	/** Return the start of the last interval for which there is a snapshot, in ms
+		since the start of the run. */
+	long lastIntervalStartMs()
+	{
+		return thisLastIntervalStartMs;
+	}
+
+
+	List<Entry> select(String eventTypeName, String kind, String... reqTypeNames)
+	{
+		List<Entry> entries = new Vector<Entry>();
+		for (Entry entry : thisEntries.values())
+		{
+			if (! entry.kind.equals(kind)) continue;
+			if ((reqTypeNames.length != 0) &&
+				(! Util.arrayContains(reqTypeNames, entry.reqType))) continue;
+			if (eventTypeName == null)
+			{
+				if (entry.eventName.equals(TestRunnerConstants.EndToEnd)) continue;
+				if (entry.eventName.startsWith(TestRunnerConstants.HarnessPrefix)) continue;
+			}
+			else if (! entry.eventName.equals(eventTypeName)) continue;
+			entries.add(entry);
+		}
+		return entries;
+	}
+}
@@ -94,6 +94,46 @@ public class LoadGenerator implements AbstractLoadGenerator
 	}
 
 
+	/** Define a profile that replays a trace of recorded arrivals, rather than
+		following a distribution. See TraceProfile. */
+	public TraceProfile traceProfile(String name, Consumer<TraceProfile> block)
+	{
+		TraceProfile p = new TraceProfile(this, name, block);
+		profiles.put(name, p);
+		return p;
+	}
+
+
+	/** Define a closed-model profile: a number of virtual users that each perform
+		a request type repeatedly, with a think time. See ClosedProfile. */
+	public ClosedProfile closedProfile(String name, Consumer<ClosedProfile> block)
+	{
+		ClosedProfile p = new ClosedProfile(this, name, block);
+		profiles.put(name, p);
+		return p;
+	}
+
+
+	/** Define a profile of user sessions, each of which performs a sequence of
+		request types. See SessionProfile. */
+	public SessionProfile sessionProfile(String name, Consumer<SessionProfile> block)
+	{
+		SessionProfile p = new SessionProfile(this, name, block);
+		profiles.put(name, p);
+		return p;
+	}
+
+
+	/** Define a profile that performs a weighted mix of request types from a
+		single stream of arrivals. See MixProfile. */
+	public MixProfile mixProfile(String name, Consumer<MixProfile> block)
+	{
+		MixProfile p = new MixProfile(this, name, block);
+		profiles.put(name, p);
+		return p;
+	}
+
+
 	/** Define the available IPs to use for the test client (Node) VMs. */
 	public void ipPool(String... ipAddresses)
 	{
@@ -274,6 +314,34 @@ public class LoadGenerator implements AbstractLoadGenerator
 		return null;
 	}
 
+	TraceProfile getTraceProfile(String name)
+	{
+		AbstractProfile profile = getProfile(name);
+		if (profile instanceof TraceProfile) return (TraceProfile)profile;
+		return null;
+	}
+
+	ClosedProfile getClosedProfile(String name)
+	{
+		AbstractProfile profile = getProfile(name);
+		if (profile instanceof ClosedProfile) return (ClosedProfile)profile;
+		return null;
+	}
+
+	SessionProfile getSessionProfile(String name)
+	{
+		AbstractProfile profile = getProfile(name);
+		if (profile instanceof SessionProfile) return (SessionProfile)profile;
+		return null;
+	}
+
+	MixProfile getMixProfile(String name)
+	{
+		AbstractProfile profile = getProfile(name);
+		if (profile instanceof MixProfile) return (MixProfile)profile;
+		return null;
+	}
+
 	AbstractProvider getProviderConfig(String name) { return providerConfigs.get(name); }
 
 
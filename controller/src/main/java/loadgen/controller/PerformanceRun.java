@@ -1,6 +1,9 @@
 package loadgen.controller;
 
 import loadgen.TestRunnerConstants;
+import loadgen.EnvVars;
+import loadgen.HistogramLogFormat;
+import loadgen.LatencyHistogram;
 import loadgen.Version;
 
 import java.io.*;
@@ -21,9 +24,11 @@ public class PerformanceRun extends AbstractTestRun
 	private List<String> thisGraphEvents = new Vector<String>();
 	private Map<String, String> thisEventColors = new HashMap<String, String>();
 	private boolean thisAbortIfTestsCannotAchieveProfile = false;
+	private boolean thisFullReporting = false;
 	private Map<String, Map<String, Double>> thisStats = new HashMap<String, Map<String, Double>>();
 	private Map<String, String> thisGraphs = new HashMap<String, String>(); // eventTypeName, graphFileName
 	private List<String> thisTables = new Vector<String>();
+	private boolean thisRetainsSamples = false;
 
 
 	PerformanceRun(LoadGenerator lg, String name, Consumer<PerformanceRun> block)
@@ -105,15 +110,71 @@ public class PerformanceRun extends AbstractTestRun
 		return thisAbortIfTestsCannotAchieveProfile;
 	}
 
+	/** Specify that the nodes should run stories with JBehave's normal reporting
+		(story reporters, console output, and report generation). By default, a
+		performance run's stories are run in "load mode", without any reporting,
+		so that the reporting does not add to the load on the nodes. */
+	public void useFullReporting()
+	{
+		thisFullReporting = true;
+	}
+
+	/** Specify that the nodes should log the time of each stage of their handling
+		of each request (see TestRunnerConstants.HarnessStages), so that getStageStats
+		can show how much of the end-to-end time is spent by the load generator, and
+		in which stage, rather than by the system under test. This adds several
+		detail events per request. */
+	public void recordStageTimes()
+	{
+		defineEnvVariable(EnvVars.StageTimes, "true");
+	}
+
+	/** Specify that the nodes should write the time logs of only some requests: for
+		each request type, in each interval of the histogram log, a uniform random
+		sample of sampleSize requests, the noOfSlowest requests that took longest,
+		every request that failed, and a sample of sampleSize of the requests that
+		were dropped. Statistics are still computed from the
+		histograms, which include every request; the graphs and the tables of
+		individual requests show only the retained requests. */
+	public void retainSamples(int sampleSize, int noOfSlowest)
+	{
+		if ((sampleSize < 0) || (noOfSlowest < 0)) throw new RuntimeException(
+			"The numbers of requests to retain must not be negative");
+		defineEnvVariable(EnvVars.RetainSample, String.valueOf(sampleSize));
+		defineEnvVariable(EnvVars.RetainSlowest, String.valueOf(noOfSlowest));
+		thisRetainsSamples = true;
+	}
+
+	boolean retainsSamples()
+	{
+		return thisRetainsSamples;
+	}
+
+	boolean usesLoadMode()
+	{
+		return ! thisFullReporting;
+	}
+
 	/** Return the average response time that was measured between the specified
-		two times, relative to the run starting time. This must be called after
+		two times (minutes), relative to the run starting time. This must be called after
 		parseTimeLog has been called.
-		If reqTypeNames are specified, then the result is only for those request types. */
+		If reqTypeNames are specified, then the result is only for those request types.
+		If the nodes' histograms were retrieved, the result is computed from them,
+		to the resolution of their intervals (see HistogramLogFormat). */
 	public double avgResponseTimeBetween(double fromTime, double toTime, String eventTypeName,
 		String... reqTypeNames)
 	throws
 		Exception // if there were no requests of the specified type
 	{
+		if (histogramLog() != null)
+		{
+			double[] totals = histogramLog().totalsBetween(eventTypeName, HistogramLogFormat.Latency,
+				Math.round(fromTime * 60000.0), Math.round(toTime * 60000.0), reqTypeNames);
+			if (totals[0] == 0.0) throw new Exception("there were no requests of that type");
+			return (totals[1] / totals[0]) * unitsPerMicrosecond(eventTypeName);
+		}
+
+		requireAllRequests("the average response time");
 		return computeMean(earliestTime(eventTypeName) + fromTime * 60.0,
 			earliestTime(eventTypeName) + toTime * 60.0, eventTypeName, reqTypeNames);
 	}
@@ -125,6 +186,10 @@ public class PerformanceRun extends AbstractTestRun
 	throws
 		Exception  // if there are no successful tests after fromTime.
 	{
+		if (histogramLog() != null)
+			return avgResponseTimeBetween(fromTime, measuredLoadDuration() / 60.0,
+				eventTypeName, reqTypeNames);
+
 		double et = earliestTime(eventTypeName, reqTypeNames);
 		double lt = latestTime(eventTypeName, reqTypeNames);
 		return avgResponseTimeBetween(fromTime, lt - et, eventTypeName, reqTypeNames);
@@ -133,8 +198,15 @@ public class PerformanceRun extends AbstractTestRun
 
 	/** Return the statistics for the data represented by the aggregated time log.
 		Returns a hashtable of these statistics:
-			"pct_passed", "mean", "min", "max", "sd" (standard deviation).
-		Note: the statistics are only for those tests that passed. */
+			"pct_passed", "mean", "min", "max", "sd" (standard deviation),
+			"corrected_mean", "corrected_min", "corrected_max", "corrected_sd".
+		The corrected statistics are for the latency as measured from the time at
+		which each request was intended to start, rather than the time at which it
+		actually started: if the nodes could not keep up with the profile, requests
+		were delayed, and only the corrected statistics include that delay.
+		Note: the statistics are only for those tests that passed.
+		If the nodes' histograms were retrieved (see HistogramLogFormat), the
+		statistics are computed from them, rather than from the time logs. */
 	public Map<String, Double> getStats(String eventTypeName, String... reqTypeNames)
 	{
 		String reqTypeStr = "";
@@ -152,7 +224,11 @@ public class PerformanceRun extends AbstractTestRun
 
 		String key = et + ":" + reqTypeStr;
 		Map<String, Double> stats = getPrecalculatedStats().get(key);
-		if (stats == null) stats = computeStats(null, null, eventTypeName, reqTypeNames);
+		if (stats == null)
+		{
+			if (histogramLog() != null) stats = computeStatsFromHistograms(eventTypeName, reqTypeNames);
+			else stats = computeStats(null, null, eventTypeName, reqTypeNames);
+		}
 		getPrecalculatedStats().put(key, stats);
 		return stats;
 	}
@@ -164,15 +240,64 @@ public class PerformanceRun extends AbstractTestRun
 	}
 
 
+	/** Return, for each stage of the nodes' handling of requests that was logged
+		(see recordStageTimes), in order, the statistics of the stage's time (see
+		getStats), its median and 99th percentile ("p50" and "p99"), and its mean
+		as a percent of the mean corrected end-to-end time ("pct_of_end_to_end").
+		The stages' times add up to the corrected end-to-end time, so this shows
+		where that time goes: "Dispatched" is the time for which requests waited to
+		start, "TestEnd" is the time of the tests themselves, and the other stages
+		are the overhead of the TestRunner and JBehave. Returns an empty map if stage
+		times were not recorded. */
+	public Map<String, Map<String, Double>> getStageStats()
+	{
+		Map<String, Map<String, Double>> stageStats = new LinkedHashMap<String, Map<String, Double>>();
+		Set<String> eventNames = new HashSet<String>();
+		if (histogramLog() != null) eventNames.addAll(histogramLog().eventNames());
+		for (DetailTimeLogEntry entry : detailTimeLogData()) eventNames.add(entry.name);
+
+		double endToEnd = getStats(TestRunnerConstants.EndToEnd).get("corrected_mean");
+		for (String stage : TestRunnerConstants.HarnessStages)
+		{
+			String eventTypeName = TestRunnerConstants.HarnessPrefix + stage;
+			if (! eventNames.contains(eventTypeName)) continue;
+			Map<String, Double> stats = new LinkedHashMap<String, Double>(getStats(eventTypeName));
+			stats.put("p50", getPercentile(50.0, eventTypeName));
+			stats.put("p99", getPercentile(99.0, eventTypeName));
+			stats.put("pct_of_end_to_end", (stats.get("mean") / (endToEnd * 1000.0)) * 100.0);  // event times are in ms
+			stageStats.put(stage, stats);
+		}
+		return stageStats;
+	}
+
+
 	/** Return the response time below which 'percent' percent of the respones
 		times fall. */
 	public double getPercentile(double percent, String eventTypeName, String... reqTypeNames)
 	{
-		double fraction = percent / 100.0;
-		List<Double> sortedTimes = getSortedResponseTimes(eventTypeName, reqTypeNames);
-		int noOfEntries = sortedTimes.size();
-		int percentileCount = (int)(fraction * (double)(noOfEntries-1));
-		return sortedTimes.get(percentileCount);
+		if (histogramLog() != null)
+			return percentile(percent, HistogramLogFormat.Latency, eventTypeName, reqTypeNames);
+		return percentile(percent, getSortedResponseTimes(eventTypeName, reqTypeNames));
+	}
+
+	/** As getPercentile, but for the response times as measured from the time at
+		which each request was intended to start (see getStats). */
+	public double getCorrectedPercentile(double percent, String eventTypeName, String... reqTypeNames)
+	{
+		if (histogramLog() != null)
+			return percentile(percent, HistogramLogFormat.Corrected, eventTypeName, reqTypeNames);
+		return percentile(percent, getSortedCorrectedResponseTimes(eventTypeName, reqTypeNames));
+	}
+
+	/** Return the uncorrected and the corrected response time below which 'percent'
+		percent of the response times fall, as "uncorrected" and "corrected". */
+	public Map<String, Double> getPercentiles(double percent, String eventTypeName,
+		String... reqTypeNames)
+	{
+		Map<String, Double> percentiles = new LinkedHashMap<String, Double>();
+		percentiles.put("uncorrected", getPercentile(percent, eventTypeName, reqTypeNames));
+		percentiles.put("corrected", getCorrectedPercentile(percent, eventTypeName, reqTypeNames));
+		return percentiles;
 	}
 
 	/** Return an array of the response times, sorted by increasing response time,
@@ -180,7 +305,13 @@ public class PerformanceRun extends AbstractTestRun
 		for explanation of event type.) */
 	public List<Double> getSortedResponseTimes(String eventTypeName, String... reqTypeNames)
 	{
-		return sortResponseTimes(eventTypeName, reqTypeNames);
+		return sortResponseTimes(eventTypeName, false, reqTypeNames);
+	}
+
+	/** As getSortedResponseTimes, but for the corrected response times. */
+	public List<Double> getSortedCorrectedResponseTimes(String eventTypeName, String... reqTypeNames)
+	{
+		return sortResponseTimes(eventTypeName, true, reqTypeNames);
 	}
 
 	/** Return the start time of the first request. */
@@ -272,32 +403,41 @@ public class PerformanceRun extends AbstractTestRun
 		retrieveLogs();
 
 		// Generate statistics, aggregated across all nodes.
-		if (reqLog() != null)
+		if ((reqLog() != null) || (histogramLog() != null))
 		{
 			System.out.println("Statistics for test run " + name() +
 				", end-to-end: " + getStats(TestRunnerConstants.EndToEnd));
 			System.out.println("Statistics for test run " + name() +
 				", all events: " + getStats(null));
+			Map<String, Map<String, Double>> stageStats = getStageStats();
+			for (String stage : stageStats.keySet())
+				System.out.println("Statistics for test run " + name() +
+					", stage " + stage + ": " + stageStats.get(stage));
 
-			if (mustGraphAllEvents())
+			if (reqLog() != null)
 			{
-				for (String eventTypeName : detailLog().eventTypeCount().keySet())
+				if (mustGraphAllEvents())
 				{
-					if (eventTypeName.equals(TestRunnerConstants.WholeTest)) continue;
-					genGraph(eventTypeName);
+					for (String eventTypeName : detailLog().eventTypeCount().keySet())
+					{
+						if (eventTypeName.equals(TestRunnerConstants.WholeTest)) continue;
+						genGraph(eventTypeName);
+					}
 				}
-			}
-			else
-			{
-				for (String eventTypeName : graphEvents())
+				else
 				{
-					if (eventTypeName.equals(TestRunnerConstants.WholeTest)) continue;
-					if (eventTypeName.equals(TestRunnerConstants.EndToEnd)) continue;
-					genGraph(eventTypeName);
+					for (String eventTypeName : graphEvents())
+					{
+						if (eventTypeName.equals(TestRunnerConstants.WholeTest)) continue;
+						if (eventTypeName.equals(TestRunnerConstants.EndToEnd)) continue;
+						genGraph(eventTypeName);
+					}
 				}
+				genGraph(TestRunnerConstants.WholeTest);  // always graph this
+				genGraph(TestRunnerConstants.EndToEnd);  // always graph this
 			}
-			genGraph(TestRunnerConstants.WholeTest);  // always graph this
-			genGraph(TestRunnerConstants.EndToEnd);  // always graph this
+			else
+				System.out.println("Raw time logs were not written: no graphs are generated");
 
 			writeResults();  // Note: the graphs must be generated before this can be called.
 
@@ -318,30 +458,21 @@ public class PerformanceRun extends AbstractTestRun
 	Map<String, Double> computeStats(Double fromTime, Double toTime, String eventTypeName,
 		String... reqTypeNames)
 	{
-		// Initialize a hash of hashes with each request type.
-		Map<String, Double> stats = new HashMap<String, Double>() {
-			public String toString()  // Make the string representation useful.
-			{
-				String s = "";
-				boolean firstTime = true;
-				for (String key : keySet())
-				{
-					if (firstTime) firstTime = false;
-					else s += ", ";
-					s += (key + ": " + get(key));
-				}
-				return s;
-			}
-		};
+		Map<String, Double> stats = newStats();
 
 		stats.put("pct_passed", ((double)numberPassed() / (double)numberOfTests()) * 100.0);
 		double mean = computeMean(fromTime, toTime, eventTypeName, reqTypeNames);
 		stats.put("mean", new Double(mean));
+		double correctedMean = computeMean(fromTime, toTime, eventTypeName, true, reqTypeNames);
+		stats.put("corrected_mean", new Double(correctedMean));
 		double sumOfDif = 0.0;
+		double correctedSumOfDif = 0.0;
 		double n = 0.0;
 		boolean firstTime = true;
 		double min = 0.0;
 		double max = 0.0;
+		double correctedMin = 0.0;
+		double correctedMax = 0.0;
 		int noOfReqs = 0;
 
 		for (AbstractTimeLogEntry logDataEntry : aggTimeLogData()) try
@@ -349,15 +480,15 @@ public class PerformanceRun extends AbstractTestRun
 			if (! logDataEntry.result.equals("true")) continue;
 			if ((reqTypeNames.length != 0) &&
 				(! Util.arrayContains(reqTypeNames, logDataEntry.reqType))) continue;
-			if ((eventTypeName != null) &&
-				(! logDataEntry.name.equals(eventTypeName))) continue;
+			if (! isOfEventType(logDataEntry.name, eventTypeName)) continue;
 
 			// Exclude whole test and end-to-end events from the request count.
-			if ((!eventTypeName.equals(TestRunnerConstants.EndToEnd)) &&
-				(! eventTypeName.equals(TestRunnerConstants.WholeTest)))
+			if ((! logDataEntry.name.equals(TestRunnerConstants.EndToEnd)) &&
+				(! logDataEntry.name.equals(TestRunnerConstants.WholeTest)))
 				noOfReqs = noOfReqs + 1;
 
 			double time = logDataEntry.duration;  // select the duration
+			double correctedTime = logDataEntry.correctedDuration();
 			if ((fromTime != null) && (time < fromTime)) continue;
 			if ((toTime != null) && (time > toTime)) continue;
 			if (firstTime)
@@ -365,15 +496,21 @@ public class PerformanceRun extends AbstractTestRun
 				firstTime = false;
 				min = time;
 				max = time;
+				correctedMin = correctedTime;
+				correctedMax = correctedTime;
 			}
 			else
 			{
 				if (time < min) min = time;
 				if (time > max) max = time;
+				if (correctedTime < correctedMin) correctedMin = correctedTime;
+				if (correctedTime > correctedMax) correctedMax = correctedTime;
 			}
 			n = n + 1.0;
 			double d = (time - mean);
 			sumOfDif = sumOfDif + (d * d);
+			double cd = (correctedTime - correctedMean);
+			correctedSumOfDif = correctedSumOfDif + (cd * cd);
 		}
 		catch (Exception ex)
 		{
@@ -383,6 +520,9 @@ public class PerformanceRun extends AbstractTestRun
 		stats.put("sd", Math.sqrt(sumOfDif / n));
 		stats.put("min", min);
 		stats.put("max", max);
+		stats.put("corrected_sd", Math.sqrt(correctedSumOfDif / n));
+		stats.put("corrected_min", correctedMin);
+		stats.put("corrected_max", correctedMax);
 
 		double ft;
 		if (fromTime == null) ft = 0.0;
@@ -392,65 +532,244 @@ public class PerformanceRun extends AbstractTestRun
 		if (toTime == null) tt = getOverallLoadDuration();
 		else tt = toTime;
 
-		if (noOfReqs > 0) stats.put("reqrate", noOfReqs / (tt - ft));
+		if (noOfReqs > 0) stats.put("reqrate", rate(noOfReqs, ft, tt));
+		return stats;
+	}
+
+
+	/** Return an empty map of statistics, whose string form lists them. */
+	Map<String, Double> newStats()
+	{
+		// Initialize a hash of hashes with each request type.
+		return new HashMap<String, Double>() {
+			public String toString()  // Make the string representation useful.
+			{
+				String s = "";
+				boolean firstTime = true;
+				for (String key : keySet())
+				{
+					if (firstTime) firstTime = false;
+					else s += ", ";
+					s += (key + ": " + get(key));
+				}
+				return s;
+			}
+		};
+	}
+
+
+	/** Compute the statistics of getStats from the nodes' merged histograms. Times
+		are in the units of the time logs: seconds for end-to-end times, and ms for
+		the times of other events. If eventTypeName is null, then include all events
+		other than end-to-end. */
+	Map<String, Double> computeStatsFromHistograms(String eventTypeName, String... reqTypeNames)
+	{
+		Map<String, Double> stats = newStats();
+		long passed = histogramLog().histogram(TestRunnerConstants.EndToEnd,
+			HistogramLogFormat.Latency).count();
+		long failed = histogramLog().failures(TestRunnerConstants.EndToEnd);
+		stats.put("pct_passed", ((double)passed / (double)(passed + failed)) * 100.0);
+
+		double scale = unitsPerMicrosecond(eventTypeName);
+		LatencyHistogram histogram = histogramLog().histogram(eventTypeName,
+			HistogramLogFormat.Latency, reqTypeNames);
+		LatencyHistogram corrected = histogramLog().histogram(eventTypeName,
+			HistogramLogFormat.Corrected, reqTypeNames);
+		if (corrected.count() == 0) corrected = histogram;  // only end-to-end times are corrected
+		stats.put("mean", histogram.mean() * scale);
+		stats.put("sd", histogram.standardDeviation() * scale);
+		stats.put("min", histogram.min() * scale);
+		stats.put("max", histogram.max() * scale);
+		stats.put("corrected_mean", corrected.mean() * scale);
+		stats.put("corrected_sd", corrected.standardDeviation() * scale);
+		stats.put("corrected_min", corrected.min() * scale);
+		stats.put("corrected_max", corrected.max() * scale);
+
+		// Exclude whole test and end-to-end events from the request count.
+		long noOfReqs = 0;
+		if (eventTypeName == null)
+			noOfReqs = histogram.count() - histogramLog().histogram(TestRunnerConstants.WholeTest,
+				HistogramLogFormat.Latency, reqTypeNames).count();
+		else if ((! eventTypeName.equals(TestRunnerConstants.EndToEnd)) &&
+			(! eventTypeName.equals(TestRunnerConstants.WholeTest)))
+			noOfReqs = histogram.count();
+		if (noOfReqs > 0) stats.put("reqrate", rate(noOfReqs, 0.0, getOverallLoadDuration()));
 		return stats;
 	}
 
 
+	/** Return the percentile of the merged histogram of the specified kind (see
+		HistogramLogFormat), in the units of the time logs. */
+	double percentile(double percent, String kind, String eventTypeName, String... reqTypeNames)
+	{
+		LatencyHistogram histogram = histogramLog().histogram(eventTypeName, kind, reqTypeNames);
+		if ((histogram.count() == 0) && kind.equals(HistogramLogFormat.Corrected))
+			histogram = histogramLog().histogram(eventTypeName, HistogramLogFormat.Latency, reqTypeNames);
+		return histogram.percentile(percent) * unitsPerMicrosecond(eventTypeName);
+	}
+
+
+	/** Histograms are in microseconds; the time logs give end-to-end times in
+		seconds, and the times of other events in ms. */
+	static double unitsPerMicrosecond(String eventTypeName)
+	{
+		if (TestRunnerConstants.EndToEnd.equals(eventTypeName)) return 0.000001;
+		return 0.001;
+	}
+
+
 	/** Compute the actual average request rate for the specified event type and the
 		specified request types. If no request types are specified, then include
 		all request types. If fromTime is null then use the test start time.
-		If toTime is nil then use the end of the test. */
+		If toTime is nil then use the end of the test. Times are in seconds. If the
+		nodes' histograms were retrieved, the requests are counted in them, to the
+		resolution of their intervals; otherwise, in the time logs, by their start
+		times (see requireAllRequests). */
 	double computeAvgRequestRate(Double fromTime, Double toTime, String eventTypeName,
 		String... reqTypeNames)
 	{
+		double ft;
+		if (fromTime == null) ft = 0.0;
+		else ft = fromTime;
+
+		double tt;
+		if (toTime == null) tt = getOverallLoadDuration();
+		else tt = toTime;
+
+		if (histogramLog() != null)
+		{
+			// Exclude whole test and end-to-end events from the request count.
+			long fromMs = Math.round(ft * 1000.0);
+			long toMs = Math.round(tt * 1000.0);
+			double noOfReqs = 0.0;
+			if (eventTypeName == null)
+				noOfReqs = histogramLog().totalsBetween(null, HistogramLogFormat.Latency,
+					fromMs, toMs, reqTypeNames)[0] -
+					histogramLog().totalsBetween(TestRunnerConstants.WholeTest, HistogramLogFormat.Latency,
+					fromMs, toMs, reqTypeNames)[0];
+			else if ((! eventTypeName.equals(TestRunnerConstants.EndToEnd)) &&
+				(! eventTypeName.equals(TestRunnerConstants.WholeTest)))
+				noOfReqs = histogramLog().totalsBetween(eventTypeName, HistogramLogFormat.Latency,
+					fromMs, toMs, reqTypeNames)[0];
+			return rate(noOfReqs, ft, tt);
+		}
+
+		requireAllRequests("the average request rate");
 		int noOfReqs = 0;
 		for (AbstractTimeLogEntry logDataEntry : aggTimeLogData())
 		{
 			if (! logDataEntry.result.equals("true")) continue;
 			if ((reqTypeNames.length != 0) &&
 				(! Util.arrayContains(reqTypeNames, logDataEntry.reqType))) continue;
-			if ((eventTypeName != null) &&
-				(! logDataEntry.name.equals(eventTypeName))) continue;
+			if (! isOfEventType(logDataEntry.name, eventTypeName)) continue;
+
+			// Count only the requests that started between the two times.
+			double startTime = logDataEntry.startTime / 1000.0;  // ms to seconds
+			if ((startTime < ft) || (startTime >= tt)) continue;
 
 			// Exclude whole test and end-to-end events from the request count.
-			if ((! eventTypeName.equals(TestRunnerConstants.EndToEnd)) &&
-				(! eventTypeName.equals(TestRunnerConstants.WholeTest)))
+			if ((! logDataEntry.name.equals(TestRunnerConstants.EndToEnd)) &&
+				(! logDataEntry.name.equals(TestRunnerConstants.WholeTest)))
 				noOfReqs = noOfReqs + 1;
 		}
 
-		double ft;
-		if (fromTime == null) ft = 0.0;
-		else ft = fromTime;
+		return rate(noOfReqs, ft, tt);
+	}
 
-		double tt;
-		if (toTime == null) tt = getOverallLoadDuration();
-		else tt = toTime;
 
-		return (double)noOfReqs / (tt - ft);
+	/** Throw an exception if the time logs do not have an entry for every request,
+		so that what is computed from them would be wrong: if the raw time logs were
+		omitted, or only a sample of the requests was retained, what is computed
+		must be computed from the histograms, which were not retrieved. */
+	void requireAllRequests(String what)
+	{
+		if (! usesRawTimeLogs()) throw new RuntimeException("Cannot compute " + what +
+			": the raw time logs were omitted (see omitRawTimeLogs), and there are no histograms");
+		if (retainsSamples()) throw new RuntimeException("Cannot compute " + what +
+			": the time logs have only a sample of the requests (see retainSamples), and there are no histograms");
 	}
 
 
-	/** Find the latest time spanned by all profiles. */
+	/** Find the latest time (seconds) spanned by all profiles. The duration of a
+		trace profile is not known in advance, so for a run that has one, the
+		measured duration of the run is used if it is later (see measuredLoadDuration). */
 	double getOverallLoadDuration()
 	{
 		double latestTime = 0.0;
 		for (String profileName : testRunProfiles())
 		{
 			PerformanceProfile profile = lg.getPerformanceProfile(profileName);
-			Distribution distribution = lg.getDistribution(profile.distribution());
-			double distLatestTime = 0.0;
-			for (double[] level : distribution.levels())
-				distLatestTime = distLatestTime + (level[1] * 60.0);
+			ClosedProfile closedProfile = lg.getClosedProfile(profileName);
+			SessionProfile sessionProfile = lg.getSessionProfile(profileName);
+			MixProfile mixProfile = lg.getMixProfile(profileName);
+			double distLatestTime;
+			if (profile != null)
+				distLatestTime = lg.getDistribution(profile.distribution()).rateFunction().duration();
+			else if (closedProfile != null)
+				distLatestTime = lg.getDistribution(closedProfile.users()).rateFunction().duration();
+			else if (sessionProfile != null)
+				distLatestTime = lg.getDistribution(sessionProfile.distribution()).rateFunction().duration();
+			else if (mixProfile != null)
+				distLatestTime = lg.getDistribution(mixProfile.distribution()).rateFunction().duration();
+			else if (lg.getTraceProfile(profileName) != null)
+				distLatestTime = measuredLoadDuration();
+			else continue;
 			if (distLatestTime > latestTime) latestTime = distLatestTime;
 		}
 		return latestTime;
 	}
 
 
+	/** Return the time (seconds) from the start of the run through the end of the
+		last interval of the histograms, or, if there are none, through the start of
+		the last request in the time log. */
+	double measuredLoadDuration()
+	{
+		if (histogramLog() != null)
+			return (histogramLog().lastIntervalStartMs() +
+				HistogramLogFormat.IntervalMicros / 1000) / 1000.0;
+
+		double lastStartMs = 0.0;
+		for (ReqTimeLogEntry entry : reqTimeLogData())
+			if (entry.startTime > lastStartMs) lastStartMs = entry.startTime;
+		return lastStartMs / 1000.0;
+	}
+
+
+	/** Return the number of requests per second, over the time from fromTime through
+		toTime (seconds), or 0 if that time is empty. */
+	static double rate(double noOfReqs, double fromTime, double toTime)
+	{
+		if (toTime <= fromTime) return 0.0;
+		return noOfReqs / (toTime - fromTime);
+	}
+
+
+	/** Return true if an event of the specified name is of the specified event type.
+		If eventTypeName is null, every event is, except end-to-end events, whose
+		times are in seconds rather than ms, and the stages of requests that the
+		TestRunner itself logs (see TestRunnerConstants.HarnessPrefix), which are not
+		events of the tests; as for the histograms (see HistogramLog.select). */
+	static boolean isOfEventType(String name, String eventTypeName)
+	{
+		if (eventTypeName == null) return (! name.equals(TestRunnerConstants.EndToEnd)) &&
+			(! name.startsWith(TestRunnerConstants.HarnessPrefix));
+		return name.equals(eventTypeName);
+	}
+
+
 	/** Compute the mean of the values in the duration ('detla') column of the log data,
 		for the specified time range, event type name, and request types. */
 	double computeMean(Double fromTime, Double toTime, String eventTypeName, String... reqTypeNames)
+	{
+		return computeMean(fromTime, toTime, eventTypeName, false, reqTypeNames);
+	}
+
+
+	/** As above; if corrected, the durations are measured from the intended start
+		of each request (see AbstractTimeLogEntry.correctedDuration). */
+	double computeMean(Double fromTime, Double toTime, String eventTypeName, boolean corrected,
+		String... reqTypeNames)
 	{
 		double seconds = 0.0;
 		double n = 0.0;
@@ -460,10 +779,9 @@ public class PerformanceRun extends AbstractTestRun
 			if ((reqTypeNames.length != 0) &&
 				(! Util.arrayContains(reqTypeNames, logDataEntry.reqType)))
 				continue;
-			if ((eventTypeName != null) ||
-				(! logDataEntry.name.equals(eventTypeName))) continue;
+			if (! isOfEventType(logDataEntry.name, eventTypeName)) continue;
 
-			double time = logDataEntry.duration;
+			double time = (corrected ? logDataEntry.correctedDuration() : logDataEntry.duration);
 			seconds = seconds + time;
 
 			n = n + 1.0;
@@ -477,19 +795,19 @@ public class PerformanceRun extends AbstractTestRun
 	/** Return an array of the response times, sorted by increasing response time,
 		for the specified request types and the specified event type. (See TestRunnerConstants
 		for explanation of event type.) */
-	List<Double> sortResponseTimes(String eventTypeName, String... reqTypeNames)
+	List<Double> sortResponseTimes(String eventTypeName, boolean corrected, String... reqTypeNames)
 	{
 		List<Double> responseTimes = new Vector<Double>();
 		for (AbstractTimeLogEntry tlentry : aggTimeLogData())
 		{
-			if (tlentry.result.equals("true")) continue;
-			if ((reqTypeNames.length != 0) ||
+			if (! tlentry.result.equals("true")) continue;
+			if ((reqTypeNames.length != 0) &&
 				(! Util.arrayContains(reqTypeNames, tlentry.reqType)))
 				continue;
-			if (! tlentry.name.equals(eventTypeName)) continue;
+			if (! isOfEventType(tlentry.name, eventTypeName)) continue;
 
 			// Place the log entry's response time in the responseTimes list.
-			double responseTime = tlentry.duration;
+			double responseTime = (corrected ? tlentry.correctedDuration() : tlentry.duration);
 			int pos = -1;
 			boolean inserted = false;
 			for (double rtentry : responseTimes)
@@ -508,6 +826,16 @@ public class PerformanceRun extends AbstractTestRun
 	}
 
 
+	/** Return the value below which 'percent' percent of the sorted times fall. */
+	static double percentile(double percent, List<Double> sortedTimes)
+	{
+		double fraction = percent / 100.0;
+		int noOfEntries = sortedTimes.size();
+		int percentileCount = (int)(fraction * (double)(noOfEntries-1));
+		return sortedTimes.get(percentileCount);
+	}
+
+
 	/** Top level entry point for writing all results to files (but not database).
 		Write consolidated results (for all nodes) to JSON and CSV files. */
 	void writeResults()
@@ -544,6 +872,13 @@ public class PerformanceRun extends AbstractTestRun
 		file.println("<p>" + getStats(TestRunnerConstants.EndToEnd) + "</p>");
 		file.println("<h2>Statistics for all other event times, aggregated</h2>");
 		file.println("<p>" + getStats(null) + "</p>");
+		Map<String, Map<String, Double>> stageStats = getStageStats();
+		if (stageStats.size() > 0)
+		{
+			file.println("<h2>Statistics for each stage of the handling of requests by the nodes</h2>");
+			for (String stage : stageStats.keySet())
+				file.println("<p>" + stage + ": " + stageStats.get(stage) + "</p>");
+		}
 		file.println("<h1>Graphs (" + getGraphs().size() + ")</h1>");
 		for (String graph : getGraphs().keySet())
 			file.println("<p><a href=\"" + getGraphs().get(graph) + "\">" + graph + "</a></p>");
@@ -571,15 +906,17 @@ public class PerformanceRun extends AbstractTestRun
 		PrintWriter file;
 		try { file = new PrintWriter(filepath);}
 		catch (FileNotFoundException ex) { throw new RuntimeException(ex); }
-		file.println("req type,\tid,\tevent name,\tstart time,\tend time,\telapsed,\trate,\tresult");
+		file.println("req type,\tid,\tevent name,\tintended start time,\tstart time,\tend time,\telapsed,\tcorrected elapsed,\trate,\tresult");
 		for (ReqTimeLogEntry entry : reqTimeLogData())
 		{
 			file.println(entry.reqType +
 				",\t" + entry.id +
 				",\t" + entry.name +
+				",\t" + entry.intendedStartTime +
 				",\t" + entry.startTime +
 				",\t" + entry.endTime +
 				",\t" + entry.duration +
+				",\t" + entry.correctedDuration() +
 				",\t" + entry.reqRate +
 				",\t" + entry.result);
 		}
@@ -595,7 +932,7 @@ public class PerformanceRun extends AbstractTestRun
 		PrintWriter file;
 		try { file = new PrintWriter(filepath); }
 		catch (FileNotFoundException ex) { throw new RuntimeException(ex); }
-		file.println("req type,\tid,\tevent name,\tstart time,\tend time,\telapsed,\trate,\tresult");
+		file.println("req type,\tid,\tevent name,\tintended start time,\tstart time,\tend time,\telapsed,\tcorrected elapsed,\trate,\tresult");
 		for (ReqTimeLogEntry entry : reqTimeLogData())
 		{
 			if (entry.reqType.equals(requestTypeName))
@@ -603,9 +940,11 @@ public class PerformanceRun extends AbstractTestRun
 				file.println(entry.reqType +
 					",\t" + entry.id +
 					",\t" + entry.name +
+					",\t" + entry.intendedStartTime +
 					",\t" + entry.startTime +
 					",\t" + entry.endTime +
 					",\t" + entry.duration +
+					",\t" + entry.correctedDuration() +
 					",\t" + entry.reqRate +
 					",\t" + entry.result);
 			}
@@ -799,9 +1138,11 @@ public class PerformanceRun extends AbstractTestRun
 			file.println(indstr + "\t\t\"req_type\": \"" + entry.reqType + "\",");
 			file.println(indstr + "\t\t\"id\": \"" + entry.id + "\",");
 			file.println(indstr + "\t\t\"name\": \"" + entry.name + "\",");
+			file.println(indstr + "\t\t\"intended_start_time\": " + entry.intendedStartTime + ",");
 			file.println(indstr + "\t\t\"start_time\": " + entry.startTime + ",");
 			file.println(indstr + "\t\t\"end_time\": " + entry.endTime + ",");
 			file.println(indstr + "\t\t\"elapsed_time\": " + entry.duration + ",");
+			file.println(indstr + "\t\t\"corrected_elapsed_time\": " + entry.correctedDuration() + ",");
 			file.println(indstr + "\t\t\"rate\": " + entry.reqRate + ",");
 			file.println(indstr + "\t\t\"result\": \"" + entry.result + "\"");
 			file.println(indstr + "\t}");
@@ -903,6 +1244,7 @@ public class PerformanceRun extends AbstractTestRun
 		for (String profileName : testRunProfiles())
 		{
 			PerformanceProfile profile = lg.getPerformanceProfile(profileName);
+			if (profile == null) continue;  // only performance profiles have a rate distribution
 			Distribution distribution = lg.getDistribution(profile.distribution());
 			latestProfileTime = minStartTime;
 			double priorLevel = 0.0;
@@ -1101,6 +1443,7 @@ public class PerformanceRun extends AbstractTestRun
 		for (String profileName : testRunProfiles())
 		{
 			PerformanceProfile profile = lg.getPerformanceProfile(profileName);
+			if (profile == null) continue;  // only performance profiles have a rate distribution
 			Distribution distribution = lg.getDistribution(profile.distribution());
 
 			RequestType requestType = lg.getRequestType(profile.requestType());
@@ -18,6 +18,9 @@ class ReqLog extends AbstractEntryLog
 	private List<ReqTimeLogEntry> thisTimeLogData = new Vector<ReqTimeLogEntry>();
 	
 	ReqLog(BufferedReader br) { this.br = br; }
+
+	/** For a log whose entries are added with addEntry, rather than parsed. */
+	ReqLog() { this(null); }
 	
 	void parse() throws IOException
 	{
@@ -29,6 +32,12 @@ class ReqLog extends AbstractEntryLog
 		}
 	}
 
+	void addEntry(ReqTimeLogEntry entry)
+	{
+		thisNumberOfTests = thisNumberOfTests + 1;
+		insertTimeLogEntry(entry);
+	}
+
 	/** Return the entries of time log data, consolidated for all nodes. */
 	List<ReqTimeLogEntry> timeLogData()
 	{
@@ -11,6 +11,11 @@ import java.util.*;
 import java.nio.file.Files;
 
 
+/** An end-to-end request. startTime is the time at which the request actually
+	started, and intendedStartTime is the time at which its profile scheduled it
+	to start (both in ms since the start of the run). When a node cannot keep up,
+	a request starts late, and its duration omits the time for which it waited:
+	correctedDuration adds that time back, as a user of the system would see it. */
 class ReqTimeLogEntry extends AbstractTimeLogEntry
 {
 	/** These are used to index into columns (fields) of the time log entries. */
@@ -22,31 +27,60 @@ class ReqTimeLogEntry extends AbstractTimeLogEntry
 		StartTimeField,
 		EndTimeField,
 		DurationField,
-		ResultField
+		ResultField,
+		IntendedStartTimeField  // absent from logs written before it was added
 	}
-		
+
+	double intendedStartTime;
+
 	ReqTimeLogEntry(String reqType, String id, String name, double reqRate,
 		double startTime, double endTime, double duration, String result)
+	{
+		this(reqType, id, name, reqRate, startTime, startTime, endTime, duration, result);
+	}
+
+	ReqTimeLogEntry(String reqType, String id, String name, double reqRate,
+		double intendedStartTime, double startTime, double endTime, double duration,
+		String result)
 	{
 		super(reqType, id, name, reqRate, startTime, endTime, duration);
+		this.intendedStartTime = intendedStartTime;
 		setResult(result);
 	}
 
+	double actualStartTime() { return startTime; }
+
+	/** The duration, in seconds, plus the time for which the request started later
+		than intended. */
+	double correctedDuration()
+	{
+		return duration + (Math.max(0.0, startTime - intendedStartTime) / 1000.0);
+	}
+
 	static ReqTimeLogEntry parseLine(String line)
 	{
 		String data = line.trim();
 		String[] fields = data.split(",");
 		for (int i = 0; i < fields.length; i++) fields[i] = fields[i].trim();
-		String reqType = fields[ReqTimeLogEntry.sequence.ReqTypeField.ordinal()].split(".")[1];
-		String id = fields[ReqTimeLogEntry.sequence.IdField.ordinal()].split(".")[1];
-		String name = fields[ReqTimeLogEntry.sequence.NameField.ordinal()].split(".")[1];
-		double reqRate = Double.parseDouble(fields[ReqTimeLogEntry.sequence.ReqRateField.ordinal()].split(".")[1]);
-		double startTime = Double.parseDouble(fields[ReqTimeLogEntry.sequence.StartTimeField.ordinal()].split(".")[1]);
-		double endTime = Double.parseDouble(fields[ReqTimeLogEntry.sequence.EndTimeField.ordinal()].split(".")[1]);
-		double duration = Double.parseDouble(fields[ReqTimeLogEntry.sequence.DurationField.ordinal()].split(".")[1]);
-		String result = fields[ReqTimeLogEntry.sequence.ResultField.ordinal()].split(".")[1];
+		String reqType = value(fields, ReqTimeLogEntry.sequence.ReqTypeField);
+		String id = value(fields, ReqTimeLogEntry.sequence.IdField);
+		String name = value(fields, ReqTimeLogEntry.sequence.NameField);
+		String reqRateStr = value(fields, ReqTimeLogEntry.sequence.ReqRateField);
+		double reqRate = (reqRateStr.equals("null") ? Double.NaN : Double.parseDouble(reqRateStr));
+		double startTime = Double.parseDouble(value(fields, ReqTimeLogEntry.sequence.StartTimeField));
+		double endTime = Double.parseDouble(value(fields, ReqTimeLogEntry.sequence.EndTimeField));
+		double duration = Double.parseDouble(value(fields, ReqTimeLogEntry.sequence.DurationField));
+		String result = value(fields, ReqTimeLogEntry.sequence.ResultField);
+		double intendedStartTime = startTime;
+		if (fields.length > ReqTimeLogEntry.sequence.IntendedStartTimeField.ordinal())
+			intendedStartTime = Double.parseDouble(value(fields, ReqTimeLogEntry.sequence.IntendedStartTimeField));
 		return new ReqTimeLogEntry(
-			reqType, id, name, reqRate, startTime, endTime, duration, result);
+			reqType, id, name, reqRate, intendedStartTime, startTime, endTime, duration, result);
 	}
-}
 
+	/** Return the value of a "name:value" field. */
+	static String value(String[] fields, ReqTimeLogEntry.sequence field)
+	{
+		return fields[field.ordinal()].split(":", 2)[1].trim();
+	}
+}
@@ -0,0 +1,199 @@
+package loadgen.controller;
+
+
+import loadgen.BinaryTimeLogFormat;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/** Check that a binary time log, written with the encodings of BinaryTimeLogFormat
+	as a TestRunner writes it, is read back by a BinaryTimeLogReader. */
+public class BinaryTimeLogReaderTest
+{
+	@Test
+	public void recordsAreReadBackInOrder() throws Exception
+	{
+		File file = newLog();
+		try (OutputStream out = new FileOutputStream(file))
+		{
+			out.write(BinaryTimeLogFormat.encodeHeader());
+			out.write(BinaryTimeLogFormat.encodeName(1, "Buy"));
+			out.write(BinaryTimeLogFormat.encodeName(2, "EndToEnd"));
+			out.write(BinaryTimeLogFormat.encodeName(3, "Checkout \u00e9t\u00e9"));
+			out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.DetailTag,
+				BinaryTimeLogFormat.EventBegin, 1, 3, 7, 1500, 1500, 1500, 2.5f));
+			out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.DetailTag,
+				BinaryTimeLogFormat.EventEnd, 1, 3, 7, 1800, 1800, 1800, 2.5f));
+			out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.RequestTag,
+				BinaryTimeLogFormat.ResultDropped, 1, 2, 7, 1000, 1200, 2000, 2.5f));
+		}
+
+		List<String> records = read(file);
+		assertEquals(Arrays.asList(
+			"D Buy Checkout \u00e9t\u00e9 7 2.5 begin 1500",
+			"D Buy Checkout \u00e9t\u00e9 7 2.5 end 1800",
+			"R Buy EndToEnd 7 2.5 1000 1200 2000 dropped"), records);
+	}
+
+
+	@Test
+	public void aVersion1RequestWasIntendedToStartWhenItStarted() throws Exception
+	{
+		File file = newLog();
+		try (OutputStream out = new FileOutputStream(file))
+		{
+			ByteBuffer header = ByteBuffer.allocate(BinaryTimeLogFormat.HeaderSize);
+			header.putInt(BinaryTimeLogFormat.Magic);
+			header.putShort(BinaryTimeLogFormat.Version1);
+			header.putShort((short)40);
+			out.write(header.array());
+			out.write(BinaryTimeLogFormat.encodeName(1, "Buy"));
+			out.write(BinaryTimeLogFormat.encodeName(2, "EndToEnd"));
+
+			// A version 1 record is a version 2 record without its intendedMicros.
+			for (int i = 0; i < 2; i++)
+				out.write(Arrays.copyOf(BinaryTimeLogFormat.encodeEvent(
+					BinaryTimeLogFormat.RequestTag, BinaryTimeLogFormat.ResultTrue,
+					1, 2, i, 0, 1000 * i + 100, 1000 * i + 900, 1.0f), 40));
+		}
+
+		List<String> records = read(file);
+		assertEquals(Arrays.asList(
+			"R Buy EndToEnd 0 1.0 100 100 900 true",
+			"R Buy EndToEnd 1 1.0 1100 1100 1900 true"), records);
+	}
+
+
+	@Test
+	public void aLogLargerThanAWindowIsReadAcrossWindows() throws Exception
+	{
+		// Names of the largest size fall at various offsets relative to the window ends.
+		StringBuilder longName = new StringBuilder();
+		while (longName.length() < BinaryTimeLogFormat.MaxNameLength) longName.append("abcdefghij");
+		final int noOfRecords = 20000;
+
+		File file = newLog();
+		List<String> expected = new ArrayList<String>();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file)))
+		{
+			out.write(BinaryTimeLogFormat.encodeHeader());
+			out.write(BinaryTimeLogFormat.encodeName(1, "Buy"));
+			int nextId = 2;
+			for (int i = 0; i < noOfRecords; i++)
+			{
+				int nameId = 1;
+				if (i % 1000 == 999)
+				{
+					nameId = nextId++;
+					String name = i + longName.substring(0,
+						BinaryTimeLogFormat.MaxNameLength - Integer.toString(i).length());
+					out.write(BinaryTimeLogFormat.encodeName(nameId, name));
+				}
+				out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.RequestTag,
+					BinaryTimeLogFormat.ResultTrue, 1, nameId, i, i, i, i + 1, 1.0f));
+				expected.add(i + " " + (nameId == 1 ? "Buy" : (i + "abc")));
+			}
+		}
+
+		Field windowSize = BinaryTimeLogReader.class.getDeclaredField("WindowSize");
+		windowSize.setAccessible(true);
+		Object defaultSize = windowSize.get(null);
+		windowSize.set(null, 3L * BinaryTimeLogFormat.MaxNameLength);
+		try
+		{
+			assertTrue(file.length() > 3L * 3L * BinaryTimeLogFormat.MaxNameLength);
+
+			final List<String> records = new ArrayList<String>();
+			new BinaryTimeLogReader(file.getPath()).read(new BinaryTimeLogReader.RecordHandler()
+			{
+				public void request(String reqType, String name, long id, double reqRate,
+					long intendedMicros, long startMicros, long endMicros, byte resultCode)
+				{
+					assertEquals(id, startMicros);
+					assertEquals(id + 1, endMicros);
+					if (! name.equals("Buy"))
+					{
+						assertEquals(BinaryTimeLogFormat.MaxNameLength, name.length());
+						name = name.substring(0, Long.toString(id).length() + 3);
+					}
+					records.add(id + " " + name);
+				}
+
+				public void detail(String reqType, String name, long id, double reqRate,
+					boolean isBegin, long timeMicros)
+				{
+					fail("Unexpected detail record");
+				}
+			});
+			assertEquals(expected, records);
+		}
+		finally
+		{
+			windowSize.set(null, defaultSize);
+		}
+	}
+
+
+	@Test
+	public void aNameThatIsTooLongIsTruncatedAtACharacterBoundary() throws Exception
+	{
+		// Each character is two bytes in UTF-8, so the limit falls within a character.
+		StringBuilder longName = new StringBuilder();
+		while (longName.length() < BinaryTimeLogFormat.MaxNameLength) longName.append('\u00e9');
+
+		File file = newLog();
+		try (OutputStream out = new FileOutputStream(file))
+		{
+			out.write(BinaryTimeLogFormat.encodeHeader());
+			out.write(BinaryTimeLogFormat.encodeName(1, "Buy"));
+			out.write(BinaryTimeLogFormat.encodeName(2, longName.toString()));
+			out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.RequestTag,
+				BinaryTimeLogFormat.ResultFalse, 1, 2, 1, 10, 10, 20, 1.0f));
+			out.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.RequestTag,
+				BinaryTimeLogFormat.ResultTrue, 1, 1, 2, 30, 30, 40, 1.0f));
+		}
+
+		List<String> records = read(file);
+		assertEquals(2, records.size());
+		assertEquals("R Buy " + longName.substring(0, BinaryTimeLogFormat.MaxNameLength / 2) +
+			" 1 1.0 10 10 20 false", records.get(0));
+		assertEquals("R Buy Buy 2 1.0 30 30 40 true", records.get(1));
+	}
+
+
+	static File newLog() throws IOException
+	{
+		File file = File.createTempFile("TimeLog", ".bin");
+		file.deleteOnExit();
+		return file;
+	}
+
+
+	/** Read the log, and return a line for each record. */
+	static List<String> read(File file) throws IOException
+	{
+		final List<String> records = new ArrayList<String>();
+		new BinaryTimeLogReader(file.getPath()).read(new BinaryTimeLogReader.RecordHandler()
+		{
+			public void request(String reqType, String name, long id, double reqRate,
+				long intendedMicros, long startMicros, long endMicros, byte resultCode)
+			{
+				records.add("R " + reqType + " " + name + " " + id + " " + reqRate + " " +
+					intendedMicros + " " + startMicros + " " + endMicros + " " +
+					BinaryTimeLogFormat.resultString(resultCode));
+			}
+
+			public void detail(String reqType, String name, long id, double reqRate,
+				boolean isBegin, long timeMicros)
+			{
+				records.add("D " + reqType + " " + name + " " + id + " " + reqRate + " " +
+					(isBegin ? "begin" : "end") + " " + timeMicros);
+			}
+		});
+		return records;
+	}
+}
@@ -3,6 +3,8 @@ package loadgen;
 
 import loadgen.TestRunnerConstants;
 import loadgen.EnvVars;
+import loadgen.HistogramLogFormat;
+import loadgen.profile.TraceProfile;
 import loadgen.controller.templates.SupportedProviders;
 import java.io.*;
 import java.net.*;
@@ -10,6 +12,7 @@ import java.util.jar.*;
 import java.util.function.*;
 import java.util.*;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 
 /** Represents a provisioned node (virtual machine or container) for testing.
@@ -291,6 +294,20 @@ class VagrantNode
 		performShellCommandOnNode(command);
 	}
 
+	// Retrieve this Node's binary time log, which contains both request and detail events.
+	void fetchBinaryTimeLogInto(String targetLocalFilePath)
+	{
+		String command = "cat " + resultsRoot() + "/timelog.bin > " + targetLocalFilePath;
+		performShellCommandOnNode(command);
+	}
+
+	// Retrieve this Node's histogram log (see HistogramLogFormat).
+	void fetchHistogramLogInto(String targetLocalFilePath)
+	{
+		String command = "cat " + resultsRoot() + "/" + HistogramLogFormat.FileName + " > " + targetLocalFilePath;
+		performShellCommandOnNode(command);
+	}
+
 	// Retrieve this Node's stdout log and store it in the specified file.
 	void fetchStdoutInto(String localnodestdoutpath)
 	{
@@ -374,6 +391,9 @@ class VagrantNode
 				"    action :create\n" +
 				"    content \"" + profileDef + "\"\n" +
 				"end\n\n";
+
+			if (profile instanceof TraceProfile)
+				profilesChefCode = profilesChefCode + getTraceFileChefCode((TraceProfile)profile);
 		}
 
 		String recipeDir = thisCookbookDir + "/" + thisCookbookName + "/recipes";
@@ -428,6 +448,39 @@ class VagrantNode
 		System.out.println("wrote recipe to " + recipePath);
 	}
 
+	/** Return chef code to deliver a trace file to the node. A trace at a URL is
+		fetched by the node; otherwise, the trace is copied into the cookbook, and
+		chef copies it to the node. Traces may be large, and so they are copied as
+		files, rather than being embedded in the recipe as profiles are. */
+	String getTraceFileChefCode(TraceProfile profile) throws IOException
+	{
+		String nodePath = profile.nodeTraceFilePath();
+		if (profile.traceFileIsURL())
+			return
+				"remote_file \"" + nodePath + "\" do\n" +
+				"    source \"" + profile.traceFile() + "\"\n" +
+				"    owner \"root\"\n" +
+				"    group \"root\"\n" +
+				"    mode \"0644\"\n" +
+				"    action :create\n" +
+				"end\n\n";
+
+		File filesDir = new File(thisCookbookDir + "/" + thisCookbookName + "/files/default");
+		if (! filesDir.exists()) filesDir.mkdirs();
+		String fileName = profile.name() + ".trace";
+		Files.copy((new File(profile.traceFile())).toPath(), (new File(filesDir, fileName)).toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Copied trace " + profile.traceFile() + " to cookbook for node " + name());
+		return
+			"cookbook_file \"" + nodePath + "\" do\n" +
+			"    source \"" + fileName + "\"\n" +
+			"    owner \"root\"\n" +
+			"    group \"root\"\n" +
+			"    mode \"0644\"\n" +
+			"    action :create\n" +
+			"end\n\n";
+	}
+
 	String getShellScript()
 	{
 		String content = testrunnerTemplate();
@@ -484,6 +537,11 @@ class VagrantNode
 				Boolean.toString(((PerformanceRun)thisTestRun).willAbortIfTestsCannotAchieveProfile())
 				);
 		content = content.replace("RANDOM_SEED_VALUE", Long.toString(thisRandomSeed));
+		content = content.replace("TIME_LOG_FORMAT_VALUE",
+			(thisTestRun.usesBinaryTimeLog() ? "binary" : "csv"));
+		content = content.replace("LOAD_MODE_VALUE", Boolean.toString(thisTestRun.usesLoadMode()));
+		content = content.replace("RAW_TIME_LOGS_VALUE", Boolean.toString(thisTestRun.usesRawTimeLogs()));
+		content = content.replace("NODE_INDEX_VALUE", Integer.toString(thisTestRun.nodes().indexOf(this)));
 
 		String profileListString = "";
 		List<String> profiles = thisTestRun.testRunProfiles();
@@ -510,6 +568,10 @@ class VagrantNode
 		"export RESULTS_DIR=GEN_NODE_RESULTS_DIR\n" +
 		"export ABORT_IF_TESTS_CANNOT_ACHIEVE_PROFILE=ABORT_IF_TESTS_CANNOT_ACHIEVE_PROFILE_VALUE\n" +
 		"export RANDOM_SEED=RANDOM_SEED_VALUE\n" +
+		"export " + EnvVars.TimeLogFormat + "=TIME_LOG_FORMAT_VALUE\n" +
+		"export " + EnvVars.LoadMode + "=LOAD_MODE_VALUE\n" +
+		"export " + EnvVars.RawTimeLogs + "=RAW_TIME_LOGS_VALUE\n" +
+		"export " + EnvVars.NodeIndex + "=NODE_INDEX_VALUE\n" +
 		"ADDL_EXPORTS\n" +
 		"java -cp \"" +
 			lg.loadgenJarPathOnNode() + ":" + lg.jBehaveJarPathOnNode() +
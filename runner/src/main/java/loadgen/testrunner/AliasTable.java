@@ -0,0 +1,62 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+
+
+/** Selects one of n items at random, in proportion to their weights, in constant
+	time, using Vose's alias method: each of n equally likely columns holds an item
+	with probability prob[i], and otherwise the column's alias. Building the table
+	takes O(n). See http://www.keithschwarz.com/darts-dice-coins/ */
+class AliasTable<T>
+{
+	private List<T> thisItems;
+	private double[] thisProb;
+	private int[] thisAlias;
+
+
+	AliasTable(Map<T, Double> weights)
+	{
+		int n = weights.size();
+		if (n == 0) throw new RuntimeException("An alias table requires at least one item");
+		thisItems = new Vector<T>(weights.keySet());
+		thisProb = new double[n];
+		thisAlias = new int[n];
+
+		double total = 0.0;
+		for (double w : weights.values()) total = total + w;
+
+		double[] scaled = new double[n];
+		Deque<Integer> small = new ArrayDeque<Integer>();
+		Deque<Integer> large = new ArrayDeque<Integer>();
+		for (int i = 0; i < n; i++)
+		{
+			scaled[i] = weights.get(thisItems.get(i)) * n / total;
+			if (scaled[i] < 1.0) small.push(i);
+			else large.push(i);
+		}
+
+		while ((! small.isEmpty()) && (! large.isEmpty()))
+		{
+			int s = small.pop();
+			int l = large.pop();
+			thisProb[s] = scaled[s];
+			thisAlias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0) small.push(l);
+			else large.push(l);
+		}
+
+		// Whatever remains has a scaled weight of 1, apart from rounding.
+		while (! large.isEmpty()) thisProb[large.pop()] = 1.0;
+		while (! small.isEmpty()) thisProb[small.pop()] = 1.0;
+	}
+
+
+	T sample(Random random)
+	{
+		int column = random.nextInt(thisProb.length);
+		if (random.nextDouble() < thisProb[column]) return thisItems.get(column);
+		return thisItems.get(thisAlias[column]);
+	}
+}
@@ -0,0 +1,35 @@
+package loadgen.testrunner;
+
+
+/** A source of request arrivals, such as a performance profile, that is driven by
+	the Dispatcher. Arrivals must be produced in order of their deadlines. These
+	methods are called only by the dispatcher thread, and must not block (except as
+	required by the request executor's saturation policy). */
+interface ArrivalSource
+{
+	/** A name for the source, for reporting. */
+	String sourceName();
+
+	/** Advance to the next arrival. Return false if there are no more arrivals. */
+	boolean nextArrival();
+
+	/** The deadline of the current arrival, in nanoseconds since the start of the run. */
+	long arrivalDeadline();
+
+	/** Issue the request for the current arrival, whose intended start time is its
+		deadline. latenessNanos is how late the dispatcher was in reaching the
+		arrival's deadline (or, if it dispatches in ticks, the end of the arrival's
+		tick - see Dispatcher). An arrival is never fired before its deadline, so
+		the request can be started at once. */
+	void fireArrival(long latenessNanos);
+
+	/** Called when fireArrival or nextArrival has thrown the specified exception:
+		the source will not be asked for any more arrivals. The source must record
+		the failure in its results, so that the run is not reported as valid. This
+		is followed by arrivalsFinished. */
+	void arrivalsFailed(RuntimeException ex);
+
+	/** Called when the source has no more arrivals, or has failed, with the lag
+		statistics of its arrivals. */
+	void arrivalsFinished(Dispatcher.LagStats lagStats);
+}
@@ -0,0 +1,195 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import loadgen.profile.RateFunction;
+import loadgen.profile.ArrivalProcess;
+
+
+/** The arrival times of a profile's requests, as a non-homogeneous Poisson process
+	whose rate is the piecewise-linear RateFunction of a distribution (by default,
+	the ramp defined by its levels; see RateFunction for other shapes). The whole distribution is compiled into its cumulative intensity
+	function, Lambda(t) (the integral of the rate from 0 to t), and arrival times are
+	obtained by inverting Lambda at the arrival times of a unit-rate Poisson process:
+	if S1, S2, ... are the arrival times of a unit-rate process, then the times t at
+	which Lambda(t) = Sk are the arrival times of a process with the required rate.
+	This is exact, including across level boundaries and for decreasing rates.
+	Arrival times are generated lazily, a chunk at a time, by a Cursor. The unit-rate
+	process need not be Poisson: any renewal (or modulated) process with a mean
+	interval of 1 may be used, such as deterministic pacing (see ArrivalProcess).
+	See http://data.princeton.edu/wws509/notes/c7.pdf for the underlying theory. */
+class ArrivalTimeline
+{
+	static int DefaultChunkSize = 1024;
+
+	private Segment[] thisSegments;
+
+
+	/** One linear piece of the rate function: the rate goes from r0 at time t0 to
+		r1 at time t1 (in seconds). lambda0 is Lambda(t0). */
+	static class Segment
+	{
+		final double t0, t1, r0, r1, lambda0;
+
+		Segment(double t0, double t1, double r0, double r1, double lambda0)
+		{
+			this.t0 = t0;
+			this.t1 = t1;
+			this.r0 = r0;
+			this.r1 = r1;
+			this.lambda0 = lambda0;
+		}
+
+		double slope() { return (r1 - r0) / (t1 - t0); }
+
+		double rateAt(double t) { return r0 + slope() * (t - t0); }
+
+		/** Lambda(t1). */
+		double lambda1() { return lambda0 + (r0 + r1) / 2.0 * (t1 - t0); }
+
+		/** Return the time t in this segment at which Lambda(t) = lambda. */
+		double timeAt(double lambda)
+		{
+			// Solve a/2 tau^2 + r0 tau - x = 0 for tau = t - t0, where x = lambda - lambda0.
+			// The form 2x / (r0 + sqrt(r0^2 + 2ax)) is used because it is stable when
+			// a is near 0 and when r0 is 0.
+			double x = lambda - lambda0;
+			double d = Math.max(0.0, r0*r0 + 2.0 * slope() * x);
+			double denominator = r0 + Math.sqrt(d);
+			if (denominator <= 0.0) return t0;
+			return Math.min(t1, t0 + 2.0 * x / denominator);
+		}
+	}
+
+
+	/** Build the timeline for a rate function. Segments of zero length are omitted. */
+	ArrivalTimeline(RateFunction rateFunction)
+	{
+		List<Segment> segments = new Vector<Segment>();
+		double lambda = 0.0;
+		for (double[] s : rateFunction.segments())
+		{
+			if (s[1] <= s[0]) continue;
+			Segment segment = new Segment(s[0], s[1], Math.max(0.0, s[2]), Math.max(0.0, s[3]), lambda);
+			segments.add(segment);
+			lambda = segment.lambda1();
+		}
+		thisSegments = segments.toArray(new Segment[segments.size()]);
+	}
+
+
+	int noOfSegments() { return thisSegments.length; }
+
+	Segment segment(int i) { return thisSegments[i]; }
+
+
+	/** Return the time (in seconds) at which the timeline ends. */
+	double duration()
+	{
+		if (thisSegments.length == 0) return 0.0;
+		return thisSegments[thisSegments.length-1].t1;
+	}
+
+
+	/** Return Lambda at the end of the timeline: the expected number of requests. */
+	double expectedNoOfArrivals()
+	{
+		if (thisSegments.length == 0) return 0.0;
+		return thisSegments[thisSegments.length-1].lambda1();
+	}
+
+
+	/** Return the highest rate of the timeline. */
+	double maxRate()
+	{
+		double max = 0.0;
+		for (Segment segment : thisSegments) max = Math.max(max, Math.max(segment.r0, segment.r1));
+		return max;
+	}
+
+
+	/** Return a cursor over Poisson arrivals. */
+	Cursor cursor(Random random)
+	{
+		return cursor(random, ArrivalProcess.Poisson);
+	}
+
+
+	/** Return a cursor over arrivals of the specified process. The process's
+		intervals (which have a mean of 1) are the intervals in Lambda between
+		arrivals, so any process yields the timeline's rate on average. */
+	Cursor cursor(Random random, ArrivalProcess process)
+	{
+		return new Cursor(process.sequence(random), DefaultChunkSize);
+	}
+
+
+	/** Iterates over the arrivals of the timeline, in order. Arrivals are generated
+		a chunk at a time. Since arrivals are in increasing order, the search for the
+		segment that contains an arrival only moves forward. */
+	class Cursor
+	{
+		private ArrivalProcess.Sequence thisIntervals;
+		private long[] thisTimes;  // nanoseconds since the start of the timeline
+		private double[] thisRates;
+		private int[] thisLevels;
+		private int thisSize = 0;
+		private int thisPosition = -1;
+		private double thisUnitTime = 0.0;  // arrival time in operational time (Lambda)
+		private int thisSegmentNo = 0;
+		private boolean thisExhausted = false;
+
+		Cursor(ArrivalProcess.Sequence intervals, int chunkSize)
+		{
+			thisIntervals = intervals;
+			thisTimes = new long[chunkSize];
+			thisRates = new double[chunkSize];
+			thisLevels = new int[chunkSize];
+		}
+
+		/** Advance to the next arrival. Return false if there are no more. */
+		boolean next()
+		{
+			thisPosition = thisPosition + 1;
+			if (thisPosition < thisSize) return true;
+			fill();
+			thisPosition = 0;
+			return thisSize > 0;
+		}
+
+		/** The time of the current arrival, in nanoseconds since the start of the timeline. */
+		long timeNanos() { return thisTimes[thisPosition]; }
+
+		/** The request rate at the time of the current arrival. */
+		double rate() { return thisRates[thisPosition]; }
+
+		/** The number (starting at 1) of the segment of the rate function that contains
+			the current arrival. For a ramp, this is the level of the Distribution; for
+			other shapes, it is not (see MixProfile.levelAt, in the TestRunner). */
+		int level() { return thisLevels[thisPosition]; }
+
+		void fill()
+		{
+			thisSize = 0;
+			while ((! thisExhausted) && (thisSize < thisTimes.length))
+			{
+				thisUnitTime = thisUnitTime + thisIntervals.nextInterval();
+				while ((thisSegmentNo < thisSegments.length) &&
+					(thisUnitTime > thisSegments[thisSegmentNo].lambda1()))
+					thisSegmentNo = thisSegmentNo + 1;
+				if (thisSegmentNo >= thisSegments.length)
+				{
+					thisExhausted = true;
+					break;
+				}
+
+				Segment segment = thisSegments[thisSegmentNo];
+				double t = segment.timeAt(thisUnitTime);
+				thisTimes[thisSize] = DeadlineClock.nanos(t);
+				thisRates[thisSize] = segment.rateAt(t);
+				thisLevels[thisSize] = thisSegmentNo + 1;
+				thisSize = thisSize + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package loadgen.testrunner;
+
+
+import loadgen.BinaryTimeLogFormat;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** Writes request and detail events to a single binary time log, using the
+	format that is defined by BinaryTimeLogFormat. Records are encoded by the
+	calling thread and appended by a TimeLogWriter. */
+class BinaryTimeLogWriter
+{
+	private TimeLogWriter thisWriter;
+	private ConcurrentHashMap<String, Integer> thisNameIds = new ConcurrentHashMap<String, Integer>();
+	private AtomicInteger thisNextNameId = new AtomicInteger(0);
+
+
+	BinaryTimeLogWriter(String path)
+	{
+		thisWriter = new TimeLogWriter(path);
+		thisWriter.writeRequired(BinaryTimeLogFormat.encodeHeader());
+	}
+
+
+	String path()
+	{
+		return thisWriter.path();
+	}
+
+
+	/** Log the intended start, actual start, and end of a request. Times are in
+		microseconds since the start of the run. */
+	boolean writeRequest(String reqType, String eventName, long requestId, double reqRate,
+		long intendedMicros, long startMicros, long endMicros, String result)
+	{
+		int reqTypeId = intern(reqType);
+		int eventNameId = intern(eventName);
+		if ((reqTypeId < 0) || (eventNameId < 0)) return false;
+		return thisWriter.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.RequestTag,
+			BinaryTimeLogFormat.resultCode(result), reqTypeId, eventNameId,
+			requestId, intendedMicros, startMicros, endMicros, (float)reqRate));
+	}
+
+
+	/** Log the beginning or end of a detail event. */
+	boolean writeDetail(String reqType, String eventName, long requestId, double reqRate,
+		boolean isBegin, long timeMicros)
+	{
+		byte code = (isBegin ? BinaryTimeLogFormat.EventBegin : BinaryTimeLogFormat.EventEnd);
+		int reqTypeId = intern(reqType);
+		int eventNameId = intern(eventName);
+		if ((reqTypeId < 0) || (eventNameId < 0)) return false;
+		return thisWriter.write(BinaryTimeLogFormat.encodeEvent(BinaryTimeLogFormat.DetailTag,
+			code, reqTypeId, eventNameId, requestId, timeMicros, timeMicros, 0L,
+			(float)reqRate));
+	}
+
+
+	/** Return the id for the specified string. The first time that a string is
+		seen, a name record is queued for it. This is done within computeIfAbsent,
+		so that no other thread can obtain the id (and queue a record that uses it)
+		before the name record has been queued. A name record is never dropped
+		because the queue is full (see TimeLogWriter.writeRequired): the reader could
+		not decode any later record that uses the id. If it cannot be queued at all,
+		because the log is closed or has failed, no id is assigned, so that a
+		record that uses the name is not written either: -1 is returned. */
+	int intern(String name)
+	{
+		if (name == null) name = "";
+		Integer id = thisNameIds.computeIfAbsent(name, (n) ->
+		{
+			int newId = thisNextNameId.getAndIncrement();
+			if (! thisWriter.writeRequired(BinaryTimeLogFormat.encodeName(newId, n))) return null;
+			return newId;
+		});
+		return (id == null ? -1 : id.intValue());
+	}
+
+
+	void close()
+	{
+		thisWriter.close();
+	}
+}
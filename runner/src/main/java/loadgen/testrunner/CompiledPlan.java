@@ -0,0 +1,177 @@
+package loadgen.testrunner;
+
+
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+import org.jbehave.core.model.*;
+
+
+/** A sequence of scenarios, ready to be performed without JBehave. Each compiled
+	scenario is a sequence of method handles, one for each step, with the step's
+	parameters already converted and bound, so that performing a step is a single
+	handle invocation. Scenarios that could not be compiled are kept, in order, as
+	stories that contain only those scenarios, and are handed to JBehave.
+	See ScenarioCompiler. */
+class CompiledPlan
+{
+	private List<Unit> thisUnits = new Vector<Unit>();
+	private Map<Class<?>, MethodHandle> thisConstructors;
+	private int thisNoOfCompiledScenarios = 0;
+	private int thisNoOfFallbackScenarios = 0;
+
+
+	/** Runs, using JBehave, the scenarios that could not be compiled. */
+	interface Fallback
+	{
+		void runStories(List<Story> stories);
+	}
+
+
+	/** The constructors are no-argument constructors of the step classes, each
+		adapted to the type ()Object. */
+	CompiledPlan(Map<Class<?>, MethodHandle> constructors)
+	{
+		thisConstructors = constructors;
+	}
+
+
+	/** Perform each scenario of the plan, in order. A new instance of each step
+		class is created for each run, and is shared by the steps of all of the
+		scenarios of the run, as it is when JBehave runs the stories. As with JBehave,
+		the remaining steps of a scenario are not performed after a step fails, but
+		the remaining scenarios are; if any scenario failed, an exception is thrown
+		after all of the scenarios have been performed. */
+	void run(Fallback fallback)
+	{
+		Map<Class<?>, Object> instances = new HashMap<Class<?>, Object>();
+		Throwable failure = null;
+		for (Unit unit : thisUnits) try
+		{
+			unit.run(instances, fallback);
+		}
+		catch (Throwable t)
+		{
+			if (failure == null) failure = t;
+		}
+
+		if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+		if (failure instanceof Error) throw (Error)failure;
+		if (failure != null) throw new RuntimeException(failure);
+	}
+
+
+	int noOfCompiledScenarios() { return thisNoOfCompiledScenarios; }
+
+	int noOfFallbackScenarios() { return thisNoOfFallbackScenarios; }
+
+
+	void addCompiledScenario(String title, List<CompiledStep> steps)
+	{
+		thisUnits.add(new CompiledScenario(title, steps));
+		thisNoOfCompiledScenarios = thisNoOfCompiledScenarios + 1;
+	}
+
+
+	/** Add a scenario to be run by JBehave. Consecutive fallback scenarios of the
+		same story are run as a single story. */
+	void addFallbackScenario(Story story, Scenario scenario)
+	{
+		FallbackStory last = null;
+		if ((! thisUnits.isEmpty()) && (thisUnits.get(thisUnits.size()-1) instanceof FallbackStory))
+			last = (FallbackStory)(thisUnits.get(thisUnits.size()-1));
+		if ((last == null) || (last.story != story))
+		{
+			last = new FallbackStory(story);
+			thisUnits.add(last);
+		}
+		last.scenarios.add(scenario);
+		thisNoOfFallbackScenarios = thisNoOfFallbackScenarios + 1;
+	}
+
+
+	Object instanceOf(Class<?> stepsClass, Map<Class<?>, Object> instances) throws Throwable
+	{
+		Object instance = instances.get(stepsClass);
+		if (instance == null)
+		{
+			instance = (Object)(thisConstructors.get(stepsClass).invokeExact());
+			instances.put(stepsClass, instance);
+		}
+		return instance;
+	}
+
+
+	interface Unit
+	{
+		void run(Map<Class<?>, Object> instances, Fallback fallback) throws Throwable;
+	}
+
+
+	/** A step, resolved to a method of a step class. The handle has the type
+		(Object)void: its only argument is the instance of the step class. */
+	static class CompiledStep
+	{
+		final String step;
+		final Class<?> stepsClass;
+		final MethodHandle handle;
+
+		CompiledStep(String step, Class<?> stepsClass, MethodHandle handle)
+		{
+			this.step = step;
+			this.stepsClass = stepsClass;
+			this.handle = handle;
+		}
+	}
+
+
+	class CompiledScenario implements Unit
+	{
+		private String thisTitle;
+		private CompiledStep[] thisSteps;
+
+		CompiledScenario(String title, List<CompiledStep> steps)
+		{
+			thisTitle = title;
+			thisSteps = steps.toArray(new CompiledStep[steps.size()]);
+		}
+
+		public void run(Map<Class<?>, Object> instances, Fallback fallback) throws Throwable
+		{
+			for (CompiledStep step : thisSteps) try
+			{
+				step.handle.invokeExact(instanceOf(step.stepsClass, instances));
+			}
+			catch (Throwable t)
+			{
+				System.err.println("Step failed in scenario \"" + thisTitle + "\": " + step.step);
+				throw t;
+			}
+		}
+	}
+
+
+	class FallbackStory implements Unit
+	{
+		final Story story;
+		final List<Scenario> scenarios = new Vector<Scenario>();
+		private List<Story> thisStories;
+
+		FallbackStory(Story story)
+		{
+			this.story = story;
+		}
+
+		public void run(Map<Class<?>, Object> instances, Fallback fallback)
+		{
+			if (thisStories == null)
+			{
+				Story s = story;
+				if (scenarios.size() != story.getScenarios().size())
+					s = new Story(story.getPath(), story.getDescription(), story.getMeta(),
+						story.getNarrative(), story.getGivenStories(), story.getLifecycle(), scenarios);
+				thisStories = Collections.singletonList(s);
+			}
+			fallback.runStories(thisStories);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package loadgen.testrunner;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/** A clock for scheduling requests at absolute times. Times are nanoseconds since
+	the clock's origin (the start of the run), measured with System.nanoTime, which
+	is monotonic and is not affected by adjustments to the system time.
+	A scheduler computes each deadline from the previous deadline - never from the
+	time at which it woke up - so that errors in waking do not accumulate.
+	Waiting parks the thread until shortly before the deadline, and then spins for
+	the remaining time, because parkNanos may overshoot by tens of microseconds or
+	more, depending on the OS timer resolution. */
+class DeadlineClock
+{
+	static long DefaultSpinNanos = 100000;  // spin for the last 100 us
+
+	private long thisOriginNanos;
+	private long thisSpinNanos;
+
+
+	DeadlineClock(long originNanos)
+	{
+		this(originNanos, DefaultSpinNanos);
+	}
+
+
+	DeadlineClock(long originNanos, long spinNanos)
+	{
+		thisOriginNanos = originNanos;
+		thisSpinNanos = spinNanos;
+	}
+
+
+	/** Return the current time, in nanoseconds since the origin. */
+	long now()
+	{
+		return System.nanoTime() - thisOriginNanos;
+	}
+
+
+	/** Wait until the deadline (in nanoseconds since the origin). Return the number
+		of nanoseconds by which the deadline had already passed when this method
+		returned - i.e., how late the caller is - or 0 if it was not late. */
+	long awaitDeadline(long deadline)
+	{
+		long remaining = deadline - now();
+		if (remaining < 0) return -remaining;
+
+		while (remaining > thisSpinNanos)
+		{
+			LockSupport.parkNanos(remaining - thisSpinNanos);
+			remaining = deadline - now();
+		}
+		while (remaining > 0)
+		{
+			Thread.onSpinWait();
+			remaining = deadline - now();
+		}
+		return 0;
+	}
+
+
+	/** Convert seconds to nanoseconds. */
+	static long nanos(double seconds)
+	{
+		return (long)(seconds * 1.0e9);
+	}
+}
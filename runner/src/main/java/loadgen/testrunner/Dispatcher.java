@@ -0,0 +1,184 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+
+
+/** Dispatches the arrivals of all of the ArrivalSources (the performance profiles)
+	of a node from a single thread. The next arrival of each source is kept in a
+	min-heap ordered by deadline: the dispatcher waits, with the DeadlineClock, for
+	the earliest deadline, fires that arrival (which submits a request to the
+	request executor), and replaces the source's entry with its next arrival. The
+	cost of scheduling an arrival is thus O(log n) in the number of sources, which
+	is small and fixed for a run - not in the number of arrivals.
+	For each source, the dispatcher records its lag: how late it was in reaching
+	the deadline of each arrival.
+	At very high rates, waking once for each arrival costs more than the precision
+	is worth, so the dispatcher can instead wake once per tick (see
+	EnvVars.DispatchTickMicros): at the end of each tick, it fires every arrival
+	whose deadline was within the tick, in order of deadline. An arrival is thus
+	never fired before its deadline, so a request starts as soon as it is fired,
+	and does not hold an in-flight slot while it waits for its deadline; it may be
+	fired up to a tick after its deadline, but its deadline is passed to the
+	request as its intended start time (see ArrivalSource.fireArrival), which is
+	recorded exactly, so that the delay is included in its corrected latency. */
+class Dispatcher implements Runnable
+{
+	private DeadlineClock thisClock;
+	private long thisTickNanos;
+	private List<Entry> thisEntries = new Vector<Entry>();
+	private PriorityQueue<Entry> thisHeap = new PriorityQueue<Entry>(
+		(a, b) -> Long.compare(a.deadline, b.deadline));
+
+
+	/** Lag statistics for one source. Times are in nanoseconds. */
+	static class LagStats
+	{
+		long count = 0;
+		long totalLag = 0;
+		long maxLag = 0;
+
+		void record(long lag)
+		{
+			count = count + 1;
+			totalLag = totalLag + lag;
+			if (lag > maxLag) maxLag = lag;
+		}
+
+		long meanLag()
+		{
+			if (count == 0) return 0;
+			return totalLag / count;
+		}
+
+		public String toString()
+		{
+			return count + " arrivals, mean lag " + (meanLag() / 1000) + " us, max lag " +
+				(maxLag / 1000) + " us";
+		}
+	}
+
+
+	static class Entry
+	{
+		final ArrivalSource source;
+		final LagStats lagStats = new LagStats();
+		long deadline;
+
+		Entry(ArrivalSource source)
+		{
+			this.source = source;
+		}
+	}
+
+
+	/** Dispatch each arrival individually, at its deadline. */
+	Dispatcher(DeadlineClock clock)
+	{
+		this(clock, 0);
+	}
+
+
+	/** If tickNanos is greater than 0, dispatch arrivals in batches, one per tick. */
+	Dispatcher(DeadlineClock clock, long tickNanos)
+	{
+		thisClock = clock;
+		thisTickNanos = tickNanos;
+	}
+
+
+	/** Add a source. Sources must be added before the dispatcher is run. */
+	void add(ArrivalSource source)
+	{
+		thisEntries.add(new Entry(source));
+	}
+
+
+	/** Dispatch the arrivals of all sources, until none has any more arrivals.
+		If a source fails (throws an exception), it is told of the failure (see
+		ArrivalSource.arrivalsFailed) and finished, and the other sources continue. */
+	public void run()
+	{
+		for (Entry entry : thisEntries) advance(entry);
+
+		if (thisTickNanos > 0) runTicks();
+		else while (! thisHeap.isEmpty())
+		{
+			Entry entry = thisHeap.poll();
+			long lag = thisClock.awaitDeadline(entry.deadline);
+			fire(entry, lag);
+		}
+
+		for (Entry entry : thisEntries)
+			System.out.println("Dispatcher: " + entry.source.sourceName() + ": " + entry.lagStats);
+	}
+
+
+	/** Wake at the end of each tick that contains a deadline, and fire all of the
+		arrivals whose deadlines were within the tick. Ticks are aligned to multiples
+		of the tick length since the start of the run. The lag of an arrival is how
+		late the dispatcher was in reaching the end of its tick: the time between
+		its deadline and the end of the tick is the granularity of the ticks, and is
+		not counted as lateness. */
+	void runTicks()
+	{
+		long noOfTicks = 0;
+		long noOfArrivals = 0;
+		while (! thisHeap.isEmpty())
+		{
+			long tickStart = (thisHeap.peek().deadline / thisTickNanos) * thisTickNanos;
+			long tickEnd = tickStart + thisTickNanos;
+			thisClock.awaitDeadline(tickEnd);
+			noOfTicks = noOfTicks + 1;
+
+			while ((! thisHeap.isEmpty()) && (thisHeap.peek().deadline < tickEnd))
+			{
+				Entry entry = thisHeap.poll();
+				fire(entry, Math.max(0, thisClock.now() - tickEnd));
+				noOfArrivals = noOfArrivals + 1;
+			}
+		}
+		System.out.println("Dispatcher: fired " + noOfArrivals + " arrivals in " + noOfTicks +
+			" ticks of " + (thisTickNanos / 1000) + " us");
+	}
+
+
+	/** Fire the entry's current arrival, and then advance the entry to its next arrival. */
+	void fire(Entry entry, long lag)
+	{
+		entry.lagStats.record(lag);
+		try { entry.source.fireArrival(lag); }
+		catch (RuntimeException ex)
+		{
+			System.err.println("Arrivals for " + entry.source.sourceName() + " failed: " + ex.getMessage());
+			ex.printStackTrace(System.err);
+			entry.source.arrivalsFailed(ex);
+			entry.source.arrivalsFinished(entry.lagStats);
+			return;
+		}
+		advance(entry);
+	}
+
+
+	/** Put the source's next arrival in the heap, or finish the source if it has none. */
+	void advance(Entry entry)
+	{
+		boolean hasNext;
+		try { hasNext = entry.source.nextArrival(); }
+		catch (RuntimeException ex)
+		{
+			System.err.println("Arrivals for " + entry.source.sourceName() + " failed: " + ex.getMessage());
+			ex.printStackTrace(System.err);
+			entry.source.arrivalsFailed(ex);
+			hasNext = false;
+		}
+
+		if (hasNext)
+		{
+			entry.deadline = entry.source.arrivalDeadline();
+			thisHeap.add(entry);
+		}
+		else
+			entry.source.arrivalsFinished(entry.lagStats);
+	}
+}
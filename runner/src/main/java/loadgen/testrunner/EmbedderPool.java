@@ -0,0 +1,190 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jbehave.core.embedder.*;
+import org.jbehave.core.failures.BatchFailures;
+import org.jbehave.core.model.Story;
+import org.jbehave.core.steps.*;
+
+
+/** A pool of JBehave Embedders for one profile. Each Embedder is fully configured:
+	its CandidateSteps have been resolved (the step classes have been loaded and
+	instantiated). It has no meta filter: it is given only the scenarios that the
+	profile's tags select (see StoryIndex). A request borrows an
+	Embedder, runs its stories, and gives it back, so that in the steady state a
+	request does not pay the cost of configuring JBehave.
+	An Embedder is bound to the class loader in which its steps were instantiated,
+	so idle Embedders are kept separately for each loader. Embedders for a loader
+	that has been retired by the StepClassLoaderPool are discarded, as is an
+	Embedder whose run failed: a new one is created the next time it is needed.
+	An Embedder runs its stories on the thread that calls runStories (it uses a
+	SameThreadExecutorService), so that the steps see the context of the request
+	that is being performed, and so that the Embedder has no threads of its own. A
+	discarded Embedder's executor service is nevertheless shut down; the pool is
+	closed at the end of the run, which discards the Embedders that remain idle.
+	In load mode, the Embedders use the LoadModeConfiguration. */
+class EmbedderPool
+{
+	private List<String> thisStepClassNames;
+	private boolean thisLoadMode;
+	private ConcurrentHashMap<ClassLoader, ConcurrentLinkedQueue<Embedder>> thisIdleEmbedders =
+		new ConcurrentHashMap<ClassLoader, ConcurrentLinkedQueue<Embedder>>();
+	private AtomicLong thisCreated = new AtomicLong(0);
+	private AtomicLong thisBorrowed = new AtomicLong(0);
+	private AtomicLong thisDiscarded = new AtomicLong(0);
+	private volatile boolean thisClosed = false;
+
+
+	EmbedderPool(List<String> stepClassNames, boolean loadMode)
+	{
+		thisStepClassNames = stepClassNames;
+		thisLoadMode = loadMode;
+	}
+
+
+	/** Return an idle Embedder for the specified loader, creating one if there is none. */
+	Embedder borrow(StepClassLoaderPool.CachingClassLoader loader)
+	{
+		thisBorrowed.incrementAndGet();
+		ConcurrentLinkedQueue<Embedder> idle = thisIdleEmbedders.get(loader);
+		if (idle != null)
+		{
+			Embedder embedder = idle.poll();
+			if (embedder != null) return embedder;
+		}
+		return createEmbedder(loader);
+	}
+
+
+	/** Discard the idle Embedders of a loader that has been retired. An Embedder of
+		the loader that is in use is discarded when it is given back. */
+	void loaderRetired(StepClassLoaderPool.CachingClassLoader loader)
+	{
+		discardIdle(thisIdleEmbedders.remove(loader));
+	}
+
+
+	/** Return an Embedder to the pool. If failed is true, the Embedder is discarded. */
+	void giveBack(Embedder embedder, StepClassLoaderPool.CachingClassLoader loader, boolean failed)
+	{
+		if (loader.isRetired())
+		{
+			discardIdle(thisIdleEmbedders.remove(loader));  // discard all idle Embedders for the loader
+			discard(embedder);
+			return;
+		}
+
+		if (failed || thisClosed)
+		{
+			discard(embedder);
+			return;
+		}
+
+		thisIdleEmbedders.computeIfAbsent(loader,
+			(l) -> new ConcurrentLinkedQueue<Embedder>()).offer(embedder);
+
+		// The pool may have been closed while the Embedder was being offered.
+		if (thisClosed) close();
+	}
+
+
+	/** Discard all idle Embedders. An Embedder that is given back after the pool
+		has been closed is discarded. */
+	void close()
+	{
+		thisClosed = true;
+		for (ClassLoader loader : thisIdleEmbedders.keySet())
+			discardIdle(thisIdleEmbedders.remove(loader));
+	}
+
+
+	private void discardIdle(ConcurrentLinkedQueue<Embedder> idle)
+	{
+		if (idle == null) return;
+		for (Embedder embedder = idle.poll(); embedder != null; embedder = idle.poll())
+			discard(embedder);
+	}
+
+
+	/** Shut down the executor service of an Embedder that will not be reused. */
+	private void discard(Embedder embedder)
+	{
+		thisDiscarded.incrementAndGet();
+		embedder.executorService().shutdown();
+		embedder.shutdownExecutorService();
+	}
+
+
+	/** Run cached (already parsed) stories, using the specified Embedder, on the
+		calling thread. This does what Embedder.runStoriesAsPaths does, except that
+		the stories are not loaded and parsed, and the Embedder's executor is not
+		shut down, so that the Embedder can be reused. A StoryManager is stateful:
+		it keeps the stories that it has run. So, as runStoriesAsPaths resets the
+		Embedder's StoryManager after each run, each run here has a new StoryManager,
+		made of the Embedder's configuration, steps, and runner; otherwise a pooled
+		Embedder would keep every story of every request that it has performed. */
+	static void runStories(Embedder embedder, List<Story> stories)
+	{
+		BatchFailures failures = new BatchFailures(embedder.embedderControls().verboseFailures());
+		StoryManager storyManager = new StoryManager(embedder.configuration(),
+			embedder.embedderControls(), embedder.embedderMonitor(), embedder.executorService(),
+			embedder.stepsFactory(), embedder.storyRunner());
+		try
+		{
+			storyManager.runStories(stories, embedder.metaFilter(), failures);
+			if (failures.size() > 0) throw new Embedder.RunningStoriesFailed(failures);
+		}
+		finally
+		{
+			if (embedder.embedderControls().generateViewAfterStories())
+				embedder.generateReportsView();
+		}
+	}
+
+
+	long created() { return thisCreated.get(); }
+
+	long borrowed() { return thisBorrowed.get(); }
+
+	long discarded() { return thisDiscarded.get(); }
+
+
+	/** Create and configure an Embedder, and resolve its steps. A step class may
+		either be a StepCandidate, or a POJO whose methods are annotated with
+		@Given, @When and @Then. */
+	Embedder createEmbedder(EmbedderClassLoader loader)
+	{
+		thisCreated.incrementAndGet();
+		Embedder embedder = new Embedder();
+		if (thisLoadMode) LoadModeConfiguration.configure(embedder);
+		embedder.useClassLoader(loader);
+		embedder.useExecutorService(new SameThreadExecutorService());
+		// See http://jbehave.org/reference/stable/javadoc/core/index.html
+
+		List<CandidateSteps> stepsList = new Vector<CandidateSteps>();
+		for (String className : thisStepClassNames) try
+		{
+			Class c = loader.loadClass(className);
+			Object instance = loader.newInstance(c, className);
+			if (instance instanceof StepCandidate)
+			{
+				final List<StepCandidate> stepList = new Vector<StepCandidate>();
+				stepList.add((StepCandidate)instance);
+				stepsList.add(new Steps() {
+					public List<StepCandidate> listCandidates() { return stepList; }
+				});
+			}
+			else
+				stepsList.addAll(new InstanceStepsFactory(
+					embedder.configuration(), instance).createCandidateSteps());
+		}
+		catch (Exception ex) { throw new RuntimeException(ex); }
+
+		embedder.useCandidateSteps(stepsList);
+		return embedder;
+	}
+}
@@ -0,0 +1,149 @@
+package loadgen.testrunner;
+
+
+import loadgen.HistogramLogFormat;
+import loadgen.LatencyHistogram;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** Records the times of requests and their events in a LatencyHistogram for each
+	request type, event name, kind, and interval, and writes a snapshot of each
+	histogram to the histogram log (see HistogramLogFormat) when its interval is
+	over. The memory that is used is bounded by the number of keys, rather than
+	the number of requests. Any number of threads may record: each histogram is
+	updated within ConcurrentHashMap.compute, so that a snapshot cannot be taken
+	while it is being updated. A value is recorded in the interval in which its
+	event ended; the snapshots of an interval are written one interval after it
+	ends, so that requests that end late in the interval are included. */
+class HistogramRecorder
+{
+	private TimeLogWriter thisWriter;
+	private ConcurrentHashMap<Key, Entry> thisEntries = new ConcurrentHashMap<Key, Entry>();
+	private volatile boolean thisClosed = false;
+	private Thread thisSnapshotThread;
+
+
+	static class Key
+	{
+		final long interval;
+		final String reqType;
+		final String eventName;
+		final String kind;
+
+		Key(long interval, String reqType, String eventName, String kind)
+		{
+			this.interval = interval;
+			this.reqType = (reqType == null ? "" : reqType);
+			this.eventName = eventName;
+			this.kind = kind;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (! (o instanceof Key)) return false;
+			Key k = (Key)o;
+			return (interval == k.interval) && reqType.equals(k.reqType) &&
+				eventName.equals(k.eventName) && kind.equals(k.kind);
+		}
+
+		public int hashCode()
+		{
+			return Objects.hash(interval, reqType, eventName, kind);
+		}
+	}
+
+
+	static class Entry
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		long failures = 0;
+	}
+
+
+	HistogramRecorder(String path)
+	{
+		thisWriter = new TimeLogWriter(path);
+		thisSnapshotThread = new Thread(() -> takeSnapshots(), "histogram-snapshots");
+		thisSnapshotThread.setDaemon(true);
+		thisSnapshotThread.start();
+	}
+
+
+	String path()
+	{
+		return thisWriter.path();
+	}
+
+
+	/** Record the time of an event of a request that passed, or count a failure.
+		endMicros is the time, since the start of the run, at which the event ended. */
+	void record(String reqType, String eventName, String kind, boolean success,
+		long micros, long endMicros)
+	{
+		thisEntries.compute(new Key(endMicros / HistogramLogFormat.IntervalMicros,
+			reqType, eventName, kind), (k, entry) ->
+		{
+			if (entry == null) entry = new Entry();
+			if (success) entry.histogram.record(micros);
+			else entry.failures++;
+			return entry;
+		});
+	}
+
+
+	/** Record the end-to-end time of a request, both as measured from its actual
+		start and from its intended start. */
+	void recordRequest(String reqType, boolean success, long intendedMicros, long startMicros,
+		long endMicros)
+	{
+		record(reqType, "EndToEnd", HistogramLogFormat.Latency, success,
+			endMicros - startMicros, endMicros);
+		record(reqType, "EndToEnd", HistogramLogFormat.Corrected, success,
+			endMicros - intendedMicros, endMicros);
+	}
+
+
+	/** Write the snapshots of each interval, one interval after it ends. */
+	void takeSnapshots()
+	{
+		long interval = HistogramLogFormat.IntervalMicros;
+		while (! thisClosed)
+		{
+			long now = TestRunner.getCurRelativeTimeInMicros();
+			long nextBoundary = ((now / interval) + 1) * interval;
+			try { Thread.sleep(((nextBoundary - now) / 1000) + 1); }
+			catch (InterruptedException ex) { break; }
+			writeSnapshots((TestRunner.getCurRelativeTimeInMicros() / interval) - 1);
+		}
+	}
+
+
+	/** Write and remove the histograms of the intervals before the specified one. */
+	void writeSnapshots(long beforeInterval)
+	{
+		for (Key key : thisEntries.keySet())
+		{
+			if (key.interval >= beforeInterval) continue;
+			Entry entry = thisEntries.remove(key);
+			if (entry == null) continue;
+			HistogramLogFormat.Snapshot snapshot = new HistogramLogFormat.Snapshot(
+				(key.interval * HistogramLogFormat.IntervalMicros) / 1000, key.reqType,
+				key.eventName, key.kind, entry.failures, entry.histogram);
+			if (! thisWriter.writeLine(snapshot.encode()))
+				System.out.println("ERROR: Unable to write to histogram log; snapshot was dropped");
+		}
+	}
+
+
+	/** Write the snapshots of all intervals, and close the log. */
+	void close()
+	{
+		thisClosed = true;
+		thisSnapshotThread.interrupt();
+		try { thisSnapshotThread.join(); }
+		catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+		writeSnapshots(Long.MAX_VALUE);
+		thisWriter.close();
+	}
+}
@@ -0,0 +1,43 @@
+package loadgen.testrunner;
+
+
+import org.jbehave.core.configuration.MostUsefulConfiguration;
+import org.jbehave.core.embedder.*;
+import org.jbehave.core.failures.PassingUponPendingStep;
+import org.jbehave.core.failures.RethrowingFailure;
+import org.jbehave.core.reporters.NullStoryReporter;
+import org.jbehave.core.reporters.StoryReporterBuilder;
+import org.jbehave.core.steps.SilentStepMonitor;
+
+
+/** The JBehave configuration that is used in "load mode" (see EnvVars.LoadMode),
+	in which stories are run only to generate load and to measure it. Nothing is
+	reported: there are no story reporters (not even console output), no report
+	view is generated, and the Embedder does not log its progress. A failed step
+	is still detected, so that the request is logged with a result of "false". */
+class LoadModeConfiguration extends MostUsefulConfiguration
+{
+	LoadModeConfiguration()
+	{
+		useDefaultStoryReporter(new NullStoryReporter());
+		useStoryReporterBuilder(new StoryReporterBuilder());  // no formats
+		useStepMonitor(new SilentStepMonitor());
+		useFailureStrategy(new RethrowingFailure());
+		usePendingStepStrategy(new PassingUponPendingStep());
+	}
+
+
+	/** Configure the Embedder for load mode. */
+	static void configure(Embedder embedder)
+	{
+		embedder.useConfiguration(new LoadModeConfiguration());
+		embedder.useEmbedderMonitor(new NullEmbedderMonitor());
+		embedder.useEmbedderControls(new EmbedderControls()
+			.doGenerateViewAfterStories(false)
+			.doIgnoreFailureInStories(true)
+			.doIgnoreFailureInView(true)
+			.doVerboseFailures(false)
+			.doVerboseFiltering(false)
+			.useThreads(1));
+	}
+}
@@ -0,0 +1,123 @@
+package loadgen.testrunner;
+
+
+import loadgen.HistogramLogFormat;
+import java.util.*;
+
+
+/** The detail events of the current request (see TestRunnerUtil.Timer), which
+	are recorded in the histograms when the request is done, because only the
+	events of requests that pass are included in the statistics. The events are
+	then returned, so that their raw entries can be written (see SampleRetention).
+	A begin is paired with the next end of the same timer.
+
+	The times are kept in primitive arrays that only grow, so that beginning and
+	ending an event does not allocate: the arrays are sized for the events of one
+	request, and a thread reuses its buffer for each request that it performs (see
+	TestRunnerUtil.setContext). */
+class RequestEvents
+{
+	/** The end time of an event that has begun but not ended. */
+	static final long NoTime = Long.MIN_VALUE;
+
+	private TestRunnerUtil.Timer[] thisTimers = new TestRunnerUtil.Timer[16];
+	private long[] thisBeginTimes = new long[16];
+	private long[] thisEndTimes = new long[16];
+	private int thisNoOfEvents = 0;
+	private int[] thisOpenEvents = new int[16];  // by timer id: the index of its event that has begun, plus 1
+
+
+	/** An event, with its begin and end times in microseconds since the start of
+		the run. endMicros is NoTime if the event did not end. */
+	static class Event
+	{
+		final String name;
+		final long beginMicros;
+		final long endMicros;
+
+		Event(String name, long beginMicros, long endMicros)
+		{
+			this.name = name;
+			this.beginMicros = beginMicros;
+			this.endMicros = endMicros;
+		}
+	}
+
+
+	synchronized void begin(TestRunnerUtil.Timer timer, long micros)
+	{
+		int id = timer.id();
+		if (id >= thisOpenEvents.length)
+			thisOpenEvents = Arrays.copyOf(thisOpenEvents, Math.max(id + 1, thisOpenEvents.length * 2));
+		thisOpenEvents[id] = append(timer, micros, NoTime) + 1;
+	}
+
+
+	synchronized void end(TestRunnerUtil.Timer timer, long micros)
+	{
+		int id = timer.id();
+		if ((id >= thisOpenEvents.length) || (thisOpenEvents[id] == 0)) return;
+		thisEndTimes[thisOpenEvents[id] - 1] = micros;
+		thisOpenEvents[id] = 0;
+	}
+
+
+	/** Add an event whose times are known. */
+	synchronized void add(TestRunnerUtil.Timer timer, long beginMicros, long endMicros)
+	{
+		append(timer, beginMicros, endMicros);
+	}
+
+
+	/** Return the index of the new event. */
+	private int append(TestRunnerUtil.Timer timer, long beginMicros, long endMicros)
+	{
+		if (thisNoOfEvents == thisTimers.length)
+		{
+			int length = thisTimers.length * 2;
+			thisTimers = Arrays.copyOf(thisTimers, length);
+			thisBeginTimes = Arrays.copyOf(thisBeginTimes, length);
+			thisEndTimes = Arrays.copyOf(thisEndTimes, length);
+		}
+		int i = thisNoOfEvents++;
+		thisTimers[i] = timer;
+		thisBeginTimes[i] = beginMicros;
+		thisEndTimes[i] = endMicros;
+		return i;
+	}
+
+
+	/** Record the events that ended in the histograms, as events of a request that
+		passed or failed, and that ended at endMicros; and clear them. If keep is
+		true, return the events, including any that did not end, so that their raw
+		entries can be written; otherwise return an empty list. */
+	synchronized List<Event> record(HistogramRecorder recorder, String reqType, boolean success,
+		long endMicros, boolean keep)
+	{
+		List<Event> events = (keep ? new ArrayList<Event>(thisNoOfEvents) :
+			Collections.<Event>emptyList());
+		for (int i = 0; i < thisNoOfEvents; i++)
+		{
+			String name = thisTimers[i].getName();
+			if (thisEndTimes[i] != NoTime)
+				recorder.record(reqType, name, HistogramLogFormat.Latency, success,
+					thisEndTimes[i] - thisBeginTimes[i], endMicros);
+			if (keep) events.add(new Event(name, thisBeginTimes[i], thisEndTimes[i]));
+		}
+		clear();
+		return events;
+	}
+
+
+	/** Remove all events, so that the buffer can be reused for another request. */
+	synchronized void clear()
+	{
+		for (int i = 0; i < thisNoOfEvents; i++)
+		{
+			int id = thisTimers[i].id();
+			if (id < thisOpenEvents.length) thisOpenEvents[id] = 0;
+			thisTimers[i] = null;
+		}
+		thisNoOfEvents = 0;
+	}
+}
@@ -0,0 +1,364 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/** Performs requests on a pool of worker threads, subject to a limit on the number
+	of requests that are in flight on the node and a limit for each profile. A
+	worker performs one request at a time, and is reused for the next request when
+	it is done; since a worker is needed only for a request that holds an in-flight
+	slot, there are never more workers than the node's limit. Workers are created as
+	they are needed, by the thread factory (so they may be virtual threads), and live
+	until the executor is shut down, so that anything that is kept for each thread
+	(such as a class loader - see StepClassLoaderPool) is reused. The
+	requests of a profile are submitted to the profile's Group. When a request is
+	submitted while either limit is reached, the saturation policy determines what
+	is done:
+		queue - the request waits (in its Group's queue) until it can be started;
+		drop - the request is not performed, and is logged with the result "dropped";
+		block - the submitting thread (the profile's scheduler) waits until the
+			request can be started.
+	In-flight counts are maintained with atomic counters: no locks are taken. A
+	Group's completion latch is released when the scheduling of its requests is
+	done and none of its requests is queued or in flight. */
+class RequestExecutor
+{
+	enum Saturation { Queue, Drop, Block }
+
+	private ThreadFactory thisThreadFactory;
+	private int thisMaxInFlight;
+	private Saturation thisSaturation;
+	private AtomicInteger thisInFlight = new AtomicInteger(0);
+	private AtomicInteger thisPeakInFlight = new AtomicInteger(0);
+	private AtomicLong thisStarted = new AtomicLong(0);
+	private AtomicLong thisQueued = new AtomicLong(0);
+	private AtomicLong thisDropped = new AtomicLong(0);
+	private List<Group> thisGroups = new CopyOnWriteArrayList<Group>();
+	private ConcurrentLinkedQueue<Thread> thisBlockedSchedulers = new ConcurrentLinkedQueue<Thread>();
+	private ConcurrentLinkedQueue<Worker> thisIdleWorkers = new ConcurrentLinkedQueue<Worker>();
+	private List<Worker> thisWorkers = new CopyOnWriteArrayList<Worker>();
+	private volatile boolean thisShutdown = false;
+	private Runnable thisWorkerExitHook;
+
+
+	/** A request, to be performed by a worker. */
+	interface Request
+	{
+		/** Perform the request. Called on a worker thread. */
+		void perform();
+
+		/** Called, on the submitting thread, if the request is dropped. */
+		void dropped();
+	}
+
+
+	RequestExecutor(ThreadFactory threadFactory, int maxInFlight, Saturation saturation)
+	{
+		thisThreadFactory = threadFactory;
+		thisMaxInFlight = maxInFlight;
+		thisSaturation = saturation;
+	}
+
+
+	/** Parse a saturation policy name, as given by the SATURATION_POLICY environment
+		variable. The default is to queue. */
+	static Saturation parseSaturation(String name)
+	{
+		if ((name == null) || name.equals("queue")) return Saturation.Queue;
+		if (name.equals("drop")) return Saturation.Drop;
+		if (name.equals("block")) return Saturation.Block;
+		throw new RuntimeException("Unrecognized saturation policy: " + name);
+	}
+
+
+	/** Create a Group, for the requests of one profile. */
+	Group newGroup(String name, int maxInFlight)
+	{
+		Group group = new Group(name, maxInFlight);
+		thisGroups.add(group);
+		return group;
+	}
+
+
+	int maxInFlight() { return thisMaxInFlight; }
+
+	Saturation saturation() { return thisSaturation; }
+
+	int inFlight() { return thisInFlight.get(); }
+
+	int peakInFlight() { return thisPeakInFlight.get(); }
+
+	long started() { return thisStarted.get(); }
+
+	long queued() { return thisQueued.get(); }
+
+	long dropped() { return thisDropped.get(); }
+
+	int noOfWorkers() { return thisWorkers.size(); }
+
+
+	void printStatistics()
+	{
+		System.out.println("Request executor (max in flight " + maxInFlight() + ", " +
+			saturation() + " when saturated): " + started() + " started, " + queued() +
+			" queued, " + dropped() + " dropped, peak of " + peakInFlight() + " in flight, " +
+			noOfWorkers() + " workers");
+	}
+
+
+	/** Run the specified hook on each worker thread when it exits, so that anything
+		that is kept for the thread can be released. */
+	void onWorkerExit(Runnable hook)
+	{
+		thisWorkerExitHook = hook;
+	}
+
+
+	/** Stop the workers, once they have finished their requests. Called when no
+		more requests will be submitted. */
+	void shutdown()
+	{
+		thisShutdown = true;
+		for (Worker worker : thisWorkers) LockSupport.unpark(worker.thisThread);
+		for (Worker worker : thisWorkers)
+		{
+			try { worker.thisThread.join(); }
+			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+		}
+	}
+
+
+	/** A thread that performs requests, one at a time. A request is handed to an
+		idle worker by setting its group and request, and unparking it. */
+	class Worker implements Runnable
+	{
+		private Thread thisThread;
+		private volatile Group thisGroup;
+		private volatile Request thisRequest;  // set after thisGroup
+
+		void assign(Group group, Request request)
+		{
+			thisGroup = group;
+			thisRequest = request;
+			LockSupport.unpark(thisThread);
+		}
+
+		public void run()
+		{
+			for (;;)
+			{
+				Request request = thisRequest;
+				if (request == null)
+				{
+					if (thisShutdown)
+					{
+						if (thisWorkerExitHook != null) thisWorkerExitHook.run();
+						return;
+					}
+					LockSupport.park(this);
+					continue;
+				}
+
+				Group group = thisGroup;
+				thisRequest = null;
+				thisGroup = null;
+				try { request.perform(); }
+				catch (Throwable t)
+				{
+					System.out.println("Request failed. Stack trace follows.");
+					t.printStackTrace(System.err);
+				}
+				finally
+				{
+					// Become idle before giving back the slots, so that a request
+					// that is started with them can use this worker.
+					thisIdleWorkers.offer(this);
+					release(group);
+					group.finished();
+				}
+			}
+		}
+	}
+
+
+	/** The requests of one profile. */
+	class Group
+	{
+		private String thisName;
+		private int thisMaxInFlight;
+		private AtomicInteger thisInFlight = new AtomicInteger(0);
+		private AtomicInteger thisOutstanding = new AtomicInteger(0);  // queued or in flight
+		private ConcurrentLinkedQueue<Request> thisQueue = new ConcurrentLinkedQueue<Request>();
+		private volatile boolean thisSchedulingDone = false;
+		private CountDownLatch thisCompletion = new CountDownLatch(1);
+
+		Group(String name, int maxInFlight)
+		{
+			thisName = name;
+			thisMaxInFlight = maxInFlight;
+		}
+
+		String name() { return thisName; }
+
+		int inFlight() { return thisInFlight.get(); }
+
+		/** Return the number of requests that are queued or in flight. */
+		int outstanding() { return thisOutstanding.get(); }
+
+		/** Submit a request. Unless the saturation policy is "block", this does not block. */
+		void submit(Request request)
+		{
+			thisOutstanding.incrementAndGet();
+			if (tryAcquire(this))
+			{
+				start(this, request);
+				return;
+			}
+
+			switch (thisSaturation)
+			{
+				case Drop:
+					thisDropped.incrementAndGet();
+					try { request.dropped(); }
+					finally { finished(); }
+					return;
+
+				case Block:
+					Thread scheduler = Thread.currentThread();
+					thisBlockedSchedulers.add(scheduler);
+					try { while (! tryAcquire(this)) LockSupport.park(this); }
+					finally { thisBlockedSchedulers.remove(scheduler); }
+					start(this, request);
+					return;
+
+				default:
+					thisQueued.incrementAndGet();
+					thisQueue.offer(request);
+					startQueued();  // in case a request finished since tryAcquire failed
+			}
+		}
+
+		/** Indicate that no more requests will be submitted. */
+		void schedulingDone()
+		{
+			thisSchedulingDone = true;
+			if (thisOutstanding.get() == 0) thisCompletion.countDown();
+		}
+
+		/** Wait until scheduling is done, and all submitted requests have finished.
+			Return false if the timeout elapses first. */
+		boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			return thisCompletion.await(timeout, unit);
+		}
+
+		void finished()
+		{
+			if ((thisOutstanding.decrementAndGet() == 0) && thisSchedulingDone)
+				thisCompletion.countDown();
+		}
+	}
+
+
+	/** Take an in-flight slot for the node and for the group, if both are available. */
+	boolean tryAcquire(Group group)
+	{
+		for (;;)
+		{
+			int n = thisInFlight.get();
+			if (n >= thisMaxInFlight) return false;
+			if (thisInFlight.compareAndSet(n, n+1)) break;
+		}
+
+		for (;;)
+		{
+			int n = group.thisInFlight.get();
+			if (n >= group.thisMaxInFlight)
+			{
+				thisInFlight.decrementAndGet();
+				return false;
+			}
+			if (group.thisInFlight.compareAndSet(n, n+1)) break;
+		}
+
+		int inFlight = thisInFlight.get();
+		for (;;)
+		{
+			int peak = thisPeakInFlight.get();
+			if ((inFlight <= peak) || thisPeakInFlight.compareAndSet(peak, inFlight)) break;
+		}
+		return true;
+	}
+
+
+	/** Give back the slots taken by tryAcquire, and start any requests that were
+		waiting for them. */
+	void release(Group group)
+	{
+		group.thisInFlight.decrementAndGet();
+		thisInFlight.decrementAndGet();
+		for (Thread scheduler : thisBlockedSchedulers) LockSupport.unpark(scheduler);
+		startQueued();
+	}
+
+
+	/** Start queued requests, of any group, for which slots are now available. */
+	void startQueued()
+	{
+		for (Group group : thisGroups)
+		{
+			while (! group.thisQueue.isEmpty())
+			{
+				if (! tryAcquire(group)) break;
+				Request request = group.thisQueue.poll();
+				if (request == null)
+				{
+					group.thisInFlight.decrementAndGet();
+					thisInFlight.decrementAndGet();
+					break;
+				}
+				start(group, request);
+			}
+		}
+	}
+
+
+	/** Start a request, for which slots have been acquired, on an idle worker, or
+		on a new worker if none is idle. */
+	void start(final Group group, final Request request)
+	{
+		thisStarted.incrementAndGet();
+		Worker worker = thisIdleWorkers.poll();
+		if (worker != null)
+		{
+			worker.assign(group, request);
+			return;
+		}
+
+		try
+		{
+			worker = new Worker();
+			worker.thisThread = thisThreadFactory.newThread(worker);
+			thisWorkers.add(worker);
+			worker.assign(group, request);
+			worker.thisThread.start();
+		}
+		catch (Throwable t)
+		{
+			System.out.println("Unable to start request worker. Stack trace follows.");
+			t.printStackTrace(System.err);
+			if (worker != null) thisWorkers.remove(worker);
+			release(group);
+			group.finished();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package loadgen.testrunner;
+
+
+import loadgen.TestRunnerConstants;
+import java.util.Arrays;
+
+
+/** The times at which a request reached each stage of its handling by the
+	TestRunner, in microseconds since the start of the run. When the request is
+	done, the time between each stage and the previous stage that was reached is
+	logged as a detail event, named TestRunnerConstants.HarnessPrefix followed by
+	the name of the stage (e.g., "Harness.LoaderReady"). Thus, "Harness.Dispatched"
+	is the time for which the request waited to start, "Harness.TestBegin" is the
+	time that JBehave took to reach the test, and so on. A stage that is not reached
+	(e.g., TestBegin, if the test does not call timelogBeginTest) is not logged,
+	and its time is included in that of the next stage. */
+class RequestStages
+{
+	/** In the order in which they are reached. The names must match
+		TestRunnerConstants.HarnessStages. */
+	enum Stage {
+		Scheduled,  // the time at which the request was intended to start
+		Dispatched,  // a worker began the request
+		LoaderReady,  // a step class loader was acquired
+		EmbedderReady,  // an Embedder was borrowed, or the compiled plan was obtained
+		TestBegin,  // the test called timelogBeginTest
+		TestEnd,  // the test called timelogEndTest
+		Done  // the request finished
+	}
+
+	private static final long Unset = Long.MIN_VALUE;
+	private static final Stage[] Stages = Stage.values();
+	private static final TestRunnerUtil.Timer[] Timers = new TestRunnerUtil.Timer[Stages.length];
+	static
+	{
+		for (Stage stage : Stages)
+			Timers[stage.ordinal()] = TestRunnerUtil.timer(TestRunnerConstants.HarnessPrefix + stage.name());
+	}
+
+	private long[] thisTimes = new long[Stages.length];
+
+
+	RequestStages(long scheduledMicros, long dispatchedMicros)
+	{
+		Arrays.fill(thisTimes, Unset);
+		thisTimes[Stage.Scheduled.ordinal()] = scheduledMicros;
+		thisTimes[Stage.Dispatched.ordinal()] = dispatchedMicros;
+	}
+
+
+	/** Record that the request has reached the stage now. A stage is recorded the
+		first time that it is reached, except TestEnd, which is recorded the last
+		time, so that a test that has several scenarios is measured from the
+		beginning of the first to the end of the last. */
+	void mark(Stage stage)
+	{
+		int i = stage.ordinal();
+		if ((thisTimes[i] == Unset) || (stage == Stage.TestEnd))
+			thisTimes[i] = TestRunner.getCurRelativeTimeInMicros();
+	}
+
+
+	long time(Stage stage)
+	{
+		return thisTimes[stage.ordinal()];
+	}
+
+
+	/** Log the time of each stage that was reached, relative to the previous
+		stage that was reached, in the specified events of the request. */
+	void log(RequestEvents events)
+	{
+		long prior = thisTimes[0];
+		for (int i = 1; i < Stages.length; i++)
+		{
+			long time = thisTimes[i];
+			if (time == Unset) continue;
+			Timers[i].log(events, prior, time);
+			prior = time;
+		}
+	}
+}
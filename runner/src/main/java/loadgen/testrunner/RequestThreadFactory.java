@@ -0,0 +1,71 @@
+package loadgen.testrunner;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Creates the threads on which requests are performed. Requests may be performed
+	on platform threads (the default), or on virtual threads, which are cheap to
+	create and do not each hold an OS thread while blocked, so that a node can have
+	many more requests in flight. Virtual threads require a JVM that supports them
+	(Java 21, or 19 with preview features enabled); they are obtained reflectively,
+	so that the TestRunner can be built for, and run on, older JVMs, in which case
+	platform threads are used instead.
+	A request must not rely on inheriting thread-local values from the thread that
+	scheduled it: the request context is set explicitly (see TestRunnerUtil.setContext). */
+class RequestThreadFactory implements ThreadFactory
+{
+	private ThreadFactory thisVirtualThreadFactory;
+	private AtomicLong thisThreadNo = new AtomicLong(0);
+
+
+	/** If virtual is true, but virtual threads are not available, a warning is
+		printed and platform threads are used. */
+	RequestThreadFactory(boolean virtual)
+	{
+		if (virtual) thisVirtualThreadFactory = virtualThreadFactory();
+	}
+
+
+	/** Parse a thread type name, as given by the REQUEST_THREADS environment
+		variable. Return true for virtual threads. The default is platform threads. */
+	static boolean parseThreadType(String name)
+	{
+		if ((name == null) || name.equals("platform")) return false;
+		if (name.equals("virtual")) return true;
+		throw new RuntimeException("Unrecognized request thread type: " + name);
+	}
+
+
+	boolean isVirtual()
+	{
+		return thisVirtualThreadFactory != null;
+	}
+
+
+	public Thread newThread(Runnable r)
+	{
+		if (thisVirtualThreadFactory != null) return thisVirtualThreadFactory.newThread(r);
+		return new Thread(r, "request-" + thisThreadNo.incrementAndGet());
+	}
+
+
+	/** Return the factory of Thread.ofVirtual(), or null if there is none. */
+	static ThreadFactory virtualThreadFactory()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)(factory.invoke(builder));
+		}
+		catch (Exception ex)
+		{
+			System.err.println("WARNING: virtual threads are not available in this JVM (" +
+				ex + "); using platform threads");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/** An ExecutorService that runs each task on the thread that submits it. It is
+	used as the executor of a pooled Embedder (see EmbedderPool), so that a
+	request's stories run on the request's own worker thread: no threads are
+	created for the Embedder, and the steps see the request's context (see
+	TestRunnerUtil.setContext) rather than that of whichever request caused a
+	JBehave thread to be created. */
+class SameThreadExecutorService extends AbstractExecutorService
+{
+	private volatile boolean thisShutdown = false;
+
+
+	public void execute(Runnable task)
+	{
+		if (thisShutdown) throw new RejectedExecutionException("Executor has been shut down");
+		task.run();
+	}
+
+
+	public void shutdown()
+	{
+		thisShutdown = true;
+	}
+
+
+	public List<Runnable> shutdownNow()
+	{
+		thisShutdown = true;
+		return new Vector<Runnable>();
+	}
+
+
+	public boolean isShutdown()
+	{
+		return thisShutdown;
+	}
+
+
+	/** Tasks are run as they are submitted, so none is left once it is shut down. */
+	public boolean isTerminated()
+	{
+		return thisShutdown;
+	}
+
+
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+	{
+		return thisShutdown;
+	}
+}
@@ -0,0 +1,204 @@
+package loadgen.testrunner;
+
+
+import loadgen.HistogramLogFormat;
+import java.util.*;
+import java.util.function.Consumer;
+
+
+/** Decides which requests have their raw time log entries (the request and its
+	detail events) written, when the TestRunner retains samples rather than every
+	request (see EnvVars.RetainSample). Histograms are always recorded for every
+	request, so statistics do not depend on this; the retained requests are for
+	graphs, tables, and debugging. For each request type, in each interval of
+	HistogramLogFormat.IntervalMicros, these requests are retained:
+		a uniform random sample of up to thisSampleSize requests (a reservoir);
+		the thisNoOfSlowest requests that took longest (from their actual start);
+		every request that failed;
+		a uniform random sample of up to thisSampleSize of the requests that were
+		dropped (see EnvVars.SaturationPolicy), which is when the node is overloaded.
+	Thus the size of the raw logs is bounded, apart from failures, however high the
+	request rate. Failures are written immediately; the others are written one
+	interval after their interval ends, as for the histograms, or when the
+	retention is closed. */
+class SampleRetention
+{
+	private int thisSampleSize;
+	private int thisNoOfSlowest;
+	private Random thisRandom;
+	private Consumer<Sample> thisWriter;
+	private Map<String, Tier> thisTiers = new HashMap<String, Tier>();  // by interval and request type
+	private long thisLatestInterval = 0;
+	private long thisNoOfOffered = 0;
+	private long thisNoOfFailures = 0;
+	private long thisNoOfDropped = 0;
+	private long thisNoOfWritten = 0;
+
+
+	/** A request whose raw entries may be written. */
+	static class Sample
+	{
+		final String reqType;
+		final long id;
+		final Double reqRate;
+		final long intendedMicros;
+		final long startMicros;
+		final long endMicros;
+		final String result;
+		final List<RequestEvents.Event> events;
+
+		Sample(String reqType, long id, Double reqRate, long intendedMicros, long startMicros,
+			long endMicros, String result, List<RequestEvents.Event> events)
+		{
+			this.reqType = reqType;
+			this.id = id;
+			this.reqRate = reqRate;
+			this.intendedMicros = intendedMicros;
+			this.startMicros = startMicros;
+			this.endMicros = endMicros;
+			this.result = result;
+			this.events = events;
+		}
+
+		long duration() { return endMicros - startMicros; }
+	}
+
+
+	/** The requests that are retained, so far, for one request type and interval,
+		and either those that passed or those that were dropped. */
+	class Tier
+	{
+		final long interval;
+		final int noOfSlowest;
+		final Sample[] reservoir = new Sample[thisSampleSize];
+		long noSeen = 0;
+		final PriorityQueue<Sample> slowest = new PriorityQueue<Sample>(
+			Math.max(1, thisNoOfSlowest), (a, b) -> Long.compare(a.duration(), b.duration()));
+
+		Tier(long interval, int noOfSlowest)
+		{
+			this.interval = interval;
+			this.noOfSlowest = noOfSlowest;
+		}
+
+		/** Reservoir sampling (Vitter's algorithm R): each of the noSeen requests
+			is in the reservoir with the same probability. */
+		void add(Sample sample)
+		{
+			noSeen++;
+			if (noSeen <= thisSampleSize) reservoir[(int)(noSeen - 1)] = sample;
+			else
+			{
+				long j = (long)(thisRandom.nextDouble() * noSeen);
+				if (j < thisSampleSize) reservoir[(int)j] = sample;
+			}
+
+			if (noOfSlowest == 0) return;
+			if (slowest.size() < noOfSlowest) slowest.add(sample);
+			else if (sample.duration() > slowest.peek().duration())
+			{
+				slowest.poll();
+				slowest.add(sample);
+			}
+		}
+
+		/** Return the retained requests, each once. */
+		Collection<Sample> retained()
+		{
+			Set<Sample> samples = Collections.newSetFromMap(new IdentityHashMap<Sample, Boolean>());
+			for (Sample sample : reservoir) if (sample != null) samples.add(sample);
+			samples.addAll(slowest);
+			return samples;
+		}
+	}
+
+
+	SampleRetention(int sampleSize, int noOfSlowest, long seed, Consumer<Sample> writer)
+	{
+		if ((sampleSize < 0) || (noOfSlowest < 0)) throw new RuntimeException(
+			"The numbers of requests to retain must not be negative");
+		thisSampleSize = sampleSize;
+		thisNoOfSlowest = noOfSlowest;
+		thisRandom = new Random(seed);
+		thisWriter = writer;
+	}
+
+
+	/** Consider a request that has finished. */
+	void offer(Sample sample)
+	{
+		List<Sample> toWrite;
+		synchronized (this)
+		{
+			thisNoOfOffered++;
+			boolean dropped = sample.result.equals("dropped");
+			if ((! sample.result.equals("true")) && (! dropped))
+			{
+				thisNoOfFailures++;
+				toWrite = Collections.singletonList(sample);
+			}
+			else
+			{
+				// A dropped request did not run, so it is not one of the slowest.
+				if (dropped) thisNoOfDropped++;
+				long interval = sample.endMicros / HistogramLogFormat.IntervalMicros;
+				String key = interval + ":" + sample.reqType + ":" + sample.result;
+				Tier tier = thisTiers.get(key);
+				if (tier == null)
+				{
+					tier = new Tier(interval, (dropped ? 0 : thisNoOfSlowest));
+					thisTiers.put(key, tier);
+				}
+				tier.add(sample);
+				toWrite = Collections.emptyList();
+			}
+
+			// When a new interval begins, take the intervals before the prior one.
+			if (sample.endMicros / HistogramLogFormat.IntervalMicros > thisLatestInterval)
+			{
+				thisLatestInterval = sample.endMicros / HistogramLogFormat.IntervalMicros;
+				toWrite = new ArrayList<Sample>(toWrite);
+				toWrite.addAll(takeRetained(thisLatestInterval - 1));
+			}
+			thisNoOfWritten = thisNoOfWritten + toWrite.size();
+		}
+
+		// Write outside the lock: the writers only queue the entries.
+		for (Sample s : toWrite) thisWriter.accept(s);
+	}
+
+
+	/** Remove the tiers of the intervals before the specified one, and return the
+		requests that they retained. */
+	List<Sample> takeRetained(long beforeInterval)
+	{
+		List<Sample> samples = new ArrayList<Sample>();
+		Iterator<Tier> tiers = thisTiers.values().iterator();
+		while (tiers.hasNext())
+		{
+			Tier tier = tiers.next();
+			if (tier.interval >= beforeInterval) continue;
+			samples.addAll(tier.retained());
+			tiers.remove();
+		}
+		return samples;
+	}
+
+
+	/** Write the requests that are retained by all remaining intervals. */
+	void close()
+	{
+		List<Sample> toWrite;
+		synchronized (this)
+		{
+			toWrite = takeRetained(Long.MAX_VALUE);
+			thisNoOfWritten = thisNoOfWritten + toWrite.size();
+		}
+		for (Sample s : toWrite) thisWriter.accept(s);
+		System.out.println("Sample retention: of " + thisNoOfOffered + " requests, wrote " +
+			thisNoOfWritten + " (including " + thisNoOfFailures + " that failed); " +
+			thisNoOfDropped + " were dropped; " +
+			"sample size " + thisSampleSize + " and " + thisNoOfSlowest +
+			" slowest per request type per interval");
+	}
+}
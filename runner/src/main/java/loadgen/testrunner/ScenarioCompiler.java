@@ -0,0 +1,205 @@
+package loadgen.testrunner;
+
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import org.jbehave.core.annotations.*;
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.configuration.Keywords;
+import org.jbehave.core.configuration.MostUsefulConfiguration;
+import org.jbehave.core.embedder.EmbedderClassLoader;
+import org.jbehave.core.model.*;
+import org.jbehave.core.parsers.StepMatcher;
+import org.jbehave.core.steps.*;
+
+
+/** Compiles the stories of a profile into a CompiledPlan, for the "compiled"
+	execution mode (see EnvVars.ExecutionMode). Each step of each scenario is matched
+	against the step candidates once, using JBehave's own matching, and its parameters
+	are converted using JBehave's parameter converters; the step method is then bound
+	to the converted parameters as a method handle.
+	A plan is bound to the class loader in which its step classes were loaded, so a
+	plan is compiled for each loader, and discarded when the loader is retired; so
+	compiled mode requires loaders that are shared by requests, and is not used
+	with per-request isolation (see StepClassLoaderPool).
+	A scenario is not compiled, and is run by JBehave instead, if it has examples or
+	given stories, if any of its steps does not match exactly one candidate, or if a
+	step method has @Named parameters or a parameter that cannot be converted. No
+	scenario of a story with given stories or lifecycle steps is compiled, and nothing
+	is compiled if a step class is a StepCandidate or has methods that JBehave runs
+	before or after scenarios or stories. */
+class ScenarioCompiler
+{
+	private static List<Class<? extends Annotation>> LifecycleAnnotations = Arrays.asList(
+		BeforeScenario.class, AfterScenario.class, BeforeStory.class, AfterStory.class,
+		BeforeStories.class, AfterStories.class);
+
+	private List<Story> thisStories;
+	private List<String> thisStepClassNames;
+	private Configuration thisConfiguration = new MostUsefulConfiguration();
+	private ConcurrentHashMap<ClassLoader, CompiledPlan> thisPlans =
+		new ConcurrentHashMap<ClassLoader, CompiledPlan>();
+
+
+	ScenarioCompiler(List<Story> stories, List<String> stepClassNames)
+	{
+		thisStories = stories;
+		thisStepClassNames = stepClassNames;
+	}
+
+
+	/** Return the plan for the specified loader, compiling it if necessary. */
+	CompiledPlan plan(StepClassLoaderPool.CachingClassLoader loader)
+	{
+		return thisPlans.computeIfAbsent(loader, (l) -> compile(loader));
+	}
+
+
+	/** Discard the plan for the specified loader if the loader has been retired. */
+	void release(StepClassLoaderPool.CachingClassLoader loader)
+	{
+		if (loader.isRetired()) thisPlans.remove(loader);
+	}
+
+
+	/** Discard the plan of a loader that has been retired. A request that is still
+		using the loader releases the plan again when it is done. */
+	void loaderRetired(StepClassLoaderPool.CachingClassLoader loader)
+	{
+		thisPlans.remove(loader);
+	}
+
+
+	CompiledPlan compile(EmbedderClassLoader loader)
+	{
+		String reason = null;  // why nothing can be compiled, if that is the case
+		List<StepCandidate> candidates = new Vector<StepCandidate>();
+		Map<Class<?>, MethodHandle> constructors = new HashMap<Class<?>, MethodHandle>();
+		for (String className : thisStepClassNames) try
+		{
+			Class<?> c = loader.loadClass(className);
+			Object instance = loader.newInstance(c, className);
+			if (instance instanceof StepCandidate)
+				reason = "step class " + className + " is a StepCandidate";
+			else if (hasLifecycleMethods(c))
+				reason = "step class " + className + " has before or after methods";
+			else
+			{
+				for (CandidateSteps steps : new InstanceStepsFactory(thisConfiguration,
+					instance).createCandidateSteps()) candidates.addAll(steps.listCandidates());
+
+				Constructor<?> constructor = c.getDeclaredConstructor();
+				constructor.setAccessible(true);
+				constructors.put(c, MethodHandles.lookup().unreflectConstructor(constructor).asType(
+					MethodType.methodType(Object.class)));
+			}
+		}
+		catch (Exception ex) { throw new RuntimeException(ex); }
+
+		CompiledPlan plan = new CompiledPlan(constructors);
+		for (Story story : thisStories)
+		{
+			boolean storyIsCompilable = (reason == null) &&
+				story.getGivenStories().getPaths().isEmpty() && story.getLifecycle().isEmpty();
+			for (Scenario scenario : story.getScenarios())
+			{
+				List<CompiledPlan.CompiledStep> steps = null;
+				if (storyIsCompilable) steps = compileScenario(scenario, candidates);
+				if (steps == null) plan.addFallbackScenario(story, scenario);
+				else plan.addCompiledScenario(scenario.getTitle(), steps);
+			}
+		}
+
+		System.out.println("Compiled " + plan.noOfCompiledScenarios() + " scenarios; " +
+			plan.noOfFallbackScenarios() + " scenarios will be run by JBehave" +
+			(reason == null ? "" : " because " + reason));
+		return plan;
+	}
+
+
+	/** Return the compiled steps of the scenario, or null if the scenario cannot be compiled. */
+	List<CompiledPlan.CompiledStep> compileScenario(Scenario scenario, List<StepCandidate> candidates)
+	{
+		if (! scenario.getGivenStories().getPaths().isEmpty()) return null;
+		if (scenario.getExamplesTable().getRowCount() > 0) return null;
+
+		Keywords keywords = thisConfiguration.keywords();
+		List<CompiledPlan.CompiledStep> steps = new Vector<CompiledPlan.CompiledStep>();
+		String previousNonAndStep = null;
+		for (String step : scenario.getSteps())
+		{
+			if (keywords.isIgnorableStep(step)) continue;
+
+			StepCandidate match = null;
+			for (StepCandidate candidate : candidates)
+			{
+				if (! candidate.matches(step, previousNonAndStep)) continue;
+				if (match != null) return null;  // ambiguous: let JBehave choose by priority
+				match = candidate;
+			}
+			if (match == null) return null;  // pending step
+
+			CompiledPlan.CompiledStep compiledStep = compileStep(step, match);
+			if (compiledStep == null) return null;
+			steps.add(compiledStep);
+
+			if (! keywords.isAndStep(step)) previousNonAndStep = step;
+		}
+		return steps;
+	}
+
+
+	/** Bind the step method of the candidate to the parameter values in the step,
+		converted to the types of the method's parameters. Return null if that
+		cannot be done. */
+	CompiledPlan.CompiledStep compileStep(String step, StepCandidate candidate)
+	{
+		Method method = candidate.getMethod();
+		if ((method == null) || Modifier.isStatic(method.getModifiers())) return null;
+
+		Type[] types = method.getGenericParameterTypes();
+		for (Annotation[] annotations : method.getParameterAnnotations())
+			for (Annotation annotation : annotations)
+				if (annotation.annotationType().getSimpleName().equals("Named")) return null;
+
+		StepMatcher stepMatcher = thisConfiguration.stepPatternParser().parseStep(
+			candidate.getStepType(), candidate.getPatternAsString());
+		Matcher matcher = stepMatcher.matcher(
+			thisConfiguration.keywords().stepWithoutStartingWord(step, candidate.getStepType()));
+		if (! matcher.matches()) return null;
+		if (stepMatcher.parameterNames().length != types.length) return null;
+
+		try
+		{
+			Object[] args = new Object[types.length];
+			for (int i = 0; i < types.length; i++)
+				args[i] = thisConfiguration.parameterConverters().convert(matcher.group(i+1), types[i]);
+
+			method.setAccessible(true);
+			MethodHandle handle = MethodHandles.lookup().unreflect(method);
+			handle = MethodHandles.insertArguments(handle, 1, args);
+			handle = handle.asType(MethodType.methodType(void.class, Object.class));
+			return new CompiledPlan.CompiledStep(step, candidate.getStepsType(), handle);
+		}
+		catch (Exception ex)
+		{
+			System.out.println("Step will be run by JBehave: " + step + ": " + ex.getMessage());
+			return null;
+		}
+	}
+
+
+	static boolean hasLifecycleMethods(Class<?> c)
+	{
+		for (Method method : c.getMethods())
+			for (Class<? extends Annotation> a : LifecycleAnnotations)
+				if (method.isAnnotationPresent(a)) return true;
+		return false;
+	}
+}
@@ -0,0 +1,293 @@
+package loadgen.testrunner;
+
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import org.jbehave.core.embedder.EmbedderClassLoader;
+
+
+/** Provides the class loaders in which tests are run. A test is run in its own
+	class loader so that it is isolated from other tests; but creating a loader,
+	and defining every step class again in it, is expensive. This pool therefore
+	allows a loader to be shared, according to an isolation level:
+		request - a new loader for every request (the most isolation);
+		thread - one loader for each worker thread of the RequestExecutor (the
+			workers are long-lived, so a loader is reused by the worker's requests);
+		profile - one loader for each profile.
+	The bytes of the classes in the classpath jars are read once and cached, so that
+	a new loader does not need to read the jars again. A shared loader is retired
+	(replaced by a new one) after it has been used MaxUses times, or if the metaspace
+	has grown by more than MaxMetaspaceGrowth bytes since the loader was created,
+	and a thread's loader is retired when the thread exits (see retireThreadLoader).
+	Whatever is cached for a loader (Embedders and compiled plans) must be discarded
+	when it is retired, so that the loader can be collected: the caches are told of
+	each retirement (see onRetirement). */
+class StepClassLoaderPool
+{
+	enum Isolation { PerRequest, PerThread, PerProfile }
+
+	private static int MetaspaceCheckInterval = 100;  // check metaspace every this many uses
+
+	private Isolation thisIsolation;
+	private List<String> thisClasspath;
+	private int thisMaxUses;
+	private long thisMaxMetaspaceGrowth;
+	private Map<String, byte[]> thisClassBytes = new HashMap<String, byte[]>();
+	private ThreadLocal<PooledLoader> thisThreadLoaders = new ThreadLocal<PooledLoader>();
+	private ConcurrentHashMap<Object, PooledLoader> thisProfileLoaders =
+		new ConcurrentHashMap<Object, PooledLoader>();
+	private MemoryPoolMXBean thisMetaspace;
+	private List<Consumer<CachingClassLoader>> thisRetirementListeners =
+		new CopyOnWriteArrayList<Consumer<CachingClassLoader>>();
+
+	private AtomicLong thisHits = new AtomicLong(0);
+	private AtomicLong thisMisses = new AtomicLong(0);
+	private AtomicLong thisRetired = new AtomicLong(0);
+	private AtomicLong thisClassesDefined = new AtomicLong(0);
+	private AtomicLong thisDefineTimeNanos = new AtomicLong(0);
+
+
+	/** The classpath elements are URLs of the form file://path. */
+	StepClassLoaderPool(Isolation isolation, List<String> classpath, int maxUses,
+		long maxMetaspaceGrowth)
+	{
+		thisIsolation = isolation;
+		thisClasspath = classpath;
+		thisMaxUses = maxUses;
+		thisMaxMetaspaceGrowth = maxMetaspaceGrowth;
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getName().equals("Metaspace")) thisMetaspace = pool;
+
+		for (String element : classpath) cacheJar(element);
+	}
+
+
+	/** Parse an isolation level name, as given by the CLASS_LOADER_ISOLATION
+		environment variable. The default is per request. */
+	static Isolation parseIsolation(String name)
+	{
+		if ((name == null) || name.equals("request")) return Isolation.PerRequest;
+		if (name.equals("thread")) return Isolation.PerThread;
+		if (name.equals("profile")) return Isolation.PerProfile;
+		throw new RuntimeException("Unrecognized class loader isolation level: " + name);
+	}
+
+
+	Isolation isolation()
+	{
+		return thisIsolation;
+	}
+
+
+	/** Return a loader for a request of the specified profile. */
+	CachingClassLoader acquire(Object profile)
+	{
+		switch (thisIsolation)
+		{
+			case PerThread:
+			{
+				PooledLoader loader = thisThreadLoaders.get();
+				if ((loader == null) || loader.isExhausted())
+				{
+					if (loader != null) thisRetired.incrementAndGet();
+					loader = newLoader();
+					thisThreadLoaders.set(loader);
+				}
+				else
+					thisHits.incrementAndGet();
+				return loader.use();
+			}
+
+			case PerProfile:
+			{
+				PooledLoader loader = thisProfileLoaders.compute(profile, (p, current) ->
+				{
+					if ((current == null) || current.isExhausted())
+					{
+						if (current != null) thisRetired.incrementAndGet();
+						return newLoader();
+					}
+					thisHits.incrementAndGet();
+					return current;
+				});
+				return loader.use();
+			}
+
+			default:
+			{
+				// Not shared, so it is retired as soon as it is used.
+				PooledLoader loader = newLoader();
+				loader.retire();
+				return loader.use();
+			}
+		}
+	}
+
+
+	/** Called on a worker thread that is exiting: retire the thread's loader, if
+		it has one. */
+	void retireThreadLoader()
+	{
+		PooledLoader loader = thisThreadLoaders.get();
+		if (loader == null) return;
+		thisThreadLoaders.remove();
+		thisRetired.incrementAndGet();
+		loader.retire();
+	}
+
+
+	/** Call the listener with each loader that is retired, when it is retired.
+		The loader may still be in use by the request that retired it. */
+	void onRetirement(Consumer<CachingClassLoader> listener)
+	{
+		thisRetirementListeners.add(listener);
+	}
+
+
+	long hits() { return thisHits.get(); }
+
+	long misses() { return thisMisses.get(); }
+
+	long retired() { return thisRetired.get(); }
+
+	long classesDefined() { return thisClassesDefined.get(); }
+
+	/** Total time spent defining classes, in nanoseconds. */
+	long defineTimeNanos() { return thisDefineTimeNanos.get(); }
+
+
+	void printStatistics()
+	{
+		long defined = classesDefined();
+		System.out.println("Class loader pool (" + thisIsolation + "): " + hits() + " hits, " +
+			misses() + " misses, " + retired() + " retired, " + defined + " classes defined in " +
+			(defineTimeNanos() / 1000000) + " ms" +
+			(defined > 0 ? " (" + (defineTimeNanos() / defined / 1000) + " us per class)" : ""));
+	}
+
+
+	/** Read the class files of a jar into memory. Directories (and anything that
+		cannot be read as a jar) are left to be loaded by URLClassLoader. */
+	void cacheJar(String url)
+	{
+		String path = url.startsWith("file://") ? url.substring("file://".length()) : url;
+		File file = new File(path);
+		if (! file.isFile()) return;
+
+		try (JarInputStream jar = new JarInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			for (JarEntry entry = jar.getNextJarEntry(); entry != null; entry = jar.getNextJarEntry())
+			{
+				if (! entry.getName().endsWith(".class")) continue;
+				if (thisClassBytes.containsKey(entry.getName())) continue;  // first on classpath wins
+				thisClassBytes.put(entry.getName(), jar.readAllBytes());
+			}
+		}
+		catch (IOException ex)
+		{
+			System.err.println("Unable to cache classes of " + path + ": " + ex.getMessage());
+		}
+	}
+
+
+	PooledLoader newLoader()
+	{
+		thisMisses.incrementAndGet();
+		return new PooledLoader(new CachingClassLoader(thisClasspath,
+			ClassLoader.getSystemClassLoader()), metaspaceUsed());
+	}
+
+
+	long metaspaceUsed()
+	{
+		if (thisMetaspace == null) return 0;
+		return thisMetaspace.getUsage().getUsed();
+	}
+
+
+	/** A loader, with a count of the number of times that it has been used. */
+	class PooledLoader
+	{
+		private CachingClassLoader thisLoader;
+		private long thisMetaspaceAtCreation;
+		private AtomicInteger thisUses = new AtomicInteger(0);
+		private volatile boolean thisExhausted = false;
+
+		PooledLoader(CachingClassLoader loader, long metaspaceAtCreation)
+		{
+			thisLoader = loader;
+			thisMetaspaceAtCreation = metaspaceAtCreation;
+		}
+
+		CachingClassLoader use()
+		{
+			int uses = thisUses.incrementAndGet();
+			if (uses >= thisMaxUses) retire();
+			else if ((uses % MetaspaceCheckInterval) == 0)
+			{
+				if (metaspaceUsed() - thisMetaspaceAtCreation > thisMaxMetaspaceGrowth)
+					retire();
+			}
+			return thisLoader;
+		}
+
+		void retire()
+		{
+			synchronized (this)
+			{
+				if (thisLoader.thisRetired) return;
+				thisExhausted = true;
+				thisLoader.thisRetired = true;
+			}
+			for (Consumer<CachingClassLoader> listener : thisRetirementListeners)
+				listener.accept(thisLoader);
+		}
+
+		boolean isExhausted()
+		{
+			return thisExhausted;
+		}
+	}
+
+
+	/** A class loader that defines classes from the cached jar contents, and
+		records the time taken to do so. */
+	class CachingClassLoader extends EmbedderClassLoader
+	{
+		private volatile boolean thisRetired = false;
+
+		CachingClassLoader(List<String> classpath, ClassLoader parent)
+		{
+			super(classpath, parent);
+		}
+
+		/** Return true if this loader will not be handed out again, so that
+			anything that is cached for it can be discarded. */
+		boolean isRetired()
+		{
+			return thisRetired;
+		}
+
+		protected Class<?> findClass(String name) throws ClassNotFoundException
+		{
+			byte[] bytes = thisClassBytes.get(name.replace('.', '/') + ".class");
+			if (bytes == null) return super.findClass(name);
+
+			long start = System.nanoTime();
+			Class<?> c = defineClass(name, bytes, 0, bytes.length);
+			thisDefineTimeNanos.addAndGet(System.nanoTime() - start);
+			thisClassesDefined.incrementAndGet();
+			return c;
+		}
+	}
+}
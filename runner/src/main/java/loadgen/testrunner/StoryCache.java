@@ -0,0 +1,107 @@
+package loadgen.testrunner;
+
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jbehave.core.configuration.Configuration;
+import org.jbehave.core.configuration.MostUsefulConfiguration;
+import org.jbehave.core.model.Story;
+
+
+/** The parsed form of each story (.story or .feature) file that the TestRunner
+	runs. The files are read and parsed once, when the TestRunner starts, and the
+	parsed Story objects are shared by all requests, so that a request does not
+	read or parse any files. Each entry records the modification time of its file;
+	refresh re-parses only the files that have changed since they were cached.
+	A Story is not modified when it is run, and does not depend on the class loader
+	in which the steps are run, so it can be shared across requests and loaders. */
+class StoryCache
+{
+	private Configuration thisConfiguration;
+	private List<String> thisPaths;
+	private Map<String, CachedStory> thisStories = new ConcurrentHashMap<String, CachedStory>();
+	private volatile List<Story> thisStoryList;
+
+
+	/** A parsed story, and the modification time of the file that it was parsed from. */
+	static class CachedStory
+	{
+		final long lastModified;
+		final Story story;
+
+		CachedStory(long lastModified, Story story)
+		{
+			this.lastModified = lastModified;
+			this.story = story;
+		}
+	}
+
+
+	/** Parse each of the specified story files, using the story parser of JBehave's
+		default configuration (which is what an Embedder uses). */
+	StoryCache(List<String> paths)
+	{
+		this(paths, new MostUsefulConfiguration());
+	}
+
+
+	StoryCache(List<String> paths, Configuration configuration)
+	{
+		thisConfiguration = configuration;
+		thisPaths = paths;
+		refresh();
+	}
+
+
+	/** Re-parse any story file whose modification time differs from that of its
+		cached entry. Returns the number of files that were parsed. */
+	synchronized int refresh()
+	{
+		int parsed = 0;
+		List<Story> stories = new Vector<Story>();
+		for (String path : thisPaths)
+		{
+			long lastModified = new File(path).lastModified();
+			CachedStory cached = thisStories.get(path);
+			if ((cached == null) || (cached.lastModified != lastModified))
+			{
+				cached = new CachedStory(lastModified, parse(path));
+				thisStories.put(path, cached);
+				parsed = parsed + 1;
+			}
+			stories.add(cached.story);
+		}
+		thisStoryList = Collections.unmodifiableList(stories);
+		System.out.println("Story cache: parsed " + parsed + " of " + thisPaths.size() + " story files");
+		return parsed;
+	}
+
+
+	/** Return all of the parsed stories, in the order of their paths. */
+	List<Story> stories()
+	{
+		return thisStoryList;
+	}
+
+
+	/** Return the parsed story for the specified path, or null if it is not cached. */
+	Story story(String path)
+	{
+		CachedStory cached = thisStories.get(path);
+		if (cached == null) return null;
+		return cached.story;
+	}
+
+
+	Story parse(String path)
+	{
+		String text;
+		try { text = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8); }
+		catch (IOException ex) { throw new RuntimeException("Unable to read story " + path, ex); }
+		return thisConfiguration.storyParser().parseStory(text, path);
+	}
+}
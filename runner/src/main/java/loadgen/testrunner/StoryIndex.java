@@ -0,0 +1,139 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import org.jbehave.core.model.*;
+
+
+/** An index from a tag filter to the stories, and the scenarios within them,
+	that the filter selects. The index is built once for each profile, so that a
+	request hands JBehave only the scenarios that it will run, instead of every
+	story, to be filtered on every request; the Embedders therefore do not filter
+	the stories again (see EmbedderPool).
+	A selected Story is a copy of the cached Story that contains only the matching
+	scenarios; stories with no matching scenario are omitted. As JBehave does, a
+	scenario is matched against its own meta, inheriting the meta of its story. */
+class StoryIndex
+{
+	private StoryCache thisStoryCache;
+	private ConcurrentHashMap<TagFilter, List<Story>> thisIndex = new ConcurrentHashMap<TagFilter, List<Story>>();
+
+
+	/** The tag line of a profile (e.g., "--tags @Logon --tags @Admin,@User --tags ~@Future"),
+		with the meaning that Cucumber gives it: a scenario is selected if it
+		satisfies every --tags group, and it satisfies a group if it satisfies any
+		of the group's comma-separated tags. A tag must be specified as @name, and
+		is satisfied if the scenario has the tag; a tag prefixed by ~ is satisfied
+		if the scenario does not have it. An empty tag line selects every scenario.
+		(JBehave's own meta filters cannot express this: they select a scenario
+		that has any of the included tags.) */
+	static class TagFilter
+	{
+		private List<List<String>> thisGroups = new Vector<List<String>>();  // each tag is +name or -name
+		private String thisString;
+
+		static TagFilter parse(String tagString)
+		{
+			TagFilter filter = new TagFilter();
+			if (tagString != null) for (String part : tagString.trim().split("\\s+"))
+			{
+				if (part.equals("") || part.equals("--tags")) continue;
+				List<String> group = new Vector<String>();
+				for (String tag : part.split(","))
+				{
+					boolean exclude = tag.startsWith("~");
+					if (exclude) tag = tag.substring(1);
+					if (tag.startsWith("@")) tag = tag.substring(1);
+					if (tag.equals("")) continue;
+					group.add((exclude ? "-" : "+") + tag);
+				}
+				if (! group.isEmpty()) filter.thisGroups.add(group);
+			}
+
+			StringBuilder s = new StringBuilder();
+			for (List<String> group : filter.thisGroups)
+			{
+				if (s.length() > 0) s.append(" & ");
+				if (group.size() == 1) s.append(group.get(0));
+				else s.append("(").append(String.join(" | ", group)).append(")");
+			}
+			filter.thisString = s.toString();
+			return filter;
+		}
+
+		boolean allow(Meta meta)
+		{
+			for (List<String> group : thisGroups)
+			{
+				boolean satisfied = false;
+				for (String tag : group)
+				{
+					boolean hasTag = meta.hasProperty(tag.substring(1));
+					if (hasTag == tag.startsWith("+")) { satisfied = true; break; }
+				}
+				if (! satisfied) return false;
+			}
+			return true;
+		}
+
+		/** E.g., "+Logon & (+Admin | +User) & -Future". */
+		public String toString() { return thisString; }
+
+		public boolean equals(Object other)
+		{
+			return (other instanceof TagFilter) && ((TagFilter)other).thisString.equals(thisString);
+		}
+
+		public int hashCode() { return thisString.hashCode(); }
+	}
+
+
+	StoryIndex(StoryCache storyCache)
+	{
+		thisStoryCache = storyCache;
+	}
+
+
+	/** Return the stories selected by the specified tag filter. */
+	List<Story> stories(TagFilter tagFilter)
+	{
+		return thisIndex.computeIfAbsent(tagFilter, (f) -> select(f));
+	}
+
+
+	/** Re-parse any story files that have changed, and if any have, discard the index. */
+	void refresh()
+	{
+		if (thisStoryCache.refresh() > 0) thisIndex.clear();
+	}
+
+
+	List<Story> select(TagFilter filter)
+	{
+		List<Story> selected = new Vector<Story>();
+		int noOfScenarios = 0;
+		for (Story story : thisStoryCache.stories())
+		{
+			List<Scenario> scenarios = new Vector<Scenario>();
+			for (Scenario scenario : story.getScenarios())
+			{
+				if (filter.allow(scenario.getMeta().inheritFrom(story.getMeta())))
+					scenarios.add(scenario);
+			}
+			if (scenarios.isEmpty()) continue;
+
+			noOfScenarios = noOfScenarios + scenarios.size();
+			if (scenarios.size() == story.getScenarios().size())
+				selected.add(story);
+			else
+				selected.add(new Story(story.getPath(), story.getDescription(), story.getMeta(),
+					story.getNarrative(), story.getGivenStories(), story.getLifecycle(), scenarios));
+		}
+
+		System.out.println("Story index: filter \"" + filter + "\" selects " +
+			noOfScenarios + " scenarios in " + selected.size() + " of " +
+			thisStoryCache.stories().size() + " stories");
+		return Collections.unmodifiableList(selected);
+	}
+}
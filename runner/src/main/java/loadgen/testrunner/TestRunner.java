@@ -10,11 +10,18 @@ package loadgen.testrunner;
 import loadgen.profile.*;
 import loadgen.TestRunnerUtil;
 import loadgen.EnvVars;
+import loadgen.HistogramLogFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 import java.net.URLClassLoader;
 import org.jbehave.core.embedder.*;
 import org.jbehave.core.steps.*;
+import org.jbehave.core.model.Story;
 
 
 /** Define a class that can perform a set of cucumber tests, asychronously, according to
@@ -22,14 +29,18 @@ import org.jbehave.core.steps.*;
 public class TestRunner
 {
 	// Define some "governors": program will issue warnings or terminate if any of these are reached.
-	private static int MaxRequestRate = 100;  // terminate if exceeded
-	private static int MaxNoOfProcesses = 1000;  // issues warning only
+	private static int MaxRequestRate = 100;  // terminate if exceeded (see MAX_REQUEST_RATE)
+	private static long MaxLatenessNanos = 1000000;  // a request later than this is counted as late
+	private static int MaxReportedLevels = 20;  // level changes are reported for at most this many segments
+	private static int MaxNoOfProcesses = 1000;  // default maximum number of requests in flight
 	private static int TestTimeoutTime = 1000;  // Max time (in seconds) that a test can execute before it is killed.
 
 	private static long thisRandomSeed = Long.parseLong(System.getenv("RANDOM_SEED"));
 	private static Random thisRandom = new Random(thisRandomSeed);
 	private static long thisUniqueId = 0;
 	private static long thisStartTimeOfRun;
+	private static long thisStartNanoTimeOfRun;
+	private static DeadlineClock thisClock;
 	private static int thisResultsStatus = 0;
 	private static Boolean thisAbortIfTestsCannotAchieveProfile = null;;
 	private static String thisFeatureSpec;
@@ -39,9 +50,24 @@ public class TestRunner
 	private static List<String> thisStepClasspathElementURLs;
 	private static List<String> thisProfileFiles = new Vector<String>();
 	private static String thisResultsDir;
-	private static String thisLockfile;
 	private static String thisLogfile;
+	private static String thisBinaryLogfile;
+	private static String thisHistogramLogfile;
+	private static boolean thisRawTimeLogs = true;
+	private static HistogramRecorder thisHistogramRecorder;
+	private static SampleRetention thisRetention;
+	private static TimeLogWriter thisTimeLogWriter;
+	private static BinaryTimeLogWriter thisBinaryTimeLogWriter;
 	private static List<Profile> thisProfiles = new Vector<Profile>();
+	private static StepClassLoaderPool thisClassLoaderPool;
+	private static StoryCache thisStoryCache;
+	private static StoryIndex thisStoryIndex;
+	private static boolean thisCompiledExecution = false;
+	private static boolean thisLoadMode = false;
+	private static boolean thisStageTimes = false;
+	private static RequestThreadFactory thisRequestThreadFactory;
+	private static RequestExecutor thisRequestExecutor;
+	private static int thisMaxInFlightPerProfile;
 
 
 	/** Main entry point. (See end of this file, where this method is invoked.)
@@ -99,8 +125,21 @@ public class TestRunner
 		}
 
 		removeOldLogfile();
+		openTimeLogs();
+		createClassLoaderPool();
+		createStoryCache();
+		setExecutionMode(System.getenv(EnvVars.ExecutionMode));
+		setLoadMode("true".equals(System.getenv(EnvVars.LoadMode)));
+		setStageTimes("true".equals(System.getenv(EnvVars.StageTimes)));
+		createRequestExecutor();
 		buildProfiles();
+		indexStories();
 		performProfiles();
+		requestExecutor().shutdown();
+		closeProfiles();
+		closeTimeLogs();
+		requestExecutor().printStatistics();
+		classLoaderPool().printStatistics();
 
 		System.out.println("Tests complete: results are valid: " + resultsAreValid());
 	}
@@ -135,27 +174,320 @@ public class TestRunner
 	private static int ProcessReturnCodeForError = 2;
 
 
-	/** Log the start and end time. */
-	private static void writeTimeLogEntry(String reqType, long startTime, long endTime, String result)
+	/** Log the start and end time, given in microseconds since the start of the run.
+		intendedMicros is the time at which the request was due to start, according
+		to its profile; startMicros is the time at which it actually started. If the
+		node falls behind, the difference is queueing delay that a user would see,
+		and which the controller adds back to obtain corrected latencies (see
+		PerformanceRun.getStats). The entry is queued for the time log writer thread,
+		so this does not block. The times are also recorded in the histograms, with
+		those of the request's detail events; the entry itself is only logged if raw
+		time logs are being written, and then, if samples are retained, only if the
+		request is retained (see SampleRetention). */
+	private static void writeTimeLogEntry(TestRunnerUtil.RequestContext context, long intendedMicros,
+		long startMicros, long endMicros, String result)
 	{
-		String id = System.getenv("ID");
-		String reqRate = System.getenv("REQ_RATE");
-		int timeout = 10;  // flock will timeout after this number of seconds.
+		String reqType = context.requestType();
+		boolean success = result.equals("true");
+		histograms().recordRequest(reqType, success, intendedMicros, startMicros, endMicros);
+		List<RequestEvents.Event> events = TestRunnerUtil.recordEvents(context, histograms(),
+			success, endMicros);
+		if (! rawTimeLogs()) return;
+
+		Long id = context.id();
+		Double reqRate = context.requestRate();
+		if (thisRetention != null) thisRetention.offer(new SampleRetention.Sample(reqType,
+			id.longValue(), reqRate, intendedMicros, startMicros, endMicros, result, events));
+		else writeRawEntries(reqType, id, reqRate, intendedMicros, startMicros, endMicros,
+			result, events);
+	}
+
+
+	/** Write the raw entries of a request that was retained. */
+	private static void writeSample(SampleRetention.Sample sample)
+	{
+		writeRawEntries(sample.reqType, sample.id, sample.reqRate, sample.intendedMicros,
+			sample.startMicros, sample.endMicros, sample.result, sample.events);
+	}
+
+
+	/** Write the raw entries of a request: the request and each of its detail
+		events. The detail events are written when the request is done, rather than
+		as they happen, so that logging them costs a test nothing more than storing
+		their times (see TestRunnerUtil.Timer). */
+	private static void writeRawEntries(String reqType, Long id, Double reqRate,
+		long intendedMicros, long startMicros, long endMicros, String result,
+		List<RequestEvents.Event> events)
+	{
+		writeRawTimeLogEntry(reqType, id, reqRate, intendedMicros, startMicros, endMicros, result);
+		for (RequestEvents.Event event : events)
+			TestRunnerUtil.writeRawDetailEntry(reqType, id, reqRate, event.name,
+				event.beginMicros, event.endMicros);
+	}
+
+
+	private static void writeRawTimeLogEntry(String reqType, Long id, Double reqRate,
+		long intendedMicros, long startMicros, long endMicros, String result)
+	{
+		if (binaryTimeLogWriter() != null)
+		{
+			double rate = (reqRate == null ? Double.NaN : reqRate.doubleValue());
+			if (! binaryTimeLogWriter().writeRequest(reqType, "EndToEnd", id.longValue(), rate,
+				intendedMicros, startMicros, endMicros, result))
+				System.out.println("ERROR: Unable to write to log; entry was dropped");
+			return;
+		}
+
+		long startTime = startMicros / 1000;
+		long endTime = endMicros / 1000;
 		double delta = (double)(endTime - startTime) / 1000.0;
-		String command = "echo reqType:" + reqType + ", id:" + id + ", name:EndToEnd, reqRate:" +
+		String entry = "reqType:" + reqType + ", id:" + id + ", name:EndToEnd, reqRate:" +
 			reqRate + ", start:" + startTime + ", end:" + endTime + ", delta:" +
-			delta + ", result:" + result + " >> " + logfile();
-		command = "flock -w " + timeout + " " + lockfile() + " -c \"" + command + "\"";
-		System.out.println("flock command: " + command);
-		Process p;
-		try
+			delta + ", result:" + result + ", intended:" + (intendedMicros / 1000);
+		if (! timeLogWriter().writeLine(entry))
+			System.out.println("ERROR: Unable to write to log; entry was dropped");
+	}
+
+
+	/** Start the writer threads for the histogram log, the time log, and the detail
+		time log. If the environment variable TIME_LOG_FORMAT is "binary", then both
+		request and detail events are written to a single binary log (see
+		BinaryTimeLogFormat). If RAW_TIME_LOGS is "false", only the histogram log is
+		written. If RETAIN_SAMPLE or RETAIN_SLOWEST is set, only the requests that
+		are retained are written to the time logs (see SampleRetention). */
+	private static void openTimeLogs()
+	{
+		thisHistogramRecorder = new HistogramRecorder(histogramLogfile());
+		thisRawTimeLogs = ! "false".equals(System.getenv(EnvVars.RawTimeLogs));
+		System.out.println("Writing raw time logs: " + thisRawTimeLogs);
+		if (! thisRawTimeLogs) return;
+
+		String sampleSize = System.getenv(EnvVars.RetainSample);
+		String noOfSlowest = System.getenv(EnvVars.RetainSlowest);
+		if ((sampleSize != null) || (noOfSlowest != null))
+		{
+			thisRetention = new SampleRetention(
+				(sampleSize == null ? 0 : Integer.parseInt(sampleSize)),
+				(noOfSlowest == null ? 0 : Integer.parseInt(noOfSlowest)),
+				thisRandomSeed, (sample) -> writeSample(sample));
+			System.out.println("Retaining a sample of " + sampleSize + " and the " +
+				noOfSlowest + " slowest requests per request type per interval");
+		}
+
+		if ("binary".equals(System.getenv(EnvVars.TimeLogFormat)))
+		{
+			thisBinaryTimeLogWriter = new BinaryTimeLogWriter(binaryLogfile());
+			TestRunnerUtil.useBinaryTimeLog(thisBinaryTimeLogWriter);
+			System.out.println("Writing binary time log " + binaryLogfile());
+		}
+		else
+		{
+			thisTimeLogWriter = new TimeLogWriter(logfile());
+			TestRunnerUtil.openDetailTimeLog();
+		}
+	}
+
+
+	/** Release what the profiles keep for their requests, once all requests are done. */
+	private static void closeProfiles()
+	{
+		for (Profile profile : profiles()) profile.close();
+	}
+
+
+	/** Write any entries that are still queued, and close the time logs. */
+	private static void closeTimeLogs()
+	{
+		histograms().close();
+		if (! rawTimeLogs()) return;
+		if (thisRetention != null) thisRetention.close();
+		if (binaryTimeLogWriter() != null) binaryTimeLogWriter().close();
+		else
+		{
+			timeLogWriter().close();
+			TestRunnerUtil.closeDetailTimeLog();
+		}
+	}
+
+
+	private static TimeLogWriter timeLogWriter()
+	{
+		return thisTimeLogWriter;
+	}
+
+
+	private static BinaryTimeLogWriter binaryTimeLogWriter()
+	{
+		return thisBinaryTimeLogWriter;
+	}
+
+
+	static HistogramRecorder histograms()
+	{
+		return thisHistogramRecorder;
+	}
+
+
+	/** Return false if only the histogram log is written, and not the time logs. */
+	static boolean rawTimeLogs()
+	{
+		return thisRawTimeLogs;
+	}
+
+	/** Create the pool that provides class loaders for running tests. The loaders
+		must be able to find the loadgen jar as well as the step classes. */
+	private static void createClassLoaderPool()
+	{
+		List<String> cp = new Vector<String>();
+		cp.add("file://" + System.getenv(EnvVars.LoadgenJarPathOnNode));
+		cp.addAll(stepClasspathElementURLs());
+
+		String maxUses = System.getenv(EnvVars.ClassLoaderMaxUses);
+		String maxMetaspace = System.getenv(EnvVars.ClassLoaderMaxMetaspaceMB);
+		thisClassLoaderPool = new StepClassLoaderPool(
+			StepClassLoaderPool.parseIsolation(System.getenv(EnvVars.ClassLoaderIsolation)),
+			cp,
+			(maxUses == null ? 1000 : Integer.parseInt(maxUses)),
+			(maxMetaspace == null ? 256 : Long.parseLong(maxMetaspace)) * 1024 * 1024);
+		System.out.println("Using class loader isolation " + thisClassLoaderPool.isolation());
+	}
+
+
+	private static StepClassLoaderPool classLoaderPool()
+	{
+		return thisClassLoaderPool;
+	}
+
+
+	/** Parse the story files, so that requests can run the parsed stories without
+		reading or parsing the files again. */
+	private static void createStoryCache()
+	{
+		thisStoryCache = new StoryCache(features());
+	}
+
+
+	private static StoryCache storyCache()
+	{
+		return thisStoryCache;
+	}
+
+
+	/** "jbehave" (the default) runs stories with JBehave; "compiled" performs
+		scenarios from a CompiledPlan, falling back to JBehave for scenarios that
+		cannot be compiled. A plan is compiled for each class loader, so compiled
+		mode is not used if each request has its own loader: the stories are run
+		with JBehave instead. Must be called after createClassLoaderPool. */
+	private static void setExecutionMode(String mode)
+	{
+		if ((mode == null) || mode.equals("jbehave")) thisCompiledExecution = false;
+		else if (mode.equals("compiled"))
 		{
-			p = Runtime.getRuntime().exec(command);
-			p.waitFor();
+			thisCompiledExecution = true;
+			if (classLoaderPool().isolation() == StepClassLoaderPool.Isolation.PerRequest)
+			{
+				thisCompiledExecution = false;
+				System.err.println("WARNING: execution mode compiled is not used, because " +
+					EnvVars.ClassLoaderIsolation + " is request: a plan would be compiled for " +
+					"every request. Set it to thread or profile to use compiled execution.");
+			}
 		}
-		catch (Exception ex) { throw new RuntimeException(ex); }
+		else throw new RuntimeException("Unrecognized execution mode: " + mode);
+		System.out.println("Using execution mode " + (thisCompiledExecution ? "compiled" : "jbehave"));
+	}
+
+
+	private static boolean compiledExecution()
+	{
+		return thisCompiledExecution;
+	}
+
+
+	/** In load mode, stories are run without any reporting (see LoadModeConfiguration). */
+	private static void setLoadMode(boolean loadMode)
+	{
+		thisLoadMode = loadMode;
+		System.out.println("Using load mode: " + loadMode);
+	}
+
+
+	private static boolean loadMode()
+	{
+		return thisLoadMode;
+	}
+
+
+	/** If stageTimes, the time of each stage of each request is logged (see
+		RequestStages), so that the controller can show where the TestRunner's
+		overhead is. This adds several detail events per request. */
+	private static void setStageTimes(boolean stageTimes)
+	{
+		thisStageTimes = stageTimes;
+		System.out.println("Recording stage times: " + stageTimes);
+	}
+
+
+	/** Return a record of the stages of a request that a worker has just begun,
+		or null if stage times are not being recorded. */
+	private static RequestStages newStages(long intendedMicros, long startMicros)
+	{
+		if (! thisStageTimes) return null;
+		return new RequestStages(intendedMicros, startMicros);
+	}
 
-		if (p.exitValue() != 0) System.out.println("ERROR: Unable to write to log; process status was " + p.exitValue());
+
+	/** Mark the request as done, log its stages, and return the time at which
+		it was done. */
+	private static long requestDone(TestRunnerUtil.RequestContext context)
+	{
+		long now = getCurRelativeTimeInMicros();
+		RequestStages stages = context.stages();
+		if (stages == null) return now;
+		stages.mark(RequestStages.Stage.Done);
+		stages.log(context.events());
+		return stages.time(RequestStages.Stage.Done);
+	}
+
+
+	/** Create the executor that performs requests. Request threads are platform
+		threads, unless the REQUEST_THREADS environment variable is "virtual". The
+		in-flight limits and saturation policy are set by the MAX_IN_FLIGHT,
+		MAX_IN_FLIGHT_PER_PROFILE and SATURATION_POLICY environment variables. */
+	private static void createRequestExecutor()
+	{
+		thisRequestThreadFactory = new RequestThreadFactory(
+			RequestThreadFactory.parseThreadType(System.getenv(EnvVars.RequestThreads)));
+		System.out.println("Using " + (thisRequestThreadFactory.isVirtual() ? "virtual" : "platform") +
+			" threads for requests");
+
+		String maxInFlight = System.getenv(EnvVars.MaxInFlight);
+		String maxInFlightPerProfile = System.getenv(EnvVars.MaxInFlightPerProfile);
+		thisRequestExecutor = new RequestExecutor(thisRequestThreadFactory,
+			(maxInFlight == null ? MaxNoOfProcesses : Integer.parseInt(maxInFlight)),
+			RequestExecutor.parseSaturation(System.getenv(EnvVars.SaturationPolicy)));
+		thisMaxInFlightPerProfile = (maxInFlightPerProfile == null ?
+			thisRequestExecutor.maxInFlight() : Integer.parseInt(maxInFlightPerProfile));
+		thisRequestExecutor.onWorkerExit(() -> classLoaderPool().retireThreadLoader());
+	}
+
+
+	private static RequestExecutor requestExecutor()
+	{
+		return thisRequestExecutor;
+	}
+
+
+	/** Select, for each profile, the stories and scenarios that match its tags. */
+	private static void indexStories()
+	{
+		thisStoryIndex = new StoryIndex(storyCache());
+		for (Profile profile : profiles()) storyIndex().stories(profile.tagFilter());
+	}
+
+
+	private static StoryIndex storyIndex()
+	{
+		return thisStoryIndex;
 	}
 
 
@@ -263,8 +595,9 @@ public class TestRunner
 	private static void setResultsDir(String dir)
 	{
 		thisResultsDir = dir;
-		thisLockfile = thisResultsDir + "/lockfile";
 		thisLogfile = thisResultsDir + "/timelog.csv";
+		thisBinaryLogfile = thisResultsDir + "/timelog.bin";
+		thisHistogramLogfile = thisResultsDir + "/" + HistogramLogFormat.FileName;
 	}
 
 
@@ -274,15 +607,21 @@ public class TestRunner
 	}
 
 
-	private static String lockfile()
+	private static String logfile()
 	{
-		return thisLockfile;
+		return thisLogfile;
 	}
 
 
-	private static String logfile()
+	private static String binaryLogfile()
 	{
-		return thisLogfile;
+		return thisBinaryLogfile;
+	}
+
+
+	private static String histogramLogfile()
+	{
+		return thisHistogramLogfile;
 	}
 
 
@@ -302,6 +641,10 @@ public class TestRunner
 		if (logfile() == null) return;
 		File f = new File(logfile());
 		if (f.exists()) f.delete();
+		f = new File(binaryLogfile());
+		if (f.exists()) f.delete();
+		f = new File(histogramLogfile());
+		if (f.exists()) f.delete();
 	}
 
 
@@ -314,19 +657,35 @@ public class TestRunner
 	}
 
 
-	/** Begin the execution of each profile. Each is done as a separate thread
-		so that they each occur in parallel. */
+	/** Begin the execution of each profile, so that they each occur in parallel.
+		The arrivals of all profiles that are ArrivalSources (performance and trace
+		profiles) are dispatched by a single Dispatcher thread; each other profile is
+		performed in a separate thread. */
 	private static void performProfiles()
 	{
+		String maxRequestRate = System.getenv(EnvVars.MaxRequestRate);
+		if (maxRequestRate != null) MaxRequestRate = Integer.parseInt(maxRequestRate);
+
+		String tickMicros = System.getenv(EnvVars.DispatchTickMicros);
 		setStartTimeOfRun();
+		Dispatcher dispatcher = new Dispatcher(clock(),
+			(tickMicros == null ? 0 : Long.parseLong(tickMicros) * 1000));
 		List<Thread> profileThreads = new Vector<Thread>();
 		for (Profile profile : profiles())
 		{
+			if (profile instanceof ArrivalSource)
+			{
+				dispatcher.add((ArrivalSource)profile);
+				System.out.println("Added profile for requestType " + profile.requestType() +
+					" to dispatcher");
+				continue;
+			}
+
 			Thread t = new Thread(new Runnable()
 			{
 				public void run()
 				{
-					profile.perform(); // can terminate with NodeCannotKeepUp
+					profile.perform();
 				}
 			});
 			profileThreads.add(t);
@@ -334,22 +693,26 @@ public class TestRunner
 			System.out.println("Initiated profile for requestType " + profile.requestType());
 		}
 
+		Thread dispatcherThread = new Thread(dispatcher, "dispatcher");
+		profileThreads.add(dispatcherThread);
+		dispatcherThread.start();
+
 		try {
 			for (Thread t : profileThreads) t.join();  // wait for all of the above  to exit.
 		} catch (InterruptedException ex) {
 			throw new RuntimeException("Thread join interrupted");
 		}
 
+		for (Profile profile : profiles())
+			if (profile instanceof ArrivalSource) profile.complete();
+
 		for (Profile profile : profiles())
 		{
-			if (profile instanceof PerformanceProfile)
-			{
-				if (! ((PerformanceProfile)profile).resultsAreValid())
-					setResultsInvalid("Execution of profile " + profile.profileType() + " is invalid");
+			if (! profile.resultsAreValid())
+				setResultsInvalid("Execution of profile " + profile.profileType() + " is invalid");
 
-				if (((PerformanceProfile)profile).resultsAreSkewed())
-					setResultsSkewed("Results for profile " + profile.profileType() + " are skewed");
-			}
+			if (profile.resultsAreSkewed())
+				setResultsSkewed("Results for profile " + profile.profileType() + " are skewed");
 		}
 	}
 
@@ -367,6 +730,26 @@ public class TestRunner
 		These two methods should ideally be factored into a shared module but it
 		is too much trouble for the benefit. */
 	private static void buildProfile(final String profileFile)
+	{
+		String profileType = BaseProfileReader.readProfileType(profileFile);
+		if (profileType.equals("TraceProfile")) buildTraceProfile(profileFile);
+		else if (profileType.equals("ClosedProfile")) buildClosedProfile(profileFile);
+		else if (profileType.equals("SessionProfile")) buildSessionProfile(profileFile);
+		else if (profileType.equals("MixProfile")) buildMixProfile(profileFile);
+		else buildPerformanceProfile(profileFile);
+	}
+
+
+	/** Return the index (starting at 0) of this node among the nodes of the test
+		run, as set in the environment by the controller. */
+	private static int nodeIndex()
+	{
+		String nodeIndex = System.getenv(EnvVars.NodeIndex);
+		return (nodeIndex == null ? 0 : Integer.parseInt(nodeIndex));
+	}
+
+
+	private static void buildPerformanceProfile(final String profileFile)
 	{
 		PerformanceProfileReader reader = new PerformanceProfileReader()
 		{
@@ -394,100 +777,359 @@ public class TestRunner
 			{
 				profile.distribution().level(requestsPerSec, deltaInMinutes);
 			}
+
+			public void setArrivalProcess(ArrivalProcess p)
+			{
+				this.profile.setArrivalProcess(p);
+			}
+
+			public void setRateFunction(RateFunction f)
+			{
+				profile.distribution().setRateFunction(f);
+			}
 		};
 
 		reader.readProfile();
 	}
 
 
-	private static void setResultsInvalid(String reason)
+	/** Read a trace profile (see loadgen.profile.TraceProfile). The node's index
+		selects its share of the trace. */
+	private static void buildTraceProfile(final String profileFile)
 	{
-		setResultsStatus(ProcessReturnCodeForError);
-		System.err.println("===========ERROR: RESULTS ARE INVALID: " + reason);
-	}
+		final int index = nodeIndex();
 
+		TraceProfileReader reader = new TraceProfileReader()
+		{
+			private TraceProfile profile;
 
-	private static boolean resultsAreInvalid()
-	{
-		return (getResultsStatus() == ProcessReturnCodeForError);
-	}
+			public String getProfileFile() { return profileFile; }
 
+			public void createProfile()
+			{
+				this.profile = new TraceProfile(index);
+				profiles().add(profile);
+			}
 
-	private static boolean resultsAreValid()
-	{
-		return ! resultsAreInvalid();
-	}
+			public void setRequestType(String rt)
+			{
+				this.profile.setRequestType(rt);
+			}
 
+			public void setTagString(String ts)
+			{
+				this.profile.setTagString(ts);
+			}
 
-	private static void setResultsSkewed(String reason)
-	{
-		setResultsStatus(ProcessReturnCodeForWarning);
-		System.err.println("WARNING: results are skewed: " + reason);
-	}
+			public void setTraceFile(String path)
+			{
+				this.profile.setTraceFile(path);
+			}
 
+			public void setTimeScale(double scale)
+			{
+				this.profile.setTimeScale(scale);
+			}
 
-	private static boolean resultsAreSkewed()
-	{
-		return (getResultsStatus() == ProcessReturnCodeForWarning);
-	}
+			public void setSharding(String sharding, int noOfNodes)
+			{
+				this.profile.setSharding(TraceReader.parseSharding(sharding), noOfNodes);
+			}
 
+			public void addRequestType(String reqTypeName, String tagString)
+			{
+				this.profile.addRequestType(reqTypeName, tagString);
+			}
+		};
 
-	private static void setResultsStatus(int status)
-	{
-		thisResultsStatus = status;
+		reader.readProfile();
 	}
 
-	private static int getResultsStatus()
+
+	/** Read a closed-model profile (see loadgen.profile.ClosedProfile). The node's
+		index selects its share of the users. */
+	private static void buildClosedProfile(final String profileFile)
 	{
-		return thisResultsStatus;
-	}
+		final int index = nodeIndex();
 
+		ClosedProfileReader reader = new ClosedProfileReader()
+		{
+			private ClosedProfile profile;
 
-	private static void setStartTimeOfRun()
-	{
-		thisStartTimeOfRun = System.currentTimeMillis();
-	}
+			public String getProfileFile() { return profileFile; }
 
+			public void createProfile()
+			{
+				this.profile = new ClosedProfile(index, random().nextLong());
+				profiles().add(profile);
+			}
 
-	private static long startTimeOfRun()
-	{
-		return thisStartTimeOfRun;
-	}
+			public void setRequestType(String rt)
+			{
+				this.profile.setRequestType(rt);
+			}
 
+			public void setTagString(String ts)
+			{
+				this.profile.setTagString(ts);
+			}
 
-	private static long getCurRelativeTimeInMs()
-	{
-		return System.currentTimeMillis() - startTimeOfRun();
-	}
+			public void setThinkTime(ThinkTime thinkTime)
+			{
+				this.profile.setThinkTime(thinkTime);
+			}
 
+			public void setPacing(double seconds)
+			{
+				this.profile.setPacing(seconds);
+			}
 
-	private static Random random()
-	{
-		return thisRandom;
-	}
+			public void setNoOfNodes(int noOfNodes)
+			{
+				this.profile.setNoOfNodes(noOfNodes);
+			}
 
-	private static long getRandomSeed()
-	{
-		return thisRandomSeed;
-	}
+			public void addUserLevel(double users, double deltaInMinutes)
+			{
+				this.profile.addUserLevel(users, deltaInMinutes);
+			}
+		};
 
-	private static void setRandomSeed(long seed)
-	{
-		thisRandomSeed = seed;
-		thisRandom = new Random(seed);
-		System.out.println("Main thread using random seed " + seed);
+		reader.readProfile();
 	}
 
 
-	private static long getUniqueId()
+	/** Read a session profile (see loadgen.profile.SessionProfile). */
+	private static void buildSessionProfile(final String profileFile)
 	{
-		return thisUniqueId;
-	}
+		SessionProfileReader reader = new SessionProfileReader()
+		{
+			private SessionProfile profile;
 
-	private static void seedUniqueId(long seed)
-	{
-		thisUniqueId = seed;
-	}
+			public String getProfileFile() { return profileFile; }
+
+			public void createProfile()
+			{
+				this.profile = new SessionProfile(random().nextLong());
+				profiles().add(profile);
+			}
+
+			public void setRequestType(String rt)
+			{
+				this.profile.setRequestType(rt);
+			}
+
+			public void setTagString(String ts)
+			{
+				this.profile.setTagString(ts);
+			}
+
+			public void addLevel(double requestsPerSec, double deltaInMinutes)
+			{
+				profile.distribution().level(requestsPerSec, deltaInMinutes);
+			}
+
+			public void setArrivalProcess(ArrivalProcess p)
+			{
+				this.profile.setArrivalProcess(p);
+			}
+
+			public void setRateFunction(RateFunction f)
+			{
+				profile.distribution().setRateFunction(f);
+			}
+
+			public SessionModel getSessionModel()
+			{
+				return profile.model();
+			}
+
+			public void addRequestType(String reqTypeName, String tagString)
+			{
+				this.profile.addStepType(reqTypeName, tagString);
+			}
+		};
+
+		reader.readProfile();
+	}
+
+
+	/** Read a mix profile (see loadgen.profile.MixProfile). */
+	private static void buildMixProfile(final String profileFile)
+	{
+		MixProfileReader reader = new MixProfileReader()
+		{
+			private MixProfile profile;
+
+			public String getProfileFile() { return profileFile; }
+
+			public void createProfile()
+			{
+				this.profile = new MixProfile(random().nextLong());
+				profiles().add(profile);
+			}
+
+			public void setRequestType(String rt)
+			{
+				this.profile.setRequestType(rt);
+			}
+
+			public void setTagString(String ts)
+			{
+				this.profile.setTagString(ts);
+			}
+
+			public void addLevel(double requestsPerSec, double deltaInMinutes)
+			{
+				profile.distribution().level(requestsPerSec, deltaInMinutes);
+			}
+
+			public void setArrivalProcess(ArrivalProcess p)
+			{
+				this.profile.setArrivalProcess(p);
+			}
+
+			public void setRateFunction(RateFunction f)
+			{
+				profile.distribution().setRateFunction(f);
+			}
+
+			public void addMix(String reqTypeName, double weight)
+			{
+				this.profile.addMix(reqTypeName, weight);
+			}
+
+			public void addLevelMix(int levelNo, String reqTypeName, double weight)
+			{
+				this.profile.addLevelMix(levelNo, reqTypeName, weight);
+			}
+
+			public void addRequestType(String reqTypeName, String tagString)
+			{
+				this.profile.addStepType(reqTypeName, tagString);
+			}
+		};
+
+		reader.readProfile();
+	}
+
+
+	private static void setResultsInvalid(String reason)
+	{
+		setResultsStatus(ProcessReturnCodeForError);
+		System.err.println("===========ERROR: RESULTS ARE INVALID: " + reason);
+	}
+
+
+	private static boolean resultsAreInvalid()
+	{
+		return (getResultsStatus() == ProcessReturnCodeForError);
+	}
+
+
+	private static boolean resultsAreValid()
+	{
+		return ! resultsAreInvalid();
+	}
+
+
+	private static void setResultsSkewed(String reason)
+	{
+		setResultsStatus(ProcessReturnCodeForWarning);
+		System.err.println("WARNING: results are skewed: " + reason);
+	}
+
+
+	private static boolean resultsAreSkewed()
+	{
+		return (getResultsStatus() == ProcessReturnCodeForWarning);
+	}
+
+
+	private static void setResultsStatus(int status)
+	{
+		thisResultsStatus = status;
+	}
+
+	private static int getResultsStatus()
+	{
+		return thisResultsStatus;
+	}
+
+
+	private static void setStartTimeOfRun()
+	{
+		thisStartTimeOfRun = System.currentTimeMillis();
+		thisStartNanoTimeOfRun = System.nanoTime();
+		thisClock = new DeadlineClock(thisStartNanoTimeOfRun);
+	}
+
+
+	/** Return the clock that measures time since the start of the run, and with
+		which requests are scheduled. */
+	private static DeadlineClock clock()
+	{
+		return thisClock;
+	}
+
+
+	private static long startTimeOfRun()
+	{
+		return thisStartTimeOfRun;
+	}
+
+
+	private static long getCurRelativeTimeInMs()
+	{
+		return System.currentTimeMillis() - startTimeOfRun();
+	}
+
+
+	/** Return the time since the start of the run, in microseconds. This uses
+		the monotonic clock, and so is not affected by adjustments to the system time. */
+	static long getCurRelativeTimeInMicros()
+	{
+		return (System.nanoTime() - thisStartNanoTimeOfRun) / 1000;
+	}
+
+
+	/** Return the time, in microseconds since the start of the run, at which a
+		request that is scheduled for intendedNanos is intended to start. A request
+		without a schedule (Long.MIN_VALUE) is intended to start now. */
+	static long intendedMicros(long intendedNanos)
+	{
+		if (intendedNanos == Long.MIN_VALUE) return getCurRelativeTimeInMicros();
+		return intendedNanos / 1000;
+	}
+
+
+	private static Random random()
+	{
+		return thisRandom;
+	}
+
+	private static long getRandomSeed()
+	{
+		return thisRandomSeed;
+	}
+
+	private static void setRandomSeed(long seed)
+	{
+		thisRandomSeed = seed;
+		thisRandom = new Random(seed);
+		System.out.println("Main thread using random seed " + seed);
+	}
+
+
+	private static long getUniqueId()
+	{
+		return thisUniqueId;
+	}
+
+	private static void seedUniqueId(long seed)
+	{
+		thisUniqueId = seed;
+	}
 
 	private static long createUniqueId()
 	{
@@ -498,522 +1140,1398 @@ public class TestRunner
 	/** Defines a request rate distribution to be run. A distribution consists of
 		a series of levels, each representing a target request rate. A distribution
 		implicitly begins at the level 0, at elapsed time 0, and so a level for the
-		starting point should not be specified. */
+		starting point should not be specified. Alternatively, a distribution may be
+		defined by an arbitrary RateFunction (e.g., a ramp with a spike overlaid). */
 	private static class Distribution
 	{
 		private String thisType;
 		private List<double[]> levels = new Vector<double[]>();
+		private RateFunction thisRateFunction = null;
 
 		Distribution(String type)
 		{
 			thisType = type;
 		}
 
-		String type()
+		String type()
+		{
+			return thisType;
+		}
+
+		/** A level is a point at the end of a linear ramp. Thus, a level is a new
+			target point, to which the request rate will be ramped. Tests implicitly
+			begin at the level (0.0,0.0). Arguemnts must be float. */
+		void level(double requestsPerSec, double deltaInMinutes)
+		{
+			if (deltaInMinutes == 0.0) throw new RuntimeException(
+				"Cannot specify an elapsed time of 0");
+			levels.add(new double[] { requestsPerSec, deltaInMinutes });
+		}
+
+		List<double[]> levels()
+		{
+			return levels;
+		}
+
+		/** Set the rate function, which replaces the ramp defined by the levels. The
+			levels are kept, because they define the spans of time of the levels (see
+			MixProfile.levelAt). */
+		void setRateFunction(RateFunction f)
+		{
+			thisType = "composite";
+			thisRateFunction = f;
+		}
+
+		/** Return the rate function: the function that was set, if any, or else
+			the ramp defined by the levels. */
+		RateFunction rateFunction()
+		{
+			if (thisRateFunction != null) return thisRateFunction;
+			return RateFunction.ramp(levels);
+		}
+	}
+
+
+	abstract private static class Profile
+	{
+		private int thisResultsStatus = 0;
+		private String thisProfileType;
+		private String thisRequestTypeName;
+		private String thisTagString;
+		private AtomicLong thisUniqueId = new AtomicLong(1);  // ids may be created on several threads (see SessionProfile)
+		private RequestExecutor.Group thisRequests;
+		private EmbedderPool thisEmbedderPool;
+		private ScenarioCompiler thisScenarioCompiler;
+
+		Profile()
+		{
+		}
+
+
+		abstract void perform();
+
+
+		/** Return the executor Group that performs, and tracks, this profile's requests. */
+		synchronized RequestExecutor.Group requests()
+		{
+			if (thisRequests == null)
+				thisRequests = requestExecutor().newGroup(requestType(), thisMaxInFlightPerProfile);
+			return thisRequests;
+		}
+
+
+		/** Indicate that no more requests will be performed, and wait until those
+			that have been submitted have finished. */
+		void awaitRequests()
+		{
+			requests().schedulingDone();
+			try
+			{
+				while (! requests().awaitCompletion(10, TimeUnit.SECONDS))
+					System.out.println("There are " + requests().outstanding() + " outstanding requests for " +
+						requestType() + "...");
+			}
+			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+		}
+
+
+		/** Called after all profiles have finished dispatching requests: wait until
+			this profile's requests are done. */
+		void complete()
+		{
+			awaitRequests();
+		}
+
+
+		void setResultsInvalid(String reason)
+		{
+			setResultsStatus(ProcessReturnCodeForError);
+			System.err.println("===========ERROR: RESULTS ARE INVALID: " + reason);
+		}
+
+
+		boolean resultsAreInvalid()
+		{
+			return (getResultsStatus() == ProcessReturnCodeForError);
+		}
+
+
+		boolean resultsAreValid()
+		{
+			return ! resultsAreInvalid();
+		}
+
+
+		void setResultsSkewed(String reason)
+		{
+			setResultsStatus(ProcessReturnCodeForWarning);
+			System.err.println("WARNING: results are skewed: " + reason);
+		}
+
+
+		boolean resultsAreSkewed()
+		{
+			return (getResultsStatus() == ProcessReturnCodeForWarning);
+		}
+
+
+		void setResultsStatus(int status)
+		{
+			thisResultsStatus = status;
+		}
+
+		int getResultsStatus()
+		{
+			return thisResultsStatus;
+		}
+
+
+		void setProfileType(String profileType)
+		{
+			thisProfileType = profileType;
+		}
+
+		String profileType()
+		{
+			return thisProfileType;
+		}
+
+		void setRequestType(String reqTypeName)
+		{
+			thisRequestTypeName = reqTypeName;
+		}
+
+		String requestType()
+		{
+			return thisRequestTypeName;
+		}
+
+		void setTagString(String data)
+		{
+			thisTagString = data;
+		}
+
+		String tagString()
+		{
+			return thisTagString;
+		}
+
+		/** Return the filter that selects the scenarios of this profile's tags. */
+		StoryIndex.TagFilter tagFilter()
+		{
+			return StoryIndex.TagFilter.parse(tagString());
+		}
+
+		/** Return the pool of Embedders that have been configured for this
+			profile's tags. */
+		synchronized EmbedderPool embedderPool()
+		{
+			if (thisEmbedderPool == null)
+			{
+				final EmbedderPool pool = new EmbedderPool(stepClasseNames(), loadMode());
+				classLoaderPool().onRetirement((loader) -> pool.loaderRetired(loader));
+				thisEmbedderPool = pool;
+			}
+			return thisEmbedderPool;
+		}
+
+		/** Release the Embedders of this profile that remain idle. Called at the end
+			of the run. */
+		synchronized void close()
+		{
+			if (thisEmbedderPool != null) thisEmbedderPool.close();
+		}
+
+		/** Return the compiler of this profile's scenarios, for the compiled execution mode. */
+		synchronized ScenarioCompiler scenarioCompiler()
+		{
+			if (thisScenarioCompiler == null)
+			{
+				final ScenarioCompiler compiler = new ScenarioCompiler(storyIndex().stories(tagFilter()),
+					stepClasseNames());
+				classLoaderPool().onRetirement((loader) -> compiler.loaderRetired(loader));
+				thisScenarioCompiler = compiler;
+			}
+			return thisScenarioCompiler;
+		}
+
+		long getCurRelativeTimeInMs()
+		{
+			return TestRunner.getCurRelativeTimeInMs();
+		}
+
+		long getUniqueId()
+		{
+			return thisUniqueId.get();
+		}
+
+		void seedUniqueId(long seed)
+		{
+			thisUniqueId.set(seed);
+		}
+
+		long createUniqueId()
+		{
+			return thisUniqueId.incrementAndGet();
+		}
+
+		// Multi-threaded and multi-process structure:
+		//	TestRunner main thread
+		//		One thread for each Profile, to cycle through each ramp.
+		//			A pool of worker threads, which perform the requests of all profiles (see RequestExecutor)
+
+		// Random numbre generation:
+		//	Each profile gets its own random generator, seeded by the main thread.
+
+
+		/** Perform one test run. The request is submitted to this profile's executor
+			Group, which performs it on a worker thread (platform or virtual,
+			depending on the request thread factory), unless the node is saturated
+			(see RequestExecutor). A class loader from the pool is used, in order to
+			ensure isolation from other tests. Non-blocking, unless the saturation
+			policy is "block". The request's context (see TestRunnerUtil) is set on the
+			request's thread; reqRate is null for a functional test.
+			For tutorial on JBehave:
+			https://blog.codecentric.de/en/2012/06/jbehave-configuration-tutorial/ */
+		void performOneRequest(String reqType, String tagStr, Double reqRate)
+		{
+			performOneRequest(reqType, tagStr, reqRate, Long.MIN_VALUE);
+		}
+
+
+		/** Perform one test run, which was intended to start at intendedNanos (the
+			request's arrival time, in nanoseconds since the start of the run). It is
+			never submitted before that time, so it starts as soon as a worker is
+			available. Both the intended time and the time at which the request
+			actually starts are logged. If intendedNanos
+			is Long.MIN_VALUE, the request has no schedule, and is intended to start
+			when it is submitted. */
+		void performOneRequest(String reqType, String tagStr, Double reqRate, long intendedNanos)
+		{
+			performOneRequest(reqType, tagStr, reqRate, intendedNanos, null);
+		}
+
+
+		/** As above; whenDone, if not null, is run on the request's thread when the
+			request has finished (or has been dropped). */
+		void performOneRequest(final String reqType, String tagStr, final Double reqRate,
+			final long intendedNanos, final Runnable whenDone)
+		{
+			final long intendedTime = intendedMicros(intendedNanos);
+			final long id = createUniqueId();
+
+			requests().submit(new RequestExecutor.Request()
+			{
+				public void perform()
+				{
+					long startTime = getCurRelativeTimeInMicros();
+					RequestStages stages = newStages(intendedTime, startTime);
+					TestRunnerUtil.RequestContext context =
+						TestRunnerUtil.setContext(id, reqType, TestRunner.startTimeOfRun(), reqRate);
+					context.setStages(stages);
+
+					boolean success = false;
+					try {
+						// Execute JBehave in a separate Class Loader to provide isolation.
+						// Whether the loader is shared with other requests depends on
+						// the isolation level of the pool.
+						StepClassLoaderPool.CachingClassLoader loader =
+							classLoaderPool().acquire(Profile.this);
+						TestRunnerUtil.markStage(RequestStages.Stage.LoaderReady);
+
+						if (! loadMode()) System.out.println("Running stories...");
+						if (compiledExecution()) runCompiledPlan(loader);
+						else runStories(loader, storyIndex().stories(tagFilter()));
+						success = true;
+					}
+					catch (Throwable ex) {
+						System.out.println("JBehave run failed. Stack trace follows.");
+						ex.printStackTrace(System.err);
+					}
+
+					// Queue the log entry before this request is no longer counted
+					// as outstanding, so that it is written before the log is closed.
+					writeTimeLogEntry(context, intendedTime, startTime, requestDone(context),
+						Boolean.toString(success));
+					TestRunnerUtil.clearContext();
+					if (whenDone != null) whenDone.run();
+				}
+
+				public void dropped()
+				{
+					long now = getCurRelativeTimeInMicros();
+					writeTimeLogEntry(new TestRunnerUtil.RequestContext(id, reqType,
+						TestRunner.startTimeOfRun(), reqRate, null), intendedTime, now, now, "dropped");
+					if (whenDone != null) whenDone.run();
+				}
+			});
+		}
+
+
+		/** Perform this profile's compiled plan for the loader. Scenarios that could
+			not be compiled are run by JBehave, using an Embedder from the pool. */
+		void runCompiledPlan(final StepClassLoaderPool.CachingClassLoader loader)
+		{
+			try
+			{
+				runPlan(loader);
+			}
+			finally
+			{
+				scenarioCompiler().release(loader);
+			}
+		}
+
+
+		/** Perform this profile's compiled plan for the loader, without releasing
+			the plan. Scenarios that could not be compiled are run by JBehave, using an
+			Embedder from the pool. */
+		void runPlan(final StepClassLoaderPool.CachingClassLoader loader)
+		{
+			runPlan(loader, (stories) -> runStories(loader, stories));
+		}
+
+
+		/** As above, but scenarios that could not be compiled are run by the
+			specified fallback: for a loader that will be used again (see SessionProfile). */
+		void runPlan(StepClassLoaderPool.CachingClassLoader loader, CompiledPlan.Fallback fallback)
+		{
+			CompiledPlan plan = scenarioCompiler().plan(loader);
+			TestRunnerUtil.markStage(RequestStages.Stage.EmbedderReady);
+			plan.run(fallback);
+		}
+
+
+		/** Run the specified stories using an Embedder from the pool. */
+		void runStories(StepClassLoaderPool.CachingClassLoader loader, List<Story> stories)
+		{
+			Embedder embedder = embedderPool().borrow(loader);
+			TestRunnerUtil.markStage(RequestStages.Stage.EmbedderReady);
+			boolean success = false;
+			try
+			{
+				EmbedderPool.runStories(embedder, stories);
+				success = true;
+			}
+			finally
+			{
+				embedderPool().giveBack(embedder, loader, ! success);
+			}
+		}
+	}
+
+
+	private static class FunctionalProfile extends Profile
+	{
+		void perform()
+		{
+			// Simply perform the request type, in this process.
+			performOneRequest(requestType(), tagString());
+			awaitRequests();
+		}
+
+
+		void performOneRequest(String reqType, String tagStr)
+		{
+			super.performOneRequest(reqType, tagStr, null);
+		}
+	}
+
+
+	/** A performance profile is simply the concatenation of a distribution and a request type.
+		The arrivals of all performance profiles are dispatched, in parallel, by a
+		single Dispatcher, via the performProfiles method. */
+	private static class PerformanceProfile extends Profile implements ArrivalSource
+	{
+		private long thisRandomSeed;
+		private Random thisRandom;
+		private Distribution thisDistribution;
+		private ArrivalProcess thisArrivalProcess = ArrivalProcess.Poisson;
+		private ArrivalTimeline thisTimeline;
+		private ArrivalTimeline.Cursor thisArrivals;
+		private int thisLevelNo = 0;
+		private int thisNoOfRequests = 0;
+		private int thisNoOfLateRequests = 0;
+		private Dispatcher.LagStats thisLagStats;
+		private boolean thisAborted = false;
+
+
+		PerformanceProfile(String type, long seed)
+		{
+			setDistribution(new Distribution("ramp"));
+			setRandomSeed(seed);
+		}
+
+
+		void performOneRequest(String reqType, String tagStr, double reqRate, long intendedNanos)
+		{
+			super.performOneRequest(reqType, tagStr, new Double(reqRate), intendedNanos);
+		}
+
+
+		void setDistribution(Distribution dist)
+		{
+			thisDistribution = dist;
+		}
+
+		Distribution distribution()
+		{
+			return thisDistribution;
+		}
+
+		void setArrivalProcess(ArrivalProcess process)
+		{
+			thisArrivalProcess = process;
+		}
+
+		ArrivalProcess arrivalProcess()
+		{
+			return thisArrivalProcess;
+		}
+
+
+		Random random()
+		{
+			return thisRandom;
+		}
+
+		long getRandomSeed()
+		{
+			return thisRandomSeed;
+		}
+
+		void setRandomSeed(long seed)
+		{
+			thisRandomSeed = seed;
+			thisRandom = new Random(seed);
+		}
+
+
+		/** Perform the Distribution on its own, rather than with the arrivals of
+			other profiles (see performProfiles). */
+		void perform()
+		{
+			Dispatcher dispatcher = new Dispatcher(clock());
+			dispatcher.add(this);
+			dispatcher.run();
+			complete();
+		}
+
+
+		/** Build the ArrivalTimeline of the Distribution, from which the arrival
+			time of each request is obtained. The Dispatcher issues each request at
+			its arrival time. If a request cannot be issued within MaxLatenessNanos of
+			its deadline, it is counted as late, and the results are marked as skewed. */
+		void startArrivals()
+		{
+			thisAborted = true;  // until the timeline has been validated
+			thisTimeline = new ArrivalTimeline(distribution().rateFunction());
+			System.out.println("Profile for " + requestType() + " (" + distribution().type() + ", " +
+				arrivalProcess().definition() + " arrivals): " +
+				thisTimeline.noOfSegments() + " segments over " + thisTimeline.duration() + " seconds; expecting " +
+				Math.round(thisTimeline.expectedNoOfArrivals()) + " requests");
+
+			// Install a governor.
+			if (thisTimeline.maxRate() > MaxRequestRate) throw new RuntimeException(
+				"Aborting: reqRate = " + thisTimeline.maxRate() + " exceeds the maximum of " +
+				MaxRequestRate + " (see " + EnvVars.MaxRequestRate + ")");
+
+			thisArrivals = thisTimeline.cursor(random(), arrivalProcess());
+			thisAborted = false;
+		}
+
+
+		public String sourceName()
+		{
+			return requestType();
+		}
+
+
+		public boolean nextArrival()
+		{
+			if (thisArrivals == null) startArrivals();
+			return thisArrivals.next();
+		}
+
+
+		public long arrivalDeadline()
+		{
+			return thisArrivals.timeNanos();
+		}
+
+
+		public void fireArrival(long latenessNanos)
+		{
+			// Report level changes only for distributions with few segments: a sampled
+			// shape (such as a sine) has a segment for each second.
+			if ((thisArrivals.level() != thisLevelNo) && (thisTimeline.noOfSegments() <= MaxReportedLevels))
+			{
+				thisLevelNo = thisArrivals.level();
+				System.out.println("Level " + thisLevelNo + " for req type " + requestType() +
+					" began sending requests at t=" + getCurRelativeTimeInMs() +
+					" ms from start of run.");
+			}
+
+			if (latenessNanos > MaxLatenessNanos)
+			{
+				thisNoOfLateRequests = thisNoOfLateRequests + 1;
+				if (TestRunner.abortIfTestsCannotAchieveProfile())
+				{
+					String msg = "Node cannot keep up with request rate of " + thisArrivals.rate() +
+						"; request was " + (latenessNanos / 1000) + " us late";
+					setResultsSkewed(msg);
+					thisAborted = true;
+					throw new RuntimeException(new NodeCannotKeepUp(msg));
+				}
+			}
+
+			// Perform in a manner that ensures isolation of the test
+			// from other tests. This does not block.
+			performOneRequest(requestType(), tagString(), thisArrivals.rate(), thisArrivals.timeNanos());
+			thisNoOfRequests = thisNoOfRequests + 1;
+		}
+
+
+		/** The profile is aborted. If the node could not keep up, the results have
+			already been marked as skewed; otherwise (e.g. the governor stopped the
+			profile), they are invalid. */
+		public void arrivalsFailed(RuntimeException ex)
+		{
+			thisAborted = true;
+			if (! (ex.getCause() instanceof NodeCannotKeepUp))
+				setResultsInvalid("Arrivals for " + requestType() + " failed: " + ex.getMessage());
+		}
+
+
+		public void arrivalsFinished(Dispatcher.LagStats lagStats)
+		{
+			thisLagStats = lagStats;
+		}
+
+
+		/** Wait until the end of the Distribution, and then until all of its
+			requests are done. Called after the Dispatcher has finished. If the profile
+			was aborted, only wait for its requests. */
+		void complete()
+		{
+			if (! thisAborted)
+				clock().awaitDeadline(DeadlineClock.nanos(thisTimeline.duration()));  // the end of the last level
+			System.out.println("Profile for " + requestType() + " finished sending requests at t=" +
+				getCurRelativeTimeInMs() + " ms from start of run: issued " + thisNoOfRequests +
+				" requests; " + thisNoOfLateRequests + " were late; " + thisLagStats);
+			if (thisNoOfLateRequests > 0)
+			{
+				setResultsSkewed("Node cannot keep up with request rate: " + thisNoOfLateRequests +
+					" of " + thisNoOfRequests + " requests were more than " + (MaxLatenessNanos / 1000) +
+					" us late");
+				System.err.println("Warning - can't keep up");
+			}
+
+			// Wait until all requests are done.
+			awaitRequests();
+		}
+	}
+
+
+	/** A profile that replays the arrivals of a trace file, each at its recorded
+		time (scaled by the time scale) since the start of the trace. The trace is
+		streamed by a TraceReader, and its arrivals are dispatched, with those of the
+		other profiles, by the Dispatcher. Each arrival performs the request type of
+		its label, with that request type's tags; an arrival without a label
+		performs the profile's own request type. The rate of a trace is not known in
+		advance, so the governor (see MaxRequestRate) counts the arrivals of each
+		second of the trace, and aborts the replay if there are too many. */
+	private static class TraceProfile extends Profile implements ArrivalSource
+	{
+		private int thisNodeIndex;
+		private String thisTraceFile;
+		private double thisTimeScale = 1.0;
+		private TraceReader.Sharding thisSharding = TraceReader.Sharding.RoundRobin;
+		private int thisNoOfNodes = 1;
+		private Map<String, String> thisTagStrings = new HashMap<String, String>();
+		private TraceReader thisReader;
+		private TraceReader.Arrival thisArrival;
+		private long thisLastDeadline = 0;
+		private long thisNoOfRequests = 0;
+		private long thisNoOfLateRequests = 0;
+		private long thisNoOfUnknownLabels = 0;
+		private long thisWindowStart = 0;  // the deadline at which the current second began
+		private long thisWindowCount = 0;  // the arrivals in the current second
+		private Dispatcher.LagStats thisLagStats;
+
+
+		TraceProfile(int nodeIndex)
+		{
+			thisNodeIndex = nodeIndex;
+			setProfileType("TraceProfile");
+		}
+
+		void setTraceFile(String path)
+		{
+			thisTraceFile = path;
+		}
+
+		void setTimeScale(double scale)
+		{
+			thisTimeScale = scale;
+		}
+
+		void setSharding(TraceReader.Sharding sharding, int noOfNodes)
 		{
-			return thisType;
+			thisSharding = sharding;
+			thisNoOfNodes = noOfNodes;
 		}
 
-		/** A level is a point at the end of a linear ramp. Thus, a level is a new
-			target point, to which the request rate will be ramped. Tests implicitly
-			begin at the level (0.0,0.0). Arguemnts must be float. */
-		void level(double requestsPerSec, double deltaInMinutes)
+		void addRequestType(String reqTypeName, String tagString)
 		{
-			if (deltaInMinutes == 0.0) throw new RuntimeException(
-				"Cannot specify an elapsed time of 0");
-			levels.add(new double[] { requestsPerSec, deltaInMinutes });
+			thisTagStrings.put(reqTypeName, tagString);
 		}
 
-		List<double[]> levels()
+
+		/** Replay the trace on its own, rather than with the arrivals of other
+			profiles (see performProfiles). */
+		void perform()
 		{
-			return levels;
+			Dispatcher dispatcher = new Dispatcher(clock());
+			dispatcher.add(this);
+			dispatcher.run();
+			complete();
 		}
-	}
 
 
-	abstract private static class Profile
-	{
-		private int thisResultsStatus = 0;
-		private String thisProfileType;
-		private String thisRequestTypeName;
-		private String thisTagString;
-		private long thisUniqueId = 1;
-		private List<Thread> thisRequestThreads = new Vector<Thread>();
-
-		Profile()
+		public String sourceName()
 		{
+			return requestType() + " (trace)";
 		}
 
 
-		abstract void perform();
+		public boolean nextArrival()
+		{
+			if (thisReader == null)
+			{
+				System.out.println("Replaying trace " + thisTraceFile + " for " + requestType() +
+					": node " + thisNodeIndex + " of " + thisNoOfNodes + ", " + thisSharding +
+					" sharding, time scale " + thisTimeScale);
+				thisReader = new TraceReader(thisTraceFile, thisTimeScale, thisSharding,
+					thisNoOfNodes, thisNodeIndex);
+				thisReader.start();
+			}
+			thisArrival = thisReader.next();
+			return thisArrival != null;
+		}
 
 
-		List<Thread> requestThreads() { return thisRequestThreads; }
+		public long arrivalDeadline()
+		{
+			return thisArrival.deadline;
+		}
 
 
-		void setProfileType(String profileType)
+		public void fireArrival(long latenessNanos)
 		{
-			thisProfileType = profileType;
+			thisLastDeadline = thisArrival.deadline;
+			String reqType = requestType();
+			String tagStr = tagString();
+			if (thisArrival.label != null)
+			{
+				reqType = thisArrival.label;
+				tagStr = thisTagStrings.get(reqType);
+				if ((tagStr == null) && reqType.equals(requestType())) tagStr = tagString();
+				if (tagStr == null)
+				{
+					thisNoOfUnknownLabels = thisNoOfUnknownLabels + 1;
+					return;
+				}
+			}
+
+			// Govern the request rate.
+			if (thisArrival.deadline - thisWindowStart >= DeadlineClock.nanos(1.0))
+			{
+				thisWindowStart = thisArrival.deadline;
+				thisWindowCount = 0;
+			}
+			thisWindowCount = thisWindowCount + 1;
+			if (thisWindowCount > MaxRequestRate) throw new RuntimeException(
+				"Aborting: trace has more than " + MaxRequestRate + " requests in the second from t=" +
+				(thisWindowStart / 1000000) + " ms, which exceeds the maximum of " +
+				MaxRequestRate + " (see " + EnvVars.MaxRequestRate + ")");
+
+			if (latenessNanos > MaxLatenessNanos) thisNoOfLateRequests = thisNoOfLateRequests + 1;
+
+			// Does not block (unless the saturation policy is "block").
+			performOneRequest(reqType, tagStr, null, thisArrival.deadline);
+			thisNoOfRequests = thisNoOfRequests + 1;
 		}
 
-		String profileType()
+
+		public void arrivalsFailed(RuntimeException ex)
 		{
-			return thisProfileType;
+			setResultsInvalid("Arrivals for " + sourceName() + " failed: " + ex.getMessage());
 		}
 
-		void setRequestType(String reqTypeName)
+
+		public void arrivalsFinished(Dispatcher.LagStats lagStats)
 		{
-			thisRequestTypeName = reqTypeName;
+			thisLagStats = lagStats;
 		}
 
-		String requestType()
+
+		/** Wait until the time of the last arrival, and then until all of the
+			requests are done. */
+		void complete()
 		{
-			return thisRequestTypeName;
+			clock().awaitDeadline(thisLastDeadline);
+			System.out.println("Trace profile for " + requestType() + " finished sending requests at t=" +
+				getCurRelativeTimeInMs() + " ms from start of run: issued " + thisNoOfRequests +
+				" requests; " + thisNoOfLateRequests + " were late; " + thisLagStats);
+			if (thisReader != null)
+				System.out.println("\tread " + thisReader.noOfLines() + " lines; " +
+					thisReader.noOfArrivals() + " arrivals were for this node; " +
+					thisReader.noOfReorderedArrivals() + " were out of order");
+			if (thisNoOfUnknownLabels > 0)
+				System.err.println("Warning - " + thisNoOfUnknownLabels +
+					" arrivals had labels that are not request types of the profile");
+			if (thisNoOfLateRequests > 0)
+				setResultsSkewed("Node cannot keep up with trace: " + thisNoOfLateRequests +
+					" of " + thisNoOfRequests + " requests were more than " + (MaxLatenessNanos / 1000) +
+					" us late");
+
+			awaitRequests();
 		}
+	}
 
-		void setTagString(String data)
+
+	/** A closed-model profile: a number of virtual users, each of which performs
+		the profile's request type, waits for a think time after the request has
+		finished (and, with pacing, until the pacing interval since the start of the
+		request has passed), and repeats. A virtual user is not a thread: a user that
+		is thinking is an entry in a DelayQueue, and a single scheduler thread (the
+		profile's thread) starts the requests of the users that are due, on the
+		request executor. Thus a node can run tens of thousands of users, and only the
+		requests in flight occupy threads (virtual threads, if REQUEST_THREADS is
+		"virtual"). Once each ControlIntervalNanos, the scheduler adjusts the number of
+		users to this node's share of the users level at that time; a user that is
+		removed finishes its current request, if any, and is not rescheduled. */
+	private static class ClosedProfile extends Profile
+	{
+		static long ControlIntervalNanos = 1000000000;
+
+		private int thisNodeIndex;
+		private Random thisRandom;
+		private ThinkTime thisThinkTime = ThinkTime.None;
+		private long thisPacingNanos = 0;
+		private int thisNoOfNodes = 1;
+		private List<double[]> thisUserLevels = new Vector<double[]>();
+		private DelayQueue<VirtualUser> thisDueUsers = new DelayQueue<VirtualUser>();
+		private List<VirtualUser> thisUsers = new Vector<VirtualUser>();
+		private volatile boolean thisStopping = false;
+		private int thisNextUserNo = 1;
+		private int thisMaxNoOfUsers = 0;
+		private long thisNoOfRequests = 0;
+
+
+		class VirtualUser implements Delayed
 		{
-			thisTagString = data;
+			final int userNo;
+			volatile long nextStart;  // nanoseconds since the start of the run
+			volatile boolean retired = false;
+			long lastStart;
+
+			VirtualUser(int userNo, long nextStart)
+			{
+				this.userNo = userNo;
+				this.nextStart = nextStart;
+			}
+
+			public long getDelay(TimeUnit unit)
+			{
+				return unit.convert(nextStart - clock().now(), TimeUnit.NANOSECONDS);
+			}
+
+			public int compareTo(Delayed other)
+			{
+				return Long.compare(nextStart, ((VirtualUser)other).nextStart);
+			}
 		}
 
-		String tagString()
+
+		ClosedProfile(int nodeIndex, long seed)
 		{
-			return thisTagString;
+			thisNodeIndex = nodeIndex;
+			thisRandom = new Random(seed);
+			setProfileType("ClosedProfile");
 		}
 
-		long getCurRelativeTimeInMs()
+		void setThinkTime(ThinkTime thinkTime)
 		{
-			return TestRunner.getCurRelativeTimeInMs();
+			thisThinkTime = thinkTime;
 		}
 
-		long getUniqueId()
+		void setPacing(double seconds)
 		{
-			return thisUniqueId;
+			thisPacingNanos = DeadlineClock.nanos(seconds);
 		}
 
-		void seedUniqueId(long seed)
+		void setNoOfNodes(int noOfNodes)
 		{
-			thisUniqueId = seed;
+			thisNoOfNodes = Math.max(1, noOfNodes);
 		}
 
-		long createUniqueId()
+		void addUserLevel(double users, double deltaInMinutes)
 		{
-			return thisUniqueId = (thisUniqueId + 1);
+			if (deltaInMinutes == 0.0) throw new RuntimeException(
+				"Cannot specify an elapsed time of 0");
+			thisUserLevels.add(new double[] { users, deltaInMinutes });
 		}
 
-		// Multi-threaded and multi-process structure:
-		//	TestRunner main thread
-		//		One thread for each Profile, to cycle through each ramp.
-		//			One process for each request of each ramp
 
-		// Random numbre generation:
-		//	Each profile gets its own random generator, seeded by the main thread.
+		/** Return this node's share of a total number of users. The users that do
+			not divide evenly among the nodes go to the lowest-numbered nodes. */
+		int shareOfUsers(double total)
+		{
+			int n = (int)Math.round(total);
+			return n / thisNoOfNodes + ((thisNodeIndex < (n % thisNoOfNodes)) ? 1 : 0);
+		}
 
 
-		/** Perform one test run. This method creates an asynchronous
-			thread and a new class loader in order to ensure isolation from other tests.
-			Non-blocking.
-			For tutorial on JBehave:
-			https://blog.codecentric.de/en/2012/06/jbehave-configuration-tutorial/ */
-		void performOneRequest(final String reqType, String tagStr)
+		void perform()
 		{
-			final long startTime = getCurRelativeTimeInMs();
-
+			RateFunction users = RateFunction.ramp(thisUserLevels);
+			long end = DeadlineClock.nanos(users.duration());
+			double maxUsers = 0.0;
+			for (double[] level : thisUserLevels) maxUsers = Math.max(maxUsers, level[0]);
+			System.out.println("Closed profile for " + requestType() + ": up to " +
+				shareOfUsers(maxUsers) + " users on this node over " +
+				users.duration() + " seconds; think time " + thisThinkTime + ", pacing " +
+				(thisPacingNanos / 1000000) + " ms");
+
+			long nextControl = clock().now();
 			try
 			{
-				final Thread t = new Thread()
+				for (;;)
 				{
-					public void run()
+					long now = clock().now();
+					if (now >= end) break;
+					if (now >= nextControl)
 					{
-						requestThreads().add(this);
-
-						// Execute JBehave in a new Class Loader to provide isolation.
-						// The class loader must be able to find the loadgen jar.
-						List<String> cp = new Vector<String>();
-						cp.add("file://" + System.getenv(EnvVars.LoadgenJarPathOnNode));
-						cp.addAll(stepClasspathElementURLs());
-						EmbedderClassLoader loader = new EmbedderClassLoader(
-							cp, ClassLoader.getSystemClassLoader());
-
-						Embedder embedder = new Embedder();
-						embedder.useClassLoader(loader);
-						List<String> storyPaths = features();
-
-						embedder.useMetaFilters(Arrays.asList(new String[] { tagString() } ));
-						// See http://jbehave.org/reference/stable/javadoc/core/index.html
-
-						for (String className : stepClasseNames()) try
-						{
-							Class c = loader.loadClass(className);
-							if (! (org.jbehave.core.steps.StepCandidate.class.isAssignableFrom(c)))
-								throw new RuntimeException("Class " +
-									className + " is not a StepCandidate");
-
-							StepCandidate step = (StepCandidate)(loader.newInstance(c, className));
-							final List<StepCandidate> stepList = new Vector<StepCandidate>();
-							stepList.add(step);
-							List<CandidateSteps> stepsList = new Vector<CandidateSteps>();
-							Steps steps = new Steps() {
-								public List<StepCandidate> listCandidates() { return stepList; }
-							};
-							stepsList.add(steps);
-							embedder.useCandidateSteps(stepsList);
-						}
-						catch (Exception ex) { throw new RuntimeException(ex); }
-
-						boolean success = false;
-						try {
-							System.out.println("Running stories...");
-							embedder.runStoriesAsPaths(features());
-							success = true;
-						}
-						catch (Exception ex) {
-							ex.printStackTrace(System.err);
-						}
-
-						requestThreads().remove(this);
-						writeTimeLogEntry(reqType, startTime, getCurRelativeTimeInMs(), Boolean.toString(success));
+						setNoOfUsers(shareOfUsers(users.rate(now / 1.0e9)), now);
+						nextControl = nextControl + ControlIntervalNanos;
 					}
-				};
-				t.start();
 
+					VirtualUser user = thisDueUsers.poll(Math.min(nextControl, end) - now, TimeUnit.NANOSECONDS);
+					if ((user == null) || user.retired) continue;
+					user.lastStart = user.nextStart;
+					performOneRequest(requestType(), tagString(), null, user.lastStart, () -> requestDone(user));
+					thisNoOfRequests = thisNoOfRequests + 1;
+				}
 			}
-			catch (Throwable t)
+			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+			finally
 			{
-				System.out.println("JBehave run failed. Stack trace follows.");
-				t.printStackTrace(System.err);
+				thisStopping = true;
+				thisDueUsers.clear();
 			}
+
+			System.out.println("Closed profile for " + requestType() + " finished sending requests at t=" +
+				getCurRelativeTimeInMs() + " ms from start of run: issued " + thisNoOfRequests +
+				" requests, with at most " + thisMaxNoOfUsers + " users");
+			awaitRequests();
 		}
-	}
 
 
-	private static class FunctionalProfile extends Profile
-	{
-		void perform()
+		/** Add or remove users, to reach the specified number. New users start at
+			random times within the next control interval, so that they do not all
+			issue their first requests at once. */
+		void setNoOfUsers(int n, long now)
 		{
-			// Simply perform the request type, in this process.
-			performOneRequest(requestType(), tagString());
+			while (thisUsers.size() < n)
+			{
+				VirtualUser user = new VirtualUser(thisNextUserNo++,
+					now + (long)(thisRandom.nextDouble() * ControlIntervalNanos));
+				thisUsers.add(user);
+				thisDueUsers.put(user);
+			}
+			while (thisUsers.size() > n)
+			{
+				VirtualUser user = thisUsers.remove(thisUsers.size()-1);
+				user.retired = true;
+				thisDueUsers.remove(user);
+			}
+			thisMaxNoOfUsers = Math.max(thisMaxNoOfUsers, n);
 		}
 
 
-		void performOneRequest(String reqType, String tagStr)
+		/** Called on the request's thread when a user's request has finished:
+			schedule the user's next request. */
+		void requestDone(VirtualUser user)
 		{
-			TestRunnerUtil.setUniqueId(createUniqueId());
-			TestRunnerUtil.setRequestType(reqType);
-			TestRunnerUtil.setTimeOffset(TestRunner.startTimeOfRun());
-			super.performOneRequest(reqType, tagStr);
+			if (user.retired || thisStopping) return;
+			long next = clock().now() + DeadlineClock.nanos(thisThinkTime.sample(thisRandom));
+			if (thisPacingNanos > 0) next = Math.max(next, user.lastStart + thisPacingNanos);
+			user.nextStart = next;
+			thisDueUsers.put(user);
 		}
 	}
 
 
-	/** A performance profile is simply the concatenation of a distribution and a request type.
-		Each profile is performed in parallel, via the performProfiles method, which
-		calls a performProfile method for each profile.
-		To do: move the TestRunner.performProfile method into the Profile class. */
-	private static class PerformanceProfile extends Profile
+	/** A request type that is performed on behalf of another profile: as a step of
+		a session (see SessionProfile), or as part of a mix (see MixProfile). It
+		provides the embedders and compiled scenarios for the request type's tags. */
+	private static class StepType extends Profile
 	{
-		private long thisRandomSeed;
-		private Random thisRandom;
-		private Distribution thisDistribution;
-
-
-		PerformanceProfile(String type, long seed)
+		StepType(String reqTypeName, String tagString)
 		{
-			setDistribution(new Distribution("ramp"));
-			setRandomSeed(seed);
+			setRequestType(reqTypeName);
+			setTagString(tagString);
 		}
 
-
-		void performOneRequest(String reqType, String tagStr, double reqRate)
+		void perform()
 		{
-			TestRunnerUtil.setUniqueId(createUniqueId());
-			TestRunnerUtil.setRequestType(reqType);
-			TestRunnerUtil.setRequestRate(reqRate);
-			TestRunnerUtil.setTimeOffset(TestRunner.startTimeOfRun());
-			super.performOneRequest(reqType, tagStr);
+			throw new RuntimeException("A step type is performed only as part of a session or mix");
 		}
+	}
 
 
-		void setDistribution(Distribution dist)
+	/** A profile of user sessions. Sessions arrive as the requests of a performance
+		profile do (at the rate of the Distribution); each session then performs a
+		sequence of steps, chosen by the SessionModel. A step is a request, which is
+		submitted to this profile's executor Group when the think time that precedes
+		it has passed; a session does not occupy a thread while it is thinking. When a
+		step is done, its worker puts the session's next step in a DelayQueue, and
+		returns; a single scheduler thread (as for a ClosedProfile) submits the steps
+		that are due. Thus a worker never waits for an in-flight slot while it holds
+		one (see RequestExecutor.SaturationPolicy), and if the scheduler has to wait
+		for one, the steps that are due wait in the queue, and are late. All
+		of a session's steps use the class loader that is acquired for its first
+		step, and embedders from the pool of each step's request type, so that no
+		loader or embedder is created for each step. Each step is logged under its
+		own request type, and the whole session is logged, when it ends, under the
+		profile's request type, with the session's id. */
+	private static class SessionProfile extends PerformanceProfile
+	{
+		static int MaxStepsPerSession = 1000;
+
+		private SessionModel thisModel = new SessionModel();
+		private Map<String, StepType> thisStepTypes = new HashMap<String, StepType>();
+		private DelayQueue<DueStep> thisDueSteps = new DelayQueue<DueStep>();
+		private Thread thisScheduler;
+		private volatile boolean thisStopping = false;
+		private AtomicInteger thisActiveSessions = new AtomicInteger(0);
+		private AtomicLong thisNoOfSessions = new AtomicLong(0);
+		private AtomicLong thisNoOfSteps = new AtomicLong(0);
+
+
+		/** The state of one session. Its steps are performed one at a time. The
+			session holds its loader, and an Embedder for each of its step types, from
+			its first step until it ends, whatever the isolation level of the loader
+			pool: so a session's steps share their step instances, and do not pay
+			for a new Embedder (or compiled plan) on each step. A session's steps run
+			on different threads, but never at once; its choices are made with its own
+			Random, which is seeded when the session begins, on the dispatcher thread,
+			so that a run can be reproduced from its seed. */
+		class Session
 		{
-			thisDistribution = dist;
+			final long id;
+			final double reqRate;
+			final long intendedTime;  // microseconds since the start of the run
+			final long startTime;
+			final Random random;
+			final Map<String, Object> state = new HashMap<String, Object>();
+			volatile StepClassLoaderPool.CachingClassLoader loader;
+			final Map<StepType, Embedder> embedders = new HashMap<StepType, Embedder>();
+			final AtomicInteger noOfSteps = new AtomicInteger(0);
+			volatile boolean success = true;
+
+			Session(long id, double reqRate, long intendedTime, long startTime, long seed)
+			{
+				this.id = id;
+				this.reqRate = reqRate;
+				this.intendedTime = intendedTime;
+				this.startTime = startTime;
+				this.random = new Random(seed);
+			}
+
+			/** Run stories of the step type, using the session's Embedder for the
+				step type, which is borrowed on first use. If the run fails, the
+				Embedder is discarded. */
+			void runStories(StepType stepType, List<Story> stories)
+			{
+				Embedder embedder = embedders.get(stepType);
+				if (embedder == null)
+				{
+					embedder = stepType.embedderPool().borrow(loader);
+					embedders.put(stepType, embedder);
+				}
+				TestRunnerUtil.markStage(RequestStages.Stage.EmbedderReady);
+				boolean success = false;
+				try
+				{
+					EmbedderPool.runStories(embedder, stories);
+					success = true;
+				}
+				finally
+				{
+					if (! success)
+					{
+						embedders.remove(stepType);
+						stepType.embedderPool().giveBack(embedder, loader, true);
+					}
+				}
+			}
+
+			/** Give back the session's Embedders, and release its plans and loader. */
+			void release()
+			{
+				if (loader == null) return;
+				for (Map.Entry<StepType, Embedder> entry : embedders.entrySet())
+					entry.getKey().embedderPool().giveBack(entry.getValue(), loader, false);
+				embedders.clear();
+				if (compiledExecution())
+					for (StepType stepType : thisStepTypes.values())
+						stepType.scenarioCompiler().release(loader);
+				loader = null;
+			}
 		}
 
-		Distribution distribution()
+
+		/** A step of a session that is to be submitted at its intended start time. */
+		class DueStep implements Delayed
 		{
-			return thisDistribution;
+			final Session session;
+			final String reqType;
+			final long intendedNanos;  // nanoseconds since the start of the run
+
+			DueStep(Session session, String reqType, long intendedNanos)
+			{
+				this.session = session;
+				this.reqType = reqType;
+				this.intendedNanos = intendedNanos;
+			}
+
+			public long getDelay(TimeUnit unit)
+			{
+				return unit.convert(intendedNanos - clock().now(), TimeUnit.NANOSECONDS);
+			}
+
+			public int compareTo(Delayed other)
+			{
+				return Long.compare(intendedNanos, ((DueStep)other).intendedNanos);
+			}
 		}
 
 
-		Random random()
+		SessionProfile(long seed)
 		{
-			return thisRandom;
+			super("ramp", seed);
+			setProfileType("SessionProfile");
 		}
 
-		long getRandomSeed()
+		SessionModel model()
 		{
-			return thisRandomSeed;
+			return thisModel;
 		}
 
-		void setRandomSeed(long seed)
+		void addStepType(String reqTypeName, String tagString)
 		{
-			thisRandomSeed = seed;
-			thisRandom = new Random(seed);
+			thisStepTypes.put(reqTypeName, new StepType(reqTypeName, tagString));
 		}
 
 
-		void setResultsInvalid(String reason)
+		void startArrivals()
 		{
-			setResultsStatus(ProcessReturnCodeForError);
-			System.err.println("===========ERROR: RESULTS ARE INVALID: " + reason);
+			thisModel.validate();
+			for (String reqTypeName : thisModel.requestTypes())
+				if (! thisStepTypes.containsKey(reqTypeName)) throw new RuntimeException(
+					"No tags were specified for session step " + reqTypeName);
+			thisScheduler = new Thread(() -> scheduleSteps(), "session-scheduler");
+			thisScheduler.setDaemon(true);
+			thisScheduler.start();
+			super.startArrivals();
 		}
 
 
-		boolean resultsAreInvalid()
+		/** Submit the steps that are due, until the profile is complete. */
+		void scheduleSteps()
 		{
-			return (getResultsStatus() == ProcessReturnCodeForError);
+			while (! thisStopping)
+			{
+				DueStep step;
+				try { step = thisDueSteps.poll(100, TimeUnit.MILLISECONDS); }
+				catch (InterruptedException ex) { continue; }
+				if (step == null) continue;
+				try
+				{
+					performStep(step.session, step.reqType, step.intendedNanos);
+				}
+				catch (RuntimeException ex)
+				{
+					System.err.println("Step " + step.reqType + " of session " + step.session.id +
+						" could not be submitted: " + ex.getMessage());
+					step.session.success = false;
+					endSession(step.session, "false");
+				}
+			}
 		}
 
 
-		boolean resultsAreValid()
+		/** Begin a session, at the arrival's intended time. */
+		void performOneRequest(String reqType, String tagStr, double reqRate, long intendedNanos)
 		{
-			return ! resultsAreInvalid();
+			Session session = new Session(createUniqueId(), reqRate,
+				intendedMicros(intendedNanos), getCurRelativeTimeInMicros(), random().nextLong());
+			thisActiveSessions.incrementAndGet();
+			thisNoOfSessions.incrementAndGet();
+			performStep(session, thisModel.chooseEntry(session.random), intendedNanos);
 		}
 
 
-		void setResultsSkewed(String reason)
+		/** Submit a step of the session, which was intended to start at intendedNanos
+			(and is not submitted before then). */
+		void performStep(final Session session, final String reqType, final long intendedNanos)
 		{
-			setResultsStatus(ProcessReturnCodeForWarning);
-			System.err.println("WARNING: results are skewed: " + reason);
+			final StepType stepType = thisStepTypes.get(reqType);
+			final long intendedTime = intendedMicros(intendedNanos);
+			final long id = createUniqueId();
+			session.noOfSteps.incrementAndGet();
+			thisNoOfSteps.incrementAndGet();
+
+			requests().submit(new RequestExecutor.Request()
+			{
+				public void perform()
+				{
+					long startTime = getCurRelativeTimeInMicros();
+					RequestStages stages = newStages(intendedTime, startTime);
+					TestRunnerUtil.RequestContext context = new TestRunnerUtil.RequestContext(
+						id, reqType, TestRunner.startTimeOfRun(), session.reqRate).inSession(session.id, session.state);
+					TestRunnerUtil.setContext(context);
+					context.setStages(stages);
+					boolean success = false;
+					try {
+						if (session.loader == null) session.loader = classLoaderPool().acquire(SessionProfile.this);
+						TestRunnerUtil.markStage(RequestStages.Stage.LoaderReady);
+
+						if (compiledExecution())
+							stepType.runPlan(session.loader, (stories) -> session.runStories(stepType, stories));
+						else session.runStories(stepType, storyIndex().stories(stepType.tagFilter()));
+						success = true;
+					}
+					catch (Throwable ex) {
+						System.out.println("JBehave run failed. Stack trace follows.");
+						ex.printStackTrace(System.err);
+					}
+
+					writeTimeLogEntry(context, intendedTime, startTime, requestDone(context),
+						Boolean.toString(success));
+					TestRunnerUtil.clearContext();
+					stepDone(session, reqType, success);
+				}
+
+				public void dropped()
+				{
+					long now = getCurRelativeTimeInMicros();
+					writeTimeLogEntry(new TestRunnerUtil.RequestContext(id, reqType,
+						TestRunner.startTimeOfRun(), session.reqRate, null), intendedTime, now, now, "dropped");
+					endSession(session, "dropped");
+				}
+			});
 		}
 
 
-		boolean resultsAreSkewed()
+		/** Choose the session's next step, and queue it to be submitted by the
+			scheduler after its think time; or end the session. A session ends after a
+			failed step. This is called on the step's worker thread, so it must not
+			submit the next step itself. */
+		void stepDone(final Session session, String reqType, boolean success)
 		{
-			return (getResultsStatus() == ProcessReturnCodeForWarning);
+			if (! success)
+			{
+				session.success = false;
+				endSession(session, "false");
+				return;
+			}
+
+			SessionModel.Transition transition = thisModel.chooseTransition(reqType, session.random);
+			if ((transition == null) || (session.noOfSteps.get() >= MaxStepsPerSession))
+			{
+				endSession(session, "true");
+				return;
+			}
+
+			long thinkNanos = Math.max(0, DeadlineClock.nanos(transition.thinkTime.sample(session.random)));
+			thisDueSteps.put(new DueStep(session, transition.to, clock().now() + thinkNanos));
 		}
 
 
-		void setResultsStatus(int status)
+		/** Log the end-to-end time of the whole session, and release its resources. */
+		void endSession(Session session, String result)
 		{
-			thisResultsStatus = status;
+			writeTimeLogEntry(new TestRunnerUtil.RequestContext(session.id, requestType(),
+				TestRunner.startTimeOfRun(), session.reqRate, null), session.intendedTime, session.startTime,
+				getCurRelativeTimeInMicros(), result);
+			session.release();
+
+			if (thisActiveSessions.decrementAndGet() == 0)
+				synchronized (thisActiveSessions) { thisActiveSessions.notifyAll(); }
 		}
 
-		int getResultsStatus()
+
+		synchronized void close()
 		{
-			return thisResultsStatus;
+			super.close();
+			for (StepType stepType : thisStepTypes.values()) stepType.close();
 		}
 
 
-		/** Perform a ramp for each level of the Distribution. */
-		void perform()
+		/** Wait until every session has ended, and then until all requests are done. */
+		void complete()
 		{
-			long t = System.currentTimeMillis();
-
-			double initialReqRatePerSec = 0.0;
-			int lno = 0;  // level number
-			for (double[] level : distribution().levels()) try
+			synchronized (thisActiveSessions)
 			{
-				long startTime = getCurRelativeTimeInMs();
-				lno = lno + 1;
-				double finalReqRatePerSec = level[0];
-				double rampDurationInSec = level[1] * 60.0;  // convert from min to sec.
-
-				System.out.println();
-				System.out.println("Calling perform for level " + lno +
-					" for req type=" + requestType() + " at t=" + getCurRelativeTimeInMs() +
-					" seconds from start of run...");
-				System.out.println();
-
 				try
 				{
-					performLevel(requestType(), tagString(),
-						initialReqRatePerSec, finalReqRatePerSec, rampDurationInSec);
-					System.out.println("...completed level " + lno +
-						" for req type " + requestType() + " at t=" + getCurRelativeTimeInMs() +
-						" seconds from start of run.");
-				}
-				catch (NodeCannotKeepUp ex)
-				{
-					setResultsSkewed(ex.getMessage());
-					System.out.println("...level " + lno +
-						" completed with warning for req type " + requestType() +
-						" at t=" + getCurRelativeTimeInMs() + " seconds from start of run.");
-					throw new RuntimeException(ex);
+					while (thisActiveSessions.get() > 0)
+					{
+						thisActiveSessions.wait(10000);
+						if (thisActiveSessions.get() > 0)
+							System.out.println("There are " + thisActiveSessions.get() + " active sessions for " +
+								requestType() + "...");
+					}
 				}
+				catch (InterruptedException ex) { throw new RuntimeException(ex); }
+			}
+			thisStopping = true;
+			if (thisScheduler != null) thisScheduler.interrupt();
+			System.out.println("Session profile for " + requestType() + ": " + thisNoOfSessions.get() +
+				" sessions, " + thisNoOfSteps.get() + " steps");
+			super.complete();
+		}
+	}
 
-				long endTime = getCurRelativeTimeInMs();
-				long elapsedTime = endTime - startTime;
-				long sleepTime = (long)(rampDurationInSec * 1000.0) - elapsedTime;  // in ms.
-				if (sleepTime >= 0.0) Thread.sleep(sleepTime);   // sleep until the end of the ramp
-				System.out.println("Level " + lno + " finished sending requests for req type " +
-					requestType() + " at t=" + getCurRelativeTimeInMs() +
-					" seconds from start of run.");
 
-				initialReqRatePerSec = finalReqRatePerSec;
-			}
-			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+	/** A profile that performs a weighted mix of request types from the single
+		arrival stream of its Distribution. Each arrival chooses its request type
+		from an AliasTable, in constant time; a level of the distribution may have a
+		mix of its own. Each request type's requests are performed, and tracked, by
+		a StepType, so that each has its own embedders and executor Group. */
+	private static class MixProfile extends PerformanceProfile
+	{
+		private Map<String, Double> thisMix = new LinkedHashMap<String, Double>();
+		private Map<Integer, Map<String, Double>> thisLevelMixes = new HashMap<Integer, Map<String, Double>>();
+		private Map<String, StepType> thisStepTypes = new HashMap<String, StepType>();
+		private AliasTable<StepType> thisTable;
+		private Map<Integer, AliasTable<StepType>> thisLevelTables = new HashMap<Integer, AliasTable<StepType>>();
+		private Map<StepType, Long> thisCounts = new HashMap<StepType, Long>();
+		private long[] thisLevelEnds;  // the end of each level of the distribution, in ns since the start of the run
+
+
+		MixProfile(long seed)
+		{
+			super("ramp", seed);
+			setProfileType("MixProfile");
+		}
+
+		void addMix(String reqTypeName, double weight)
+		{
+			thisMix.put(reqTypeName, weight);
+		}
 
-			// Wait until all child threads are done.
-			while (true) try
+		void addLevelMix(int levelNo, String reqTypeName, double weight)
+		{
+			Map<String, Double> mix = thisLevelMixes.get(levelNo);
+			if (mix == null)
 			{
-				System.out.println("There are " + requestThreads().size() + " workers...");
-				if (requestThreads().size() == 0) break;
-				Thread.sleep(1000);  // 1000 ms
+				mix = new LinkedHashMap<String, Double>();
+				thisLevelMixes.put(levelNo, mix);
 			}
-			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+			mix.put(reqTypeName, weight);
 		}
 
+		void addStepType(String reqTypeName, String tagString)
+		{
+			thisStepTypes.put(reqTypeName, new StepType(reqTypeName, tagString));
+		}
 
-		/** Generate the load defined by a Distribution Level. Load is generated
-			beginning at the current ("initial") load level, escalating (or decreasing) to
-			the request rate defined by the Level parameters. */
-		void performLevel(String reqType, String tagStr, double initialReqRatePerSec,
-			double finalReqRatePerSec, double rampDurationInSec)
-		throws
-			NodeCannotKeepUp
-		{
-			// At present, only ramps are implemented. Later, other functions
-			// will be supported.
-			ramp(reqType, tagStr, initialReqRatePerSec, finalReqRatePerSec, rampDurationInSec);
-		}
-
-
-		/** Generate a linearly ramped load as specified by the arguments.
-			The ramp is defined by two endpoints: the initial request rate, beginning
-			at the current time, the final request rate, and the duration of the
-			time interval.
-			All arguments must be float.
-			See https://drive.google.com/open?id=1fumERgNlwgWLeLsRaaWNCssZpIyo2Eu-D7AfDeXMGVY&authuser=0
-			*/
-		void ramp(String reqType, String tagStr, double initialReqPerSec,
-			double finalReqPerSec, double rampDurationInSec)
-		throws
-			NodeCannotKeepUp
-		{
-			System.out.println("ramp(" + initialReqPerSec + ", " + finalReqPerSec +
-				", " + rampDurationInSec + ")");
-			long initialRampTimeInMs = getCurRelativeTimeInMs();
-			long finalRampTimeInMs = initialRampTimeInMs + (long)rampDurationInSec * 1000;
-			double rampSlope = (finalReqPerSec - initialReqPerSec) / rampDurationInSec;
-
-			// Loop until we reach the final time for the ramp interval.
-			boolean pastFinalTimeForRamp = false;
-			double secThroughLoop = 0.0;
-			double computeTimeInSec = 0.0;
-			double secToNextRequest;
-			int i = 0;
-			while (! pastFinalTimeForRamp)
-			{
-				long loopStartTimeInMs = getCurRelativeTimeInMs();
-
-				double randomDouble = random().nextDouble();
-				double reqRate = rampSlope * (double)(loopStartTimeInMs - initialRampTimeInMs)/1000.0 + initialReqPerSec;
-				double secToEndOfRamp = (double)(finalRampTimeInMs - getCurRelativeTimeInMs())/1000.0;
-				if (secToEndOfRamp < 0.0) break;
-				double tEnd = secToEndOfRamp;
-				if (rampSlope < 0.0) // Deal with discontinuity in ramp function.
-				{
-					// Compute F for t=tEnd:
-					double f0 = 1.0 - Math.exp(-rampSlope * tEnd*tEnd / 2.0 - reqRate*tEnd);
-					// If ramp slope is negative, then F is undefined in <f0, 1>.
-					if (randomDouble > f0) // CDF is imaginary.
-						// The request occurs after the end of the ramp, so exit the ramp.
-						//System.out.println("CDF is imaginary:  f0=" + f0 +
-						//", randomDouble=" + randomDouble);
-						//System.out.println("\tT=" + tEnd + ", rampSlope=" + rampSlope +
-						//", reqRate=" + reqRate);
-						secToNextRequest = secToEndOfRamp;
-					else
-						secToNextRequest = icdf(rampSlope, reqRate, randomDouble);
-				}
-				else
-					secToNextRequest = icdf(rampSlope, reqRate, randomDouble);
-
-				// Install a governor.
-				if (reqRate > MaxRequestRate) throw new RuntimeException("Aborting: reqRate = " + reqRate);
 
-				// Check if the requests are falling behind the required request rate.
-				if (secToNextRequest < computeTimeInSec)
-				{
-					String msg = "Node cannot keep up with request rate of " + reqRate + "; " +
-							"secThroughLoop=" + secThroughLoop + "; compute time=" + computeTimeInSec;
-					setResultsSkewed(msg);
-					System.err.println("Warning - can't keep up");
-					if (TestRunner.abortIfTestsCannotAchieveProfile()) throw new NodeCannotKeepUp(msg);
-					System.err.println("Node was not able to maintain request rate at t=" +
-						getCurRelativeTimeInMs());
-				}
+		/** Build the alias tables, and the times at which the levels of the
+			distribution end, and then the arrival timeline. */
+		void startArrivals()
+		{
+			List<double[]> levels = distribution().levels();
+			thisLevelEnds = new long[levels.size()];
+			double t = 0.0;
+			for (int i = 0; i < levels.size(); i++)
+			{
+				t = t + levels.get(i)[1] * 60.0;
+				thisLevelEnds[i] = DeadlineClock.nanos(t);
+			}
 
-				// Check if we will go past the end of the ramp.
-				if (secToNextRequest >= secToEndOfRamp) try
-				{
-					pastFinalTimeForRamp = true;
-					Thread.sleep((long)secToEndOfRamp * 1000);
-					continue;
-				}
-				catch (InterruptedException ex) { throw new RuntimeException(ex); }
+			thisTable = aliasTable(thisMix);
+			for (Integer levelNo : thisLevelMixes.keySet())
+			{
+				if ((levelNo < 1) || (levelNo > levels.size())) throw new RuntimeException(
+					"Mix profile " + requestType() + " has a mix for level " + levelNo +
+					", but its distribution has " + levels.size() + " levels");
+				thisLevelTables.put(levelNo, aliasTable(thisLevelMixes.get(levelNo)));
+			}
+			super.startArrivals();
+		}
 
-				// Sleep until the next test must be initiated. Assuming that tests
-				// can be initiated as quickly as required, we achieve the required
-				// request rate.
-				i = i + 1;
-				System.out.println("For " +reqType + ", iter " + i +
-					", about to sleep " + secToNextRequest + " seconds:");
-				secToNextRequest = secToNextRequest - (getCurRelativeTimeInMs() - loopStartTimeInMs);
-				if (secToNextRequest <= 0.0)
-				{
-					String msg = "Node cannot keep up with request rate of " + reqRate + "; " +
-						"secThroughLoop=" + secThroughLoop + "; compute time=" + computeTimeInSec;
-					setResultsSkewed(msg);
-					if (TestRunner.abortIfTestsCannotAchieveProfile()) throw new NodeCannotKeepUp(msg);
-				}
-				else try
-				{
-					Thread.sleep((long)secToNextRequest*1000);
-					System.out.println("\tfor " + reqType + ", iter " + i +
-						", slept " + secToNextRequest + " seconds.");
-				}
-				catch (InterruptedException ex) { throw new RuntimeException(ex); }
 
-				// Invoke a test. This must be done as a non-blocking action.
-				reqRate = rampSlope * (double)(getCurRelativeTimeInMs() - initialRampTimeInMs)/1000.0 + initialReqPerSec;
+		/** Return the number (starting at 1) of the level of the distribution that
+			contains the specified time, in ns since the start of the run. A level
+			is the span of time of one call to Distribution.level, whatever the
+			segments of the rate function are. */
+		int levelAt(long nanos)
+		{
+			int i = Arrays.binarySearch(thisLevelEnds, nanos);
+			if (i >= 0) return i + 2;  // the end of a level is the start of the next
+			return -i;  // the insertion point, plus 1
+		}
 
-				// Perform in a manner that ensures isolation of the test
-				// from other tests. This does not block.
-				performOneRequest(reqType, tagStr, reqRate);
 
-				//sleep 2.0  //////// To test the "governor", uncomment this line.
-				secThroughLoop = (getCurRelativeTimeInMs() - loopStartTimeInMs)/1000.0;
-				computeTimeInSec = secThroughLoop - secToNextRequest;
+		AliasTable<StepType> aliasTable(Map<String, Double> mix)
+		{
+			Map<StepType, Double> weights = new LinkedHashMap<StepType, Double>();
+			for (String reqTypeName : mix.keySet())
+			{
+				StepType stepType = thisStepTypes.get(reqTypeName);
+				if (stepType == null) throw new RuntimeException(
+					"No tags were specified for mix request type " + reqTypeName);
+				weights.put(stepType, mix.get(reqTypeName));
 			}
+			return new AliasTable<StepType>(weights);
 		}
 
 
-		/** Inverse cumulative distribution function, for a "hazard function" of
-				lambda = a t + C
-			where a is the rate at which requests increase (i.e., the slope of the
-			ramp function), and C is the request rate at t=0. The hazard function
-			is simply the request rate. cp is the cumulative probability that a request
-			will have occurred before time t: the value of cp should be chosen using
-			a random variable with uniform distribution between 0 and 1.
-			See https://drive.google.com/open?id=1X3S8DdAt4GHZkcIgyxDM8re2-Op9ZHXPoxaczOdVQjk&authuser=0
-			See also this article: http://data.princeton.edu/wws509/notes/c7.pdf
-			*/
-		double icdf(double a, double c, double cp)
+		/** Perform the request type that is chosen for the arrival. */
+		void performOneRequest(String reqType, String tagStr, double reqRate, long intendedNanos)
 		{
-			try
-			{
-				if (a == 0.0)
-					return (- Math.log(1.0 - cp) / c);
-				else
-					return (-c + Math.sqrt((c*c) - (2.0 * a * Math.log(1.0 - cp)))) / a ;
-			}
-			catch (Exception ex)
+			AliasTable<StepType> table = thisLevelTables.get(levelAt(intendedNanos));
+			if (table == null) table = thisTable;
+			StepType stepType = table.sample(random());
+			thisCounts.merge(stepType, 1L, Long::sum);
+			stepType.performOneRequest(stepType.requestType(), stepType.tagString(),
+				new Double(reqRate), intendedNanos);
+		}
+
+
+		synchronized void close()
+		{
+			super.close();
+			for (StepType stepType : thisStepTypes.values()) stepType.close();
+		}
+
+
+		/** Wait until the end of the Distribution, and then until the requests of
+			every request type of the mix are done. */
+		void complete()
+		{
+			super.complete();
+			for (StepType stepType : thisStepTypes.values())
 			{
-				System.err.println("icdf: ta=" + a + ", c=" + c + ", cp=" + cp +
-					", log(1-cp)=" + Math.log(1.0-cp));
-				throw new RuntimeException(ex);
+				stepType.awaitRequests();
+				System.out.println("Mix " + requestType() + ": " + stepType.requestType() + ": " +
+					thisCounts.getOrDefault(stepType, 0L) + " requests");
 			}
 		}
 	}
@@ -1,9 +1,14 @@
 package loadgen.testrunner;
 
 
+import loadgen.TestRunnerConstants;
 import java.io.File;
 import java.io.PrintWriter;
-import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 //import java.util.jar.*;
 //import java.util.function.*;
 //import java.util.*;
@@ -22,7 +27,8 @@ public class TestRunnerUtil
     	when it ends. */
     public static void timelogBeginTest()
     {
-        timelogBegin(WholeTest);
+        WholeTestTimer.begin();
+        markStage(RequestStages.Stage.TestBegin);
     }
 
 
@@ -30,16 +36,19 @@ public class TestRunnerUtil
     	of a "WholeTest" event. */
     public static void timelogEndTest()
     {
-        timelogEnd(WholeTest);
+        WholeTestTimer.end();
+        markStage(RequestStages.Stage.TestEnd);
     }
 
 
     /** Log the begin time of a test activity (event) within a test. The event
     	is uniquely identified by the request type, the request id, and the activity's
-    	name (aka, the 'event' name). */
+    	name (aka, the 'event' name). This looks up the timer of the name on each
+    	call: a test that logs events at a high rate should obtain the timer once
+    	(see timer) and call its begin and end methods. */
     public static void timelogBegin(String name)
     {
-        try { writeDetailedTimeLogEntry(name, "Begin"); }
+        try { timer(name).begin(); }
         catch (Exception ex) { ex.printStackTrace(System.err); }
     }
 
@@ -50,32 +59,106 @@ public class TestRunnerUtil
     	be a call to timelogEnd (this is a runtime requirement: not a static code requirement). */
     public static void timelogEnd(String name)
     {
-        try { writeDetailedTimeLogEntry(name, "End"); }
+        try { timer(name).end(); }
         catch (Exception ex) { ex.printStackTrace(System.err); }
     }
 
 
+    /** Return the timer of the specified event name, creating it if it does not
+    	exist. A test can obtain its timers once, e.g. in static fields of its step
+    	class,
+
+    		static final TestRunnerUtil.Timer QueryTimer = TestRunnerUtil.timer("Query");
+    		...
+    		QueryTimer.begin();
+    		...
+    		QueryTimer.end();
+
+    	and then logging an event does not allocate any objects, or build any
+    	strings: begin and end only store the time in a buffer of the current
+    	request, which the TestRunner logs when the request is done. The name
+    	'EndToEnd' is reserved. */
+    public static Timer timer(String name)
+    {
+        Timer timer = thisTimers.get(name);
+        if (timer != null) return timer;
+        if (name.equals(TestRunnerConstants.EndToEnd))
+        	throw new RuntimeException("The name '" + name + "' is reserved");
+        return thisTimers.computeIfAbsent(name, (n) -> new Timer(n, thisNoOfTimers.getAndIncrement()));
+    }
+
+
+    /** The begin and end times of an event, which are logged for the request that
+    	is current on the calling thread (see timer). */
+    public static final class Timer
+    {
+        private final String thisName;
+        private final int thisId;
+
+        private Timer(String name, int id)
+        {
+            thisName = name;
+            thisId = id;
+        }
+
+        public String getName()
+        {
+            return thisName;
+        }
+
+        /** Log the begin time of the event. */
+        public void begin()
+        {
+            RequestContext context = localContext.get();
+            if (context != null) context.events.begin(this, TestRunner.getCurRelativeTimeInMicros());
+        }
+
+        /** Log the end time of the event: every begin must have a corresponding end. */
+        public void end()
+        {
+            RequestContext context = localContext.get();
+            if (context != null) context.events.end(this, TestRunner.getCurRelativeTimeInMicros());
+        }
+
+        /** Log the event, with times, in microseconds since the start of the run,
+        	that are known, in the specified events of a request: as for the stages
+        	of a request (see RequestStages). */
+        void log(RequestEvents events, long beginMicros, long endMicros)
+        {
+            events.add(this, beginMicros, endMicros);
+        }
+
+        int id()
+        {
+            return thisId;
+        }
+    }
+
+
     // Test context methods: call these methods to read test context variables.
 
 
     /** Each test invocation is provided a unique Id. This Id is returned by this method. */
     public static Long getTestId()
     {
-    	return localTestId.get();
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.id);
     }
 
 
     /** The RequestType for which this test invocation is being run. */
     public static String getRequestType()
     {
-    	return localRequestType.get();
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.reqType);
     }
 
 
     /** Time (ms) since start of the entire Performance or Functional TestRun. */
     public static Long getTimeOffset()
     {
-    	return localTimeOffset.get();
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.timeOffset);
     }
 
 
@@ -84,7 +167,30 @@ public class TestRunnerUtil
     	this method is called. */
     public static Double getRequestRate()
     {
-    	return localRequestRate.get();
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.reqRate);
+    }
+
+
+
+    /** Only applies if the test is a step of a session (see SessionProfile).
+    	Otherwise, returns null. Return the id of the session, which is shared by
+    	all of the session's steps. */
+    public static Long getSessionId()
+    {
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.sessionId);
+    }
+
+
+    /** Only applies if the test is a step of a session. Otherwise, returns null.
+    	Return the state of the session: a map in which a step can store values,
+    	such as cookies and tokens, for the session's later steps. The steps of a
+    	session run one at a time, in the same class loader. */
+    public static Map<String, Object> getSessionState()
+    {
+    	RequestContext context = localContext.get();
+    	return (context == null ? null : context.sessionState);
     }
 
 
@@ -93,41 +199,195 @@ public class TestRunnerUtil
     	Tests should not need to call any methods below this point. */
 
 
-    private static ThreadLocal<Long> localTestId = new InheritableThreadLocal<Long>();
-    private static ThreadLocal<String> localRequestType = new InheritableThreadLocal<String>();
-    private static ThreadLocal<Long> localTimeOffset = new InheritableThreadLocal<Long>();
-    private static ThreadLocal<Double> localRequestRate = new InheritableThreadLocal<Double>();
+    /** The context of the request that is current on a thread. A thread that a
+    	test starts inherits the context of the request that started it. */
+    private static ThreadLocal<RequestContext> localContext = new InheritableThreadLocal<RequestContext>();
+    private static ThreadLocal<RequestEvents> localEventBuffer = new ThreadLocal<RequestEvents>();  // reused by each request of a thread
+
+    private static ConcurrentHashMap<String, Timer> thisTimers = new ConcurrentHashMap<String, Timer>();
+    private static AtomicInteger thisNoOfTimers = new AtomicInteger();
+    private static final Timer WholeTestTimer = timer(TestRunnerConstants.WholeTest);
 
     private static String thisResultsDir = System.getenv("RESULTS_DIR");
     private static String thisDetailtimelogfileName = resultsDir() + "/detailtimelog.csv";
-    private static String thisLockfile = resultsDir() + "/detaillockfile";
+    private static TimeLogWriter thisDetailTimeLogWriter;
+    private static BinaryTimeLogWriter thisBinaryTimeLogWriter;
+
+
+    /** The context of one request: what the context methods return while the
+    	request is performed, together with the request's stages and detail events.
+    	TestRunner creates a context for each request and sets it on the thread that
+    	performs the request (see setContext), and then reads the stages and events
+    	from the context itself, not from whichever thread it is on. */
+    static final class RequestContext
+    {
+    	private Long id;
+    	private String reqType;
+    	private Long timeOffset;
+    	private Double reqRate;
+    	private Long sessionId;
+    	private Map<String, Object> sessionState;
+    	private RequestStages stages;
+    	private final RequestEvents events;
+
+    	/** reqRate is null if the request is not part of a performance run. The
+    		events are recorded in the buffer of the calling thread, which is reused
+    		for each request that the thread performs: so the context must be
+    		created by the thread that performs the request. */
+    	RequestContext(long id, String reqType, long timeOffset, Double reqRate)
+    	{
+    		this(id, reqType, timeOffset, reqRate, eventBuffer());
+    	}
+
+    	private RequestContext()
+    	{
+    		this.events = new RequestEvents();
+    	}
+
+    	/** events is null if the request is not performed (e.g. it was dropped),
+    		and so has no events. */
+    	RequestContext(long id, String reqType, long timeOffset, Double reqRate,
+    		RequestEvents events)
+    	{
+    		this.id = new Long(id);
+    		this.reqType = reqType;
+    		this.timeOffset = new Long(timeOffset);
+    		this.reqRate = reqRate;
+    		this.events = events;
+    	}
+
+    	/** Make the request a step of the specified session. */
+    	RequestContext inSession(long sessionId, Map<String, Object> state)
+    	{
+    		this.sessionId = new Long(sessionId);
+    		this.sessionState = state;
+    		return this;
+    	}
+
+    	/** Set the stages of the request, if stage times are being recorded. */
+    	void setStages(RequestStages stages)
+    	{
+    		this.stages = stages;
+    	}
+
+    	Long id() { return id; }
+
+    	String requestType() { return reqType; }
+
+    	Double requestRate() { return reqRate; }
+
+    	RequestStages stages() { return stages; }
+
+    	RequestEvents events() { return events; }
+    }
+
+
+    /** Return the current context, creating an empty one if there is none, for the
+    	setters below. */
+    private static RequestContext currentContext()
+    {
+    	RequestContext context = localContext.get();
+    	if (context == null)
+    	{
+    		context = new RequestContext();
+    		localContext.set(context);
+    	}
+    	return context;
+    }
+
+
+    /** Return the calling thread's event buffer, cleared. */
+    private static RequestEvents eventBuffer()
+    {
+    	RequestEvents events = localEventBuffer.get();
+    	if (events == null)
+    	{
+    		events = new RequestEvents();
+    		localEventBuffer.set(events);
+    	}
+    	else events.clear();
+    	return events;
+    }
 
 
     /** Called by TestRunner - tests do not need to call this. */
     public static void setUniqueId(long id)
     {
-    	localTestId.set(new Long(id));
+    	currentContext().id = new Long(id);
     }
 
 
     /** Called by TestRunner - tests do not need to call this. */
     public static void setRequestType(String reqType)
     {
-    	localRequestType.set(reqType);
+    	currentContext().reqType = reqType;
     }
 
 
     /** Called by TestRunner - tests do not need to call this. */
     public static void setTimeOffset(long timeOffset)
     {
-    	localTimeOffset.set(new Long(timeOffset));
+    	currentContext().timeOffset = new Long(timeOffset);
     }
 
 
     /** Called by TestRunner - tests do not need to call this. */
     public static void setRequestRate(double reqRate)
     {
-    	localRequestRate.set(new Double(reqRate));
+    	currentContext().reqRate = new Double(reqRate);
+    }
+
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Make the specified context that of the calling thread, which performs the
+    	request. The context is set explicitly, rather than inherited from the
+    	thread that scheduled the request, because a request runs on a pooled
+    	worker thread (and its stories run on the same thread - see EmbedderPool). */
+    static void setContext(RequestContext context)
+    {
+    	localContext.set(context);
+    }
+
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Create a context for a request, and make it that of the calling thread. */
+    static RequestContext setContext(long id, String reqType, long timeOffset, Double reqRate)
+    {
+    	RequestContext context = new RequestContext(id, reqType, timeOffset, reqRate);
+    	setContext(context);
+    	return context;
+    }
+
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Remove the context of a request from the current thread. */
+    static void clearContext()
+    {
+    	localContext.remove();
+    }
+
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Record the detail events of the specified request in the histograms, as
+    	events of a request that passed or failed. If raw time logs are being
+    	written, return the events, so that their entries can be written. The
+    	events are those of the context, whichever thread this is called on. */
+    static List<RequestEvents.Event> recordEvents(RequestContext context, HistogramRecorder recorder,
+    	boolean success, long endMicros)
+    {
+    	if (context.events == null) return Collections.emptyList();
+    	return context.events.record(recorder, context.reqType, success, endMicros,
+    		TestRunner.rawTimeLogs());
+    }
+
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Record that the current request has reached the specified stage. Does
+    	nothing if stage times are not being recorded. */
+    static void markStage(RequestStages.Stage stage)
+    {
+    	RequestContext context = localContext.get();
+    	if ((context != null) && (context.stages != null)) context.stages.mark(stage);
     }
 
 
@@ -142,36 +402,60 @@ public class TestRunnerUtil
     }
 
 
-    static void writeDetailedTimeLogEntry(String name, String beginOrEnd) throws IOException
+    /** Called by TestRunner - tests do not need to call this.
+    	Start the thread that writes the detail time log. */
+    static void openDetailTimeLog()
     {
-        if (name.equals("EndToEnd")) throw new RuntimeException("The name 'EndToEnd' is reserved");
-        String reqType = getRequestType();
-        Long id = getTestId();
-        Double reqRate = getRequestRate();
-        Long timeOffset = getTimeOffset();
-        long timeMs = System.currentTimeMillis() - timeOffset.longValue();
-        int timeout = 10;  // flock will timeout after this number of seconds.
-        String command = "echo " + reqType + ", " + id + ", " + name + ", " + reqRate +
-        	", " + beginOrEnd + ", " + timeMs + "ms >> " + thisDetailtimelogfileName;
-        try { Runtime.getRuntime().exec(
-        	"flock -w " + timeout + " " + thisLockfile + " -c \"" + command + "\"").waitFor(); }
-        catch (InterruptedException ex) { ex.printStackTrace(System.err); }
+        thisDetailTimeLogWriter = new TimeLogWriter(thisDetailtimelogfileName);
+    }
 
-        // debug
-        // puts "Wrote detail entry, reqType=#{reqType}, ID=#{id}, name=#{name}, reqRate=#{reqRate}, beginOrEnd=#{beginOrEnd}, time=#{time.to_f}"
-        // end debug
+
+    /** Called by TestRunner - tests do not need to call this.
+    	Write any queued entries and close the detail time log. */
+    static void closeDetailTimeLog()
+    {
+        if (thisDetailTimeLogWriter != null) thisDetailTimeLogWriter.close();
     }
 
 
-    static String detailtimelogfileName()
+    /** Called by TestRunner - tests do not need to call this.
+    	Write detail events to the specified binary time log, instead of to the
+    	detail time log. */
+    static void useBinaryTimeLog(BinaryTimeLogWriter writer)
     {
-       return thisDetailtimelogfileName;
+        thisBinaryTimeLogWriter = writer;
+    }
+
+
+    /** Log the begin and end of a detail event of the specified request, when the
+    	request is done (see TestRunner.writeTimeLogEntry). If the event did not end
+    	(endMicros is RequestEvents.NoTime), only its begin is logged. */
+    static void writeRawDetailEntry(String reqType, Long id, Double reqRate, String name,
+    	long beginMicros, long endMicros)
+    {
+        boolean ended = (endMicros != RequestEvents.NoTime);
+        boolean written;
+        if (thisBinaryTimeLogWriter != null)
+        {
+            double rate = (reqRate == null ? Double.NaN : reqRate.doubleValue());
+            written = thisBinaryTimeLogWriter.writeDetail(reqType, name, id.longValue(), rate, true, beginMicros) &&
+            	((! ended) || thisBinaryTimeLogWriter.writeDetail(reqType, name, id.longValue(), rate, false, endMicros));
+        }
+        else if (thisDetailTimeLogWriter != null)
+        {
+            String prefix = reqType + ", " + id + ", " + name + ", " + reqRate;
+            written = thisDetailTimeLogWriter.writeLine(prefix + ", Begin, " + (beginMicros / 1000) + "ms") &&
+            	((! ended) || thisDetailTimeLogWriter.writeLine(prefix + ", End, " + (endMicros / 1000) + "ms"));
+        }
+        else
+        	throw new RuntimeException("Detail time log has not been opened");
+        if (! written) System.out.println("ERROR: Unable to write to detail log; entry was dropped");
     }
 
 
-    static String lockfile()
+    static String detailtimelogfileName()
     {
-        return thisLockfile;
+       return thisDetailtimelogfileName;
     }
 
 
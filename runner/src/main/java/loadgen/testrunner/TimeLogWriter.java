@@ -0,0 +1,297 @@
+package loadgen.testrunner;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/** Appends entries to a time log file from within the TestRunner process.
+	Any number of worker threads may call write: entries are placed on a lock-free
+	queue, and a single writer thread drains the queue into a buffer that is
+	appended to the file with NIO. The buffer is flushed when it is full, when
+	FlushIntervalMs has elapsed since the last flush, and when the log is closed.
+	If the queue holds more than the maximum number of entries (because the disk
+	cannot keep up), new entries are dropped and counted rather than blocking the
+	test that is writing them.
+	Closing waits until no thread is within write, so that every entry that write
+	has accepted is in the queue before the writer thread drains it for the last
+	time. If the writer thread cannot write to the file, every later entry is
+	dropped (write returns false), and close reports the failure. */
+class TimeLogWriter
+{
+	private static int DefaultMaxQueueDepth = 1000000;
+	private static int BufferSize = 64 * 1024;
+	private static long FlushIntervalMs = 500;
+
+	private String thisPath;
+	private int thisMaxQueueDepth;
+	private FileChannel thisChannel;
+	private ByteBuffer thisBuffer = ByteBuffer.allocateDirect(BufferSize);
+	private ConcurrentLinkedQueue<byte[]> thisQueue = new ConcurrentLinkedQueue<byte[]>();
+	private AtomicInteger thisQueueDepth = new AtomicInteger(0);
+	private AtomicInteger thisMaxObservedQueueDepth = new AtomicInteger(0);
+	private AtomicLong thisDroppedCount = new AtomicLong(0);
+	private AtomicLong thisWrittenCount = new AtomicLong(0);
+	private long thisLastFlushTime;
+	private volatile boolean thisClosed = false;
+	private volatile boolean thisQuiesced = false;  // closed, and no write is in progress
+	private AtomicInteger thisWritesInProgress = new AtomicInteger(0);
+	private volatile IOException thisFailure;
+	private Thread thisWriterThread;
+	private Thread thisShutdownHook;
+
+
+	TimeLogWriter(String path)
+	{
+		this(path, DefaultMaxQueueDepth);
+	}
+
+
+	/** Open (for append) the specified file and start the writer thread. */
+	TimeLogWriter(String path, int maxQueueDepth)
+	{
+		thisPath = path;
+		thisMaxQueueDepth = maxQueueDepth;
+		try
+		{
+			thisChannel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		catch (IOException ex) { throw new RuntimeException(ex); }
+
+		thisLastFlushTime = System.currentTimeMillis();
+		thisWriterThread = new Thread(new Runnable()
+		{
+			public void run() { drain(); }
+		}, "TimeLogWriter:" + path);
+		thisWriterThread.setDaemon(true);
+		thisWriterThread.start();
+
+		// Make sure that buffered entries reach the disk even if the JVM is
+		// terminated before close is called. The hook is removed by close; a
+		// failure is reported rather than thrown, since the JVM is exiting anyway.
+		thisShutdownHook = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try { close(); }
+				catch (RuntimeException ex) { System.err.println("ERROR: " + ex.getMessage()); }
+			}
+		}, "TimeLogWriter shutdown:" + path);
+		Runtime.getRuntime().addShutdownHook(thisShutdownHook);
+	}
+
+
+	String path()
+	{
+		return thisPath;
+	}
+
+
+	/** Queue a line of text to be appended to the log. A newline is added. */
+	boolean writeLine(String line)
+	{
+		return write((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/** Queue an already-encoded entry to be appended to the log. Non-blocking.
+		Returns false if the entry was dropped. */
+	boolean write(byte[] entry)
+	{
+		return write(entry, false);
+	}
+
+
+	/** Queue an entry that must not be dropped because the queue is full, such as
+		a record that later entries depend on. Such entries must be few, since they
+		are not bounded by the maximum queue depth. Returns false only if the log is
+		closed or cannot be written. */
+	boolean writeRequired(byte[] entry)
+	{
+		return write(entry, true);
+	}
+
+
+	boolean write(byte[] entry, boolean required)
+	{
+		thisWritesInProgress.incrementAndGet();
+		try
+		{
+			if (thisClosed || (thisFailure != null))
+			{
+				thisDroppedCount.incrementAndGet();
+				return false;
+			}
+
+			int depth = thisQueueDepth.incrementAndGet();
+			if ((depth > thisMaxQueueDepth) && (! required))
+			{
+				thisQueueDepth.decrementAndGet();
+				thisDroppedCount.incrementAndGet();
+				return false;
+			}
+
+			thisQueue.offer(entry);
+			thisMaxObservedQueueDepth.accumulateAndGet(depth, Math::max);
+			if (depth == 1) LockSupport.unpark(thisWriterThread);  // writer may be idle
+			return true;
+		}
+		finally
+		{
+			thisWritesInProgress.decrementAndGet();
+		}
+	}
+
+
+	/** Return the number of entries that are waiting to be written. */
+	int queueDepth()
+	{
+		return thisQueueDepth.get();
+	}
+
+
+	/** Return the largest number of entries that were waiting at any one time. */
+	int maxQueueDepth()
+	{
+		return thisMaxObservedQueueDepth.get();
+	}
+
+
+	/** Return the number of entries that could not be queued. */
+	long droppedCount()
+	{
+		return thisDroppedCount.get();
+	}
+
+
+	/** Return the number of entries that have been written to the file. */
+	long writtenCount()
+	{
+		return thisWrittenCount.get();
+	}
+
+
+	/** Write all queued entries, stop the writer thread, and close the file.
+		May be called more than once. Throws an exception if the file could not be
+		written. */
+	void close()
+	{
+		synchronized (this)
+		{
+			if (thisClosed) return;
+			thisClosed = true;
+		}
+
+		if (Thread.currentThread() != thisShutdownHook)
+		{
+			try { Runtime.getRuntime().removeShutdownHook(thisShutdownHook); }
+			catch (IllegalStateException ex) { /* the JVM is shutting down */ }
+		}
+
+		// A write that began before thisClosed was set may not have queued its
+		// entry yet: wait for it, so that the entry is not left behind.
+		while (thisWritesInProgress.get() > 0) Thread.yield();
+		thisQuiesced = true;
+
+		LockSupport.unpark(thisWriterThread);
+		try { thisWriterThread.join(); }
+		catch (InterruptedException ex) { throw new RuntimeException(ex); }
+
+		System.out.println("Closed time log " + thisPath + ": " + writtenCount() +
+			" entries written, " + droppedCount() + " dropped, max queue depth " +
+			maxQueueDepth());
+		if (thisFailure != null) throw new RuntimeException(
+			"Unable to write to log " + thisPath + "; " + droppedCount() + " entries were dropped",
+			thisFailure);
+	}
+
+
+	/** Return the error that stopped the writer thread, or null if there was none. */
+	IOException failure()
+	{
+		return thisFailure;
+	}
+
+
+	/** Body of the writer thread. */
+	void drain()
+	{
+		try
+		{
+			for (;;)
+			{
+				byte[] entry = thisQueue.poll();
+				if (entry == null)
+				{
+					if (thisQuiesced && thisQueue.isEmpty()) break;
+					if ((thisBuffer.position() > 0) &&
+						(System.currentTimeMillis() - thisLastFlushTime >= FlushIntervalMs))
+						flush();
+					LockSupport.parkNanos(FlushIntervalMs * 1000000L);
+					continue;
+				}
+
+				thisQueueDepth.decrementAndGet();
+				append(entry);
+			}
+
+			flush();
+			thisChannel.close();
+		}
+		catch (IOException ex)
+		{
+			System.err.println("ERROR: Unable to write to log " + thisPath +
+				"; all further entries will be dropped");
+			ex.printStackTrace(System.err);
+			thisFailure = ex;
+
+			// Discard what is queued, counting it as dropped. A write that is in
+			// progress either sees the failure or queues an entry that is counted here.
+			for (;;)
+			{
+				boolean idle = (thisWritesInProgress.get() == 0);
+				if (thisQueue.poll() != null)
+				{
+					thisQueueDepth.decrementAndGet();
+					thisDroppedCount.incrementAndGet();
+				}
+				else if (idle) break;
+			}
+			try { thisChannel.close(); }
+			catch (IOException ex2) { /* already reported */ }
+		}
+	}
+
+
+	void append(byte[] entry) throws IOException
+	{
+		if (entry.length > thisBuffer.remaining()) flush();
+		if (entry.length > thisBuffer.capacity())
+		{
+			// Too large to buffer: write it directly.
+			ByteBuffer bb = ByteBuffer.wrap(entry);
+			while (bb.hasRemaining()) thisChannel.write(bb);
+		}
+		else
+			thisBuffer.put(entry);
+		thisWrittenCount.incrementAndGet();
+	}
+
+
+	void flush() throws IOException
+	{
+		thisBuffer.flip();
+		while (thisBuffer.hasRemaining()) thisChannel.write(thisBuffer);
+		thisBuffer.clear();
+		thisLastFlushTime = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,167 @@
+package loadgen.testrunner;
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/** Streams the arrivals of a trace file (see loadgen.profile.TraceProfile) from disk,
+	on a thread of its own, into a bounded queue, so that a trace of any size can be
+	replayed with a fixed amount of memory. The reader keeps only this node's share
+	of the trace (see Sharding), and converts each arrival's timestamp into a deadline:
+	nanoseconds since the start of the run, measured from the first arrival of the
+	whole trace, and multiplied by the time scale. The reader stays up to the queue's
+	capacity ahead of the dispatcher; if the disk cannot keep up, the dispatcher
+	waits, and the wait shows up as lag. */
+class TraceReader implements Runnable
+{
+	static int DefaultCapacity = 8192;
+
+	enum Sharding { RoundRobin, Hash }
+
+	/** One arrival of the trace. label is null if the line has no label. */
+	static class Arrival
+	{
+		final long deadline;
+		final String label;
+
+		Arrival(long deadline, String label)
+		{
+			this.deadline = deadline;
+			this.label = label;
+		}
+	}
+
+	/** Marks the end of the trace in the queue. */
+	private static final Arrival End = new Arrival(Long.MAX_VALUE, null);
+
+	private String thisPath;
+	private double thisTimeScale;
+	private Sharding thisSharding;
+	private int thisNoOfNodes;
+	private int thisNodeIndex;
+	private BlockingQueue<Arrival> thisQueue;
+	private volatile RuntimeException thisFailure;
+	private long thisNoOfLines = 0;
+	private long thisNoOfArrivals = 0;
+	private long thisNoOfReorderedArrivals = 0;
+
+
+	TraceReader(String path, double timeScale, Sharding sharding, int noOfNodes, int nodeIndex)
+	{
+		thisPath = path;
+		thisTimeScale = timeScale;
+		thisSharding = sharding;
+		thisNoOfNodes = Math.max(1, noOfNodes);
+		thisNodeIndex = nodeIndex;
+		thisQueue = new ArrayBlockingQueue<Arrival>(DefaultCapacity);
+	}
+
+
+	static Sharding parseSharding(String sharding)
+	{
+		if (sharding.equals("roundrobin")) return Sharding.RoundRobin;
+		if (sharding.equals("hash")) return Sharding.Hash;
+		throw new RuntimeException("Unrecognized sharding: " + sharding);
+	}
+
+
+	/** Start reading the trace, on a thread of its own. */
+	void start()
+	{
+		Thread t = new Thread(this, "trace-reader");
+		t.setDaemon(true);
+		t.start();
+	}
+
+
+	/** Return the next arrival for this node, or null if there are no more. Waits
+		if the reader has not yet read the next arrival. */
+	Arrival next()
+	{
+		Arrival arrival;
+		try { arrival = thisQueue.take(); }
+		catch (InterruptedException ex) { throw new RuntimeException(ex); }
+		if (arrival != End) return arrival;
+
+		thisQueue.offer(End);  // so that subsequent calls also return null
+		if (thisFailure != null) throw thisFailure;
+		return null;
+	}
+
+
+	long noOfLines() { return thisNoOfLines; }
+
+	long noOfArrivals() { return thisNoOfArrivals; }
+
+	long noOfReorderedArrivals() { return thisNoOfReorderedArrivals; }
+
+
+	public void run()
+	{
+		try (BufferedReader file = new BufferedReader(new FileReader(thisPath), 1 << 16))
+		{
+			double firstTimestamp = Double.NaN;
+			long previousDeadline = 0;
+			long recordNo = 0;
+			for (String line = file.readLine(); line != null; line = file.readLine())
+			{
+				thisNoOfLines = thisNoOfLines + 1;
+				line = line.trim();
+				if (line.equals("") || line.startsWith("#")) continue;
+
+				String[] fields = line.split(",");
+				double timestamp;
+				try { timestamp = Double.parseDouble(fields[0].trim()); }
+				catch (NumberFormatException ex) { throw new RuntimeException(
+					"Invalid timestamp on line " + thisNoOfLines + " of " + thisPath + ": " + fields[0]); }
+				if (Double.isNaN(firstTimestamp)) firstTimestamp = timestamp;
+
+				long n = recordNo;
+				recordNo = recordNo + 1;
+				if (! isForThisNode(n, fields)) continue;
+
+				// Deadlines must not decrease; an arrival that is out of order in the
+				// trace is replayed at the time of the arrival before it.
+				long deadline = DeadlineClock.nanos((timestamp - firstTimestamp) * thisTimeScale);
+				if (deadline < previousDeadline)
+				{
+					deadline = previousDeadline;
+					thisNoOfReorderedArrivals = thisNoOfReorderedArrivals + 1;
+				}
+				previousDeadline = deadline;
+
+				String label = (fields.length > 1 ? fields[1].trim() : null);
+				if ((label != null) && label.equals("")) label = null;
+				thisQueue.put(new Arrival(deadline, label));
+				thisNoOfArrivals = thisNoOfArrivals + 1;
+			}
+		}
+		catch (IOException ex) { thisFailure = new RuntimeException(ex); }
+		catch (RuntimeException ex) { thisFailure = ex; }
+		catch (InterruptedException ex) { thisFailure = new RuntimeException(ex); }
+		finally
+		{
+			try { thisQueue.put(End); }
+			catch (InterruptedException ex) { thisQueue.offer(End); }
+		}
+	}
+
+
+	/** Return true if the record (numbered from 0) is this node's to replay. */
+	boolean isForThisNode(long recordNo, String[] fields)
+	{
+		if (thisNoOfNodes == 1) return true;
+		long selector;
+		if ((thisSharding == Sharding.Hash) && (fields.length > 2))
+			selector = fields[2].trim().hashCode();
+		else if (thisSharding == Sharding.Hash)
+			selector = Long.hashCode(recordNo * 0x9E3779B97F4A7C15L);  // no key: scatter the records
+		else
+			selector = recordNo;
+		return Math.floorMod(selector, (long)thisNoOfNodes) == thisNodeIndex;
+	}
+}
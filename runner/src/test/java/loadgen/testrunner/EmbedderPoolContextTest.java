@@ -0,0 +1,103 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import org.jbehave.core.annotations.Given;
+import org.jbehave.core.embedder.Embedder;
+import org.jbehave.core.model.Story;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/** Check that the steps of a request that is run by a pooled Embedder see the
+	context of that request, and not the context of an earlier request that was
+	run by the same Embedder. */
+public class EmbedderPoolContextTest
+{
+	/** Records the id of the request that performs its step. */
+	public static class RecordingSteps
+	{
+		static List<Long> thisIds = Collections.synchronizedList(new Vector<Long>());
+
+		@Given("a request")
+		public void aRequest()
+		{
+			thisIds.add(TestRunnerUtil.getTestId());
+		}
+	}
+
+
+	@Test
+	public void eachRequestOfAPooledEmbedderSeesItsOwnId() throws Exception
+	{
+		RecordingSteps.thisIds.clear();
+		StepClassLoaderPool loaders = new StepClassLoaderPool(StepClassLoaderPool.Isolation.PerProfile,
+			new Vector<String>(), Integer.MAX_VALUE, Long.MAX_VALUE);
+		EmbedderPool pool = new EmbedderPool(Arrays.asList(RecordingSteps.class.getName()), true);
+		List<Embedder> used = new Vector<Embedder>();
+
+		performRequest(loaders, pool, 1, used);
+		performRequest(loaders, pool, 2, used);
+		pool.close();
+
+		assertEquals(2, used.size());
+		assertSame("The second request did not reuse the pooled Embedder", used.get(0), used.get(1));
+		assertEquals(1, pool.created());
+		assertEquals(Arrays.asList(new Long(1), new Long(2)), RecordingSteps.thisIds);
+	}
+
+
+	/** Perform many requests with one pooled Embedder. Each request's story must be
+		run once, by itself: the stories of earlier requests must not be kept, and
+		run again, by the Embedder. */
+	@Test
+	public void manyRequestsAreRunByOnePooledEmbedder() throws Exception
+	{
+		RecordingSteps.thisIds.clear();
+		StepClassLoaderPool loaders = new StepClassLoaderPool(StepClassLoaderPool.Isolation.PerProfile,
+			new Vector<String>(), Integer.MAX_VALUE, Long.MAX_VALUE);
+		EmbedderPool pool = new EmbedderPool(Arrays.asList(RecordingSteps.class.getName()), true);
+		List<Embedder> used = new Vector<Embedder>();
+
+		int noOfRequests = 500;
+		List<Long> ids = new Vector<Long>();
+		for (long id = 1; id <= noOfRequests; id++)
+		{
+			performRequest(loaders, pool, id, used);
+			ids.add(id);
+		}
+		pool.close();
+
+		assertEquals(1, pool.created());
+		assertEquals(1, new HashSet<Embedder>(used).size());
+		assertEquals(ids, RecordingSteps.thisIds);
+	}
+
+
+	/** Perform a request with the specified id on a new thread, as a worker does:
+		set its context, and run its story with an Embedder from the pool. */
+	private void performRequest(final StepClassLoaderPool loaders, final EmbedderPool pool,
+		final long id, final List<Embedder> used) throws Exception
+	{
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(() ->
+		{
+			TestRunnerUtil.setContext(id, "Context", 0, new Double(1.0));
+			try
+			{
+				StepClassLoaderPool.CachingClassLoader loader = loaders.acquire(this);
+				Embedder embedder = pool.borrow(loader);
+				used.add(embedder);
+				Story story = embedder.configuration().storyParser().parseStory(
+					"Scenario: a request\nGiven a request\n", "context.story");
+				EmbedderPool.runStories(embedder, Arrays.asList(story));
+				pool.giveBack(embedder, loader, false);
+			}
+			catch (Throwable ex) { failure[0] = ex; }
+			finally { TestRunnerUtil.clearContext(); }
+		});
+		thread.start();
+		thread.join();
+		if (failure[0] != null) throw new RuntimeException(failure[0]);
+	}
+}
@@ -0,0 +1,87 @@
+package loadgen.testrunner;
+
+
+import loadgen.profile.*;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/** Check that a mix profile whose distribution has an overlay keeps the levels of
+	the distribution, so that its level mixes apply to the spans of time of those
+	levels, when the profile is written by the controller and read by the node. */
+public class MixProfileLevelsTest
+{
+	@Test
+	public void levelMixesApplyToTheLevelsOfAnOverlaidDistribution() throws Exception
+	{
+		final List<double[]> levels = Arrays.asList(new double[] { 2.0, 1.0 }, new double[] { 4.0, 2.0 });
+		final RateFunction rate = RateFunction.ramp(levels).plus(RateFunction.spike(1.5, 10.0, 0.1, 0.1));
+		final Map<String, Double> mix = new LinkedHashMap<String, Double>();
+		mix.put("Browse", 70.0);
+		mix.put("Buy", 30.0);
+		final Map<Integer, Map<String, Double>> levelMixes = new TreeMap<Integer, Map<String, Double>>();
+		levelMixes.put(2, Collections.singletonMap("Buy", 1.0));
+
+		MixProfileWriter writer = new MixProfileWriter()
+		{
+			public String getTestRunType() { return "Mix"; }
+			public String getRequestTypeName() { return "Shop"; }
+			public List<String> getTags() { return new Vector<String>(); }
+			public int getNoOfNodes() { return 1; }
+			public List<double[]> getLevels() { return levels; }
+			public RateFunction getRateFunction() { return rate; }
+			public Map<String, Double> getMix() { return mix; }
+			public Map<Integer, Map<String, Double>> getLevelMixes() { return levelMixes; }
+			public Set<String> getRequestTypeNames() { return mix.keySet(); }
+			public List<String> getTags(String reqTypeName) { return Arrays.asList("@" + reqTypeName); }
+		};
+
+		File file = File.createTempFile("MixProfile", ".txt");
+		file.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+		{
+			out.print(writer.getProfileDefinition());
+		}
+
+		invoke(null, TestRunner.class, "buildMixProfile", file.getPath());
+		List<?> profiles = (List<?>)invoke(null, TestRunner.class, "profiles");
+		Object profile = profiles.get(profiles.size() - 1);
+		invoke(profile, profile.getClass(), "startArrivals");
+
+		// The rate is that of the overlay, not of the levels alone.
+		Object distribution = invoke(profile, profile.getClass(), "distribution");
+		RateFunction nodeRate = (RateFunction)invoke(distribution, distribution.getClass(), "rateFunction");
+		assertEquals(rate.rate(95.0), nodeRate.rate(95.0), 0.000001);
+
+		// The levels end at 1 minute and at 3 minutes.
+		assertEquals(1, levelAt(profile, 30.0));
+		assertEquals(2, levelAt(profile, 60.0));
+		assertEquals(2, levelAt(profile, 179.0));
+		assertEquals(3, levelAt(profile, 181.0));
+	}
+
+
+	static int levelAt(Object profile, double seconds) throws Exception
+	{
+		return (Integer)invoke(profile, profile.getClass(), "levelAt", DeadlineClock.nanos(seconds));
+	}
+
+
+	/** Call a method of a class that is private to the TestRunner, or of one of
+		its superclasses. */
+	static Object invoke(Object target, Class<?> c, String name, Object... args) throws Exception
+	{
+		for (; c != null; c = c.getSuperclass())
+			for (Method method : c.getDeclaredMethods())
+			{
+				if (! method.getName().equals(name)) continue;
+				if (method.getParameterCount() != args.length) continue;
+				method.setAccessible(true);
+				return method.invoke(target, args);
+			}
+		throw new NoSuchMethodException(name);
+	}
+}
@@ -0,0 +1,196 @@
+package loadgen.testrunner;
+
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/** Check the saturation policies of a RequestExecutor, the completion of its Groups,
+	and the reuse of its workers. */
+public class RequestExecutorTest
+{
+	private RequestExecutor thisExecutor;
+
+
+	@After
+	public void shutdown()
+	{
+		if (thisExecutor != null) thisExecutor.shutdown();
+	}
+
+
+	@Test
+	public void aDroppedRequestCountsAsFinished() throws Exception
+	{
+		thisExecutor = newExecutor(1, RequestExecutor.Saturation.Drop);
+		RequestExecutor.Group group = thisExecutor.newGroup("Drop", 1);
+		CountDownLatch proceed = new CountDownLatch(1);
+		final AtomicInteger dropped = new AtomicInteger(0);
+
+		Counter first = new Counter(proceed);
+		group.submit(first);
+		first.awaitStarted();
+		group.submit(new Counter(null)
+		{
+			public void dropped() { dropped.incrementAndGet(); }
+		});
+
+		assertEquals(1, dropped.get());
+		assertEquals(1, thisExecutor.dropped());
+		assertEquals(1, group.outstanding());  // only the request that is in flight
+
+		group.schedulingDone();
+		assertFalse(group.awaitCompletion(100, TimeUnit.MILLISECONDS));
+		proceed.countDown();
+		assertTrue(group.awaitCompletion(5, TimeUnit.SECONDS));
+		assertEquals(0, group.outstanding());
+		assertEquals(1, thisExecutor.started());
+	}
+
+
+	@Test
+	public void completionWaitsForSchedulingToBeDone() throws Exception
+	{
+		thisExecutor = newExecutor(2, RequestExecutor.Saturation.Queue);
+		RequestExecutor.Group group = thisExecutor.newGroup("Queue", 2);
+		Counter counter = new Counter(null);
+		for (int i = 0; i < 10; i++) group.submit(counter);
+		while (group.outstanding() > 0) Thread.sleep(1);
+		assertEquals(10, counter.performed());
+
+		// Every submitted request has finished, but more might be submitted.
+		assertFalse(group.awaitCompletion(100, TimeUnit.MILLISECONDS));
+		group.schedulingDone();
+		assertTrue(group.awaitCompletion(5, TimeUnit.SECONDS));
+
+		// A group to which nothing is submitted completes when its scheduling is done.
+		RequestExecutor.Group empty = thisExecutor.newGroup("Empty", 2);
+		assertFalse(empty.awaitCompletion(10, TimeUnit.MILLISECONDS));
+		empty.schedulingDone();
+		assertTrue(empty.awaitCompletion(0, TimeUnit.MILLISECONDS));
+	}
+
+
+	@Test
+	public void queuedRequestsUseNoMoreWorkersThanMaxInFlight() throws Exception
+	{
+		checkWorkers(RequestExecutor.Saturation.Queue);
+	}
+
+
+	@Test
+	public void blockedRequestsUseNoMoreWorkersThanMaxInFlight() throws Exception
+	{
+		checkWorkers(RequestExecutor.Saturation.Block);
+	}
+
+
+	/** Submit many requests, for two groups, from two scheduler threads, and check
+		that they are all performed with no more workers, and no more requests in
+		flight, than the node's limit. */
+	void checkWorkers(RequestExecutor.Saturation saturation) throws Exception
+	{
+		final int maxInFlight = 4;
+		final int noOfRequests = 500;
+		thisExecutor = newExecutor(maxInFlight, saturation);
+		final Counter counter = new Counter(null);
+		List<RequestExecutor.Group> groups = new ArrayList<RequestExecutor.Group>();
+		List<Thread> schedulers = new ArrayList<Thread>();
+		for (int g = 0; g < 2; g++)
+		{
+			final RequestExecutor.Group group = thisExecutor.newGroup("Group" + g, 3);
+			groups.add(group);
+			Thread scheduler = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					for (int i = 0; i < noOfRequests; i++) group.submit(counter);
+					group.schedulingDone();
+				}
+			});
+			schedulers.add(scheduler);
+			scheduler.start();
+		}
+
+		for (Thread scheduler : schedulers) scheduler.join();
+		for (RequestExecutor.Group group : groups)
+			assertTrue(group.awaitCompletion(30, TimeUnit.SECONDS));
+
+		assertEquals(2 * noOfRequests, counter.performed());
+		assertEquals(2 * noOfRequests, thisExecutor.started());
+		assertEquals(0, thisExecutor.dropped());
+		assertTrue(thisExecutor.noOfWorkers() <= maxInFlight);
+		assertTrue(thisExecutor.peakInFlight() <= maxInFlight);
+		assertTrue(counter.peakConcurrent() <= maxInFlight);
+		assertEquals(0, thisExecutor.inFlight());
+	}
+
+
+	static RequestExecutor newExecutor(int maxInFlight, RequestExecutor.Saturation saturation)
+	{
+		return new RequestExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "request-worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}, maxInFlight, saturation);
+	}
+
+
+	/** A request that counts its performances and how many are concurrent. If given
+		a latch, each performance waits for the latch. */
+	static class Counter implements RequestExecutor.Request
+	{
+		private CountDownLatch thisProceed;
+		private CountDownLatch thisStarted = new CountDownLatch(1);
+		private AtomicInteger thisPerformed = new AtomicInteger(0);
+		private AtomicInteger thisConcurrent = new AtomicInteger(0);
+		private AtomicInteger thisPeakConcurrent = new AtomicInteger(0);
+
+		Counter(CountDownLatch proceed)
+		{
+			thisProceed = proceed;
+		}
+
+		public void perform()
+		{
+			thisPeakConcurrent.accumulateAndGet(thisConcurrent.incrementAndGet(), Math::max);
+			thisStarted.countDown();
+			try
+			{
+				if (thisProceed != null) thisProceed.await();
+				else LockSupport.parkNanos(100000);
+			}
+			catch (InterruptedException ex) { throw new RuntimeException(ex); }
+			finally
+			{
+				thisConcurrent.decrementAndGet();
+				thisPerformed.incrementAndGet();
+			}
+		}
+
+		public void dropped()
+		{
+			fail("Unexpected drop");
+		}
+
+		void awaitStarted() throws InterruptedException
+		{
+			assertTrue(thisStarted.await(5, TimeUnit.SECONDS));
+		}
+
+		int performed() { return thisPerformed.get(); }
+
+		int peakConcurrent() { return thisPeakConcurrent.get(); }
+	}
+}
@@ -0,0 +1,124 @@
+package loadgen.testrunner;
+
+
+import java.io.*;
+import java.util.*;
+import org.jbehave.core.model.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+/** Check that a profile's tag line selects scenarios as Cucumber's --tags do: the
+	--tags groups are combined with AND, the tags of a comma-separated group with
+	OR, a tag prefixed by ~ excludes, and a scenario inherits the meta of its story. */
+public class StoryIndexTest
+{
+	static Meta meta(String... names)
+	{
+		Properties properties = new Properties();
+		for (String name : names) properties.setProperty(name, "");
+		return new Meta(properties);
+	}
+
+
+	@Test
+	public void everyGroupMustBeSatisfied()
+	{
+		StoryIndex.TagFilter filter = StoryIndex.TagFilter.parse("--tags @Logon --tags @Admin");
+		assertTrue(filter.allow(meta("Logon", "Admin")));
+		assertFalse(filter.allow(meta("Logon")));
+		assertFalse(filter.allow(meta("Admin")));
+	}
+
+
+	@Test
+	public void anyTagOfACommaGroupSatisfiesIt()
+	{
+		StoryIndex.TagFilter filter = StoryIndex.TagFilter.parse("--tags @Logon --tags @Admin,@User");
+		assertTrue(filter.allow(meta("Logon", "Admin")));
+		assertTrue(filter.allow(meta("Logon", "User")));
+		assertFalse(filter.allow(meta("Logon")));
+		assertFalse(filter.allow(meta("User")));
+	}
+
+
+	@Test
+	public void aTildeExcludesATag()
+	{
+		StoryIndex.TagFilter filter = StoryIndex.TagFilter.parse("--tags @Logon --tags ~@Future");
+		assertTrue(filter.allow(meta("Logon")));
+		assertFalse(filter.allow(meta("Logon", "Future")));
+
+		// Within a group, an excluded tag is one of the alternatives.
+		filter = StoryIndex.TagFilter.parse("--tags @Admin,~@Future");
+		assertTrue(filter.allow(meta("Admin", "Future")));
+		assertTrue(filter.allow(meta("User")));
+		assertFalse(filter.allow(meta("Future")));
+	}
+
+
+	@Test
+	public void anEmptyTagLineSelectsEverything()
+	{
+		assertTrue(StoryIndex.TagFilter.parse("").allow(meta()));
+		assertTrue(StoryIndex.TagFilter.parse(null).allow(meta("Future")));
+	}
+
+
+	@Test
+	public void equalFiltersHaveTheSameForm()
+	{
+		StoryIndex.TagFilter filter = StoryIndex.TagFilter.parse("--tags @Logon --tags @Admin,@User --tags ~@Future");
+		assertEquals("+Logon & (+Admin | +User) & -Future", filter.toString());
+		assertEquals(filter, StoryIndex.TagFilter.parse("--tags  Logon   --tags @Admin,@User --tags ~Future"));
+	}
+
+
+	@Test
+	public void aScenarioInheritsTheMetaOfItsStory() throws Exception
+	{
+		File file = File.createTempFile("Shop", ".story");
+		file.deleteOnExit();
+		try (PrintWriter out = new PrintWriter(new FileWriter(file)))
+		{
+			out.println("Meta:");
+			out.println("@Shop");
+			out.println();
+			out.println("Scenario: admin logs on");
+			out.println("Meta:");
+			out.println("@Logon @Admin");
+			out.println();
+			out.println("Given a step");
+			out.println();
+			out.println("Scenario: user logs on in the future");
+			out.println("Meta:");
+			out.println("@Logon @User @Future");
+			out.println();
+			out.println("Given a step");
+			out.println();
+			out.println("Scenario: user browses");
+			out.println("Meta:");
+			out.println("@Browse @User");
+			out.println();
+			out.println("Given a step");
+		}
+		StoryIndex index = new StoryIndex(new StoryCache(Arrays.asList(file.getPath())));
+
+		assertEquals(Arrays.asList("admin logs on", "user logs on in the future", "user browses"),
+			titles(index, "--tags @Shop"));
+		assertEquals(Arrays.asList("admin logs on"),
+			titles(index, "--tags @Shop --tags @Logon --tags ~@User"));
+		assertEquals(Arrays.asList("user browses"),
+			titles(index, "--tags @Shop --tags @Browse,@Admin --tags ~@Logon"));
+		assertEquals(new Vector<String>(), titles(index, "--tags ~@Shop"));
+	}
+
+
+	static List<String> titles(StoryIndex index, String tagString)
+	{
+		List<String> titles = new Vector<String>();
+		for (Story story : index.stories(StoryIndex.TagFilter.parse(tagString)))
+			for (Scenario scenario : story.getScenarios()) titles.add(scenario.getTitle());
+		return titles;
+	}
+}